@@ -112,6 +112,51 @@ public interface Constants {
      */
     String MESSAGE_CHARSET = "UTF-8";
 
+    /**
+     * The version of the original text based network protocol.
+     * Used for clients that don't tell which versions they support.
+     */
+    int PROTOCOL_VERSION_TEXT = 1;
+
+    /**
+     * The version of the compact binary network protocol.
+     * Only used with clients that support it.
+     */
+    int PROTOCOL_VERSION_BINARY = 2;
+
+    /**
+     * The version of the binary network protocol that can compress the payload of chat messages.
+     * Clients supporting this also support {@link #PROTOCOL_VERSION_BINARY}.
+     */
+    int PROTOCOL_VERSION_COMPRESSED = 3;
+
+    /**
+     * The version where tcp connections can switch to frames with a varint length and standard UTF-8.
+     * Clients supporting this also support {@link #PROTOCOL_VERSION_COMPRESSED}.
+     */
+    int PROTOCOL_VERSION_TCP_FRAMING = 4;
+
+    /**
+     * The version where messages can have a sequence number, so the same message can be sent over both
+     * multicast and tcp, and the first copy to arrive is kept.
+     * Clients supporting this also support {@link #PROTOCOL_VERSION_TCP_FRAMING}.
+     */
+    int PROTOCOL_VERSION_SEQUENCE_NUMBERS = 5;
+
+    /**
+     * The version where senders keep their latest multicast messages, and send them again
+     * when a receiver reports them as lost with a NACK.
+     * Clients supporting this also support {@link #PROTOCOL_VERSION_SEQUENCE_NUMBERS}.
+     */
+    int PROTOCOL_VERSION_RELIABLE_MULTICAST = 6;
+
+    /**
+     * The version where multicast packets can be sent in groups with parity packets, so receivers
+     * can rebuild lost packets without asking for them again.
+     * Clients supporting this also support {@link #PROTOCOL_VERSION_RELIABLE_MULTICAST}.
+     */
+    int PROTOCOL_VERSION_FEC = 7;
+
     /**
      * Max number of bytes allowed in a message to send
      * over a udp connection.
@@ -50,6 +50,7 @@ import org.dynamicsoft.vertochat.net.FileReceiver;
 import org.dynamicsoft.vertochat.net.FileSender;
 import org.dynamicsoft.vertochat.net.FileToSend;
 import org.dynamicsoft.vertochat.net.FileTransfer;
+import org.dynamicsoft.vertochat.net.NetworkChangeSource;
 import org.dynamicsoft.vertochat.net.TransferList;
 import org.dynamicsoft.vertochat.ui.ChatWindow;
 import org.dynamicsoft.vertochat.ui.UserInterface;
@@ -613,4 +614,8 @@ public class AndroidUserInterface implements UserInterface, ChatWindow {
     public void registerNetworkConnectionListener(final NetworkConnectionListener listener) {
         controller.registerNetworkConnectionListener(listener);
     }
+
+    public void setNetworkChangeSource(final NetworkChangeSource networkChangeSource) {
+        controller.setNetworkChangeSource(networkChangeSource);
+    }
 }
@@ -0,0 +1,85 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.android.service;
+
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+
+import org.dynamicsoft.vertochat.event.NetworkChangeListener;
+import org.dynamicsoft.vertochat.net.NetworkChangeSource;
+import org.dynamicsoft.vertochat.util.Validate;
+
+/**
+ * A {@link NetworkChangeSource} that gets told by Android when the default network changes,
+ * so there is no need to look for changes in the network interfaces.
+ *
+ * @author Christian Ihle
+ */
+public class AndroidNetworkChangeSource implements NetworkChangeSource {
+
+    private final ConnectivityManager connectivityManager;
+
+    private ConnectivityManager.NetworkCallback networkCallback;
+
+    public AndroidNetworkChangeSource(final ConnectivityManager connectivityManager) {
+        Validate.notNull(connectivityManager, "Connectivity manager can not be null");
+
+        this.connectivityManager = connectivityManager;
+    }
+
+    @Override
+    public synchronized void start(final NetworkChangeListener listener) {
+        Validate.notNull(listener, "Network change listener can not be null");
+
+        if (networkCallback != null) {
+            return;
+        }
+
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(final Network network) {
+                listener.networkChanged();
+            }
+
+            @Override
+            public void onLost(final Network network) {
+                listener.networkChanged();
+            }
+
+            @Override
+            public void onLinkPropertiesChanged(final Network network, final LinkProperties linkProperties) {
+                listener.networkChanged();
+            }
+        };
+
+        connectivityManager.registerDefaultNetworkCallback(networkCallback);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (networkCallback != null) {
+            connectivityManager.unregisterNetworkCallback(networkCallback);
+            networkCallback = null;
+        }
+    }
+}
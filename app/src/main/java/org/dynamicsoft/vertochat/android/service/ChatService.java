@@ -24,6 +24,7 @@ package org.dynamicsoft.vertochat.android.service;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.net.ConnectivityManager;
 import android.net.wifi.WifiManager;
 import android.os.IBinder;
 import android.os.PowerManager;
@@ -66,6 +67,10 @@ public class ChatService extends Service {
         final PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
         lockHandler = new LockHandler(androidUserInterface, settings, wifiManager, powerManager);
 
+        final ConnectivityManager connectivityManager =
+                (ConnectivityManager) getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        androidUserInterface.setNetworkChangeSource(new AndroidNetworkChangeSource(connectivityManager));
+
         chatServiceBinder = new ChatServiceBinder(androidUserInterface);
 
         super.onCreate();
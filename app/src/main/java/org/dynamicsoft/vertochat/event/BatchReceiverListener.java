@@ -0,0 +1,42 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.event;
+
+/**
+ * A {@link ReceiverListener} that can receive several messages at once, when a receiver
+ * drains more than one message from the network in the same wakeup.
+ *
+ * @author Christian Ihle
+ */
+public interface BatchReceiverListener extends ReceiverListener {
+
+    /**
+     * Called when one or more messages arrive over the network.
+     * <p>
+     * <p>The arrays are reused by the receiver, and are only valid during this call.</p>
+     *
+     * @param messages    The messages that arrived.
+     * @param ipAddresses The ip addresses of the users that sent the messages.
+     * @param count       The number of messages in the arrays.
+     */
+    void messagesArrived(String[] messages, String[] ipAddresses, int count);
+}
@@ -0,0 +1,40 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.event;
+
+import org.dynamicsoft.vertochat.net.MessageEnvelope;
+
+/**
+ * A {@link ReceiverListener} that can receive messages that have already been decoded,
+ * to avoid parsing the same message more than once.
+ *
+ * @author Christian Ihle
+ */
+public interface EnvelopeReceiverListener extends ReceiverListener {
+
+    /**
+     * Called when a decoded message arrives over the network.
+     *
+     * @param envelope The decoded message.
+     */
+    void envelopeArrived(MessageEnvelope envelope);
+}
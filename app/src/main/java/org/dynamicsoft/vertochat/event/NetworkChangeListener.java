@@ -0,0 +1,41 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.event;
+
+import org.dynamicsoft.vertochat.net.NetworkChangeSource;
+
+/**
+ * Implement this interface and give it to a {@link NetworkChangeSource}
+ * to get notified when something has changed in the network setup of the device.
+ *
+ * @author Christian Ihle
+ */
+public interface NetworkChangeListener {
+
+    /**
+     * A network interface was added, removed, went up or down, or got new addresses.
+     * <p>
+     * <p>The notification is only a hint that the network should be checked again.
+     * It may come from any thread, and several changes in a row are common.</p>
+     */
+    void networkChanged();
+}
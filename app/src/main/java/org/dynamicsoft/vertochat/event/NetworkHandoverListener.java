@@ -0,0 +1,47 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.event;
+
+import org.dynamicsoft.vertochat.settings.Settings;
+
+import java.net.NetworkInterface;
+
+/**
+ * Implement this interface in a {@link NetworkConnectionListener} to move over to a new network interface
+ * without the network going down, when {@link Settings#isNetworkHandover() network handover} is enabled.
+ * <p>
+ * <p>Connection listeners that don't implement this interface are notified that the network went down
+ * and came up again, like before.</p>
+ *
+ * @author Christian Ihle
+ */
+public interface NetworkHandoverListener extends NetworkConnectionListener {
+
+    /**
+     * The network is still up, but is now using a different network interface. Listeners are notified
+     * in the order they were registered.
+     *
+     * @param oldNetworkInterface The network interface that was used until now.
+     * @param newNetworkInterface The network interface to use from now on.
+     */
+    void networkHandedOver(NetworkInterface oldNetworkInterface, NetworkInterface newNetworkInterface);
+}
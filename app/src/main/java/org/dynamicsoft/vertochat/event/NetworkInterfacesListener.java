@@ -0,0 +1,44 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.event;
+
+import org.dynamicsoft.vertochat.net.ConnectionWorker;
+
+import java.net.NetworkInterface;
+import java.util.List;
+
+/**
+ * Implement this interface and register as a listener with
+ * {@link ConnectionWorker#registerNetworkInterfacesListener(NetworkInterfacesListener)}
+ * to get notified when the usable network interfaces change while the network is up.
+ *
+ * @author Christian Ihle
+ */
+public interface NetworkInterfacesListener {
+
+    /**
+     * A usable network interface was added or removed, or got new addresses.
+     *
+     * @param usableNetworkInterfaces All the usable network interfaces.
+     */
+    void usableNetworkInterfacesChanged(List<NetworkInterface> usableNetworkInterfaces);
+}
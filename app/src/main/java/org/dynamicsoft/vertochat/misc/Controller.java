@@ -26,6 +26,7 @@ import org.dynamicsoft.vertochat.autocomplete.AutoCompleter;
 import org.dynamicsoft.vertochat.autocomplete.CommandAutoCompleteList;
 import org.dynamicsoft.vertochat.autocomplete.UserAutoCompleteList;
 import org.dynamicsoft.vertochat.event.NetworkConnectionListener;
+import org.dynamicsoft.vertochat.event.NetworkHandoverListener;
 import org.dynamicsoft.vertochat.jmx.JMXBeanLoader;
 import org.dynamicsoft.vertochat.message.CoreMessages;
 import org.dynamicsoft.vertochat.net.AsyncMessageResponderWrapper;
@@ -34,10 +35,14 @@ import org.dynamicsoft.vertochat.net.DefaultPrivateMessageResponder;
 import org.dynamicsoft.vertochat.net.FileReceiver;
 import org.dynamicsoft.vertochat.net.FileSender;
 import org.dynamicsoft.vertochat.net.FileToSend;
+import org.dynamicsoft.vertochat.net.FloodFilter;
 import org.dynamicsoft.vertochat.net.MessageParser;
 import org.dynamicsoft.vertochat.net.MessageResponder;
+import org.dynamicsoft.vertochat.net.MessageType;
+import org.dynamicsoft.vertochat.net.NetworkChangeSource;
 import org.dynamicsoft.vertochat.net.NetworkMessages;
 import org.dynamicsoft.vertochat.net.NetworkService;
+import org.dynamicsoft.vertochat.net.PeerAddressCache;
 import org.dynamicsoft.vertochat.net.PrivateMessageParser;
 import org.dynamicsoft.vertochat.net.PrivateMessageResponder;
 import org.dynamicsoft.vertochat.net.TransferList;
@@ -50,6 +55,7 @@ import org.dynamicsoft.vertochat.util.Tools;
 import org.dynamicsoft.vertochat.util.Validate;
 import org.jetbrains.annotations.Nullable;
 
+import java.net.NetworkInterface;
 import java.util.List;
 
 /**
@@ -63,7 +69,7 @@ import java.util.List;
  *
  * @author Christian Ihle
  */
-public class Controller implements NetworkConnectionListener {
+public class Controller implements NetworkHandoverListener, FloodFilter.RepeatListener {
 
     /**
      * The time to wait after the network is up before logon is set as completed.
@@ -79,6 +85,7 @@ public class Controller implements NetworkConnectionListener {
     private final NetworkMessages networkMessages;
     private final IdleThread idleThread;
     private final TransferList tList;
+    private final PeerAddressCache peerAddressCache;
     private final WaitingList wList;
     private final User me;
     private final UserInterface ui;
@@ -128,7 +135,9 @@ public class Controller implements NetworkConnectionListener {
         me = settings.getMe();
         userListController = new UserListController(settings);
         chatState = new ChatState();
-        tList = new TransferList();
+        peerAddressCache = new PeerAddressCache();
+        userListController.getUserList().addUserListListener(peerAddressCache);
+        tList = new TransferList(peerAddressCache);
         wList = new WaitingList();
         idleThread = new IdleThread(this, ui, settings);
         dayTimer = new DayTimer(ui);
@@ -678,6 +687,15 @@ public class Controller implements NetworkConnectionListener {
         return tList;
     }
 
+    /**
+     * Gets the cache of network addresses to the other users.
+     *
+     * @return The cache of addresses.
+     */
+    public PeerAddressCache getPeerAddressCache() {
+        return peerAddressCache;
+    }
+
     /**
      * Gets the list of unidentified users.
      *
@@ -843,6 +861,54 @@ public class Controller implements NetworkConnectionListener {
         }
     }
 
+    /**
+     * Sends a single idle message, so the other users see the new ip address, instead of asking every user
+     * to expose themselves again. The users are still there, so there is nothing to show the user.
+     *
+     * @param oldNetworkInterface The network interface that was used until now.
+     * @param newNetworkInterface The network interface to use from now on.
+     */
+    @Override
+    public void networkHandedOver(final NetworkInterface oldNetworkInterface, final NetworkInterface newNetworkInterface) {
+        // Network changed during a logon
+        if (!isLoggedOn()) {
+            networkWentDown(true);
+            networkCameUp(true);
+        }
+
+        // Network changed while logged on
+        else {
+            networkMessages.sendIdleMessage();
+        }
+    }
+
+    /**
+     * Shows how many times the last chat message from a user was repeated, in the chat where the message was shown,
+     * instead of showing every repeat.
+     *
+     * @param userCode The user code of the sender.
+     * @param type     The type of the message, {@link MessageType#MSG} or {@link MessageType#PRIVMSG}.
+     * @param times    The number of repeats that were not shown.
+     */
+    @Override
+    public void messageRepeated(final int userCode, final MessageType type, final int times) {
+        final User user = getUser(userCode);
+
+        if (user == null) {
+            return;
+        }
+
+        final String message = coreMessages.getMessage("core.network.systemMessage.messageRepeated", user.getNick(), times);
+
+        if (type == MessageType.PRIVMSG) {
+            if (user.getPrivchat() != null) {
+                msgController.showPrivateSystemMessage(user, message);
+            }
+        } else {
+            msgController.showSystemMessage(message);
+        }
+    }
+
     /**
      * Gets the chat state.
      *
@@ -864,4 +930,8 @@ public class Controller implements NetworkConnectionListener {
     public void registerNetworkConnectionListener(final NetworkConnectionListener listener) {
         networkService.registerNetworkConnectionListener(listener);
     }
+
+    public void setNetworkChangeSource(final NetworkChangeSource networkChangeSource) {
+        networkService.setNetworkChangeSource(networkChangeSource);
+    }
 }
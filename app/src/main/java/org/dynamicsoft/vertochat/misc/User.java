@@ -21,6 +21,7 @@
 
 package org.dynamicsoft.vertochat.misc;
 
+import org.dynamicsoft.vertochat.Constants;
 import org.dynamicsoft.vertochat.ui.PrivateChatWindow;
 import org.jetbrains.annotations.Nullable;
 
@@ -75,6 +76,16 @@ public class User implements Comparable<User> {
      */
     private boolean tcpEnabled;
 
+    /**
+     * The newest version of the network protocol supported by this user's client.
+     */
+    private volatile int protocolVersion;
+
+    /**
+     * Whether this user's client asks for lost multicast messages again with NACKs.
+     */
+    private volatile boolean nackEnabled;
+
     /**
      * The time when the last idle message came from this user.
      */
@@ -149,6 +160,8 @@ public class User implements Comparable<User> {
         newMsg = false;
         privateChatPort = 0;
         tcpChatPort = 0;
+        protocolVersion = Constants.PROTOCOL_VERSION_TEXT;
+        nackEnabled = false;
         privchat = null;
         online = true;
         newPrivMsg = false;
@@ -166,6 +179,8 @@ public class User implements Comparable<User> {
         newMsg = false;
         privateChatPort = 0;
         tcpChatPort = 0;
+        protocolVersion = Constants.PROTOCOL_VERSION_TEXT;
+        nackEnabled = false;
         privchat = null;
         newPrivMsg = false;
     }
@@ -433,6 +448,50 @@ public class User implements Comparable<User> {
         this.tcpChatPort = tcpChatPort;
     }
 
+    /**
+     * Gets the newest version of the network protocol supported by this user's client.
+     *
+     * @return The protocol version.
+     * @see Constants#PROTOCOL_VERSION_TEXT
+     * @see Constants#PROTOCOL_VERSION_BINARY
+     * @see Constants#PROTOCOL_VERSION_COMPRESSED
+     * @see Constants#PROTOCOL_VERSION_TCP_FRAMING
+     * @see Constants#PROTOCOL_VERSION_SEQUENCE_NUMBERS
+     * @see Constants#PROTOCOL_VERSION_RELIABLE_MULTICAST
+     * @see Constants#PROTOCOL_VERSION_FEC
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * Sets the newest version of the network protocol supported by this user's client.
+     *
+     * @param protocolVersion The protocol version.
+     */
+    public void setProtocolVersion(final int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * Gets whether this user's client asks for lost multicast messages again with NACKs.
+     * Supporting {@link Constants#PROTOCOL_VERSION_RELIABLE_MULTICAST} is not enough, as it's optional.
+     *
+     * @return If NACKs are enabled.
+     */
+    public boolean isNackEnabled() {
+        return nackEnabled;
+    }
+
+    /**
+     * Sets whether this user's client asks for lost multicast messages again with NACKs.
+     *
+     * @param nackEnabled If NACKs are enabled.
+     */
+    public void setNackEnabled(final boolean nackEnabled) {
+        this.nackEnabled = nackEnabled;
+    }
+
     /**
      * Gets whether a tcp connection is enabled for this user.
      *
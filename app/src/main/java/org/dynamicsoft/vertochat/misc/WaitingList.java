@@ -21,26 +21,31 @@
 
 package org.dynamicsoft.vertochat.misc;
 
-import java.util.HashSet;
-import java.util.Set;
-
 /**
  * This waiting list is used to store unknown users while asking them to
  * identify. Usually it's users that timed out at some point, and are returning.
  * By doing this, messages from unknown users can be held back until they
  * have identified themselves.
+ * <p>
+ * <p>The user codes are kept in a hash set of primitive ints, using open addressing, so checking a user
+ * does not create objects. All methods are synchronized, since messages arrive on several threads.</p>
  *
  * @author Christian Ihle
  */
 public class WaitingList {
 
-    private final Set<Integer> users;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] userCodes;
+    private boolean[] used;
+    private int size;
 
     /**
      * Constructor.
      */
     public WaitingList() {
-        users = new HashSet<>();
+        userCodes = new int[INITIAL_CAPACITY];
+        used = new boolean[INITIAL_CAPACITY];
     }
 
     /**
@@ -48,8 +53,18 @@ public class WaitingList {
      *
      * @param userCode The unique code of the user to add.
      */
-    public void addWaitingUser(final int userCode) {
-        users.add(userCode);
+    public synchronized void addWaitingUser(final int userCode) {
+        if (indexOf(userCode) >= 0) {
+            return;
+        }
+
+        // Keep at least half the slots free, so the probe sequences stay short
+        if ((size + 1) * 2 > userCodes.length) {
+            resize(userCodes.length * 2);
+        }
+
+        insert(userCode);
+        size++;
     }
 
     /**
@@ -58,8 +73,8 @@ public class WaitingList {
      * @param userCode The unique code of the user to check for.
      * @return If the user is on the waiting list.
      */
-    public boolean isWaitingUser(final int userCode) {
-        return users.contains(userCode);
+    public synchronized boolean isWaitingUser(final int userCode) {
+        return indexOf(userCode) >= 0;
     }
 
     /**
@@ -67,7 +82,87 @@ public class WaitingList {
      *
      * @param userCode The unique code of the user to remove.
      */
-    public void removeWaitingUser(final int userCode) {
-        users.remove(userCode);
+    public synchronized void removeWaitingUser(final int userCode) {
+        int index = indexOf(userCode);
+
+        if (index < 0) {
+            return;
+        }
+
+        final int mask = userCodes.length - 1;
+        used[index] = false;
+        size--;
+
+        // Move back the following user codes in the same probe sequence, so none of them end up after a free slot
+        int next = (index + 1) & mask;
+
+        while (used[next]) {
+            final int home = slotOf(userCodes[next]);
+
+            if (((next - home) & mask) >= ((next - index) & mask)) {
+                userCodes[index] = userCodes[next];
+                used[index] = true;
+                used[next] = false;
+                index = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+    }
+
+    /**
+     * Gets the number of users on the waiting list.
+     *
+     * @return The number of waiting users.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private int indexOf(final int userCode) {
+        final int mask = userCodes.length - 1;
+        int index = slotOf(userCode);
+
+        while (used[index]) {
+            if (userCodes[index] == userCode) {
+                return index;
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    private void insert(final int userCode) {
+        final int mask = userCodes.length - 1;
+        int index = slotOf(userCode);
+
+        while (used[index]) {
+            index = (index + 1) & mask;
+        }
+
+        userCodes[index] = userCode;
+        used[index] = true;
+    }
+
+    private void resize(final int capacity) {
+        final int[] oldUserCodes = userCodes;
+        final boolean[] oldUsed = used;
+
+        userCodes = new int[capacity];
+        used = new boolean[capacity];
+
+        for (int i = 0; i < oldUserCodes.length; i++) {
+            if (oldUsed[i]) {
+                insert(oldUserCodes[i]);
+            }
+        }
+    }
+
+    private int slotOf(final int userCode) {
+        final int hash = userCode * 0x9E3779B9;
+
+        return (hash ^ (hash >>> 16)) & (userCodes.length - 1);
     }
 }
@@ -24,11 +24,20 @@ package org.dynamicsoft.vertochat.net;
 import org.dynamicsoft.vertochat.misc.Controller;
 import org.dynamicsoft.vertochat.misc.User;
 import org.dynamicsoft.vertochat.misc.WaitingList;
-import org.dynamicsoft.vertochat.util.Sleeper;
+import org.dynamicsoft.vertochat.util.Logger;
 import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Wrapper around a real {@link MessageResponder} that handles operations that need to be async and
@@ -41,18 +50,40 @@ import java.util.concurrent.Executors;
  * <p>Some operations handles users appearing unexpectedly, from a timeout, or because of packet loss.
  * Those will add the user to a waiting list, ask the user to identify, and then wait for it to happen,
  * before continuing.</p>
+ * <p>
+ * <p>Operations waiting for a user are kept in a pending queue for that user, in the order they arrived.
+ * The queue is replayed as soon as the user has identified with {@link #userLogOn(User)} or
+ * {@link #userExposing(User)}, or when the user has not identified within {@link #IDENTIFY_TIMEOUT_MS},
+ * so no threads are waiting.</p>
  *
  * @author Christian Ihle
  */
 public class AsyncMessageResponderWrapper implements MessageResponder {
 
-    private final Sleeper sleeper = new Sleeper();
+    private static final Logger LOG = Logger.getLogger(AsyncMessageResponderWrapper.class);
+
+    /**
+     * How long to wait for an unknown user to identify before replaying the pending operations anyway.
+     */
+    static final long IDENTIFY_TIMEOUT_MS = 2000;
+
+    /**
+     * The max number of pending operations for one user. Later operations are dropped.
+     */
+    static final int MAX_PENDING_OPERATIONS = 100;
+
     private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService timer = createTimer();
 
     private final MessageResponder messageResponder;
     private final Controller controller;
     private final WaitingList waitingList;
 
+    /**
+     * The operations waiting for each unknown user. Guarded by itself.
+     */
+    private final Map<Integer, PendingOperations> pendingOperations = new HashMap<>();
+
     public AsyncMessageResponderWrapper(final MessageResponder messageResponder, final Controller controller) {
         Validate.notNull(messageResponder, "MessageResponder can not be null");
         Validate.notNull(controller, "Controller can not be null");
@@ -70,12 +101,9 @@ public class AsyncMessageResponderWrapper implements MessageResponder {
     public void messageArrived(final int userCode, final String msg, final int color) {
         // A little hack to stop messages from showing before the user is logged on
         if (controller.isNewUser(userCode)) {
-            askUserToIdentify(userCode);
-
-            executorService.execute(new Runnable() {
+            holdUntilIdentified(userCode, new Runnable() {
                 @Override
                 public void run() {
-                    waitForUserToIdentify(userCode);
                     messageResponder.messageArrived(userCode, msg, color);
                 }
             });
@@ -138,6 +166,7 @@ public class AsyncMessageResponderWrapper implements MessageResponder {
     @Override
     public void userLogOn(final User newUser) {
         messageResponder.userLogOn(newUser);
+        replayIfIdentified(newUser.getCode());
     }
 
     @Override
@@ -148,6 +177,7 @@ public class AsyncMessageResponderWrapper implements MessageResponder {
     @Override
     public void userExposing(final User user) {
         messageResponder.userExposing(user);
+        replayIfIdentified(user.getCode());
     }
 
     @Override
@@ -184,17 +214,23 @@ public class AsyncMessageResponderWrapper implements MessageResponder {
     @Override
     public void fileSend(final int userCode, final long byteSize, final String fileName,
                          final String user, final int fileHash) {
-        if (controller.isNewUser(userCode)) {
-            askUserToIdentify(userCode);
-        }
-
-        executorService.execute(new Runnable() {
+        final Runnable fileSendTask = new Runnable() {
             @Override
             public void run() {
-                waitForUserToIdentify(userCode);
                 messageResponder.fileSend(userCode, byteSize, fileName, user, fileHash);
             }
-        });
+        };
+
+        if (controller.isNewUser(userCode)) {
+            holdUntilIdentified(userCode, new Runnable() {
+                @Override
+                public void run() {
+                    executorService.execute(fileSendTask);
+                }
+            });
+        } else {
+            executorService.execute(fileSendTask);
+        }
     }
 
     @Override
@@ -218,8 +254,10 @@ public class AsyncMessageResponderWrapper implements MessageResponder {
 
     @Override
     public void clientInfo(final int userCode, final String client, final long timeSinceLogon,
-                           final String operatingSystem, final int privateChatPort, final int tcpChatPort) {
-        messageResponder.clientInfo(userCode, client, timeSinceLogon, operatingSystem, privateChatPort, tcpChatPort);
+                           final String operatingSystem, final int privateChatPort, final int tcpChatPort,
+                           final int protocolVersion, final boolean nackEnabled) {
+        messageResponder.clientInfo(userCode, client, timeSinceLogon, operatingSystem, privateChatPort, tcpChatPort,
+                protocolVersion, nackEnabled);
     }
 
     /**
@@ -234,15 +272,126 @@ public class AsyncMessageResponderWrapper implements MessageResponder {
     }
 
     /**
-     * Waits for user with the specified userCode to identify in {@link #userExposing(User)}.
-     * Gives up after 2 seconds.
+     * Adds the operation to the pending queue of a user that is not identified yet, and asks the user to
+     * identify if this is the first operation waiting. The operation runs when the queue is replayed.
+     *
+     * @param userCode  The code of the unknown user.
+     * @param operation The operation to run when the user has identified, or the wait has timed out.
      */
-    void waitForUserToIdentify(final int userCode) {
-        int counter = 0;
+    void holdUntilIdentified(final int userCode, final Runnable operation) {
+        final boolean firstOperation;
 
-        while (waitingList.isWaitingUser(userCode) && counter < 40) {
-            counter++;
-            sleeper.sleep(50);
+        synchronized (pendingOperations) {
+            PendingOperations pending = pendingOperations.get(userCode);
+            firstOperation = pending == null;
+
+            if (firstOperation) {
+                pending = new PendingOperations();
+                pendingOperations.put(userCode, pending);
+            }
+
+            if (pending.operations.size() >= MAX_PENDING_OPERATIONS) {
+                LOG.warning("Too many operations waiting for user %s to identify. Dropping.", userCode);
+                return;
+            }
+
+            pending.operations.add(operation);
+
+            if (firstOperation) {
+                pending.timeout = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        LOG.fine("User %s did not identify in time", userCode);
+                        replay(userCode);
+                    }
+                }, IDENTIFY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
         }
+
+        if (firstOperation) {
+            askUserToIdentify(userCode);
+        }
+
+        // The user may have identified while the operation was added
+        if (!controller.isNewUser(userCode)) {
+            replay(userCode);
+        }
+    }
+
+    /**
+     * Replays the pending operations of the user, if the user is no longer on the waiting list.
+     *
+     * @param userCode The code of the user that may have identified.
+     */
+    void replayIfIdentified(final int userCode) {
+        if (!waitingList.isWaitingUser(userCode)) {
+            replay(userCode);
+        }
+    }
+
+    /**
+     * Runs the pending operations of the user in the order they arrived, and removes them.
+     *
+     * @param userCode The code of the user to replay the operations of.
+     */
+    void replay(final int userCode) {
+        final PendingOperations pending;
+
+        synchronized (pendingOperations) {
+            pending = pendingOperations.remove(userCode);
+        }
+
+        if (pending == null) {
+            return;
+        }
+
+        if (pending.timeout != null) {
+            pending.timeout.cancel(false);
+        }
+
+        for (final Runnable operation : pending.operations) {
+            try {
+                operation.run();
+            } catch (final RuntimeException e) {
+                LOG.severe(e, "Failed to replay operation for user %s", userCode);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of operations waiting for the user to identify.
+     *
+     * @param userCode The code of the user to check.
+     * @return The number of pending operations.
+     */
+    int getPendingOperationCount(final int userCode) {
+        synchronized (pendingOperations) {
+            final PendingOperations pending = pendingOperations.get(userCode);
+
+            return pending == null ? 0 : pending.operations.size();
+        }
+    }
+
+    private static ScheduledExecutorService createTimer() {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "PendingOperationTimer");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * The operations waiting for one unknown user.
+     */
+    private static final class PendingOperations {
+
+        private final List<Runnable> operations = new ArrayList<>();
+
+        @Nullable
+        private ScheduledFuture<?> timeout;
     }
-}
+}
\ No newline at end of file
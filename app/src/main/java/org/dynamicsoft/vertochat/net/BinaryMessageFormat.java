@@ -0,0 +1,499 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * The compact binary network protocol, {@link Constants#PROTOCOL_VERSION_BINARY}.
+ * <p>
+ * <p>A binary frame has the same parts as a message in the text format, <code>code!TYPE#nick:payload</code>,
+ * written as:</p>
+ * <ul>
+ *   <li>The byte {@link #MARKER}, which is never used in UTF-8, so binary frames can't be mistaken for text.</li>
+ *   <li>The protocol version, as one byte.</li>
+ *   <li>The user code, as a zigzag encoded varint.</li>
+ *   <li>The {@link MessageType#getCode() code} of the type, as one byte.</li>
+ *   <li>The nick name, as a varint with the number of bytes, followed by the UTF-8 bytes.</li>
+ *   <li>The payload, as a varint with the number of bytes, followed by the UTF-8 bytes.</li>
+ * </ul>
+ * <p>
+ * <p>Frames with {@link Constants#PROTOCOL_VERSION_COMPRESSED} as the version have a payload compressed by the
+ * {@link PayloadCompressor} instead, written as a varint with the number of bytes followed by the compressed
+ * payload. Only used for the types in {@link PayloadCompressor#canCompress(MessageType)}, when the receivers
+ * support it, and when it makes the frame smaller.</p>
+ * <p>
+ * <p>Messages stamped by the {@link MessageSequencer} have the sequence number as a varint after the payload,
+ * and are decoded back to stamped messages. Clients that don't know about sequence numbers ignore it.</p>
+ * <p>
+ * <p>Several frames can be sent together in one batch frame, which starts with the byte {@link #BATCH_MARKER}
+ * and the protocol version, followed by each frame as a varint with the number of bytes and the frame itself.</p>
+ * <p>
+ * <p>Frames are decoded back to the text format, so the rest of the application only has one format to
+ * deal with. Every field is at a known position or has its length in front, so decoding never has to
+ * search for delimiters. Bytes after the payload are ignored, to let later versions add more fields.</p>
+ * <p>
+ * <p>Decoding reuses buffers owned by the instance, so an instance must only be used by one thread at a time.</p>
+ *
+ * @author Christian Ihle
+ */
+public class BinaryMessageFormat {
+
+    /**
+     * The first byte of every binary frame.
+     */
+    public static final byte MARKER = (byte) 0xFE;
+
+    /**
+     * The first byte of every batch frame. Also never used in UTF-8.
+     */
+    public static final byte BATCH_MARKER = (byte) 0xFD;
+
+    /**
+     * The number of bytes before the first frame in a batch frame.
+     */
+    public static final int BATCH_HEADER_SIZE = 2;
+
+    /**
+     * The largest number of bytes in a varint.
+     */
+    private static final int MAX_VARINT_SIZE = 5;
+
+    /**
+     * The size of a frame, not counting the nick name and payload. Includes the sequence number.
+     */
+    private static final int MAX_HEADER_SIZE = 2 + MAX_VARINT_SIZE + 1 + 3 * MAX_VARINT_SIZE;
+
+    /**
+     * The number of characters in the text format, not counting the nick name and payload.
+     * The user code, the longest type, and the delimiters.
+     */
+    private static final int MAX_TEXT_HEADER_SIZE = 11 + 14 + 3;
+
+    private final CharsetDecoder decoder;
+    private final PayloadCompressor compressor;
+    private CharBuffer charBuffer;
+
+    /**
+     * Constructor.
+     */
+    public BinaryMessageFormat() {
+        decoder = Charset.forName(Constants.MESSAGE_CHARSET).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        compressor = new PayloadCompressor();
+        charBuffer = CharBuffer.allocate(Constants.NETWORK_PACKET_SIZE + MAX_TEXT_HEADER_SIZE);
+    }
+
+    /**
+     * Checks if the bytes remaining in the buffer are a binary frame.
+     *
+     * @param buffer The buffer to check. The position is not changed.
+     * @return If the buffer has a binary frame.
+     */
+    public static boolean isBinaryFrame(final ByteBuffer buffer) {
+        return buffer.hasRemaining() && buffer.get(buffer.position()) == MARKER;
+    }
+
+    /**
+     * Checks if the bytes remaining in the buffer are a batch frame.
+     *
+     * @param buffer The buffer to check. The position is not changed.
+     * @return If the buffer has a batch frame.
+     */
+    public static boolean isBatchFrame(final ByteBuffer buffer) {
+        return buffer.hasRemaining() && buffer.get(buffer.position()) == BATCH_MARKER;
+    }
+
+    /**
+     * Gets the largest number of bytes the message can need as a binary frame.
+     *
+     * @param message The message, in the text format.
+     * @return The largest size of the frame.
+     */
+    public static int getMaxFrameSize(final String message) {
+        return MAX_HEADER_SIZE + message.length() * 3;
+    }
+
+    /**
+     * Writes the message as a binary frame.
+     *
+     * @param message The message, in the text format.
+     * @param out     The array to write to, with room for at least {@link #getMaxFrameSize(String)} bytes.
+     * @return The number of bytes written, or <code>-1</code> if the message can not be written as binary,
+     *         like when the type is unknown.
+     */
+    public static int write(final String message, final byte[] out) {
+        return write(message, out, null);
+    }
+
+    /**
+     * Writes the message as a binary frame, with a compressed payload if that makes the frame smaller.
+     *
+     * @param message    The message, in the text format.
+     * @param out        The array to write to, with room for at least {@link #getMaxFrameSize(String)} bytes.
+     * @param compressor The compressor to use for the payload, or <code>null</code> to not compress.
+     *                   Only use a compressor when the receivers support {@link Constants#PROTOCOL_VERSION_COMPRESSED}.
+     * @return The number of bytes written, or <code>-1</code> if the message can not be written as binary,
+     *         like when the type is unknown.
+     */
+    public static int write(final String message, final byte[] out, @Nullable final PayloadCompressor compressor) {
+        final int start;
+        final int sequence;
+
+        try {
+            start = MessageSequencer.getMessageStart(message);
+            sequence = start > 0 ? MessageSequencer.getSequence(message) : 0;
+        } catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            return -1;
+        }
+
+        final int exclamation = message.indexOf('!', start);
+        final int hash = message.indexOf('#', start);
+        final int colon = message.indexOf(':', start);
+
+        if (exclamation <= start || hash <= exclamation || colon <= hash) {
+            return -1;
+        }
+
+        final MessageType type = MessageType.fromNetworkName(message, exclamation + 1, hash);
+
+        if (type == MessageType.UNKNOWN) {
+            return -1;
+        }
+
+        final int userCode;
+
+        try {
+            userCode = MessageEnvelope.parseInt(message, start, exclamation);
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+
+        int compressedLength = -1;
+
+        if (compressor != null && PayloadCompressor.canCompress(type)) {
+            compressedLength = compressor.compress(message, colon + 1, message.length());
+        }
+
+        int position = 0;
+        out[position++] = MARKER;
+        out[position++] = (byte) (compressedLength < 0 ? Constants.PROTOCOL_VERSION_BINARY
+                                                       : Constants.PROTOCOL_VERSION_COMPRESSED);
+        position = writeVarint((userCode << 1) ^ (userCode >> 31), out, position);
+        out[position++] = (byte) type.getCode();
+        position = writeText(message, hash + 1, colon, out, position);
+
+        if (compressedLength < 0) {
+            position = writeText(message, colon + 1, message.length(), out, position);
+        } else {
+            position = writeVarint(compressedLength, out, position);
+            System.arraycopy(compressor.getCompressed(), 0, out, position, compressedLength);
+            position += compressedLength;
+        }
+
+        if (start > 0) {
+            position = writeVarint(sequence, out, position);
+        }
+
+        return position;
+    }
+
+    private static int writeText(final String message, final int start, final int end, final byte[] out,
+                                 final int position) {
+        final int length = MessageEncoder.getEncodedLength(message, start, end);
+        final int textPosition = writeVarint(length, out, position);
+
+        return MessageEncoder.encodeUTF8(message, start, end, out, textPosition);
+    }
+
+    /**
+     * Writes the start of a batch frame. Frames are added using {@link #writeBatchedFrame(byte[], int, byte[], int)}.
+     *
+     * @param out The array to write to, with room for at least {@link #BATCH_HEADER_SIZE} bytes.
+     * @return The number of bytes written.
+     */
+    public static int writeBatchHeader(final byte[] out) {
+        out[0] = BATCH_MARKER;
+        out[1] = (byte) Constants.PROTOCOL_VERSION_BINARY;
+
+        return BATCH_HEADER_SIZE;
+    }
+
+    /**
+     * Gets the number of bytes a frame needs in a batch frame.
+     *
+     * @param frameLength The number of bytes in the frame.
+     * @return The number of bytes needed, including the length in front.
+     */
+    public static int getBatchedFrameSize(final int frameLength) {
+        int varintSize = 1;
+
+        for (int remaining = frameLength >>> 7; remaining != 0; remaining >>>= 7) {
+            varintSize++;
+        }
+
+        return varintSize + frameLength;
+    }
+
+    /**
+     * Adds a frame to a batch frame.
+     *
+     * @param frame       The binary frame to add.
+     * @param frameLength The number of bytes in the frame.
+     * @param out         The array with the batch frame, with room for {@link #getBatchedFrameSize(int)} more bytes.
+     * @param position    Where in the array to add the frame.
+     * @return The position in the array after the frame.
+     */
+    public static int writeBatchedFrame(final byte[] frame, final int frameLength, final byte[] out, final int position) {
+        final int framePosition = writeVarint(frameLength, out, position);
+        System.arraycopy(frame, 0, out, framePosition, frameLength);
+
+        return framePosition + frameLength;
+    }
+
+    static int writeVarint(final int value, final byte[] out, final int position) {
+        int remaining = value;
+        int current = position;
+
+        while ((remaining & ~0x7F) != 0) {
+            out[current++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+
+        out[current++] = (byte) remaining;
+
+        return current;
+    }
+
+    /**
+     * Decodes the binary frame remaining in the buffer to a message in the text format.
+     *
+     * @param frame The buffer with the frame. The position is moved past the frame.
+     * @return The message, in the text format.
+     * @throws ProtocolException If the frame is not a valid binary frame of a supported version.
+     */
+    public String decode(final ByteBuffer frame) throws ProtocolException {
+        if (!isBinaryFrame(frame)) {
+            throw new ProtocolException("Not a binary frame");
+        }
+
+        frame.get();
+        final int version = readByte(frame);
+
+        if (version != Constants.PROTOCOL_VERSION_BINARY && version != Constants.PROTOCOL_VERSION_COMPRESSED) {
+            throw new ProtocolException("Unsupported protocol version: " + version);
+        }
+
+        final int zigzagUserCode = readVarint(frame);
+        final int userCode = (zigzagUserCode >>> 1) ^ -(zigzagUserCode & 1);
+        final int typeCode = readByte(frame);
+        final MessageType type = MessageType.fromCode(typeCode);
+
+        if (type == MessageType.UNKNOWN) {
+            throw new ProtocolException("Unknown message type: " + typeCode);
+        }
+
+        final int capacity = frame.remaining() + MAX_TEXT_HEADER_SIZE;
+
+        if (charBuffer.capacity() < capacity) {
+            charBuffer = CharBuffer.allocate(capacity);
+        }
+
+        charBuffer.clear();
+        appendUserCode(userCode);
+        charBuffer.put('!');
+        charBuffer.put(type.getNetworkName());
+        charBuffer.put('#');
+        readText(frame);
+        charBuffer.put(':');
+
+        if (version == Constants.PROTOCOL_VERSION_COMPRESSED) {
+            readCompressedText(frame);
+        } else {
+            readText(frame);
+        }
+
+        final String message = new String(charBuffer.array(), 0, charBuffer.position());
+
+        if (frame.hasRemaining()) {
+            final int sequence = readVarint(frame);
+            frame.position(frame.limit());
+
+            return MessageSequencer.stamp(sequence, message);
+        }
+
+        return message;
+    }
+
+    /**
+     * Reads the start of the batch frame remaining in the buffer. The frames in the batch can then be decoded
+     * using {@link #decodeBatchedFrame(ByteBuffer)} until there are no bytes remaining.
+     *
+     * @param batch The buffer with the batch frame. The position is moved to the first frame.
+     * @throws ProtocolException If the buffer has no batch frame of a supported version.
+     */
+    public void readBatchHeader(final ByteBuffer batch) throws ProtocolException {
+        if (!isBatchFrame(batch)) {
+            throw new ProtocolException("Not a batch frame");
+        }
+
+        batch.get();
+        final int version = readByte(batch);
+
+        if (version != Constants.PROTOCOL_VERSION_BINARY) {
+            throw new ProtocolException("Unsupported protocol version: " + version);
+        }
+    }
+
+    /**
+     * Decodes the next frame in a batch frame to a message in the text format.
+     *
+     * @param batch The buffer with the batch frame. The position is moved past the decoded frame.
+     * @return The message, in the text format.
+     * @throws ProtocolException If the next frame is not a valid binary frame of a supported version.
+     */
+    public String decodeBatchedFrame(final ByteBuffer batch) throws ProtocolException {
+        final int length = readVarint(batch);
+
+        if (length < 0 || length > batch.remaining()) {
+            throw new ProtocolException("Invalid length: " + length);
+        }
+
+        final int limit = batch.limit();
+        batch.limit(batch.position() + length);
+
+        try {
+            return decode(batch);
+        } finally {
+            batch.limit(limit);
+        }
+    }
+
+    private void appendUserCode(final int userCode) {
+        if (userCode < 0) {
+            charBuffer.put('-');
+        }
+
+        final char[] chars = charBuffer.array();
+        final int start = charBuffer.position();
+        int remaining = userCode;
+        int end = start;
+
+        // Work with negative numbers, to handle Integer.MIN_VALUE
+        if (remaining > 0) {
+            remaining = -remaining;
+        }
+
+        do {
+            chars[end++] = (char) ('0' - remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+
+        for (int left = start, right = end - 1; left < right; left++, right--) {
+            final char swap = chars[left];
+            chars[left] = chars[right];
+            chars[right] = swap;
+        }
+
+        charBuffer.position(end);
+    }
+
+    private void readText(final ByteBuffer frame) throws ProtocolException {
+        final int length = readVarint(frame);
+
+        if (length < 0 || length > frame.remaining()) {
+            throw new ProtocolException("Invalid length: " + length);
+        }
+
+        final int limit = frame.limit();
+        frame.limit(frame.position() + length);
+
+        // Never more characters than bytes in UTF-8, so there is always room
+        decoder.reset();
+        decoder.decode(frame, charBuffer, true);
+        decoder.flush(charBuffer);
+
+        frame.limit(limit);
+    }
+
+    private void readCompressedText(final ByteBuffer frame) throws ProtocolException {
+        final int length = readVarint(frame);
+
+        if (length < 0 || length > frame.remaining()) {
+            throw new ProtocolException("Invalid length: " + length);
+        }
+
+        final int end = frame.position() + length;
+        final int limit = frame.limit();
+        frame.limit(end);
+
+        try {
+            final int payloadLength = readVarint(frame);
+            final ByteBuffer payload = compressor.decompress(frame, end - frame.position(), payloadLength);
+
+            if (charBuffer.remaining() < payloadLength) {
+                final CharBuffer largerBuffer = CharBuffer.allocate(charBuffer.position() + payloadLength);
+                charBuffer.flip();
+                largerBuffer.put(charBuffer);
+                charBuffer = largerBuffer;
+            }
+
+            decoder.reset();
+            decoder.decode(payload, charBuffer, true);
+            decoder.flush(charBuffer);
+        } finally {
+            frame.limit(limit);
+        }
+    }
+
+    private int readByte(final ByteBuffer frame) throws ProtocolException {
+        if (!frame.hasRemaining()) {
+            throw new ProtocolException("Frame is too short");
+        }
+
+        return frame.get() & 0xFF;
+    }
+
+    private int readVarint(final ByteBuffer frame) throws ProtocolException {
+        int value = 0;
+
+        for (int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7) {
+            final int nextByte = readByte(frame);
+            value |= (nextByte & 0x7F) << shift;
+
+            if ((nextByte & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new ProtocolException("Varint is too long");
+    }
+}
@@ -0,0 +1,106 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.util.Validate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A small pool of reusable direct byte buffers of the same capacity.
+ * <p>
+ * <p>Direct buffers are expensive to allocate, but can be used by the operating system
+ * without an extra copy, so they are allocated once and reused for every packet.</p>
+ *
+ * @author Christian Ihle
+ */
+public class ByteBufferPool {
+
+    private final Deque<ByteBuffer> buffers;
+    private final int bufferCapacity;
+
+    /**
+     * Constructor. Allocates all the buffers up front.
+     *
+     * @param poolSize       Number of buffers to keep in the pool.
+     * @param bufferCapacity Capacity of each buffer, in bytes.
+     */
+    public ByteBufferPool(final int poolSize, final int bufferCapacity) {
+        Validate.isTrue(poolSize > 0, "Pool size must be positive");
+        Validate.isTrue(bufferCapacity > 0, "Buffer capacity must be positive");
+
+        this.bufferCapacity = bufferCapacity;
+        this.buffers = new ArrayDeque<>(poolSize);
+
+        for (int i = 0; i < poolSize; i++) {
+            buffers.push(ByteBuffer.allocateDirect(bufferCapacity));
+        }
+    }
+
+    /**
+     * Takes a cleared buffer from the pool. If the pool is empty a new heap buffer
+     * is returned instead, which will be dropped again on release.
+     *
+     * @return A buffer ready to be written to.
+     */
+    public synchronized ByteBuffer acquire() {
+        final ByteBuffer buffer = buffers.poll();
+
+        if (buffer == null) {
+            return ByteBuffer.allocate(bufferCapacity);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     *
+     * @param buffer The buffer to return. Only direct buffers are kept.
+     */
+    public synchronized void release(final ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == bufferCapacity) {
+            buffers.push(buffer);
+        }
+    }
+
+    /**
+     * Gets the number of buffers currently available in the pool.
+     *
+     * @return Number of available buffers.
+     */
+    public synchronized int available() {
+        return buffers.size();
+    }
+
+    /**
+     * Gets the capacity of the buffers in this pool.
+     *
+     * @return Buffer capacity in bytes.
+     */
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+}
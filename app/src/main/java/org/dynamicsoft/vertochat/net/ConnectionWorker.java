@@ -22,6 +22,8 @@
 package org.dynamicsoft.vertochat.net;
 
 import org.dynamicsoft.vertochat.event.NetworkConnectionListener;
+import org.dynamicsoft.vertochat.event.NetworkHandoverListener;
+import org.dynamicsoft.vertochat.event.NetworkInterfacesListener;
 import org.dynamicsoft.vertochat.misc.ErrorHandler;
 import org.dynamicsoft.vertochat.settings.Settings;
 import org.dynamicsoft.vertochat.util.Validate;
@@ -29,6 +31,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.net.NetworkInterface;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -39,6 +42,10 @@ import java.util.logging.Logger;
  * <p>
  * Every now and then, the thread will check if there are better
  * networks available, and reconnect to that network instead.
+ * <p>
+ * The network is also checked shortly after the {@link NetworkChangeSource}
+ * reports a change, like a cable being unplugged or a new wireless network.
+ * See {@link NetworkCheckTimer} for when the checks happen.
  *
  * @author Christian Ihle
  */
@@ -49,21 +56,15 @@ public class ConnectionWorker implements Runnable {
      */
     private static final Logger LOG = Logger.getLogger(ConnectionWorker.class.getName());
 
-    /**
-     * Period of time to sleep if network is up. 60 sec.
-     */
-    private static final int SLEEP_UP = 1000 * 60;
-
-    /**
-     * Period of time to sleep if network is down. 15 sec.
-     */
-    private static final int SLEEP_DOWN = 1000 * 15;
-
     private final NetworkUtils networkUtils = new NetworkUtils();
     /**
      * A list of connection listeners.
      */
     private final List<NetworkConnectionListener> listeners;
+    /**
+     * A list of listeners for changes in the usable network interfaces.
+     */
+    private final List<NetworkInterfacesListener> interfacesListeners;
     /**
      * For locating the operating system's choice of network interface.
      */
@@ -72,6 +73,14 @@ public class ConnectionWorker implements Runnable {
      * The settings to use for the network.
      */
     private final Settings settings;
+    /**
+     * Decides when to check the network again.
+     */
+    private final NetworkCheckTimer checkTimer;
+    /**
+     * Tells when the network has changed.
+     */
+    private volatile NetworkChangeSource networkChangeSource;
     /**
      * Indicates whether the thread should run or not.
      */
@@ -80,11 +89,24 @@ public class ConnectionWorker implements Runnable {
      * Whether the network is up or not.
      */
     private boolean networkUp;
+    /**
+     * The network interfaces from the last time the network changed.
+     */
+    @Nullable
+    private NetworkInterfaceSnapshot snapshot;
+    /**
+     * The version of the snapshot the network interface listeners were last notified of.
+     */
+    private long notifiedVersion;
     /**
      * The current network interface.
      */
     @Nullable
     private NetworkInterface networkInterface;
+    /**
+     * The number of times the network was handed over to a new network interface without going down.
+     */
+    private int networkHandovers;
     /**
      * The working thread.
      */
@@ -103,7 +125,10 @@ public class ConnectionWorker implements Runnable {
 
         this.settings = settings;
 
+        checkTimer = new NetworkCheckTimer();
+        networkChangeSource = new NetworkInterfaceWatcher();
         listeners = new ArrayList<>();
+        interfacesListeners = new ArrayList<>();
         osNetworkInfo = new OperatingSystemNetworkInfo(settings, errorHandler);
     }
 
@@ -114,24 +139,23 @@ public class ConnectionWorker implements Runnable {
     public void run() {
         LOG.log(Level.FINE, "Network is starting");
 
+        boolean networkChanged = true;
+
         while (run) {
-            final boolean networkUp = updateNetwork();
+            final boolean networkUp = updateNetwork(networkChanged);
 
             if (!run) {
                 break;
             }
 
             try {
-                if (networkUp) {
-                    Thread.sleep(SLEEP_UP);
-                } else {
-                    Thread.sleep(SLEEP_DOWN);
-                }
+                networkChanged = checkTimer.awaitNextCheck(networkUp);
             }
 
-            // Sleep interrupted - probably from stop() or checkNetwork()
+            // Wait interrupted - probably from stop()
             catch (final InterruptedException e) {
                 LOG.log(Level.FINE, e.toString());
+                networkChanged = true;
             }
         }
 
@@ -142,25 +166,26 @@ public class ConnectionWorker implements Runnable {
         }
 
         networkInterface = null;
+        snapshot = null;
+        notifiedVersion = 0;
     }
 
     /**
      * Asks the thread to check the network now to detect loss of network connectivity.
      */
     public void checkNetwork() {
-        if (worker != null) {
-            worker.interrupt();
-        }
+        checkTimer.checkNow();
     }
 
     /**
      * Checks the state of the network, and tries to keep the best possible
      * network connection up. Listeners are notified of any changes.
      *
+     * @param networkChanged If the network may have changed since the last update.
      * @return If the network is up or not after this update is done.
      */
-    private synchronized boolean updateNetwork() {
-        final NetworkInterface netif = selectNetworkInterface();
+    private synchronized boolean updateNetwork(final boolean networkChanged) {
+        final NetworkInterface netif = selectNetworkInterface(updateSnapshot(networkChanged));
 
         // No network interface to connect with
         if (!networkUtils.isUsable(netif)) {
@@ -175,11 +200,15 @@ public class ConnectionWorker implements Runnable {
 
         // Switching network interface, like going from cable to wireless
         else if (isNewNetworkInterface(netif)) {
-            final String origNetwork = networkInterface == null ? "[null]" : networkInterface.getName();
+            final NetworkInterface origNetworkInterface = networkInterface;
+            final String origNetwork = origNetworkInterface == null ? "[null]" : origNetworkInterface.getName();
             LOG.log(Level.FINE, "Changing network from " + origNetwork + " to " + netif.getName());
             networkInterface = netif;
 
-            if (networkUp) {
+            if (networkUp && origNetworkInterface != null && settings.isNetworkHandover()) {
+                notifyNetworkInterfacesChanged();
+                notifyNetworkHandover(origNetworkInterface);
+            } else if (networkUp) {
                 notifyNetworkDown(true);
                 notifyNetworkUp(true);
             } else {
@@ -196,9 +225,31 @@ public class ConnectionWorker implements Runnable {
 
         // Else, the old connection is still up
 
+        notifyNetworkInterfacesChanged();
+
         return true;
     }
 
+    /**
+     * Takes a new snapshot of the network interfaces if the network may have changed. The snapshot is kept
+     * for the regular checks while the network is up and the current network interface is still usable,
+     * so they don't need to ask the operating system for every network interface, or for its choice of
+     * network interface.
+     *
+     * @param networkChanged If the network may have changed since the last update.
+     * @return The snapshot to use.
+     */
+    private NetworkInterfaceSnapshot updateSnapshot(final boolean networkChanged) {
+        NetworkInterfaceSnapshot currentSnapshot = snapshot;
+
+        if (networkChanged || currentSnapshot == null || !networkUp || !networkUtils.isUsable(networkInterface)) {
+            currentSnapshot = networkUtils.takeSnapshot(currentSnapshot);
+            snapshot = currentSnapshot;
+        }
+
+        return currentSnapshot;
+    }
+
     /**
      * Compares <code>netif</code> with the current network interface.
      *
@@ -247,7 +298,43 @@ public class ConnectionWorker implements Runnable {
     }
 
     /**
-     * Registers the listener as a connection listener.
+     * Notifies all the listeners that the network was handed over to the current network interface.
+     * Listeners that can't be handed over are notified that the network went down and came up again.
+     *
+     * @param origNetworkInterface The network interface that was used until now.
+     */
+    private synchronized void notifyNetworkHandover(final NetworkInterface origNetworkInterface) {
+        networkHandovers++;
+
+        for (final NetworkConnectionListener listener : listeners) {
+            if (listener instanceof NetworkHandoverListener) {
+                ((NetworkHandoverListener) listener).networkHandedOver(origNetworkInterface, networkInterface);
+            } else {
+                listener.networkWentDown(true);
+                listener.beforeNetworkCameUp();
+                listener.networkCameUp(true);
+            }
+        }
+    }
+
+    /**
+     * Notifies the network interface listeners if the network interfaces have changed since the last notification.
+     */
+    private synchronized void notifyNetworkInterfacesChanged() {
+        if (snapshot == null || snapshot.getVersion() == notifiedVersion) {
+            return;
+        }
+
+        notifiedVersion = snapshot.getVersion();
+
+        for (final NetworkInterfacesListener listener : interfacesListeners) {
+            listener.usableNetworkInterfacesChanged(snapshot.getUsableNetworkInterfaces());
+        }
+    }
+
+    /**
+     * Registers the listener as a connection listener. Listeners that also implement
+     * {@link NetworkHandoverListener} are handed over to new network interfaces when network handover is enabled.
      *
      * @param listener The listener to register.
      */
@@ -255,12 +342,61 @@ public class ConnectionWorker implements Runnable {
         listeners.add(listener);
     }
 
+    /**
+     * Registers the listener to get notified when the usable network interfaces change while the network is up.
+     *
+     * @param listener The listener to register.
+     */
+    public void registerNetworkInterfacesListener(final NetworkInterfacesListener listener) {
+        interfacesListeners.add(listener);
+    }
+
+    /**
+     * Gets the network interfaces that were usable the last time the network was checked.
+     *
+     * @return The usable network interfaces.
+     */
+    public synchronized List<NetworkInterface> getUsableNetworkInterfaces() {
+        if (snapshot == null) {
+            return Collections.emptyList();
+        }
+
+        return snapshot.getUsableNetworkInterfaces();
+    }
+
+    /**
+     * Replaces the source of network changes. A running source is stopped, and the new source is started
+     * if the thread is running.
+     *
+     * @param networkChangeSource The new source of network changes.
+     */
+    public synchronized void setNetworkChangeSource(final NetworkChangeSource networkChangeSource) {
+        Validate.notNull(networkChangeSource, "Network change source can not be null");
+
+        if (run) {
+            this.networkChangeSource.stop();
+            networkChangeSource.start(checkTimer);
+        }
+
+        this.networkChangeSource = networkChangeSource;
+    }
+
+    /**
+     * Gets the timer that decides when to check the network.
+     *
+     * @return The network check timer.
+     */
+    public NetworkCheckTimer getCheckTimer() {
+        return checkTimer;
+    }
+
     /**
      * Starts a new thread if no thread is already running.
      */
     public synchronized void start() {
         if (!run && !isAlive()) {
             run = true;
+            networkChangeSource.start(checkTimer);
             worker = new Thread(this, "ConnectionWorker");
             worker.start();
         }
@@ -271,6 +407,7 @@ public class ConnectionWorker implements Runnable {
      */
     public void stop() {
         run = false;
+        networkChangeSource.stop();
 
         if (worker != null) {
             worker.interrupt();
@@ -289,12 +426,13 @@ public class ConnectionWorker implements Runnable {
      * <p>If no usable network interfaces are found, then <code>null</code>
      * is returned.</p>
      *
+     * @param snapshot The network interfaces to choose from.
      * @return The network interface found, or <code>null</code>.
      * @see NetworkUtils#isUsable(NetworkInterface)
      */
     @Nullable
-    private NetworkInterface selectNetworkInterface() {
-        final NetworkInterface firstUsableNetIf = networkUtils.findFirstUsableNetworkInterface();
+    private NetworkInterface selectNetworkInterface(final NetworkInterfaceSnapshot snapshot) {
+        final NetworkInterface firstUsableNetIf = snapshot.findFirstUsableNetworkInterface();
 
         if (firstUsableNetIf == null) {
             LOG.log(Level.FINER, "No usable network interface detected.");
@@ -302,7 +440,7 @@ public class ConnectionWorker implements Runnable {
         }
 
         final NetworkInterface savedNetworkInterface =
-                networkUtils.getNetworkInterfaceByName(settings.getNetworkInterface());
+                snapshot.getNetworkInterfaceByName(settings.getNetworkInterface());
 
         if (networkUtils.isUsable(savedNetworkInterface)) {
             LOG.log(Level.FINER, "Using saved network interface: \n" +
@@ -313,7 +451,7 @@ public class ConnectionWorker implements Runnable {
         LOG.log(Level.FINER, "Saved network interface '" + settings.getNetworkInterface() + "' is invalid: \n" +
                 networkUtils.getNetworkInterfaceInfo(savedNetworkInterface));
 
-        final NetworkInterface osNetIf = osNetworkInfo.getOperatingSystemNetworkInterface();
+        final NetworkInterface osNetIf = osNetworkInfo.getOperatingSystemNetworkInterface(snapshot);
 
         if (networkUtils.isUsable(osNetIf)) {
             LOG.log(Level.FINER, "Using operating system's choice of network interface: \n" +
@@ -345,6 +483,15 @@ public class ConnectionWorker implements Runnable {
         return networkInterface;
     }
 
+    /**
+     * Gets the number of times the network was handed over to a new network interface without going down.
+     *
+     * @return The number of network handovers.
+     */
+    public synchronized int getNetworkHandovers() {
+        return networkHandovers;
+    }
+
     /**
      * Checks if the network is up.
      *
@@ -0,0 +1,442 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.event.BatchReceiverListener;
+import org.dynamicsoft.vertochat.event.ReceiverListener;
+import org.dynamicsoft.vertochat.util.Logger;
+import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Reads datagrams from a non-blocking {@link DatagramChannel}, and notifies a listener when they arrive.
+ * <p>
+ * <p>Every wakeup drains as many queued datagrams as possible (up to a limit) into pooled direct buffers,
+ * before decoding them and handing them to the listener as one batch. Only the bytes actually received are
+ * decoded, and datagrams larger than {@link Constants#NETWORK_PACKET_SIZE} are counted as oversize.
+ * Frames in the {@link BinaryMessageFormat binary format} are decoded to the text format, batch frames are
+ * unpacked into one message for each frame, and invalid frames are dropped. Packets sent with forward error
+ * correction are unwrapped by a {@link FecDecoder}, which also passes on the lost packets it could rebuild.</p>
+ * <p>
+ * <p>When the chat is joined on {@link #enableMulticastInterfaces(MulticastInterfaces) several network interfaces},
+ * the sender of each datagram is registered with the {@link MulticastInterfaces}, and copies of datagrams that
+ * already arrived on another network interface are dropped by a {@link DuplicatePacketFilter}.</p>
+ * <p>
+ * <p>Only the receiver thread may use an instance of this class.</p>
+ *
+ * @author Christian Ihle
+ */
+public class DatagramChannelReader {
+
+    /**
+     * Max number of datagrams to drain from the socket in one wakeup.
+     */
+    public static final int MAX_BATCH_SIZE = 16;
+
+    private static final Logger LOG = Logger.getLogger(DatagramChannelReader.class);
+
+    /**
+     * One byte more than the largest valid packet, so truncated packets can be detected.
+     */
+    private static final int BUFFER_CAPACITY = Constants.NETWORK_PACKET_SIZE + 1;
+
+    private final ByteBufferPool bufferPool;
+    private final ReceiverStatistics statistics;
+    private final CharsetDecoder decoder;
+    private final CharBuffer charBuffer;
+    private final BinaryMessageFormat binaryFormat;
+    private final FecDecoder fecDecoder;
+    private final PeerAddressCache peerAddressCache;
+
+    private final ByteBuffer[] buffers;
+    private final SocketAddress[] sources;
+    private String[] messages;
+    private String[] ipAddresses;
+
+    @Nullable
+    private volatile ReceiverListener listener;
+
+    @Nullable
+    private volatile MulticastInterfaces multicastInterfaces;
+
+    @Nullable
+    private volatile DuplicatePacketFilter duplicatePacketFilter;
+
+    /**
+     * Constructor.
+     */
+    public DatagramChannelReader() {
+        this(new PeerAddressCache());
+    }
+
+    /**
+     * Constructor using a shared cache of ip addresses.
+     *
+     * @param peerAddressCache The cache to get the ip address of each datagram from.
+     */
+    public DatagramChannelReader(final PeerAddressCache peerAddressCache) {
+        Validate.notNull(peerAddressCache, "Peer address cache can not be null");
+
+        this.peerAddressCache = peerAddressCache;
+        bufferPool = new ByteBufferPool(MAX_BATCH_SIZE, BUFFER_CAPACITY);
+        statistics = new ReceiverStatistics();
+
+        decoder = Charset.forName(Constants.MESSAGE_CHARSET).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        charBuffer = CharBuffer.allocate(BUFFER_CAPACITY);
+        binaryFormat = new BinaryMessageFormat();
+        fecDecoder = new FecDecoder();
+
+        buffers = new ByteBuffer[MAX_BATCH_SIZE];
+        sources = new SocketAddress[MAX_BATCH_SIZE];
+        messages = new String[MAX_BATCH_SIZE];
+        ipAddresses = new String[MAX_BATCH_SIZE];
+    }
+
+    /**
+     * Waits for datagrams on the channel until the channel or selector is closed.
+     *
+     * @param channel  A non-blocking channel registered for reading with the selector.
+     * @param selector The selector to wait on.
+     */
+    public void readUntilClosed(final DatagramChannel channel, final Selector selector) {
+        while (channel.isOpen() && selector.isOpen()) {
+            try {
+                if (selector.select() > 0) {
+                    selector.selectedKeys().clear();
+                    readBatch(channel);
+                }
+            }
+
+            // Happens when the selector is closed to stop the receiver
+            catch (final ClosedSelectorException e) {
+                LOG.fine(e.toString());
+            }
+
+            // Happens when channel is closed, or network is down
+            catch (final IOException e) {
+                if (channel.isOpen()) {
+                    LOG.warning(e.toString());
+                } else {
+                    LOG.fine(e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Drains the datagrams currently queued on the channel, and notifies the listener.
+     *
+     * @param channel A non-blocking channel.
+     * @return The number of datagrams read.
+     * @throws IOException If reading from the channel fails.
+     */
+    public int readBatch(final DatagramChannel channel) throws IOException {
+        int count = 0;
+        IOException failure = null;
+
+        try {
+            while (count < MAX_BATCH_SIZE) {
+                final ByteBuffer buffer = bufferPool.acquire();
+                final SocketAddress source = receive(channel, buffer);
+
+                if (source == null) {
+                    bufferPool.release(buffer);
+                    break;
+                }
+
+                buffers[count] = buffer;
+                sources[count] = source;
+                count++;
+            }
+        } catch (final IOException e) {
+            failure = e;
+        }
+
+        if (count > 0) {
+            final int decoded = decodeBatch(count);
+
+            if (decoded > 0) {
+                notifyListener(decoded);
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+        return count;
+    }
+
+    private SocketAddress receive(final DatagramChannel channel, final ByteBuffer buffer) throws IOException {
+        try {
+            return channel.receive(buffer);
+        } catch (final IOException e) {
+            bufferPool.release(buffer);
+            throw e;
+        }
+    }
+
+    /**
+     * Decodes the received datagrams into messages, and drops the ones that can't be decoded.
+     *
+     * @param count The number of received datagrams.
+     * @return The number of decoded messages.
+     */
+    private int decodeBatch(final int count) {
+        long bytes = 0;
+        int decoded = 0;
+
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer buffer = buffers[i];
+            buffer.flip();
+
+            if (buffer.remaining() > Constants.NETWORK_PACKET_SIZE) {
+                statistics.oversizePacketReceived();
+                buffer.limit(Constants.NETWORK_PACKET_SIZE);
+                LOG.warning("Truncated oversize packet from %s", sources[i]);
+            }
+
+            bytes += buffer.remaining();
+
+            try {
+                decoded = decodeDatagram(buffer, sources[i], decoded);
+            } catch (final ProtocolException e) {
+                statistics.invalidPacketReceived();
+                LOG.warning("Dropped invalid packet from %s: %s", sources[i], e.getMessage());
+            }
+
+            bufferPool.release(buffer);
+            buffers[i] = null;
+            sources[i] = null;
+        }
+
+        statistics.batchReceived(count, bytes);
+
+        return decoded;
+    }
+
+    /**
+     * Decodes the messages in the datagram, and adds them after the already decoded messages.
+     *
+     * @param buffer  The datagram.
+     * @param source  Where the datagram came from.
+     * @param decoded The number of already decoded messages.
+     * @return The number of decoded messages, including the messages from this datagram.
+     * @throws ProtocolException If the datagram has invalid binary frames.
+     */
+    private int decodeDatagram(final ByteBuffer buffer, final SocketAddress source, final int decoded)
+            throws ProtocolException {
+        if (isDuplicate(buffer, source)) {
+            statistics.duplicatePacketReceived();
+            return decoded;
+        }
+
+        final String ipAddress = getIPAddress(source);
+
+        if (!FecDecoder.isFecFrame(buffer)) {
+            return decodePacket(buffer, ipAddress, decoded);
+        }
+
+        final int packets = fecDecoder.decode(buffer);
+        int count = decoded;
+
+        for (int i = 0; i < packets; i++) {
+            count = decodePacket(fecDecoder.getPacket(i), ipAddress, count);
+        }
+
+        return count;
+    }
+
+    /**
+     * Registers the sender with the multicast interfaces, and checks if the datagram already arrived
+     * on another network interface.
+     *
+     * @param buffer The datagram.
+     * @param source Where the datagram came from.
+     * @return If the datagram is a duplicate.
+     */
+    private boolean isDuplicate(final ByteBuffer buffer, final SocketAddress source) {
+        final MulticastInterfaces currentMulticastInterfaces = multicastInterfaces;
+        final DuplicatePacketFilter currentDuplicatePacketFilter = duplicatePacketFilter;
+
+        if (currentMulticastInterfaces == null || currentDuplicatePacketFilter == null) {
+            return false;
+        }
+
+        if (source instanceof InetSocketAddress) {
+            currentMulticastInterfaces.peerSeen(((InetSocketAddress) source).getAddress());
+        }
+
+        return currentDuplicatePacketFilter.isDuplicate(buffer);
+    }
+
+    /**
+     * Decodes the messages in a packet, and adds them after the already decoded messages.
+     *
+     * @param buffer    The packet.
+     * @param ipAddress The ip address of the sender.
+     * @param decoded   The number of already decoded messages.
+     * @return The number of decoded messages, including the messages from this packet.
+     * @throws ProtocolException If the packet has invalid binary frames.
+     */
+    private int decodePacket(final ByteBuffer buffer, final String ipAddress, final int decoded)
+            throws ProtocolException {
+        if (!BinaryMessageFormat.isBatchFrame(buffer)) {
+            addMessage(decoded, decode(buffer), ipAddress);
+            return decoded + 1;
+        }
+
+        statistics.batchFrameReceived();
+        binaryFormat.readBatchHeader(buffer);
+        int count = decoded;
+
+        while (buffer.hasRemaining()) {
+            addMessage(count, binaryFormat.decodeBatchedFrame(buffer), ipAddress);
+            count++;
+        }
+
+        return count;
+    }
+
+    private void addMessage(final int index, final String message, final String ipAddress) {
+        // Batch frames can have more messages than the max batch size
+        if (index == messages.length) {
+            messages = Arrays.copyOf(messages, messages.length * 2);
+            ipAddresses = Arrays.copyOf(ipAddresses, ipAddresses.length * 2);
+        }
+
+        messages[index] = message;
+        ipAddresses[index] = ipAddress;
+    }
+
+    private String decode(final ByteBuffer buffer) throws ProtocolException {
+        if (BinaryMessageFormat.isBinaryFrame(buffer)) {
+            statistics.binaryPacketReceived();
+            return binaryFormat.decode(buffer);
+        }
+
+        charBuffer.clear();
+        decoder.reset();
+        decoder.decode(buffer, charBuffer, true);
+        decoder.flush(charBuffer);
+
+        final char[] chars = charBuffer.array();
+        int start = 0;
+        int end = charBuffer.position();
+
+        while (start < end && chars[start] <= ' ') {
+            start++;
+        }
+
+        while (end > start && chars[end - 1] <= ' ') {
+            end--;
+        }
+
+        return new String(chars, start, end - start);
+    }
+
+    private String getIPAddress(final SocketAddress source) {
+        if (source instanceof InetSocketAddress) {
+            return peerAddressCache.getIpAddress(((InetSocketAddress) source).getAddress());
+        }
+
+        return source.toString();
+    }
+
+    private void notifyListener(final int count) {
+        for (int i = 0; i < count; i++) {
+            LOG.fine("Message arrived from %s: %s", ipAddresses[i], messages[i]);
+        }
+
+        final ReceiverListener currentListener = listener;
+
+        if (currentListener instanceof BatchReceiverListener) {
+            ((BatchReceiverListener) currentListener).messagesArrived(messages, ipAddresses, count);
+        } else if (currentListener != null) {
+            for (int i = 0; i < count; i++) {
+                currentListener.messageArrived(messages[i], ipAddresses[i]);
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            messages[i] = null;
+            ipAddresses[i] = null;
+        }
+    }
+
+    /**
+     * Sets the listener to notify when messages arrive.
+     *
+     * @param listener The listener, or <code>null</code>.
+     */
+    public void registerReceiverListener(@Nullable final ReceiverListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Registers the sender of each datagram with the multicast interfaces, and drops copies of datagrams
+     * that arrive on more than one network interface.
+     *
+     * @param theMulticastInterfaces The network interfaces the chat is joined on.
+     */
+    public void enableMulticastInterfaces(final MulticastInterfaces theMulticastInterfaces) {
+        Validate.notNull(theMulticastInterfaces, "Multicast interfaces can not be null");
+
+        duplicatePacketFilter = new DuplicatePacketFilter();
+        multicastInterfaces = theMulticastInterfaces;
+    }
+
+    /**
+     * Gets the counters for this reader.
+     *
+     * @return The receiver statistics.
+     */
+    public ReceiverStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Gets the decoder of packets sent with forward error correction, with counters for the rebuilt packets.
+     *
+     * @return The fec decoder.
+     */
+    public FecDecoder getFecDecoder() {
+        return fecDecoder;
+    }
+}
@@ -49,7 +49,6 @@ public class DefaultMessageResponder implements MessageResponder {
 
     private static final Logger LOG = Logger.getLogger(DefaultMessageResponder.class);
 
-    private final NetworkUtils networkUtils = new NetworkUtils();
     private final Sleeper sleeper = new Sleeper();
     private final DateTools dateTools = new DateTools();
 
@@ -61,6 +60,7 @@ public class DefaultMessageResponder implements MessageResponder {
     private final MessageController msgController;
     private final ChatState chatState;
     private final CoreMessages coreMessages;
+    private final PeerAddressCache peerAddressCache;
 
     /**
      * Constructor.
@@ -86,6 +86,7 @@ public class DefaultMessageResponder implements MessageResponder {
         tList = controller.getTransferList();
         wList = controller.getWaitingList();
         chatState = controller.getChatState();
+        peerAddressCache = controller.getPeerAddressCache();
     }
 
     /**
@@ -263,6 +264,9 @@ public class DefaultMessageResponder implements MessageResponder {
     /**
      * When the user has logged on to the network, the application updates
      * the status.
+     * <p>
+     * <p>The host name is only shown if the lookup on the background thread is already done,
+     * so this never waits for a slow reverse lookup.</p>
      *
      * @param ipAddress The IP address of the application user.
      */
@@ -270,7 +274,8 @@ public class DefaultMessageResponder implements MessageResponder {
     public void meLogOn(final String ipAddress) {
         chatState.setLoggedOn(true);
         me.setIpAddress(ipAddress);
-        me.setHostName(networkUtils.getLocalHostName());
+        peerAddressCache.lookupLocalHostName();
+        me.setHostName(peerAddressCache.getLocalHostName());
         msgController.showSystemMessage("You logged on as " + me.getNick() + " from " + createHostInfo(me));
         ui.showTopic();
     }
@@ -354,6 +359,7 @@ public class DefaultMessageResponder implements MessageResponder {
         if (!me.getIpAddress().equals(ipAddress) && chatState.isLoggedOn()) {
             msgController.showSystemMessage("You changed ip from " + me.getIpAddress() + " to " + ipAddress);
             me.setIpAddress(ipAddress);
+            peerAddressCache.refresh(me);
         }
     }
 
@@ -378,6 +384,7 @@ public class DefaultMessageResponder implements MessageResponder {
         if (!user.getIpAddress().equals(ipAddress)) {
             msgController.showSystemMessage(user.getNick() + " changed ip from " + user.getIpAddress() + " to " + ipAddress);
             user.setIpAddress(ipAddress);
+            peerAddressCache.refresh(user);
         }
     }
 
@@ -575,10 +582,12 @@ public class DefaultMessageResponder implements MessageResponder {
      * @param operatingSystem The user's operating system.
      * @param privateChatPort The port to use for sending private chat messages to this user.
      * @param tcpChatPort     The port to use for sending chat messages to this user using tcp.
+     * @param protocolVersion The newest version of the network protocol supported by the user's client.
      */
     @Override
     public void clientInfo(final int userCode, final String client, final long timeSinceLogon,
-                           final String operatingSystem, final int privateChatPort, final int tcpChatPort) {
+                           final String operatingSystem, final int privateChatPort, final int tcpChatPort,
+                           final int protocolVersion, final boolean nackEnabled) {
         final User user = controller.getUser(userCode);
 
         if (user != null) {
@@ -587,6 +596,9 @@ public class DefaultMessageResponder implements MessageResponder {
             user.setOperatingSystem(operatingSystem);
             user.setPrivateChatPort(privateChatPort);
             user.setTcpChatPort(tcpChatPort);
+            user.setProtocolVersion(protocolVersion);
+            user.setNackEnabled(nackEnabled);
+            peerAddressCache.clientInfoArrived(user);
         } else {
             LOG.severe("Could not find user: %s", userCode);
         }
@@ -0,0 +1,103 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds packets that have already arrived during the last {@link #WINDOW_MS}, to drop the extra copies
+ * that arrive when the chat is joined on several network interfaces.
+ * <p>
+ * <p>Only a 64 bit hash of the bytes of each of the last {@link #CAPACITY} packets is remembered. The ip address
+ * of the sender is not part of the hash, since a client sending on several network interfaces uses a different
+ * ip address on each of them. Messages with sequence numbers are different each time they are sent, so only
+ * unstamped messages sent twice in a row, with the exact same bytes, may be dropped by mistake.</p>
+ * <p>
+ * <p>Only the receiver thread may use an instance of this class.</p>
+ *
+ * @author Christian Ihle
+ */
+public class DuplicatePacketFilter {
+
+    /**
+     * The number of packets to remember.
+     */
+    static final int CAPACITY = 128;
+
+    /**
+     * How long a packet is remembered.
+     */
+    static final long WINDOW_MS = 1000;
+
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private final long[] hashes;
+    private final long[] arrivals;
+    private int next;
+
+    public DuplicatePacketFilter() {
+        hashes = new long[CAPACITY];
+        arrivals = new long[CAPACITY];
+    }
+
+    /**
+     * Checks if the packet is a copy of a packet that arrived recently, and remembers it if not.
+     * The position of the buffer is not changed.
+     *
+     * @param buffer The packet, ready for reading.
+     * @return If the packet is a duplicate.
+     */
+    public boolean isDuplicate(final ByteBuffer buffer) {
+        return isDuplicate(buffer, System.currentTimeMillis());
+    }
+
+    boolean isDuplicate(final ByteBuffer buffer, final long nowMs) {
+        final long hash = hash(buffer);
+
+        for (int i = 0; i < CAPACITY; i++) {
+            if (hashes[i] == hash && arrivals[i] != 0 && nowMs - arrivals[i] < WINDOW_MS) {
+                return true;
+            }
+        }
+
+        hashes[next] = hash;
+        arrivals[next] = nowMs;
+        next = (next + 1) % CAPACITY;
+
+        return false;
+    }
+
+    /**
+     * FNV-1a hash of the remaining bytes, and the number of bytes.
+     */
+    static long hash(final ByteBuffer buffer) {
+        long hash = FNV_OFFSET_BASIS;
+
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            hash ^= buffer.get(i) & 0xFF;
+            hash *= FNV_PRIME;
+        }
+
+        return hash ^ buffer.remaining();
+    }
+}
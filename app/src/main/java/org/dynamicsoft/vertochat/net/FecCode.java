@@ -0,0 +1,280 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+/**
+ * The math behind the forward error correction of multicast packets, used by the {@link FecEncoder}
+ * and {@link FecDecoder}.
+ * <p>
+ * <p>This is a systematic Reed-Solomon erasure code over GF(2<sup>8</sup>). The data packets are sent as they are,
+ * and each parity packet is a sum of every data packet multiplied by a coefficient. The coefficients come from a
+ * Cauchy matrix, so any <code>k</code> of the <code>k + m</code> packets in a group are enough to rebuild the
+ * <code>k</code> data packets. Each column of the matrix is scaled so the first parity packet of a group has every
+ * coefficient set to <code>1</code>, which makes it a plain XOR of the data packets.</p>
+ * <p>
+ * <p>The tables are built once, so encoding and decoding never allocate. An instance keeps the buffers
+ * needed to rebuild lost packets, and must only be used by one thread at a time.</p>
+ *
+ * @author Christian Ihle
+ */
+public class FecCode {
+
+    /**
+     * The max number of data packets in a group.
+     */
+    public static final int MAX_DATA_PACKETS = 16;
+
+    /**
+     * The max number of parity packets in a group.
+     */
+    public static final int MAX_PARITY_PACKETS = 4;
+
+    /**
+     * The primitive polynomial x^8 + x^4 + x^3 + x^2 + 1 that defines the field.
+     */
+    private static final int POLYNOMIAL = 0x11D;
+
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] PRODUCTS = new byte[256][256];
+    private static final int[][] COEFFICIENTS = new int[MAX_PARITY_PACKETS][MAX_DATA_PACKETS];
+
+    static {
+        int value = 1;
+
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = value;
+            LOG[value] = i;
+            value <<= 1;
+
+            if (value >= 256) {
+                value ^= POLYNOMIAL;
+            }
+        }
+
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                PRODUCTS[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+
+        for (int data = 0; data < MAX_DATA_PACKETS; data++) {
+            final int firstRow = inverse(MAX_PARITY_PACKETS + data);
+
+            for (int parity = 0; parity < MAX_PARITY_PACKETS; parity++) {
+                final int cauchy = inverse(parity ^ (MAX_PARITY_PACKETS + data));
+                COEFFICIENTS[parity][data] = multiply(cauchy, inverse(firstRow));
+            }
+        }
+    }
+
+    private final int[][] matrix;
+    private final int[][] inverse;
+    private final int[] missingData;
+    private final int[] usedParity;
+
+    public FecCode() {
+        matrix = new int[MAX_PARITY_PACKETS][MAX_PARITY_PACKETS];
+        inverse = new int[MAX_PARITY_PACKETS][MAX_PARITY_PACKETS];
+        missingData = new int[MAX_PARITY_PACKETS];
+        usedParity = new int[MAX_PARITY_PACKETS];
+    }
+
+    /**
+     * Adds a data packet, multiplied by its coefficient, to a parity packet.
+     *
+     * @param parityIndex  The index of the parity packet in the group.
+     * @param dataIndex    The index of the data packet in the group.
+     * @param data         The data packet.
+     * @param dataOffset   The first byte of the data packet.
+     * @param parity       The parity packet to add to.
+     * @param parityOffset The first byte of the parity packet.
+     * @param length       The number of bytes to add.
+     */
+    public static void addToParity(final int parityIndex, final int dataIndex, final byte[] data, final int dataOffset,
+                                   final byte[] parity, final int parityOffset, final int length) {
+        multiplyAdd(COEFFICIENTS[parityIndex][dataIndex], data, dataOffset, parity, parityOffset, length);
+    }
+
+    /**
+     * Rebuilds lost data packets from the packets that arrived.
+     * <p>
+     * <p>Every packet is a shard of the same length. The shards of the lost data packets are overwritten
+     * with the rebuilt packets, and the shards of the parity packets are used as work space.</p>
+     *
+     * @param shards      The data packets, followed by the parity packets.
+     * @param received    Which of the shards arrived.
+     * @param dataCount   The number of data packets in the group.
+     * @param parityCount The number of parity packets in the group.
+     * @param length      The number of bytes in each shard.
+     * @return The number of rebuilt data packets, or <code>-1</code> if too many packets were lost.
+     */
+    public int recover(final byte[][] shards, final boolean[] received, final int dataCount, final int parityCount,
+                       final int length) {
+        int missing = 0;
+
+        for (int data = 0; data < dataCount; data++) {
+            if (!received[data]) {
+                if (missing == MAX_PARITY_PACKETS) {
+                    return -1;
+                }
+
+                missingData[missing++] = data;
+            }
+        }
+
+        if (missing == 0) {
+            return 0;
+        }
+
+        int used = 0;
+
+        for (int parity = 0; parity < parityCount && used < missing; parity++) {
+            if (received[dataCount + parity]) {
+                usedParity[used++] = parity;
+            }
+        }
+
+        if (used < missing) {
+            return -1;
+        }
+
+        // What is left of each parity packet after removing the data packets that arrived
+        for (int row = 0; row < missing; row++) {
+            final byte[] syndrome = shards[dataCount + usedParity[row]];
+
+            for (int data = 0; data < dataCount; data++) {
+                if (received[data]) {
+                    addToParity(usedParity[row], data, shards[data], 0, syndrome, 0, length);
+                }
+            }
+
+            for (int column = 0; column < missing; column++) {
+                matrix[row][column] = COEFFICIENTS[usedParity[row]][missingData[column]];
+            }
+        }
+
+        invert(missing);
+
+        for (int row = 0; row < missing; row++) {
+            final byte[] rebuilt = shards[missingData[row]];
+
+            for (int i = 0; i < length; i++) {
+                rebuilt[i] = 0;
+            }
+
+            for (int column = 0; column < missing; column++) {
+                multiplyAdd(inverse[row][column], shards[dataCount + usedParity[column]], 0, rebuilt, 0, length);
+            }
+        }
+
+        return missing;
+    }
+
+    /**
+     * Inverts the top left corner of the matrix with Gauss-Jordan elimination. Every square part of a Cauchy matrix
+     * can be inverted, so a pivot is always found.
+     *
+     * @param size The number of rows and columns to invert.
+     */
+    private void invert(final int size) {
+        for (int row = 0; row < size; row++) {
+            for (int column = 0; column < size; column++) {
+                inverse[row][column] = row == column ? 1 : 0;
+            }
+        }
+
+        for (int column = 0; column < size; column++) {
+            int pivot = column;
+
+            while (matrix[pivot][column] == 0) {
+                pivot++;
+            }
+
+            swapRows(matrix, pivot, column);
+            swapRows(inverse, pivot, column);
+
+            final int scale = inverse(matrix[column][column]);
+
+            for (int i = 0; i < size; i++) {
+                matrix[column][i] = multiply(matrix[column][i], scale);
+                inverse[column][i] = multiply(inverse[column][i], scale);
+            }
+
+            for (int row = 0; row < size; row++) {
+                final int factor = matrix[row][column];
+
+                if (row != column && factor != 0) {
+                    for (int i = 0; i < size; i++) {
+                        matrix[row][i] ^= multiply(factor, matrix[column][i]);
+                        inverse[row][i] ^= multiply(factor, inverse[column][i]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void swapRows(final int[][] rows, final int first, final int second) {
+        if (first != second) {
+            final int[] row = rows[first];
+            rows[first] = rows[second];
+            rows[second] = row;
+        }
+    }
+
+    private static void multiplyAdd(final int coefficient, final byte[] source, final int sourceOffset,
+                                    final byte[] target, final int targetOffset, final int length) {
+        if (coefficient == 0) {
+            return;
+        }
+
+        if (coefficient == 1) {
+            for (int i = 0; i < length; i++) {
+                target[targetOffset + i] ^= source[sourceOffset + i];
+            }
+
+            return;
+        }
+
+        final byte[] products = PRODUCTS[coefficient];
+
+        for (int i = 0; i < length; i++) {
+            target[targetOffset + i] ^= products[source[sourceOffset + i] & 0xFF];
+        }
+    }
+
+    static int multiply(final int a, final int b) {
+        return PRODUCTS[a][b] & 0xFF;
+    }
+
+    static int inverse(final int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    static int getCoefficient(final int parityIndex, final int dataIndex) {
+        return COEFFICIENTS[parityIndex][dataIndex];
+    }
+}
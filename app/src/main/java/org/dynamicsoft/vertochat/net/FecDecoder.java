@@ -0,0 +1,443 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.util.Logger;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Unwraps multicast packets sent in groups by a {@link FecEncoder}, and rebuilds lost data packets
+ * from the parity packets as soon as enough packets in the group have arrived.
+ * <p>
+ * <p>Data packets are passed on right away, so forward error correction never delays a packet that arrived.
+ * A copy is kept until the group ends, in case it's needed to rebuild another packet. Each sender has one
+ * open group at a time, and the group ends when a packet from the next group arrives. Only the
+ * {@link #MAX_STREAMS} most recent senders are remembered.</p>
+ * <p>
+ * <p>Every ended group updates the estimate of the loss rate on the network, from the number of packets that
+ * should have arrived in the group, so the {@link FecEncoder} can adapt the size of its groups.</p>
+ * <p>
+ * <p>The buffers of a sender are created when the first frame from it arrives, and reused after that,
+ * so decoding does not allocate. Only the receiver thread may use an instance of this class, but the counters
+ * can be read from any thread.</p>
+ *
+ * @author Christian Ihle
+ */
+public class FecDecoder {
+
+    private static final Logger LOG = Logger.getLogger(FecDecoder.class);
+
+    /**
+     * The number of senders to remember. Enough for every sender in a busy chat, as a sender that is
+     * forgotten before its parity packets arrive gets nothing rebuilt.
+     */
+    static final int MAX_STREAMS = 256;
+
+    /**
+     * How much each ended group counts in the loss rate.
+     */
+    static final double LOSS_RATE_WEIGHT = 0.1;
+
+    private static final int NO_GROUP = -1;
+
+    private final FecCode code;
+    private final Stream[] streams;
+    private final ByteBuffer[] packets;
+    private int packetCount;
+    private long lastUsed;
+
+    private volatile double lossRate;
+    private volatile long dataPackets;
+    private volatile long parityPackets;
+    private volatile long recoveredPackets;
+    private volatile long lostPackets;
+    private volatile long duplicatePackets;
+
+    public FecDecoder() {
+        code = new FecCode();
+        streams = new Stream[MAX_STREAMS];
+        packets = new ByteBuffer[FecCode.MAX_DATA_PACKETS];
+    }
+
+    /**
+     * Checks if the buffer contains a frame from a {@link FecEncoder}, by looking at the
+     * first byte without changing the position.
+     *
+     * @param buffer The buffer to check.
+     * @return If the buffer contains a frame with forward error correction.
+     */
+    public static boolean isFecFrame(final ByteBuffer buffer) {
+        return buffer.hasRemaining() && buffer.get(buffer.position()) == FecEncoder.MARKER;
+    }
+
+    /**
+     * Reads a frame, and finds the data packets that are ready to be decoded. That is the data packet
+     * in the frame, if it's not a duplicate, and any packets that could be rebuilt.
+     * <p>
+     * <p>The packets are found using {@link #getPacket(int)}, and are only valid until the next frame is decoded.</p>
+     *
+     * @param frame The frame, from the position to the limit.
+     * @return The number of data packets that are ready.
+     * @throws ProtocolException If the frame is invalid.
+     */
+    public int decode(final ByteBuffer frame) throws ProtocolException {
+        if (frame.remaining() < FecEncoder.HEADER_SIZE) {
+            throw new ProtocolException("Fec frame is too short");
+        }
+
+        frame.get();
+        final int version = frame.get() & 0xFF;
+
+        if (version != Constants.PROTOCOL_VERSION_FEC) {
+            throw new ProtocolException("Unsupported fec version: " + version);
+        }
+
+        final int streamId = frame.getInt();
+        final int group = frame.getShort() & 0xFFFF;
+        final int index = frame.get() & 0xFF;
+        final int dataCount = frame.get() & 0xFF;
+        final int parityCount = frame.get() & 0xFF;
+        final byte lengthHigh = frame.get();
+        final byte lengthLow = frame.get();
+
+        if (parityCount > FecCode.MAX_PARITY_PACKETS || dataCount > FecCode.MAX_DATA_PACKETS) {
+            throw new ProtocolException("Too many packets in fec group: " + dataCount + "+" + parityCount);
+        }
+
+        final Stream stream = getStream(streamId);
+
+        if (stream.group != group) {
+            endGroup(stream);
+            stream.start(group, parityCount);
+        }
+
+        packetCount = 0;
+
+        if (dataCount == 0) {
+            dataArrived(stream, frame, index, ((lengthHigh & 0xFF) << 8) | (lengthLow & 0xFF));
+        } else {
+            parityArrived(stream, frame, index, dataCount, lengthHigh, lengthLow);
+        }
+
+        recover(stream);
+
+        return packetCount;
+    }
+
+    /**
+     * Gets a data packet found by the last call to {@link #decode(ByteBuffer)}.
+     *
+     * @param index The index of the packet.
+     * @return The packet, from the position to the limit.
+     */
+    public ByteBuffer getPacket(final int index) {
+        if (index >= packetCount) {
+            throw new IndexOutOfBoundsException("No packet at index " + index);
+        }
+
+        return packets[index];
+    }
+
+    private void dataArrived(final Stream stream, final ByteBuffer frame, final int index, final int length)
+            throws ProtocolException {
+        if (index >= FecCode.MAX_DATA_PACKETS) {
+            throw new ProtocolException("Data packet index is out of range: " + index);
+        }
+
+        if (length != frame.remaining()) {
+            throw new ProtocolException("Wrong length of data packet: " + length + ", was " + frame.remaining());
+        }
+
+        if (stream.received[index]) {
+            duplicatePackets++;
+            return;
+        }
+
+        final byte[] shard = stream.shards[index];
+        shard[0] = (byte) (length >>> 8);
+        shard[1] = (byte) length;
+        frame.get(shard, 2, length);
+        Arrays.fill(shard, 2 + length, shard.length, (byte) 0);
+        frame.position(frame.position() - length);
+
+        stream.received[index] = true;
+        stream.dataArrived++;
+        stream.highestData = Math.max(stream.highestData, index);
+        dataPackets++;
+
+        packets[packetCount++] = frame;
+    }
+
+    private void parityArrived(final Stream stream, final ByteBuffer frame, final int index, final int dataCount,
+                               final byte lengthHigh, final byte lengthLow) throws ProtocolException {
+        if (index >= stream.parityCount) {
+            throw new ProtocolException("Parity packet index is out of range: " + index);
+        }
+
+        final int shardLength = 2 + frame.remaining();
+
+        if (shardLength > FecEncoder.SHARD_SIZE || stream.shardLength > 0 && stream.shardLength != shardLength) {
+            throw new ProtocolException("Wrong length of parity packet: " + frame.remaining());
+        }
+
+        final int shardIndex = FecCode.MAX_DATA_PACKETS + index;
+
+        if (stream.received[shardIndex]) {
+            duplicatePackets++;
+            return;
+        }
+
+        final byte[] shard = stream.shards[shardIndex];
+        shard[0] = lengthHigh;
+        shard[1] = lengthLow;
+        frame.get(shard, 2, frame.remaining());
+
+        stream.received[shardIndex] = true;
+        stream.parityArrived++;
+        stream.dataCount = dataCount;
+        stream.shardLength = shardLength;
+        parityPackets++;
+    }
+
+    /**
+     * Rebuilds the lost data packets when enough packets in the group have arrived.
+     */
+    private void recover(final Stream stream) {
+        final int dataCount = stream.dataCount;
+
+        if (stream.recovered || dataCount == 0 || stream.dataArrived >= dataCount
+                || stream.dataArrived + stream.parityArrived < dataCount) {
+            return;
+        }
+
+        // The code expects the parity packets right after the data packets
+        for (int i = 0; i < stream.parityCount; i++) {
+            stream.codeShards[dataCount + i] = stream.shards[FecCode.MAX_DATA_PACKETS + i];
+            stream.codeReceived[dataCount + i] = stream.received[FecCode.MAX_DATA_PACKETS + i];
+        }
+
+        for (int i = 0; i < dataCount; i++) {
+            stream.codeShards[i] = stream.shards[i];
+            stream.codeReceived[i] = stream.received[i];
+        }
+
+        stream.recovered = true;
+
+        if (code.recover(stream.codeShards, stream.codeReceived, dataCount, stream.parityCount, stream.shardLength) <= 0) {
+            return;
+        }
+
+        for (int i = 0; i < dataCount; i++) {
+            if (stream.received[i]) {
+                continue;
+            }
+
+            final byte[] shard = stream.shards[i];
+            final int length = ((shard[0] & 0xFF) << 8) | (shard[1] & 0xFF);
+
+            if (length > stream.shardLength - 2) {
+                LOG.warning("Rebuilt packet %d in group %d has invalid length %d", i, stream.group, length);
+                continue;
+            }
+
+            stream.received[i] = true;
+            stream.rebuilt++;
+            recoveredPackets++;
+
+            final ByteBuffer packet = stream.views[i];
+            packet.limit(2 + length);
+            packet.position(2);
+            packets[packetCount++] = packet;
+        }
+
+        LOG.fine("Rebuilt %d packets in group %d", stream.rebuilt, stream.group);
+    }
+
+    /**
+     * Counts the lost packets of the group, and updates the loss rate.
+     */
+    private void endGroup(final Stream stream) {
+        if (stream.group == NO_GROUP) {
+            return;
+        }
+
+        final int dataCount = stream.dataCount > 0 ? stream.dataCount : stream.highestData + 1;
+        final int expected = dataCount + stream.parityCount;
+        final int arrived = stream.dataArrived + stream.parityArrived;
+
+        if (expected <= 0) {
+            return;
+        }
+
+        lostPackets += Math.max(0, dataCount - stream.dataArrived - stream.rebuilt);
+
+        final double groupLossRate = Math.max(0, expected - arrived) / (double) expected;
+        lossRate += LOSS_RATE_WEIGHT * (groupLossRate - lossRate);
+    }
+
+    private Stream getStream(final int streamId) {
+        lastUsed++;
+        int oldest = 0;
+
+        for (int i = 0; i < streams.length; i++) {
+            final Stream stream = streams[i];
+
+            if (stream == null) {
+                oldest = i;
+                break;
+            }
+
+            if (stream.streamId == streamId) {
+                stream.lastUsed = lastUsed;
+                return stream;
+            }
+
+            if (streams[oldest] != null && stream.lastUsed < streams[oldest].lastUsed) {
+                oldest = i;
+            }
+        }
+
+        Stream stream = streams[oldest];
+
+        if (stream == null) {
+            stream = new Stream();
+            streams[oldest] = stream;
+        } else {
+            endGroup(stream);
+        }
+
+        stream.streamId = streamId;
+        stream.group = NO_GROUP;
+        stream.lastUsed = lastUsed;
+
+        return stream;
+    }
+
+    /**
+     * Gets the estimated share of multicast packets lost on the network, from the groups that have ended.
+     *
+     * @return The loss rate, between <code>0</code> and <code>1</code>.
+     */
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    /**
+     * Gets the number of data packets that arrived in groups.
+     *
+     * @return The number of data packets.
+     */
+    public long getDataPackets() {
+        return dataPackets;
+    }
+
+    /**
+     * Gets the number of parity packets that arrived.
+     *
+     * @return The number of parity packets.
+     */
+    public long getParityPackets() {
+        return parityPackets;
+    }
+
+    /**
+     * Gets the number of lost data packets that were rebuilt from the parity packets.
+     *
+     * @return The number of recovered packets.
+     */
+    public long getRecoveredPackets() {
+        return recoveredPackets;
+    }
+
+    /**
+     * Gets the number of lost data packets that could not be rebuilt, counted when their group ends.
+     *
+     * @return The number of lost packets.
+     */
+    public long getLostPackets() {
+        return lostPackets;
+    }
+
+    /**
+     * Gets the number of packets that arrived more than once, or after being rebuilt.
+     *
+     * @return The number of duplicate packets.
+     */
+    public long getDuplicatePackets() {
+        return duplicatePackets;
+    }
+
+    /**
+     * The open group of a sender. The shards of the data packets are first, followed by the shards
+     * of the parity packets, at {@link FecCode#MAX_DATA_PACKETS}.
+     */
+    private static final class Stream {
+
+        private final byte[][] shards;
+        private final boolean[] received;
+        private final ByteBuffer[] views;
+        private final byte[][] codeShards;
+        private final boolean[] codeReceived;
+
+        private int streamId;
+        private long lastUsed;
+        private int group;
+        private int dataCount;
+        private int parityCount;
+        private int shardLength;
+        private int highestData;
+        private int dataArrived;
+        private int parityArrived;
+        private int rebuilt;
+        private boolean recovered;
+
+        private Stream() {
+            final int size = FecCode.MAX_DATA_PACKETS + FecCode.MAX_PARITY_PACKETS;
+            shards = new byte[size][FecEncoder.SHARD_SIZE];
+            received = new boolean[size];
+            views = new ByteBuffer[FecCode.MAX_DATA_PACKETS];
+            codeShards = new byte[size][];
+            codeReceived = new boolean[size];
+
+            for (int i = 0; i < views.length; i++) {
+                views[i] = ByteBuffer.wrap(shards[i]);
+            }
+        }
+
+        private void start(final int newGroup, final int newParityCount) {
+            group = newGroup;
+            parityCount = newParityCount;
+            dataCount = 0;
+            shardLength = 0;
+            highestData = -1;
+            dataArrived = 0;
+            parityArrived = 0;
+            rebuilt = 0;
+            recovered = false;
+            Arrays.fill(received, false);
+        }
+    }
+}
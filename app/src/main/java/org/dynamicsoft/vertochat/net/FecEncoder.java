@@ -0,0 +1,360 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.util.Validate;
+
+import java.util.Random;
+
+/**
+ * Wraps outgoing multicast packets in groups, and creates the parity packets that let receivers rebuild
+ * lost packets in the group without asking for them again. Uses the {@link FecCode}.
+ * <p>
+ * <p>Every packet in a group is sent in a frame with this header, followed by the payload:</p>
+ * <ol>
+ *   <li>The byte {@link #MARKER}, which is never used in UTF-8 or as the first byte of a binary frame.</li>
+ *   <li>The protocol version, {@link Constants#PROTOCOL_VERSION_FEC}.</li>
+ *   <li>A random id of the sender, as 4 bytes, to tell the groups of senders on the same ip address apart.</li>
+ *   <li>The number of the group, as 2 bytes.</li>
+ *   <li>The index of the data packet, or the parity packet, in the group.</li>
+ *   <li>The number of data packets in the group for parity packets, or <code>0</code> for data packets.</li>
+ *   <li>The number of parity packets in the group.</li>
+ *   <li>The length of the payload as 2 bytes for data packets, or the parity of the lengths for parity packets.</li>
+ * </ol>
+ * <p>
+ * <p>The payload of a data packet is the packet that would have been sent without forward error correction.
+ * The payload of a parity packet is as long as the longest data packet in the group. Data packets are sent right
+ * away, and the parity is built up as they are sent, so only the parity packets are kept in memory. The parity
+ * packets are sent when the group is full, or when the sender runs out of packets to send, so the end of a
+ * burst is protected without waiting for more packets.</p>
+ * <p>
+ * <p>The number of data and parity packets in a group adapts to the loss rate: the encoder picks the group with
+ * the least overhead where the chance of losing more packets than the parity can rebuild is below
+ * {@link #MAX_GROUP_FAILURE_RATE}.</p>
+ * <p>
+ * <p>An encoder never allocates after it's created, and must only be used by one thread at a time,
+ * except for {@link #setLossRate(double)}.</p>
+ *
+ * @author Christian Ihle
+ */
+public class FecEncoder {
+
+    /**
+     * The first byte of every frame with forward error correction.
+     */
+    public static final byte MARKER = (byte) 0xFC;
+
+    /**
+     * The number of bytes in the header of a frame.
+     */
+    public static final int HEADER_SIZE = 13;
+
+    /**
+     * The largest packet that can be sent in a group. Larger packets are sent as they are.
+     */
+    public static final int MAX_PAYLOAD_SIZE = Constants.NETWORK_PACKET_SIZE - HEADER_SIZE;
+
+    /**
+     * The highest chance of losing a group, which is too many lost packets to rebuild them, to aim for.
+     */
+    static final double MAX_GROUP_FAILURE_RATE = 0.01;
+
+    /**
+     * The number of data packets in the groups to choose from, in the order of increasing overhead.
+     */
+    static final int[] DATA_PACKETS = {16, 12, 8, 8, 6, 6, 4, 4};
+
+    /**
+     * The number of parity packets in the groups to choose from, in the order of increasing overhead.
+     */
+    static final int[] PARITY_PACKETS = {1, 1, 1, 2, 2, 3, 3, 4};
+
+    /**
+     * The shard of a packet is the length as 2 bytes, followed by the payload.
+     */
+    static final int SHARD_SIZE = 2 + MAX_PAYLOAD_SIZE;
+
+    private final int streamId;
+    private final byte[] frame;
+    private final byte[][] parity;
+
+    private volatile double lossRate;
+
+    private int group;
+    private int dataCount;
+    private int parityCount;
+    private int groupDataPackets;
+    private int longestPayload;
+
+    private volatile long dataPackets;
+    private volatile long parityPackets;
+    private volatile long groups;
+
+    /**
+     * Constructor. Uses a random stream id.
+     */
+    public FecEncoder() {
+        this(new Random().nextInt());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param streamId The id of this sender in the frames.
+     */
+    public FecEncoder(final int streamId) {
+        this.streamId = streamId;
+        frame = new byte[Constants.NETWORK_PACKET_SIZE];
+        parity = new byte[FecCode.MAX_PARITY_PACKETS][SHARD_SIZE];
+        dataCount = -1;
+    }
+
+    /**
+     * Sets the share of packets lost on the network, used to choose the size of the next groups.
+     * Can be called from any thread.
+     *
+     * @param lossRate The share of lost packets, between <code>0</code> and <code>1</code>.
+     */
+    public void setLossRate(final double lossRate) {
+        Validate.isTrue(lossRate >= 0 && lossRate <= 1, "Loss rate must be between 0 and 1");
+
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * Wraps a packet in a frame as the next data packet in the group, and adds it to the parity.
+     * Starts a new group if there is no open group.
+     *
+     * @param packet The packet to send.
+     * @param length The number of bytes in the packet.
+     * @return The number of bytes in the frame, starting at index 0 of {@link #getBytes()},
+     *         or <code>-1</code> if the packet is too large for a frame and must be sent as it is.
+     */
+    public int addDataPacket(final byte[] packet, final int length) {
+        Validate.notNull(packet, "Packet can not be null");
+
+        if (length > MAX_PAYLOAD_SIZE) {
+            return -1;
+        }
+
+        if (!hasOpenGroup()) {
+            startGroup();
+        }
+
+        final int index = groupDataPackets;
+        writeHeader(index, 0, length >>> 8, length);
+        System.arraycopy(packet, 0, frame, HEADER_SIZE, length);
+
+        // The length is part of the shard, so the receiver knows how long a rebuilt packet is
+        for (int i = 0; i < parityCount; i++) {
+            FecCode.addToParity(i, index, frame, HEADER_SIZE - 2, parity[i], 0, length + 2);
+        }
+
+        longestPayload = Math.max(longestPayload, length);
+        groupDataPackets++;
+        dataPackets++;
+
+        return HEADER_SIZE + length;
+    }
+
+    /**
+     * Checks if there is a group with data packets waiting for the parity packets.
+     *
+     * @return If a group is open.
+     */
+    public boolean hasOpenGroup() {
+        return groupDataPackets > 0;
+    }
+
+    /**
+     * Checks if the open group has all its data packets, and the parity packets should be sent.
+     *
+     * @return If the group is full.
+     */
+    public boolean isGroupFull() {
+        return groupDataPackets > 0 && groupDataPackets == dataCount;
+    }
+
+    /**
+     * Gets the number of parity packets to send for the open group.
+     *
+     * @return The number of parity packets.
+     */
+    public int getParityCount() {
+        return hasOpenGroup() ? parityCount : 0;
+    }
+
+    /**
+     * Writes a frame with a parity packet of the open group. The group may have fewer data packets than planned.
+     *
+     * @param parityIndex The index of the parity packet, less than {@link #getParityCount()}.
+     * @return The number of bytes in the frame, starting at index 0 of {@link #getBytes()}.
+     */
+    public int writeParity(final int parityIndex) {
+        Validate.isTrue(parityIndex >= 0 && parityIndex < getParityCount(), "Parity index is out of range");
+
+        final byte[] shard = parity[parityIndex];
+        writeHeader(parityIndex, groupDataPackets, shard[0], shard[1]);
+        System.arraycopy(shard, 2, frame, HEADER_SIZE, longestPayload);
+        parityPackets++;
+
+        return HEADER_SIZE + longestPayload;
+    }
+
+    /**
+     * Ends the open group. The next data packet starts a new group.
+     */
+    public void closeGroup() {
+        if (!hasOpenGroup()) {
+            return;
+        }
+
+        for (int i = 0; i < parityCount; i++) {
+            final byte[] shard = parity[i];
+
+            for (int j = 0; j < longestPayload + 2; j++) {
+                shard[j] = 0;
+            }
+        }
+
+        groupDataPackets = 0;
+        longestPayload = 0;
+        group = (group + 1) & 0xFFFF;
+    }
+
+    /**
+     * Gets the bytes of the last written frame. The array may be larger than the frame,
+     * and must not be modified.
+     *
+     * @return The bytes of the last frame.
+     */
+    public byte[] getBytes() {
+        return frame;
+    }
+
+    /**
+     * Gets the number of data packets planned for the open group, or the next group.
+     *
+     * @return The number of data packets in a full group.
+     */
+    public int getDataCount() {
+        return hasOpenGroup() ? dataCount : DATA_PACKETS[chooseGroup(lossRate)];
+    }
+
+    /**
+     * Gets the number of data packets sent in groups.
+     *
+     * @return The number of data packets.
+     */
+    public long getDataPackets() {
+        return dataPackets;
+    }
+
+    /**
+     * Gets the number of parity packets sent.
+     *
+     * @return The number of parity packets.
+     */
+    public long getParityPackets() {
+        return parityPackets;
+    }
+
+    /**
+     * Gets the number of groups started.
+     *
+     * @return The number of groups.
+     */
+    public long getGroups() {
+        return groups;
+    }
+
+    /**
+     * Gets the extra packets sent because of the parity, compared to the data packets.
+     *
+     * @return The number of parity packets for each data packet.
+     */
+    public double getOverhead() {
+        return dataPackets == 0 ? 0 : parityPackets / (double) dataPackets;
+    }
+
+    private void startGroup() {
+        final int choice = chooseGroup(lossRate);
+        dataCount = DATA_PACKETS[choice];
+        parityCount = PARITY_PACKETS[choice];
+        groups++;
+    }
+
+    private void writeHeader(final int index, final int dataPacketsInGroup, final int lengthHigh, final int lengthLow) {
+        frame[0] = MARKER;
+        frame[1] = (byte) Constants.PROTOCOL_VERSION_FEC;
+        frame[2] = (byte) (streamId >>> 24);
+        frame[3] = (byte) (streamId >>> 16);
+        frame[4] = (byte) (streamId >>> 8);
+        frame[5] = (byte) streamId;
+        frame[6] = (byte) (group >>> 8);
+        frame[7] = (byte) group;
+        frame[8] = (byte) index;
+        frame[9] = (byte) dataPacketsInGroup;
+        frame[10] = (byte) parityCount;
+        frame[11] = (byte) lengthHigh;
+        frame[12] = (byte) lengthLow;
+    }
+
+    /**
+     * Finds the group with the least overhead that is lost less often than {@link #MAX_GROUP_FAILURE_RATE}.
+     *
+     * @param lossRate The share of lost packets.
+     * @return The index of the group in {@link #DATA_PACKETS} and {@link #PARITY_PACKETS}.
+     */
+    static int chooseGroup(final double lossRate) {
+        for (int i = 0; i < DATA_PACKETS.length; i++) {
+            if (getGroupFailureRate(DATA_PACKETS[i], PARITY_PACKETS[i], lossRate) < MAX_GROUP_FAILURE_RATE) {
+                return i;
+            }
+        }
+
+        return DATA_PACKETS.length - 1;
+    }
+
+    /**
+     * Finds the chance of losing more packets in a group than the parity packets can rebuild,
+     * when packets are lost independently of each other.
+     *
+     * @param dataCount   The number of data packets in the group.
+     * @param parityCount The number of parity packets in the group.
+     * @param lossRate    The share of lost packets.
+     * @return The chance of losing the group.
+     */
+    static double getGroupFailureRate(final int dataCount, final int parityCount, final double lossRate) {
+        final int packets = dataCount + parityCount;
+        double combinations = 1;
+        double recoverable = 0;
+
+        for (int lost = 0; lost <= parityCount; lost++) {
+            recoverable += combinations * Math.pow(lossRate, lost) * Math.pow(1 - lossRate, packets - lost);
+            combinations = combinations * (packets - lost) / (lost + 1);
+        }
+
+        return Math.max(0, 1 - recoverable);
+    }
+}
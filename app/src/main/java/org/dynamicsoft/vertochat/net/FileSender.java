@@ -29,7 +29,6 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.logging.Level;
@@ -70,6 +69,11 @@ public class FileSender implements FileTransfer {
      */
     private final ByteCounter bCounter;
 
+    /**
+     * The cache to get the address of the user from.
+     */
+    private final PeerAddressCache peerAddressCache;
+
     /**
      * Percent of the file transferred.
      */
@@ -126,9 +130,22 @@ public class FileSender implements FileTransfer {
      * @param id   The unique ID of this file transfer.
      */
     public FileSender(final User user, final FileToSend file, final int id) {
+        this(user, file, id, new PeerAddressCache());
+    }
+
+    /**
+     * Constructor. Creates a new file sender using a shared cache of addresses.
+     *
+     * @param user             The user to send the file to.
+     * @param file             The file to send.
+     * @param id               The unique ID of this file transfer.
+     * @param peerAddressCache The cache to get the address of the user from.
+     */
+    public FileSender(final User user, final FileToSend file, final int id, final PeerAddressCache peerAddressCache) {
         this.user = user;
         this.file = file;
         this.id = id;
+        this.peerAddressCache = peerAddressCache;
 
         bCounter = new ByteCounter();
         waiting = true;
@@ -155,7 +172,7 @@ public class FileSender implements FileTransfer {
                     counter++;
 
                     try {
-                        sock = new Socket(InetAddress.getByName(user.getIpAddress()), port);
+                        sock = new Socket(peerAddressCache.getAddress(user), port);
                     } catch (final UnknownHostException e) {
                         LOG.log(Level.SEVERE, e.toString(), e);
                     } catch (final IOException e) {
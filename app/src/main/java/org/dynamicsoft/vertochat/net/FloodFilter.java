@@ -0,0 +1,501 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.misc.User;
+import org.dynamicsoft.vertochat.util.Logger;
+import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Protects the user interface from users sending more messages than anyone could read, like a broken
+ * or scripted client sending thousands of chat messages each second.
+ * <p>
+ * <p>Each sender, by user code and ip address, has a token bucket that fills up at {@link #MESSAGES_PER_SECOND},
+ * and holds enough for a burst of {@link #MAX_BURST} messages. Each chat and writing message takes a token,
+ * and those arriving when the bucket is empty are dropped. Other messages always get through, as they keep the
+ * user list right, and dropping a nick change or a logoff would leave it wrong until the user sends it again.</p>
+ * <p>
+ * <p>A chat message with the same text as the last one shown from the same sender is folded instead of shown again.
+ * The {@link RepeatListener} is told how many times it was repeated when the sender moves on to another message,
+ * or at most every {@link #REPEAT_WINDOW_MS} while the repeats go on. Folded messages take no tokens.</p>
+ * <p>
+ * <p>Keeps counters of the limited messages from each sender, to find the one causing a flood.</p>
+ *
+ * @author Christian Ihle
+ */
+public class FloodFilter {
+
+    private static final Logger LOG = Logger.getLogger(FloodFilter.class);
+
+    /**
+     * The number of messages each sender can send each second over time.
+     */
+    static final int MESSAGES_PER_SECOND = 10;
+
+    /**
+     * The number of messages each sender can send at once.
+     */
+    static final int MAX_BURST = 30;
+
+    /**
+     * How long the same chat message is folded before telling how many times it was repeated.
+     */
+    static final long REPEAT_WINDOW_MS = 5000;
+
+    /**
+     * The number of senders to remember.
+     */
+    static final int MAX_SENDERS = 256;
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long REPEAT_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(REPEAT_WINDOW_MS);
+
+    private final int meCode;
+    private final RepeatListener repeatListener;
+    private final ScheduledExecutorService scheduler;
+    private final Runnable repeatReporter;
+
+    /**
+     * The senders of the latest messages. Guarded by this.
+     */
+    private final Map<String, Sender> senders;
+
+    private boolean reportScheduled;
+
+    private long allowedMessages;
+    private long droppedMessages;
+    private long repeatedMessages;
+
+    /**
+     * Constructor.
+     *
+     * @param me             The application user, whose own messages are never limited.
+     * @param repeatListener Gets told how many times a chat message was repeated.
+     */
+    public FloodFilter(final User me, final RepeatListener repeatListener) {
+        this(me, repeatListener, createScheduler());
+    }
+
+    FloodFilter(final User me, final RepeatListener repeatListener, final ScheduledExecutorService scheduler) {
+        Validate.notNull(me, "Me can not be null");
+        Validate.notNull(repeatListener, "Repeat listener can not be null");
+        Validate.notNull(scheduler, "Scheduler can not be null");
+
+        this.meCode = me.getCode();
+        this.repeatListener = repeatListener;
+        this.scheduler = scheduler;
+        this.senders = new LinkedHashMap<String, Sender>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Sender> eldest) {
+                return size() > MAX_SENDERS;
+            }
+        };
+
+        this.repeatReporter = new Runnable() {
+            @Override
+            public void run() {
+                reportRepeats(System.nanoTime());
+            }
+        };
+    }
+
+    /**
+     * Checks if a message should be passed on to the user interface.
+     *
+     * @param envelope The decoded message.
+     * @return If the message should be passed on, or <code>false</code> if it was dropped or folded.
+     */
+    public boolean allow(final MessageEnvelope envelope) {
+        return allow(envelope, System.nanoTime());
+    }
+
+    boolean allow(final MessageEnvelope envelope, final long now) {
+        Validate.notNull(envelope, "Envelope can not be null");
+
+        if (envelope.getUserCode() == meCode || !isLimited(envelope.getType())) {
+            return true;
+        }
+
+        final Repeat endedRepeat;
+        final boolean allowed;
+
+        synchronized (this) {
+            final Sender sender = getSender(envelope.getUserCode(), envelope.getIpAddress());
+
+            if (sender.isRepeat(envelope, now)) {
+                sender.repeatedMessages++;
+                repeatedMessages++;
+
+                if (sender.repeats == 0) {
+                    sender.repeatStartedAt = now;
+                    scheduleReport();
+                }
+
+                sender.repeats++;
+                sender.lastMessageAt = now;
+
+                return false;
+            }
+
+            final boolean chatMessage = isChatMessage(envelope.getType());
+            endedRepeat = chatMessage ? sender.endRepeat() : null;
+            allowed = sender.takeToken(now);
+
+            if (allowed) {
+                sender.allowedMessages++;
+                allowedMessages++;
+
+                if (chatMessage) {
+                    sender.setLastMessage(envelope, now);
+                }
+            } else {
+                sender.droppedMessages++;
+                droppedMessages++;
+                LOG.fine("Too many messages from %s, dropped: %s", sender, envelope.getMessage());
+            }
+        }
+
+        if (endedRepeat != null) {
+            notifyRepeat(endedRepeat);
+        }
+
+        return allowed;
+    }
+
+    /**
+     * Tells the listener about chat messages that have been repeated for the whole {@link #REPEAT_WINDOW_MS},
+     * and starts counting again.
+     *
+     * @param now The current time, from {@link System#nanoTime()}.
+     */
+    void reportRepeats(final long now) {
+        final List<Repeat> repeats = new ArrayList<>();
+
+        synchronized (this) {
+            reportScheduled = false;
+
+            for (final Sender sender : senders.values()) {
+                if (sender.repeats == 0) {
+                    continue;
+                }
+
+                if (now - sender.repeatStartedAt >= REPEAT_WINDOW_NANOS) {
+                    repeats.add(sender.endRepeat());
+                } else {
+                    scheduleReport();
+                }
+            }
+        }
+
+        for (final Repeat repeat : repeats) {
+            notifyRepeat(repeat);
+        }
+    }
+
+    /**
+     * Forgets every sender, without telling about repeats that have not been reported yet.
+     */
+    public synchronized void clear() {
+        senders.clear();
+    }
+
+    /**
+     * Gets the number of messages passed on to the user interface.
+     *
+     * @return The number of allowed messages.
+     */
+    public synchronized long getAllowedMessages() {
+        return allowedMessages;
+    }
+
+    /**
+     * Gets the number of messages dropped because the sender sent too many.
+     *
+     * @return The number of dropped messages.
+     */
+    public synchronized long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    /**
+     * Gets the number of chat messages folded because they were the same as the last one.
+     *
+     * @return The number of repeated messages.
+     */
+    public synchronized long getRepeatedMessages() {
+        return repeatedMessages;
+    }
+
+    /**
+     * Gets the counters of each sender, with the ones with the most dropped and repeated messages first.
+     *
+     * @return The counters of the latest senders.
+     */
+    public synchronized List<SenderCounters> getSenderCounters() {
+        final List<SenderCounters> counters = new ArrayList<>(senders.size());
+
+        for (final Sender sender : senders.values()) {
+            counters.add(new SenderCounters(sender));
+        }
+
+        Collections.sort(counters, new Comparator<SenderCounters>() {
+            @Override
+            public int compare(final SenderCounters first, final SenderCounters second) {
+                final long firstFiltered = first.droppedMessages + first.repeatedMessages;
+                final long secondFiltered = second.droppedMessages + second.repeatedMessages;
+
+                return firstFiltered < secondFiltered ? 1 : firstFiltered > secondFiltered ? -1 : 0;
+            }
+        });
+
+        return counters;
+    }
+
+    private static boolean isChatMessage(final MessageType type) {
+        return type == MessageType.MSG || type == MessageType.PRIVMSG;
+    }
+
+    /**
+     * Checks if messages of the type take tokens. Only the messages a flood would fill the screen with are limited.
+     *
+     * @param type The type of the message.
+     * @return If the message is limited.
+     */
+    private static boolean isLimited(final MessageType type) {
+        return isChatMessage(type) || type == MessageType.WRITING || type == MessageType.STOPPEDWRITING;
+    }
+
+    private Sender getSender(final int userCode, final String ipAddress) {
+        final String key = userCode + "/" + ipAddress;
+        Sender sender = senders.get(key);
+
+        if (sender == null) {
+            sender = new Sender(userCode, ipAddress);
+            senders.put(key, sender);
+        }
+
+        return sender;
+    }
+
+    /**
+     * Makes sure the repeats are reported even if the sender goes quiet. Must hold the lock on this.
+     */
+    private void scheduleReport() {
+        if (!reportScheduled) {
+            reportScheduled = true;
+            scheduler.schedule(repeatReporter, REPEAT_WINDOW_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void notifyRepeat(final Repeat repeat) {
+        try {
+            repeatListener.messageRepeated(repeat.userCode, repeat.type, repeat.times);
+        } catch (final RuntimeException e) {
+            LOG.severe(e, "Failed to show repeated message from %s", repeat.userCode);
+        }
+    }
+
+    private static ScheduledExecutorService createScheduler() {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, FloodFilter.class.getSimpleName());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        executor.setRemoveOnCancelPolicy(true);
+
+        return executor;
+    }
+
+    /**
+     * Gets told how many times a chat message was repeated, after the repeats were folded.
+     */
+    public interface RepeatListener {
+
+        /**
+         * The last chat message from the user was repeated, and the repeats were not shown.
+         *
+         * @param userCode The user code of the sender.
+         * @param type     The type of the message, {@link MessageType#MSG} or {@link MessageType#PRIVMSG}.
+         * @param times    The number of repeats that were not shown.
+         */
+        void messageRepeated(int userCode, MessageType type, int times);
+    }
+
+    /**
+     * The counters of a sender, by user code and ip address.
+     */
+    public static final class SenderCounters {
+
+        private final int userCode;
+        private final String ipAddress;
+        private final long allowedMessages;
+        private final long droppedMessages;
+        private final long repeatedMessages;
+
+        private SenderCounters(final Sender sender) {
+            this.userCode = sender.userCode;
+            this.ipAddress = sender.ipAddress;
+            this.allowedMessages = sender.allowedMessages;
+            this.droppedMessages = sender.droppedMessages;
+            this.repeatedMessages = sender.repeatedMessages;
+        }
+
+        public int getUserCode() {
+            return userCode;
+        }
+
+        public String getIpAddress() {
+            return ipAddress;
+        }
+
+        public long getAllowedMessages() {
+            return allowedMessages;
+        }
+
+        public long getDroppedMessages() {
+            return droppedMessages;
+        }
+
+        public long getRepeatedMessages() {
+            return repeatedMessages;
+        }
+
+        @Override
+        public String toString() {
+            return userCode + "/" + ipAddress + ": allowed=" + allowedMessages + ", dropped=" + droppedMessages +
+                    ", repeated=" + repeatedMessages;
+        }
+    }
+
+    private static final class Repeat {
+
+        private final int userCode;
+        private final MessageType type;
+        private final int times;
+
+        private Repeat(final int userCode, final MessageType type, final int times) {
+            this.userCode = userCode;
+            this.type = type;
+            this.times = times;
+        }
+    }
+
+    private static final class Sender {
+
+        private final int userCode;
+        private final String ipAddress;
+
+        private double tokens;
+        private long lastRefill;
+        private boolean started;
+
+        @Nullable
+        private MessageType lastType;
+
+        @Nullable
+        private String lastPayload;
+
+        private long lastMessageAt;
+        private long repeatStartedAt;
+        private int repeats;
+
+        private long allowedMessages;
+        private long droppedMessages;
+        private long repeatedMessages;
+
+        private Sender(final int userCode, final String ipAddress) {
+            this.userCode = userCode;
+            this.ipAddress = ipAddress;
+            this.tokens = MAX_BURST;
+        }
+
+        /**
+         * Checks if the message is the same chat message as the last one shown, soon enough to fold it.
+         */
+        private boolean isRepeat(final MessageEnvelope envelope, final long now) {
+            return lastType != null && envelope.getType() == lastType && now - lastMessageAt < REPEAT_WINDOW_NANOS
+                    && envelope.getPayload().equals(lastPayload);
+        }
+
+        private void setLastMessage(final MessageEnvelope envelope, final long now) {
+            lastType = envelope.getType();
+            lastPayload = envelope.getPayload();
+            lastMessageAt = now;
+        }
+
+        /**
+         * Stops counting repeats of the last message.
+         *
+         * @return The repeats to report, or <code>null</code> if there were none.
+         */
+        @Nullable
+        private Repeat endRepeat() {
+            if (repeats == 0) {
+                return null;
+            }
+
+            final Repeat repeat = new Repeat(userCode, lastType, repeats);
+            repeats = 0;
+
+            return repeat;
+        }
+
+        private boolean takeToken(final long now) {
+            if (started) {
+                tokens = Math.min(MAX_BURST, tokens + (now - lastRefill) / NANOS_PER_SECOND * MESSAGES_PER_SECOND);
+            }
+
+            started = true;
+            lastRefill = now;
+
+            if (tokens < 1) {
+                return false;
+            }
+
+            tokens--;
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return userCode + "/" + ipAddress;
+        }
+    }
+}
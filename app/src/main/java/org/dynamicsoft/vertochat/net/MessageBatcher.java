@@ -0,0 +1,288 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects control messages sent to all users within a short window, and sends them together
+ * in batch frames. Reduces the number of multicast packets when many messages are sent at once,
+ * like when logging on, or when every user answers an expose message.
+ * <p>
+ * <p>Batch frames are part of the binary protocol, so messages are only batched when every user
+ * supports it. This is checked again when the batch is sent, and the messages are sent one by one
+ * as text if a user without support has shown up in the meantime.</p>
+ * <p>
+ * <p>Only control messages are batched. Other messages should be sent right away, after calling
+ * {@link #flush(SendQueue.Lane)} to keep the messages in order. The waiting messages are then sent in
+ * the same lane of the send queue as the message, since the lanes take turns.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageBatcher {
+
+    /**
+     * How long to wait for more messages before sending a batch, in milliseconds.
+     */
+    public static final long BATCH_WINDOW_MS = 5;
+
+    /**
+     * Number of waiting messages that makes the batch be sent right away.
+     */
+    public static final int MAX_WAITING_MESSAGES = 32;
+
+    private static final Set<MessageType> BATCHED_TYPES = EnumSet.of(
+            MessageType.LOGON, MessageType.CLIENT, MessageType.EXPOSE, MessageType.EXPOSING,
+            MessageType.GETTOPIC, MessageType.TOPIC, MessageType.IDLE);
+
+    private final MessageSender messageSender;
+    private final ProtocolNegotiator protocolNegotiator;
+    private final ScheduledExecutorService scheduler;
+    private final Runnable flushTask;
+    private final SendFuture.Callback packetCounter;
+
+    /**
+     * Held while adding batches to the send queue, so they are sent in the same order as they were collected.
+     */
+    private final Object sendLock;
+
+    private final AtomicLong batchedMessages;
+    private final AtomicLong sentPackets;
+
+    /**
+     * The messages waiting to be sent. Guarded by this.
+     */
+    private List<String> waitingMessages;
+
+    /**
+     * The futures of the waiting messages, in the same order. Guarded by this.
+     */
+    private List<SendFuture> waitingFutures;
+
+    /**
+     * If a flush of the waiting messages is scheduled. Guarded by this.
+     */
+    private boolean flushScheduled;
+
+    /**
+     * Constructor.
+     *
+     * @param messageSender      The sender to send the batches with.
+     * @param protocolNegotiator To check if every user supports batches.
+     */
+    public MessageBatcher(final MessageSender messageSender, final ProtocolNegotiator protocolNegotiator) {
+        Validate.notNull(messageSender, "Message sender can not be null");
+        Validate.notNull(protocolNegotiator, "Protocol negotiator can not be null");
+
+        this.messageSender = messageSender;
+        this.protocolNegotiator = protocolNegotiator;
+        this.sendLock = new Object();
+        this.batchedMessages = new AtomicLong();
+        this.sentPackets = new AtomicLong();
+        this.waitingMessages = new ArrayList<>();
+        this.waitingFutures = new ArrayList<>();
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "MessageBatcher");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        this.flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+
+        this.packetCounter = new SendFuture.Callback() {
+            @Override
+            public void sendCompleted(final SendFuture future) {
+                sentPackets.addAndGet(future.getPackets());
+            }
+        };
+    }
+
+    /**
+     * Checks if the message is a control message that can be batched.
+     *
+     * @param message The message to check, in the text format.
+     * @return If the message can be batched.
+     */
+    public boolean canBatch(final String message) {
+        return BATCHED_TYPES.contains(MessageType.fromMessage(message));
+    }
+
+    /**
+     * Adds the message to the current batch, which is sent when the batch window is over.
+     *
+     * @param message The message to send.
+     * @return The future telling if the message was sent or not. Completes when the batch is done sending.
+     */
+    public SendFuture add(final String message) {
+        final SendFuture future = new SendFuture();
+        final boolean flushNow;
+
+        synchronized (this) {
+            waitingMessages.add(message);
+            waitingFutures.add(future);
+            flushNow = waitingMessages.size() >= MAX_WAITING_MESSAGES;
+
+            if (!flushNow && !flushScheduled) {
+                flushScheduled = true;
+                scheduler.schedule(flushTask, BATCH_WINDOW_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (flushNow) {
+            flush();
+        }
+
+        return future;
+    }
+
+    /**
+     * Sends the waiting messages right away, by adding them to the send queue.
+     */
+    public void flush() {
+        sendWaitingMessages(null);
+    }
+
+    /**
+     * Sends the waiting messages right away, in the lane of the send queue of the message that will be sent next,
+     * so they are not overtaken by it. Waiting messages with sequence numbers are always sent in the
+     * {@link SendQueue.Lane#CHAT chat} lane, so then that lane is returned instead.
+     *
+     * @param nextLane The lane of the message that will be sent next.
+     * @return The lane to send the next message in.
+     */
+    public SendQueue.Lane flush(final SendQueue.Lane nextLane) {
+        Validate.notNull(nextLane, "Lane can not be null");
+
+        return sendWaitingMessages(nextLane);
+    }
+
+    /**
+     * Adds the waiting messages to the send queue.
+     *
+     * @param nextLane The lane of the message that will be sent next, or <code>null</code> to use
+     *                 the usual lanes of the waiting messages.
+     * @return The lane the messages were sent in, or the next lane if there were no waiting messages.
+     */
+    @Nullable
+    private SendQueue.Lane sendWaitingMessages(@Nullable final SendQueue.Lane nextLane) {
+        synchronized (sendLock) {
+            final List<String> messages;
+            final List<SendFuture> futures;
+
+            synchronized (this) {
+                if (waitingMessages.isEmpty()) {
+                    return nextLane;
+                }
+
+                messages = waitingMessages;
+                futures = waitingFutures;
+                waitingMessages = new ArrayList<>();
+                waitingFutures = new ArrayList<>();
+                flushScheduled = false;
+            }
+
+            batchedMessages.addAndGet(messages.size());
+
+            final WireFormat format = protocolNegotiator.getFormatForAll();
+            final SendQueue.Lane batchLane = SendQueue.Lane.forBatch(messages);
+            final SendQueue.Lane lane = nextLane == null || batchLane == SendQueue.Lane.CHAT ? batchLane : nextLane;
+
+            if (format != WireFormat.TEXT) {
+                final SendFuture batchFuture = messageSender.sendBatch(messages, format, lane);
+                batchFuture.addCallback(packetCounter);
+                batchFuture.addCallback(new ResultForwarder(futures));
+            } else {
+                for (int i = 0; i < messages.size(); i++) {
+                    final String message = messages.get(i);
+                    final SendQueue.Lane messageLane = nextLane == null ? SendQueue.Lane.forMessage(message) : lane;
+                    final SendFuture messageFuture = messageSender.send(message, WireFormat.TEXT, messageLane);
+                    messageFuture.addCallback(packetCounter);
+                    messageFuture.addCallback(new ResultForwarder(futures.subList(i, i + 1)));
+                }
+            }
+
+            return lane;
+        }
+    }
+
+    /**
+     * Gets the number of messages that have been sent through this batcher.
+     *
+     * @return The number of messages.
+     */
+    public long getBatchedMessages() {
+        return batchedMessages.get();
+    }
+
+    /**
+     * Gets the number of packets used for sending the messages in {@link #getBatchedMessages()}.
+     *
+     * @return The number of packets.
+     */
+    public long getSentPackets() {
+        return sentPackets.get();
+    }
+
+    /**
+     * Completes the futures of the messages in a batch with the result of sending the batch.
+     */
+    private static final class ResultForwarder implements SendFuture.Callback {
+
+        private final List<SendFuture> futures;
+
+        private ResultForwarder(final List<SendFuture> futures) {
+            this.futures = futures;
+        }
+
+        @Override
+        public void sendCompleted(final SendFuture future) {
+            for (final SendFuture messageFuture : futures) {
+                if (future.isRejected()) {
+                    messageFuture.completeRejected();
+                } else {
+                    messageFuture.complete(future.getPackets());
+                }
+            }
+        }
+    }
+}
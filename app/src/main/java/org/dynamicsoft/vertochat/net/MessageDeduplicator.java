@@ -21,6 +21,9 @@
 
 package org.dynamicsoft.vertochat.net;
 
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.event.BatchReceiverListener;
+import org.dynamicsoft.vertochat.event.EnvelopeReceiverListener;
 import org.dynamicsoft.vertochat.event.ReceiverListener;
 import org.dynamicsoft.vertochat.misc.Controller;
 import org.dynamicsoft.vertochat.misc.User;
@@ -29,21 +32,39 @@ import org.dynamicsoft.vertochat.util.Logger;
 import org.dynamicsoft.vertochat.util.Validate;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * Proxy that listens for messages from both multicast and tcp and forwards from only one source at
  * a time (per user) to avoid duplicates.
+ * <p>
+ * <p>Messages stamped by the {@link MessageSequencer} are sent over both multicast and tcp at the same time.
+ * The first copy to arrive is forwarded, whichever path it came from, and later copies are dropped by the
+ * {@link SeenMessageFilter}, which also keeps track of which path was fastest. Private messages have their own
+ * sequence numbers, and their own filter. The first copy of each multicast message, and NACKs asking for lost
+ * messages, are passed on to the {@link ReliableMulticast}. Every stamped message arriving over multicast is
+ * counted by the {@link TransportSelector}, if enabled.</p>
+ * <p>
+ * <p>If the {@link FloodFilter} is enabled, it checks every message after the duplicates are removed, so each
+ * message only counts once against the sender, whichever path it came from.</p>
+ * <p>
+ * <p>Each message is decoded into a {@link MessageEnvelope} once, and the envelope is passed on to listeners
+ * implementing {@link EnvelopeReceiverListener}, so they don't need to parse the message again.</p>
  *
  * @author Christian Ihle
  */
-public class MessageDeduplicator implements ReceiverListener, TCPReceiverListener {
+public class MessageDeduplicator implements BatchReceiverListener, TCPReceiverListener {
 
     private static final Logger LOG = Logger.getLogger(MessageDeduplicator.class);
 
     private final Controller controller;
-    private final Pattern privateMessagePattern;
+    private final ReliableMulticast reliableMulticast;
+    private final SeenMessageFilter seenMessageFilter;
+    private final SeenMessageFilter seenPrivateMessageFilter;
+
+    @Nullable
+    private volatile TransportSelector transportSelector;
+
+    @Nullable
+    private volatile FloodFilter floodFilter;
 
     @Nullable
     private ReceiverListener mainChatListener;
@@ -51,11 +72,46 @@ public class MessageDeduplicator implements ReceiverListener, TCPReceiverListene
     @Nullable
     private ReceiverListener privateChatListener;
 
-    public MessageDeduplicator(final Controller controller) {
+    public MessageDeduplicator(final Controller controller, final ReliableMulticast reliableMulticast) {
         Validate.notNull(controller, "Controller can not be null");
+        Validate.notNull(reliableMulticast, "Reliable multicast can not be null");
 
         this.controller = controller;
-        this.privateMessagePattern = Pattern.compile("^(\\d+)!(PRIVMSG)#.+");
+        this.reliableMulticast = reliableMulticast;
+        this.seenMessageFilter = new SeenMessageFilter();
+        this.seenPrivateMessageFilter = new SeenMessageFilter();
+    }
+
+    /**
+     * Gets the filter of stamped multicast messages that have already arrived, with counters of which path was first.
+     *
+     * @return The filter of messages that have already arrived.
+     */
+    public SeenMessageFilter getSeenMessageFilter() {
+        return seenMessageFilter;
+    }
+
+    /**
+     * Tells the transport selector about every multicast message that arrives from the other users,
+     * so it knows where multicast works.
+     *
+     * @param theTransportSelector The transport selector to tell.
+     */
+    public void enableTransportSelector(final TransportSelector theTransportSelector) {
+        Validate.notNull(theTransportSelector, "Transport selector can not be null");
+
+        transportSelector = theTransportSelector;
+    }
+
+    /**
+     * Limits how many messages each sender can get through to the listeners, and folds repeated chat messages.
+     *
+     * @param theFloodFilter The flood filter to check every message with.
+     */
+    public void enableFloodFilter(final FloodFilter theFloodFilter) {
+        Validate.notNull(theFloodFilter, "Flood filter can not be null");
+
+        floodFilter = theFloodFilter;
     }
 
     public void registerMainChatReceiverListener(final ReceiverListener theListener) {
@@ -68,47 +124,128 @@ public class MessageDeduplicator implements ReceiverListener, TCPReceiverListene
 
     @Override
     public void messageArrived(final String message, final String ipAddress) {
-        final User user = parseUserFromMessage(message);
+        if (MessageSequencer.isStamped(message)) {
+            stampedMessageArrived(message, ipAddress, SeenMessageFilter.Path.UDP);
+            return;
+        }
+
+        final MessageEnvelope envelope = decode(message, ipAddress);
+
+        if (envelope != null && envelope.getType() == MessageType.NACK) {
+            reliableMulticast.nackArrived(envelope);
+            return;
+        }
+
+        final User user = envelope != null ? controller.getUser(envelope.getUserCode()) : null;
 
         if (user == null || !user.isTcpEnabled()) {
             if (user == null || !user.isMe()) {
                 LOG.fine("Multicast message: " + message);
             }
 
-            forwardMessageToListener(message, ipAddress);
+            forwardMessageToListener(message, ipAddress, envelope);
+        }
+    }
+
+    @Override
+    public void messagesArrived(final String[] messages, final String[] ipAddresses, final int count) {
+        for (int i = 0; i < count; i++) {
+            messageArrived(messages[i], ipAddresses[i]);
         }
     }
 
     @Override
     public void messageArrived(final String message, final String ipAddress, final User user) {
+        if (MessageSequencer.isStamped(message)) {
+            stampedMessageArrived(message, ipAddress, SeenMessageFilter.Path.TCP);
+            return;
+        }
+
         if (user.isTcpEnabled()) {
             LOG.fine("TCP message: " + message);
-            forwardMessageToListener(message, ipAddress);
+            forwardMessageToListener(message, ipAddress, decode(message, ipAddress));
         }
     }
 
-    private void forwardMessageToListener(final String message, final String ipAddress) {
-        final Matcher privateMessageMatcher = privateMessagePattern.matcher(message);
+    private void stampedMessageArrived(final String stampedMessage, final String ipAddress,
+                                       final SeenMessageFilter.Path path) {
+        final int sequence;
+        final String message;
 
-        if (privateMessageMatcher.matches()) {
-            if (privateChatListener != null) {
-                privateChatListener.messageArrived(message, ipAddress);
+        try {
+            sequence = MessageSequencer.getSequence(stampedMessage);
+            message = MessageSequencer.unstamp(stampedMessage);
+        } catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            LOG.warning("Failed to parse sequence number from message: %s", e.getMessage());
+            return;
+        }
+
+        final MessageEnvelope envelope = decode(message, ipAddress);
+
+        if (envelope == null) {
+            return;
+        }
+
+        final TransportSelector currentTransportSelector = transportSelector;
+
+        if (currentTransportSelector != null && path == SeenMessageFilter.Path.UDP && envelope.getType() != MessageType.PRIVMSG) {
+            currentTransportSelector.multicastArrived(envelope.getUserCode());
+        }
+
+        if (envelope.getType() == MessageType.PRIVMSG) {
+            if (seenPrivateMessageFilter.firstArrival(envelope.getUserCode(), sequence, path)) {
+                forwardMessageToListener(message, ipAddress, envelope);
             }
+        } else if (seenMessageFilter.firstArrival(envelope.getUserCode(), sequence, path)) {
+            LOG.fine("%s message %d: %s", path, sequence, message);
+            recoverLostMessages(envelope.getUserCode(), sequence);
+            forwardMessageToListener(message, ipAddress, envelope);
+        }
+    }
+
+    private void recoverLostMessages(final int userCode, final int sequence) {
+        final User user = controller.getUser(userCode);
+
+        if (user != null && user.getProtocolVersion() >= Constants.PROTOCOL_VERSION_RELIABLE_MULTICAST) {
+            reliableMulticast.messageArrived(userCode, sequence);
+        }
+    }
+
+    private void forwardMessageToListener(final String message, final String ipAddress,
+                                          @Nullable final MessageEnvelope envelope) {
+        final FloodFilter currentFloodFilter = floodFilter;
+
+        if (envelope != null && currentFloodFilter != null && !currentFloodFilter.allow(envelope)) {
+            return;
+        }
+
+        if (envelope != null && envelope.getType() == MessageType.PRIVMSG) {
+            forwardMessageToListener(privateChatListener, message, ipAddress, envelope);
         } else {
-            if (mainChatListener != null) {
-                mainChatListener.messageArrived(message, ipAddress);
-            }
+            forwardMessageToListener(mainChatListener, message, ipAddress, envelope);
+        }
+    }
+
+    private void forwardMessageToListener(@Nullable final ReceiverListener listener, final String message,
+                                          final String ipAddress, @Nullable final MessageEnvelope envelope) {
+        if (listener == null) {
+            return;
+        }
+
+        if (envelope != null && listener instanceof EnvelopeReceiverListener) {
+            ((EnvelopeReceiverListener) listener).envelopeArrived(envelope);
+        } else {
+            listener.messageArrived(message, ipAddress);
         }
     }
 
     @Nullable
-    private User parseUserFromMessage(final String message) {
+    private MessageEnvelope decode(final String message, final String ipAddress) {
         try {
-            final int msgCode = Integer.parseInt(message.substring(0, message.indexOf("!")));
-            return controller.getUser(msgCode);
+            return MessageEnvelope.decode(message, ipAddress);
         } catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
             LOG.warning("Failed to parse user from message: %s", e.getMessage());
             return null;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,351 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Encodes outgoing messages into a reusable byte buffer, without creating any new objects
+ * for each message.
+ * <p>
+ * <p>Messages found in the {@link MessageFrameCache} are not encoded at all, and the cached frame
+ * is used instead. Other messages are encoded as {@link Constants#MESSAGE_CHARSET} into a buffer
+ * that is only replaced when a larger message arrives, either as text or as a frame in the
+ * {@link BinaryMessageFormat binary format}, optionally with the payload compressed. Unpaired surrogates are replaced with
+ * <code>?</code>, like {@link String#getBytes(String)} does.</p>
+ * <p>
+ * <p>The bytes from the encoder are only valid until the next message is encoded, and an encoder
+ * must only be used by one thread at a time.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageEncoder {
+
+    private static final byte REPLACEMENT = '?';
+
+    private final MessageFrameCache frameCache;
+
+    private byte[] buffer;
+    private byte[] batchBuffer;
+    private byte[] bytes;
+    private int length;
+
+    /**
+     * Created the first time a message is compressed, since most encoders never need one.
+     */
+    @Nullable
+    private PayloadCompressor compressor;
+
+    /**
+     * Constructor.
+     *
+     * @param frameCache The cache to look for already encoded messages in.
+     */
+    public MessageEncoder(final MessageFrameCache frameCache) {
+        Validate.notNull(frameCache, "Frame cache can not be null");
+
+        this.frameCache = frameCache;
+        this.buffer = new byte[Constants.NETWORK_PACKET_SIZE];
+        this.batchBuffer = new byte[Constants.NETWORK_PACKET_SIZE];
+        this.bytes = buffer;
+    }
+
+    /**
+     * Encodes the message, or finds it in the cache.
+     *
+     * @param message The message to encode.
+     * @return The number of bytes in the encoded message, starting at index 0 of {@link #getBytes()}.
+     */
+    public int encode(final String message) {
+        final byte[] cachedFrame = frameCache.get(message);
+
+        if (cachedFrame != null) {
+            return useCachedFrame(cachedFrame);
+        }
+
+        return encodeMessage(message);
+    }
+
+    /**
+     * Encodes the message as a frame in the {@link BinaryMessageFormat binary format}, or finds it in the cache.
+     * Uses the text format if the message can not be sent as binary.
+     *
+     * @param message The message to encode, in the text format.
+     * @return The number of bytes in the encoded message, starting at index 0 of {@link #getBytes()}.
+     */
+    public int encodeBinary(final String message) {
+        final byte[] cachedFrame = frameCache.getBinary(message);
+
+        if (cachedFrame != null) {
+            return useCachedFrame(cachedFrame);
+        }
+
+        return encodeBinaryMessage(message);
+    }
+
+    /**
+     * Encodes the message as a frame in the {@link BinaryMessageFormat binary format}, with the payload
+     * compressed when that makes the frame smaller. Uses the text format if the message can not be sent as binary.
+     *
+     * @param message The message to encode, in the text format.
+     * @return The number of bytes in the encoded message, starting at index 0 of {@link #getBytes()}.
+     */
+    public int encodeCompressed(final String message) {
+        // Only messages without a payload worth compressing are cached
+        final byte[] cachedFrame = frameCache.getBinary(message);
+
+        if (cachedFrame != null) {
+            return useCachedFrame(cachedFrame);
+        }
+
+        if (compressor == null) {
+            compressor = new PayloadCompressor();
+        }
+
+        return encodeBinaryMessage(message, compressor);
+    }
+
+    /**
+     * Encodes the message in the given format.
+     *
+     * @param message The message to encode, in the text format.
+     * @param format  The format to encode the message in.
+     * @return The number of bytes in the encoded message, starting at index 0 of {@link #getBytes()}.
+     */
+    public int encode(final String message, final WireFormat format) {
+        switch (format) {
+            case COMPRESSED:
+                return encodeCompressed(message);
+            case BINARY:
+                return encodeBinary(message);
+            default:
+                return encode(message);
+        }
+    }
+
+    /**
+     * Encodes as many of the messages as there is room for into one batch frame in the
+     * {@link BinaryMessageFormat binary format}, starting at the offset.
+     *
+     * @param messages The messages to encode, in the text format.
+     * @param offset   The index of the first message to encode.
+     * @param maxSize  The max number of bytes in the batch frame.
+     * @return The number of messages encoded. The number of bytes is found using {@link #getLength()}.
+     * @see #encodeBatch(List, int, int, WireFormat)
+     */
+    public int encodeBatch(final List<String> messages, final int offset, final int maxSize) {
+        return encodeBatch(messages, offset, maxSize, WireFormat.BINARY);
+    }
+
+    /**
+     * Encodes as many of the messages as there is room for into one batch frame in the
+     * {@link BinaryMessageFormat binary format}, starting at the offset.
+     * <p>
+     * <p>If only one message fits, or a message can not be sent as binary, that message is encoded
+     * by itself instead, like with {@link #encode(String, WireFormat)}.</p>
+     *
+     * @param messages The messages to encode, in the text format.
+     * @param offset   The index of the first message to encode.
+     * @param maxSize  The max number of bytes in the batch frame.
+     * @param format   The format of each frame in the batch. Must not be {@link WireFormat#TEXT}.
+     * @return The number of messages encoded. The number of bytes is found using {@link #getLength()}.
+     */
+    public int encodeBatch(final List<String> messages, final int offset, final int maxSize, final WireFormat format) {
+        Validate.isTrue(format != WireFormat.TEXT, "Batches can not use the text format");
+
+        if (batchBuffer.length < maxSize) {
+            batchBuffer = new byte[maxSize];
+        }
+
+        int position = BinaryMessageFormat.writeBatchHeader(batchBuffer);
+        int count = 0;
+
+        while (offset + count < messages.size()) {
+            final int frameLength = encode(messages.get(offset + count), format);
+
+            if (bytes[0] != BinaryMessageFormat.MARKER
+                    || position + BinaryMessageFormat.getBatchedFrameSize(frameLength) > maxSize) {
+                break;
+            }
+
+            position = BinaryMessageFormat.writeBatchedFrame(bytes, frameLength, batchBuffer, position);
+            count++;
+        }
+
+        if (count <= 1) {
+            encode(messages.get(offset), format);
+            return 1;
+        }
+
+        bytes = batchBuffer;
+        length = position;
+
+        return count;
+    }
+
+    /**
+     * Gets the bytes of the last encoded message. The array may be larger than the message,
+     * and must not be modified.
+     *
+     * @return The bytes of the last encoded message.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Gets the number of bytes in the last encoded message.
+     *
+     * @return The number of bytes, starting at index 0 of {@link #getBytes()}.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    private int useCachedFrame(final byte[] cachedFrame) {
+        bytes = cachedFrame;
+        length = cachedFrame.length;
+
+        return length;
+    }
+
+    /**
+     * Encodes the message into the buffer, without checking the cache.
+     *
+     * @param message The message to encode.
+     * @return The number of bytes in the encoded message.
+     */
+    int encodeMessage(final String message) {
+        ensureCapacity(message.length() * 3);
+
+        bytes = buffer;
+        length = encodeUTF8(message, 0, message.length(), buffer, 0);
+
+        return length;
+    }
+
+    /**
+     * Encodes the message as a binary frame into the buffer, without checking the cache.
+     *
+     * @param message The message to encode.
+     * @return The number of bytes in the encoded message.
+     */
+    int encodeBinaryMessage(final String message) {
+        return encodeBinaryMessage(message, null);
+    }
+
+    private int encodeBinaryMessage(final String message, @Nullable final PayloadCompressor payloadCompressor) {
+        ensureCapacity(BinaryMessageFormat.getMaxFrameSize(message));
+
+        final int frameLength = BinaryMessageFormat.write(message, buffer, payloadCompressor);
+
+        if (frameLength < 0) {
+            return encodeMessage(message);
+        }
+
+        bytes = buffer;
+        length = frameLength;
+
+        return length;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (buffer.length < capacity) {
+            buffer = new byte[capacity];
+        }
+    }
+
+    /**
+     * Counts the number of bytes needed to encode part of the text.
+     *
+     * @param text  The text to count.
+     * @param start The first character to count, inclusive.
+     * @param end   The last character to count, exclusive.
+     * @return The number of bytes.
+     */
+    public static int getEncodedLength(final String text, final int start, final int end) {
+        int length = 0;
+
+        for (int i = start; i < end; i++) {
+            final char c = text.charAt(i);
+
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Encodes part of the text into the array. The array must have room for 3 bytes per character.
+     *
+     * @param text     The text to encode.
+     * @param start    The first character to encode, inclusive.
+     * @param end      The last character to encode, exclusive.
+     * @param out      The array to encode into.
+     * @param position Where in the array to start.
+     * @return The position in the array after the encoded text.
+     */
+    public static int encodeUTF8(final String text, final int start, final int end, final byte[] out, final int position) {
+        int current = position;
+
+        // No character needs more than 3 bytes. Surrogate pairs use 4 bytes for 2 characters.
+        for (int i = start; i < end; i++) {
+            final char c = text.charAt(i);
+
+            if (c < 0x80) {
+                out[current++] = (byte) c;
+            } else if (c < 0x800) {
+                out[current++] = (byte) (0xC0 | (c >> 6));
+                out[current++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                out[current++] = (byte) (0xF0 | (codePoint >> 18));
+                out[current++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                out[current++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                out[current++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                out[current++] = REPLACEMENT;
+            } else {
+                out[current++] = (byte) (0xE0 | (c >> 12));
+                out[current++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[current++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        return current;
+    }
+}
@@ -0,0 +1,251 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A network message decoded once when it arrives, so the user code and type can be checked
+ * by every listener without parsing the message again.
+ * <p>
+ * <p>Messages have the format <code>code!TYPE#nick:payload</code>. Decoding only finds the positions
+ * of the delimiters, and parses the user code and type directly from the message. The nick and payload
+ * are extracted the first time they are needed, so a message that is dropped never creates any substrings.</p>
+ * <p>
+ * <p>An envelope is meant to be used by one thread at a time.</p>
+ *
+ * @author Christian Ihle
+ */
+public final class MessageEnvelope {
+
+    private final String message;
+    private final String ipAddress;
+    private final int userCode;
+    private final MessageType type;
+
+    private final int typeStart;
+    private final int hash;
+    private final int colon;
+
+    @Nullable
+    private String nick;
+
+    @Nullable
+    private String payload;
+
+    private MessageEnvelope(final String message, final String ipAddress, final int userCode, final MessageType type,
+                            final int typeStart, final int hash, final int colon) {
+        this.message = message;
+        this.ipAddress = ipAddress;
+        this.userCode = userCode;
+        this.type = type;
+        this.typeStart = typeStart;
+        this.hash = hash;
+        this.colon = colon;
+    }
+
+    /**
+     * Decodes the message.
+     *
+     * @param message   The raw message from the network.
+     * @param ipAddress The ip address of the user who sent the message.
+     * @return The decoded message.
+     * @throws StringIndexOutOfBoundsException If the delimiters are missing or in the wrong order.
+     * @throws NumberFormatException If the user code is not a number.
+     */
+    public static MessageEnvelope decode(final String message, final String ipAddress) {
+        final int exclamation = message.indexOf('!');
+        final int hash = message.indexOf('#');
+        final int colon = message.indexOf(':');
+
+        if (exclamation < 0 || hash <= exclamation || colon <= hash) {
+            throw new StringIndexOutOfBoundsException(
+                    "Missing delimiters. exclamation=" + exclamation + ", hash=" + hash + ", colon=" + colon);
+        }
+
+        final int userCode = parseInt(message, 0, exclamation);
+        final MessageType type = MessageType.fromNetworkName(message, exclamation + 1, hash);
+
+        return new MessageEnvelope(message, ipAddress, userCode, type, exclamation + 1, hash, colon);
+    }
+
+    /**
+     * Parses a number from the characters between the start and end positions of the text,
+     * without creating a substring. Follows the same rules as {@link Integer#parseInt(String)}.
+     *
+     * @param text  The text to parse from.
+     * @param start The start of the number, inclusive.
+     * @param end   The end of the number, exclusive.
+     * @return The number.
+     * @throws NumberFormatException If the characters are not a valid number.
+     * @throws StringIndexOutOfBoundsException If the positions are outside the text, like {@link String#substring(int, int)}.
+     */
+    public static int parseInt(final String text, final int start, final int end) {
+        final long result = parseLong(text, start, end);
+
+        if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+            throw numberFormatException(text, start, end);
+        }
+
+        return (int) result;
+    }
+
+    /**
+     * Parses a number from the characters between the start and end positions of the text,
+     * without creating a substring. Follows the same rules as {@link Long#parseLong(String)}.
+     *
+     * @param text  The text to parse from.
+     * @param start The start of the number, inclusive.
+     * @param end   The end of the number, exclusive.
+     * @return The number.
+     * @throws NumberFormatException If the characters are not a valid number.
+     * @throws StringIndexOutOfBoundsException If the positions are outside the text, like {@link String#substring(int, int)}.
+     */
+    public static long parseLong(final String text, final int start, final int end) {
+        if (start < 0 || end > text.length() || start > end) {
+            throw new StringIndexOutOfBoundsException("begin " + start + ", end " + end + ", length " + text.length());
+        }
+
+        if (start == end) {
+            throw numberFormatException(text, start, end);
+        }
+
+        int position = start;
+        final char first = text.charAt(position);
+        final boolean negative = first == '-';
+
+        if (negative || first == '+') {
+            position++;
+
+            if (position == end) {
+                throw numberFormatException(text, start, end);
+            }
+        }
+
+        // Accumulate negatively, to be able to parse Long.MIN_VALUE
+        final long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long result = 0;
+
+        while (position < end) {
+            final int digit = Character.digit(text.charAt(position), 10);
+
+            if (digit < 0 || result < limit / 10) {
+                throw numberFormatException(text, start, end);
+            }
+
+            result *= 10;
+
+            if (result < limit + digit) {
+                throw numberFormatException(text, start, end);
+            }
+
+            result -= digit;
+            position++;
+        }
+
+        return negative ? result : -result;
+    }
+
+    private static NumberFormatException numberFormatException(final String text, final int start, final int end) {
+        return new NumberFormatException("For input string: \"" + text.substring(start, end) + "\"");
+    }
+
+    /**
+     * Gets the raw message, as it arrived from the network.
+     *
+     * @return The raw message.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Gets the ip address of the user who sent the message.
+     *
+     * @return The ip address.
+     */
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    /**
+     * Gets the code of the user who sent the message.
+     *
+     * @return The user code.
+     */
+    public int getUserCode() {
+        return userCode;
+    }
+
+    /**
+     * Gets the type of message.
+     *
+     * @return The message type, or {@link MessageType#UNKNOWN} if not supported.
+     */
+    public MessageType getType() {
+        return type;
+    }
+
+    /**
+     * Gets the type as written in the message. Useful for logging unknown types.
+     *
+     * @return The type name.
+     */
+    public String getTypeName() {
+        if (type != MessageType.UNKNOWN) {
+            return type.getNetworkName();
+        }
+
+        return message.substring(typeStart, hash);
+    }
+
+    /**
+     * Gets the nick name of the user who sent the message.
+     *
+     * @return The nick name.
+     */
+    public String getNick() {
+        if (nick == null) {
+            nick = message.substring(hash + 1, colon);
+        }
+
+        return nick;
+    }
+
+    /**
+     * Gets everything after the nick name.
+     *
+     * @return The payload, which may be empty.
+     */
+    public String getPayload() {
+        if (payload == null) {
+            payload = message.substring(colon + 1);
+        }
+
+        return payload;
+    }
+
+    @Override
+    public String toString() {
+        return message;
+    }
+}
@@ -0,0 +1,148 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Cache of messages that are sent often without changing, already encoded and ready to send.
+ * <p>
+ * <p>Messages are looked up by identity, so only the exact string instances that were cached
+ * are found. That makes a lookup a few reference comparisons, without hashing or comparing
+ * the contents of the message. The cache is replaced as a whole, and is safe to use from
+ * several threads at the same time.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageFrameCache {
+
+    private volatile CachedFrames cachedFrames;
+
+    public MessageFrameCache() {
+        cachedFrames = new CachedFrames(new String[0], new byte[0][], new byte[0][]);
+    }
+
+    /**
+     * Replaces the cached messages with these messages.
+     *
+     * @param messages The messages to cache.
+     */
+    public void replace(final String... messages) {
+        Validate.notNull(messages, "Messages can not be null");
+
+        final String[] cachedMessages = messages.clone();
+        final byte[][] frames = new byte[cachedMessages.length][];
+        final byte[][] binaryFrames = new byte[cachedMessages.length][];
+        final MessageEncoder encoder = new MessageEncoder(this);
+
+        for (int i = 0; i < cachedMessages.length; i++) {
+            Validate.notNull(cachedMessages[i], "Message can not be null");
+            frames[i] = copyOf(encoder.getBytes(), encoder.encodeMessage(cachedMessages[i]));
+            binaryFrames[i] = copyOf(encoder.getBytes(), encoder.encodeBinaryMessage(cachedMessages[i]));
+        }
+
+        cachedFrames = new CachedFrames(cachedMessages, frames, binaryFrames);
+    }
+
+    private byte[] copyOf(final byte[] bytes, final int length) {
+        final byte[] copy = new byte[length];
+        System.arraycopy(bytes, 0, copy, 0, length);
+
+        return copy;
+    }
+
+    /**
+     * Removes all the cached messages.
+     */
+    public void clear() {
+        replace();
+    }
+
+    /**
+     * Checks if the message is cached.
+     *
+     * @param message The message to check.
+     * @return If the exact message instance was cached.
+     */
+    public boolean contains(final String message) {
+        return cachedFrames.indexOf(message) >= 0;
+    }
+
+    /**
+     * Gets the encoded frame of a cached message.
+     * <p>
+     * <p>The returned array is shared, and must not be modified.</p>
+     *
+     * @param message The exact message instance that was cached.
+     * @return The encoded message, or <code>null</code> if not cached.
+     */
+    @Nullable
+    public byte[] get(final String message) {
+        final CachedFrames currentFrames = cachedFrames;
+        final int index = currentFrames.indexOf(message);
+
+        return index >= 0 ? currentFrames.frames[index] : null;
+    }
+
+    /**
+     * Gets the encoded frame of a cached message in the {@link BinaryMessageFormat binary format}.
+     * <p>
+     * <p>The returned array is shared, and must not be modified.</p>
+     *
+     * @param message The exact message instance that was cached.
+     * @return The encoded message, or <code>null</code> if not cached.
+     */
+    @Nullable
+    public byte[] getBinary(final String message) {
+        final CachedFrames currentFrames = cachedFrames;
+        final int index = currentFrames.indexOf(message);
+
+        return index >= 0 ? currentFrames.binaryFrames[index] : null;
+    }
+
+    /**
+     * The cached messages, and their frames at the same index.
+     */
+    private static final class CachedFrames {
+
+        private final String[] messages;
+        private final byte[][] frames;
+        private final byte[][] binaryFrames;
+
+        private CachedFrames(final String[] messages, final byte[][] frames, final byte[][] binaryFrames) {
+            this.messages = messages;
+            this.frames = frames;
+            this.binaryFrames = binaryFrames;
+        }
+
+        private int indexOf(final String message) {
+            for (int i = 0; i < messages.length; i++) {
+                if (messages[i] == message) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+    }
+}
@@ -21,7 +21,8 @@
 
 package org.dynamicsoft.vertochat.net;
 
-import org.dynamicsoft.vertochat.event.ReceiverListener;
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.event.EnvelopeReceiverListener;
 import org.dynamicsoft.vertochat.misc.User;
 import org.dynamicsoft.vertochat.settings.Settings;
 import org.dynamicsoft.vertochat.util.Validate;
@@ -55,10 +56,13 @@ import java.util.logging.Logger;
  * <li>SENDFILE</li>
  * <li>CLIENT</li>
  * </ul>
+ * <p>
+ * <p>Messages are decoded into a {@link MessageEnvelope} before being handled, unless they arrive
+ * already decoded.</p>
  *
  * @author Christian Ihle
  */
-public class MessageParser implements ReceiverListener {
+public class MessageParser implements EnvelopeReceiverListener {
 
     /**
      * The logger.
@@ -95,190 +99,311 @@ public class MessageParser implements ReceiverListener {
     }
 
     /**
-     * The parser. Checks what kind of message it is,
-     * and then gives the correct data to the responder for
-     * more processing.
+     * Decodes the raw message, and handles it like {@link #envelopeArrived(MessageEnvelope)}.
      *
      * @param message   The raw message to parse.
      * @param ipAddress The IP address of the user who sent the message.
      */
     @Override
     public void messageArrived(final String message, final String ipAddress) {
+        final MessageEnvelope envelope;
+
         try {
-            final int exclamation = message.indexOf("!");
-            final int hash = message.indexOf("#");
-            final int colon = message.indexOf(":");
+            envelope = MessageEnvelope.decode(message, ipAddress);
+        }
 
-            final int msgCode = Integer.parseInt(message.substring(0, exclamation));
-            final String type = message.substring(exclamation + 1, hash);
-            final String msgNick = message.substring(hash + 1, colon);
-            final String msg = message.substring(colon + 1);
+        // Just ignore, someone sent a badly formatted message
+        catch (final StringIndexOutOfBoundsException | NumberFormatException e) {
+            LOG.log(Level.SEVERE, "Failed to parse message. message=" + message + ", ipAddress=" + ipAddress, e);
+            return;
+        }
+
+        envelopeArrived(envelope);
+    }
 
+    /**
+     * The parser. Checks what kind of message it is,
+     * and then gives the correct data to the responder for
+     * more processing.
+     * <p>
+     * <p>Messages from this user are dropped without looking at anything but the
+     * user code and type, except for LOGON and IDLE.</p>
+     *
+     * @param envelope The decoded message.
+     */
+    @Override
+    public void envelopeArrived(final MessageEnvelope envelope) {
+        try {
+            final int msgCode = envelope.getUserCode();
+            final MessageType type = envelope.getType();
             final User tempme = settings.getMe();
 
             if (msgCode != tempme.getCode() && loggedOn) {
-                if (type.equals(NetworkMessageType.MSG)) {
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int rgb = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
-
-                    responder.messageArrived(msgCode, msg.substring(rightBracket + 1), rgb);
-                } else if (type.equals(NetworkMessageType.LOGON)) {
-                    final User newUser = new User(msgNick, msgCode);
-                    newUser.setIpAddress(ipAddress);
-                    newUser.setLastIdle(System.currentTimeMillis());
-                    newUser.setLogonTime(System.currentTimeMillis());
-
-                    responder.userLogOn(newUser);
-                } else if (type.equals(NetworkMessageType.EXPOSING)) {
-                    final User user = new User(msgNick, msgCode);
-                    user.setIpAddress(ipAddress);
-                    user.setAwayMsg(msg);
-
-                    if (msg.length() > 0) {
-                        user.setAway(true);
-                    }
-
-                    user.setLastIdle(System.currentTimeMillis());
-                    user.setLogonTime(System.currentTimeMillis());
-
-                    responder.userExposing(user);
-                } else if (type.equals(NetworkMessageType.LOGOFF)) {
-                    responder.userLogOff(msgCode);
-                } else if (type.equals(NetworkMessageType.AWAY)) {
-                    responder.awayChanged(msgCode, true, msg);
-                } else if (type.equals(NetworkMessageType.BACK)) {
-                    responder.awayChanged(msgCode, false, "");
-                } else if (type.equals(NetworkMessageType.EXPOSE)) {
-                    responder.exposeRequested();
-                } else if (type.equals(NetworkMessageType.NICKCRASH)) {
-                    if (tempme.getNick().equals(msg)) {
-                        responder.nickCrash();
-                    }
-                } else if (type.equals(NetworkMessageType.WRITING)) {
-                    responder.writingChanged(msgCode, true);
-                } else if (type.equals(NetworkMessageType.STOPPEDWRITING)) {
-                    responder.writingChanged(msgCode, false);
-                } else if (type.equals(NetworkMessageType.GETTOPIC)) {
-                    responder.topicRequested();
-                } else if (type.equals(NetworkMessageType.TOPIC)) {
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-
-                    if (rightBracket != -1 && leftBracket != -1) {
-                        final String theNick = msg.substring(leftPara + 1, rightPara);
-                        final long theTime = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
-                        String theTopic = null;
-
-                        if (msg.length() > rightBracket + 1) {
-                            theTopic = msg.substring(rightBracket + 1);
-                        }
-
-                        responder.topicChanged(msgCode, theTopic, theNick, theTime);
-                    }
-                } else if (type.equals(NetworkMessageType.NICK)) {
-                    responder.nickChanged(msgCode, msgNick);
-                } else if (type.equals(NetworkMessageType.IDLE)) {
-                    responder.userIdle(msgCode, ipAddress);
-                } else if (type.equals(NetworkMessageType.SENDFILEACCEPT)) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
-
-                    if (fileCode == tempme.getCode()) {
-                        final int leftCurly = msg.indexOf("{");
-                        final int rightCurly = msg.indexOf("}");
-                        final int leftBracket = msg.indexOf("[");
-                        final int rightBracket = msg.indexOf("]");
-                        final int port = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
-                        final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
-                        final String fileName = msg.substring(rightCurly + 1);
-
-                        responder.fileSendAccepted(msgCode, fileName, fileHash, port);
-                    }
-                } else if (type.equals(NetworkMessageType.SENDFILEABORT)) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
-
-                    if (fileCode == tempme.getCode()) {
-                        final int leftCurly = msg.indexOf("{");
-                        final int rightCurly = msg.indexOf("}");
-                        final String fileName = msg.substring(rightCurly + 1);
-                        final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
-
-                        responder.fileSendAborted(msgCode, fileName, fileHash);
-                    }
-                } else if (type.equals(NetworkMessageType.SENDFILE)) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
-
-                    if (fileCode == tempme.getCode()) {
-                        final int leftCurly = msg.indexOf("{");
-                        final int rightCurly = msg.indexOf("}");
-                        final int leftBracket = msg.indexOf("[");
-                        final int rightBracket = msg.indexOf("]");
-                        final long byteSize = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
-                        final String fileName = msg.substring(rightCurly + 1);
-                        final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
-
-                        responder.fileSend(msgCode, byteSize, fileName, msgNick, fileHash);
-                    }
-                } else if (type.equals(NetworkMessageType.CLIENT)) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int leftCurly = msg.indexOf("{");
-                    final int rightCurly = msg.indexOf("}");
-                    final int lessThan = msg.indexOf("<");
-                    final int greaterThan = msg.indexOf(">");
-                    final int slash = msg.indexOf("/");
-                    final int backslash = msg.indexOf("\\");
-
-                    final String client = msg.substring(leftPara + 1, rightPara);
-                    final long timeSinceLogon = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
-                    final String operatingSystem = msg.substring(leftCurly + 1, rightCurly);
-
-                    int privateChatPort = 0;
-
-                    try {
-                        privateChatPort = Integer.parseInt(msg.substring(lessThan + 1, greaterThan));
-                    } catch (final NumberFormatException e) {
-                        LOG.log(Level.WARNING, "Failed to parse private chat port. message=" + message + ", ipAddress=" + ipAddress, e);
-                    }
-
-                    int tcpChatPort = 0;
-
-                    if (slash != -1 && backslash != -1) {
-                        try {
-                            tcpChatPort = Integer.parseInt(msg.substring(slash + 1, backslash));
-                        } catch (final NumberFormatException e) {
-                            LOG.log(Level.WARNING, "Failed to parse tcp chat port. message=" + message + ", ipAddress=" + ipAddress, e);
-                        }
-                    }
-
-                    responder.clientInfo(msgCode, client, timeSinceLogon, operatingSystem, privateChatPort, tcpChatPort);
-                }
-            } else if (msgCode == tempme.getCode() && type.equals(NetworkMessageType.LOGON)) {
-                responder.meLogOn(ipAddress);
+                userMessageArrived(envelope, tempme);
+            } else if (msgCode == tempme.getCode() && type == MessageType.LOGON) {
+                responder.meLogOn(envelope.getIpAddress());
                 loggedOn = true;
-            } else if (msgCode == tempme.getCode() && type.equals(NetworkMessageType.IDLE) && loggedOn) {
-                responder.meIdle(ipAddress);
+            } else if (msgCode == tempme.getCode() && type == MessageType.IDLE && loggedOn) {
+                responder.meIdle(envelope.getIpAddress());
             }
         }
 
         // Just ignore, someone sent a badly formatted message
         catch (final StringIndexOutOfBoundsException e) {
-            LOG.log(Level.SEVERE, "Failed to parse message. message=" + message + ", ipAddress=" + ipAddress, e);
+            LOG.log(Level.SEVERE, "Failed to parse message. message=" + envelope.getMessage() +
+                    ", ipAddress=" + envelope.getIpAddress(), e);
         }
 
         // Just ignore, someone sent a badly formatted message
         catch (final NumberFormatException e) {
-            LOG.log(Level.SEVERE, "Failed to parse message. message=" + message + ", ipAddress=" + ipAddress, e);
+            LOG.log(Level.SEVERE, "Failed to parse message. message=" + envelope.getMessage() +
+                    ", ipAddress=" + envelope.getIpAddress(), e);
+        }
+    }
+
+    /**
+     * Gives the message from another user to the responder, based on the type of message.
+     *
+     * @param envelope The decoded message.
+     * @param tempme   The application user.
+     */
+    private void userMessageArrived(final MessageEnvelope envelope, final User tempme) {
+        final int msgCode = envelope.getUserCode();
+        final String ipAddress = envelope.getIpAddress();
+
+        switch (envelope.getType()) {
+            case MSG:
+                final String msg = envelope.getPayload();
+                final int leftBracket = msg.indexOf("[");
+                final int rightBracket = msg.indexOf("]");
+                final int rgb = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
+
+                responder.messageArrived(msgCode, msg.substring(rightBracket + 1), rgb);
+                break;
+
+            case LOGON:
+                final User newUser = new User(envelope.getNick(), msgCode);
+                newUser.setIpAddress(ipAddress);
+                newUser.setLastIdle(System.currentTimeMillis());
+                newUser.setLogonTime(System.currentTimeMillis());
+
+                responder.userLogOn(newUser);
+                break;
+
+            case EXPOSING:
+                final User user = new User(envelope.getNick(), msgCode);
+                final String awayMsg = envelope.getPayload();
+                user.setIpAddress(ipAddress);
+                user.setAwayMsg(awayMsg);
+
+                if (awayMsg.length() > 0) {
+                    user.setAway(true);
+                }
+
+                user.setLastIdle(System.currentTimeMillis());
+                user.setLogonTime(System.currentTimeMillis());
+
+                responder.userExposing(user);
+                break;
+
+            case LOGOFF:
+                responder.userLogOff(msgCode);
+                break;
+
+            case AWAY:
+                responder.awayChanged(msgCode, true, envelope.getPayload());
+                break;
+
+            case BACK:
+                responder.awayChanged(msgCode, false, "");
+                break;
+
+            case EXPOSE:
+                responder.exposeRequested();
+                break;
+
+            case NICKCRASH:
+                if (tempme.getNick().equals(envelope.getPayload())) {
+                    responder.nickCrash();
+                }
+
+                break;
+
+            case WRITING:
+                responder.writingChanged(msgCode, true);
+                break;
+
+            case STOPPEDWRITING:
+                responder.writingChanged(msgCode, false);
+                break;
+
+            case GETTOPIC:
+                responder.topicRequested();
+                break;
+
+            case TOPIC:
+                topicArrived(envelope);
+                break;
+
+            case NICK:
+                responder.nickChanged(msgCode, envelope.getNick());
+                break;
+
+            case IDLE:
+                responder.userIdle(msgCode, ipAddress);
+                break;
+
+            case SENDFILEACCEPT:
+                fileSendAcceptedArrived(envelope, tempme);
+                break;
+
+            case SENDFILEABORT:
+                fileSendAbortedArrived(envelope, tempme);
+                break;
+
+            case SENDFILE:
+                fileSendArrived(envelope, tempme);
+                break;
+
+            case CLIENT:
+                clientInfoArrived(envelope);
+                break;
+
+            default:
+                break;
         }
     }
+
+    private void topicArrived(final MessageEnvelope envelope) {
+        final String msg = envelope.getPayload();
+        final int leftBracket = msg.indexOf("[");
+        final int rightBracket = msg.indexOf("]");
+        final int leftPara = msg.indexOf("(");
+        final int rightPara = msg.indexOf(")");
+
+        if (rightBracket != -1 && leftBracket != -1) {
+            final String theNick = msg.substring(leftPara + 1, rightPara);
+            final long theTime = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
+            String theTopic = null;
+
+            if (msg.length() > rightBracket + 1) {
+                theTopic = msg.substring(rightBracket + 1);
+            }
+
+            responder.topicChanged(envelope.getUserCode(), theTopic, theNick, theTime);
+        }
+    }
+
+    private void fileSendAcceptedArrived(final MessageEnvelope envelope, final User tempme) {
+        final String msg = envelope.getPayload();
+        final int leftPara = msg.indexOf("(");
+        final int rightPara = msg.indexOf(")");
+        final int fileCode = MessageEnvelope.parseInt(msg, leftPara + 1, rightPara);
+
+        if (fileCode == tempme.getCode()) {
+            final int leftCurly = msg.indexOf("{");
+            final int rightCurly = msg.indexOf("}");
+            final int leftBracket = msg.indexOf("[");
+            final int rightBracket = msg.indexOf("]");
+            final int port = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
+            final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
+            final String fileName = msg.substring(rightCurly + 1);
+
+            responder.fileSendAccepted(envelope.getUserCode(), fileName, fileHash, port);
+        }
+    }
+
+    private void fileSendAbortedArrived(final MessageEnvelope envelope, final User tempme) {
+        final String msg = envelope.getPayload();
+        final int leftPara = msg.indexOf("(");
+        final int rightPara = msg.indexOf(")");
+        final int fileCode = MessageEnvelope.parseInt(msg, leftPara + 1, rightPara);
+
+        if (fileCode == tempme.getCode()) {
+            final int leftCurly = msg.indexOf("{");
+            final int rightCurly = msg.indexOf("}");
+            final String fileName = msg.substring(rightCurly + 1);
+            final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
+
+            responder.fileSendAborted(envelope.getUserCode(), fileName, fileHash);
+        }
+    }
+
+    private void fileSendArrived(final MessageEnvelope envelope, final User tempme) {
+        final String msg = envelope.getPayload();
+        final int leftPara = msg.indexOf("(");
+        final int rightPara = msg.indexOf(")");
+        final int fileCode = MessageEnvelope.parseInt(msg, leftPara + 1, rightPara);
+
+        if (fileCode == tempme.getCode()) {
+            final int leftCurly = msg.indexOf("{");
+            final int rightCurly = msg.indexOf("}");
+            final int leftBracket = msg.indexOf("[");
+            final int rightBracket = msg.indexOf("]");
+            final long byteSize = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
+            final String fileName = msg.substring(rightCurly + 1);
+            final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
+
+            responder.fileSend(envelope.getUserCode(), byteSize, fileName, envelope.getNick(), fileHash);
+        }
+    }
+
+    private void clientInfoArrived(final MessageEnvelope envelope) {
+        final String message = envelope.getMessage();
+        final String ipAddress = envelope.getIpAddress();
+        final String msg = envelope.getPayload();
+
+        final int leftPara = msg.indexOf("(");
+        final int rightPara = msg.indexOf(")");
+        final int leftBracket = msg.indexOf("[");
+        final int rightBracket = msg.indexOf("]");
+        final int leftCurly = msg.indexOf("{");
+        final int rightCurly = msg.indexOf("}");
+        final int lessThan = msg.indexOf("<");
+        final int greaterThan = msg.indexOf(">");
+        final int slash = msg.indexOf("/");
+        final int backslash = msg.indexOf("\\");
+        final int leftPipe = msg.indexOf("|", backslash + 1);
+        final int rightPipe = leftPipe != -1 ? msg.indexOf("|", leftPipe + 1) : -1;
+        final int leftCaret = rightPipe != -1 ? msg.indexOf("^", rightPipe + 1) : -1;
+        final int rightCaret = leftCaret != -1 ? msg.indexOf("^", leftCaret + 1) : -1;
+
+        final String client = msg.substring(leftPara + 1, rightPara);
+        final long timeSinceLogon = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
+        final String operatingSystem = msg.substring(leftCurly + 1, rightCurly);
+
+        int privateChatPort = 0;
+
+        try {
+            privateChatPort = Integer.parseInt(msg.substring(lessThan + 1, greaterThan));
+        } catch (final NumberFormatException e) {
+            LOG.log(Level.WARNING, "Failed to parse private chat port. message=" + message + ", ipAddress=" + ipAddress, e);
+        }
+
+        int tcpChatPort = 0;
+
+        if (slash != -1 && backslash != -1) {
+            try {
+                tcpChatPort = Integer.parseInt(msg.substring(slash + 1, backslash));
+            } catch (final NumberFormatException e) {
+                LOG.log(Level.WARNING, "Failed to parse tcp chat port. message=" + message + ", ipAddress=" + ipAddress, e);
+            }
+        }
+
+        int protocolVersion = Constants.PROTOCOL_VERSION_TEXT;
+
+        if (backslash != -1 && leftPipe != -1 && rightPipe != -1) {
+            try {
+                protocolVersion = Integer.parseInt(msg.substring(leftPipe + 1, rightPipe));
+            } catch (final NumberFormatException e) {
+                LOG.log(Level.WARNING, "Failed to parse protocol version. message=" + message + ", ipAddress=" + ipAddress, e);
+            }
+        }
+
+        // Clients before the NACK flag never ask for lost messages again
+        final boolean nackEnabled = leftCaret != -1 && rightCaret != -1 && msg.substring(leftCaret + 1, rightCaret).equals("1");
+
+        responder.clientInfo(envelope.getUserCode(), client, timeSinceLogon, operatingSystem, privateChatPort, tcpChatPort,
+                protocolVersion, nackEnabled);
+    }
 }
@@ -24,14 +24,26 @@ package org.dynamicsoft.vertochat.net;
 import org.dynamicsoft.vertochat.Constants;
 import org.dynamicsoft.vertochat.event.ReceiverListener;
 import org.dynamicsoft.vertochat.misc.ErrorHandler;
+import org.dynamicsoft.vertochat.util.IOTools;
 import org.dynamicsoft.vertochat.util.Validate;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,6 +52,12 @@ import static org.dynamicsoft.vertochat.net.NetworkUtils.IPTOS_RELIABILITY;
 /**
  * This is the thread that listens for multicast messages from
  * the network, and notifies any listeners when messages arrive.
+ * <p>
+ * <p>The messages are read from a non-blocking channel by a {@link DatagramChannelReader},
+ * which drains all queued messages on each wakeup.</p>
+ * <p>
+ * <p>With {@link #enableMulticastInterfaces(MulticastInterfaces) multicast interfaces}, the channel joins
+ * the chat on every usable network interface, so messages from all the networks arrive on the same channel.</p>
  *
  * @author Christian Ihle
  */
@@ -54,18 +72,36 @@ public class MessageReceiver implements Runnable {
      */
     private final int port;
     /**
-     * The multicast socket used for receiving messages.
+     * Reads and decodes the messages from the channel.
+     */
+    private final DatagramChannelReader reader;
+    /**
+     * The io tools.
+     */
+    private final IOTools ioTools = new IOTools();
+    /**
+     * The datagram channel used for receiving messages.
      */
     @Nullable
-    private MulticastSocket mcSocket;
+    private DatagramChannel channel;
+    /**
+     * The selector waiting for messages on the channel.
+     */
+    @Nullable
+    private Selector selector;
     /**
      * The inetaddress object with the multicast ip address to receive messages from.
      */
     private InetAddress address;
     /**
-     * The listener getting all the messages received here.
+     * The network interfaces to join the chat on, or <code>null</code> to let the sender join on one.
      */
-    private ReceiverListener listener;
+    @Nullable
+    private MulticastInterfaces multicastInterfaces;
+    /**
+     * The memberships of the chat on each network interface, by the name of the network interface.
+     */
+    private final Map<String, MembershipKey> memberships = new HashMap<>();
     /**
      * If connected to the network or not.
      */
@@ -88,6 +124,18 @@ public class MessageReceiver implements Runnable {
         this(Constants.NETWORK_IP, Constants.NETWORK_CHAT_PORT, errorHandler);
     }
 
+    /**
+     * Constructor using a shared cache of ip addresses.
+     * <p>
+     * <p>Initializes the network with the default ip address and port.</p>
+     *
+     * @param errorHandler     The error handler to use.
+     * @param peerAddressCache The cache to get the ip address of each message from.
+     */
+    public MessageReceiver(final ErrorHandler errorHandler, final PeerAddressCache peerAddressCache) {
+        this(Constants.NETWORK_IP, Constants.NETWORK_CHAT_PORT, errorHandler, peerAddressCache);
+    }
+
     /**
      * Alternative constructor.
      * <p>
@@ -98,12 +146,28 @@ public class MessageReceiver implements Runnable {
      * @param errorHandler The error handler to use.
      */
     public MessageReceiver(final String ipAddress, final int port, final ErrorHandler errorHandler) {
+        this(ipAddress, port, errorHandler, new PeerAddressCache());
+    }
+
+    /**
+     * Alternative constructor using a shared cache of ip addresses.
+     * <p>
+     * <p>Initializes the network with the given ip address and port.</p>
+     *
+     * @param ipAddress        Multicast ip address to connect to.
+     * @param port             Port to connect to.
+     * @param errorHandler     The error handler to use.
+     * @param peerAddressCache The cache to get the ip address of each message from.
+     */
+    public MessageReceiver(final String ipAddress, final int port, final ErrorHandler errorHandler,
+                           final PeerAddressCache peerAddressCache) {
         LOG.fine("Creating MessageReceiver on " + ipAddress + ":" + port);
 
         Validate.notEmpty(ipAddress, "IP address can not be empty");
         Validate.notNull(errorHandler, "Error handler can not be null");
 
         this.port = port;
+        this.reader = new DatagramChannelReader(peerAddressCache);
 
         try {
             address = InetAddress.getByName(ipAddress);
@@ -122,30 +186,14 @@ public class MessageReceiver implements Runnable {
      */
     public void run() {
         while (connected) {
-            try {
-                final DatagramPacket packet = new DatagramPacket(
-                        new byte[Constants.NETWORK_PACKET_SIZE], Constants.NETWORK_PACKET_SIZE);
-
-                if (connected) {
-                    mcSocket.receive(packet);
-                    final String ip = packet.getAddress().getHostAddress();
-                    final String message = new String(packet.getData(), Constants.MESSAGE_CHARSET).trim();
-                    LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
-
-                    if (listener != null) {
-                        listener.messageArrived(message, ip);
-                    }
-                }
-            }
+            final DatagramChannel currentChannel = channel;
+            final Selector currentSelector = selector;
 
-            // Happens when socket is closed, or network is down
-            catch (final IOException e) {
-                if (connected) {
-                    LOG.log(Level.WARNING, e.toString());
-                } else {
-                    LOG.log(Level.FINE, e.toString());
-                }
+            if (currentChannel == null || currentSelector == null) {
+                break;
             }
+
+            reader.readUntilClosed(currentChannel, currentSelector);
         }
     }
 
@@ -175,28 +223,22 @@ public class MessageReceiver implements Runnable {
             if (connected) {
                 LOG.log(Level.FINE, "Already connected.");
             } else {
-                if (mcSocket == null) {
-                    mcSocket = new MulticastSocket(port);
+                if (channel == null) {
+                    openChannel();
                 }
 
                 if (networkInterface != null) {
-                    mcSocket.setNetworkInterface(networkInterface);
+                    channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
                 }
 
-                mcSocket.setTrafficClass(IPTOS_RELIABILITY);
-                LOG.log(Level.FINE, "Connected to " + mcSocket.getNetworkInterface());
+                channel.setOption(StandardSocketOptions.IP_TOS, IPTOS_RELIABILITY);
+                LOG.log(Level.FINE, "Connected to " + channel.getOption(StandardSocketOptions.IP_MULTICAST_IF));
                 connected = true;
+                updateMemberships();
             }
         } catch (final IOException e) {
             LOG.log(Level.SEVERE, "Could not start receiver: " + e.toString(), e);
-
-            if (mcSocket != null) {
-                if (!mcSocket.isClosed()) {
-                    mcSocket.close();
-                }
-
-                mcSocket = null;
-            }
+            closeChannel();
         }
 
         if (connected && (worker == null || !worker.isAlive())) {
@@ -207,7 +249,35 @@ public class MessageReceiver implements Runnable {
     }
 
     /**
-     * Disconnects from the network and closes the multicast socket.
+     * Opens a non-blocking channel on the port, and registers it with a new selector.
+     *
+     * @throws IOException If the channel could not be opened.
+     */
+    private void openChannel() throws IOException {
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        reader.getStatistics().setLocalPort(port);
+    }
+
+    /**
+     * Closes the channel and the selector. This also stops the thread waiting for messages.
+     */
+    private void closeChannel() {
+        ioTools.close(selector);
+        ioTools.close(channel);
+        memberships.clear();
+
+        selector = null;
+        channel = null;
+    }
+
+    /**
+     * Disconnects from the network and closes the channel.
      */
     public synchronized void stopReceiver() {
         LOG.log(Level.FINE, "Disconnecting from " + address.getHostAddress() + ":" + port);
@@ -216,21 +286,88 @@ public class MessageReceiver implements Runnable {
             LOG.log(Level.FINE, "Not connected.");
         } else {
             connected = false;
+            closeChannel();
 
-            try {
-                if (!mcSocket.isClosed()) {
-                    mcSocket.leaveGroup(address);
+            LOG.log(Level.FINE, "Disconnected from " + address.getHostAddress() + ":" + port);
+        }
+    }
+
+    /**
+     * Moves the open channel over to a new network interface, without closing it, so no messages are lost
+     * during the change. Starts the receiver if it's not connected.
+     *
+     * @param networkInterface The network interface to use from now on.
+     * @return If connected to the network or not.
+     */
+    public synchronized boolean changeNetworkInterface(final NetworkInterface networkInterface) {
+        Validate.notNull(networkInterface, "Network interface can not be null");
+
+        if (!connected || channel == null) {
+            return startReceiver(networkInterface);
+        }
+
+        try {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            LOG.log(Level.FINE, "Changed network interface to " + networkInterface.getName());
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Could not change network interface to " + networkInterface.getName() + ": " +
+                    e.toString());
+        }
+
+        updateMemberships();
+
+        return true;
+    }
+
+    /**
+     * Joins the chat on every network interface in the multicast interfaces, instead of only the network interface
+     * of the sender. Copies of messages arriving on more than one network interface are dropped.
+     *
+     * @param theMulticastInterfaces The network interfaces to join the chat on.
+     */
+    public synchronized void enableMulticastInterfaces(final MulticastInterfaces theMulticastInterfaces) {
+        Validate.notNull(theMulticastInterfaces, "Multicast interfaces can not be null");
+
+        multicastInterfaces = theMulticastInterfaces;
+        reader.enableMulticastInterfaces(theMulticastInterfaces);
+    }
+
+    /**
+     * Joins the chat on network interfaces that were added to the multicast interfaces,
+     * and leaves the chat on network interfaces that were removed.
+     */
+    public synchronized void updateMemberships() {
+        if (!connected || channel == null || multicastInterfaces == null) {
+            return;
+        }
+
+        final List<NetworkInterface> networkInterfaces = multicastInterfaces.getNetworkInterfaces();
+        final Set<String> names = new HashSet<>();
+
+        for (final NetworkInterface networkInterface : networkInterfaces) {
+            names.add(networkInterface.getName());
+
+            if (!memberships.containsKey(networkInterface.getName())) {
+                try {
+                    memberships.put(networkInterface.getName(), channel.join(address, networkInterface));
+                    LOG.log(Level.FINE, "Joined " + address.getHostAddress() + " on " + networkInterface.getName());
+                } catch (final IOException e) {
+                    LOG.log(Level.WARNING, "Could not join " + address.getHostAddress() + " on " +
+                            networkInterface.getName() + ": " + e.toString());
                 }
-            } catch (final IOException e) {
-                LOG.log(Level.WARNING, e.toString());
             }
+        }
 
-            if (!mcSocket.isClosed()) {
-                mcSocket.close();
-                mcSocket = null;
-            }
+        final Iterator<Map.Entry<String, MembershipKey>> iterator = memberships.entrySet().iterator();
 
-            LOG.log(Level.FINE, "Disconnected from " + address.getHostAddress() + ":" + port);
+        while (iterator.hasNext()) {
+            final Map.Entry<String, MembershipKey> membership = iterator.next();
+
+            if (!names.contains(membership.getKey())) {
+                membership.getValue().drop();
+                iterator.remove();
+                LOG.log(Level.FINE, "Left " + address.getHostAddress() + " on " + membership.getKey());
+            }
         }
     }
 
@@ -241,6 +378,25 @@ public class MessageReceiver implements Runnable {
      * @param listener The listener to register.
      */
     public void registerReceiverListener(final ReceiverListener listener) {
-        this.listener = listener;
+        reader.registerReceiverListener(listener);
+    }
+
+    /**
+     * Gets the counters for the messages received here.
+     *
+     * @return The receiver statistics.
+     */
+    public ReceiverStatistics getStatistics() {
+        return reader.getStatistics();
+    }
+
+    /**
+     * Gets the decoder of packets sent with forward error correction, with the estimated loss rate
+     * and counters for the rebuilt packets.
+     *
+     * @return The fec decoder.
+     */
+    public FecDecoder getFecDecoder() {
+        return reader.getFecDecoder();
     }
 }
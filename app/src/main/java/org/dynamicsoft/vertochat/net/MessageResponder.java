@@ -176,6 +176,9 @@ public interface MessageResponder {
      * @param timeSinceLogon  Number of milliseconds since the user logged on.
      * @param operatingSystem The user's operating system.
      * @param tcpChatPort     The port to use for sending chat messages to this user using tcp.
+     * @param protocolVersion The newest version of the network protocol supported by the user's client.
+     * @param nackEnabled     If the user's client asks for lost multicast messages again with NACKs.
      */
-    void clientInfo(int userCode, String client, long timeSinceLogon, String operatingSystem, int privateChatPort, int tcpChatPort);
+    void clientInfo(int userCode, String client, long timeSinceLogon, String operatingSystem, int privateChatPort, int tcpChatPort,
+                    int protocolVersion, boolean nackEnabled);
 }
\ No newline at end of file
@@ -29,8 +29,12 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,6 +42,18 @@ import static org.dynamicsoft.vertochat.net.NetworkUtils.IPTOS_RELIABILITY;
 
 /**
  * This is the class that sends multicast messages over the network.
+ * <p>
+ * <p>Messages are sent on the thread of the {@link SendQueue}, so the socket io never blocks the caller.
+ * When sending on several network interfaces, the lock of the sender is held while choosing the network interface
+ * and sending each copy, so {@link #changeNetworkInterface(NetworkInterface)} never happens in between.
+ * The lock is not held while waiting for the send pacer.</p>
+ * <p>
+ * <p>When {@link #enableForwardErrorCorrection(ProtocolNegotiator, FecDecoder) enabled}, and every receiver supports
+ * {@link Constants#PROTOCOL_VERSION_FEC}, packets are sent in groups by a {@link FecEncoder}, with parity packets
+ * after each full group, and after the last packet when the send queue runs empty.</p>
+ * <p>
+ * <p>With {@link #enableMulticastInterfaces(MulticastInterfaces) multicast interfaces}, every packet is sent
+ * on each network interface with other clients, instead of only the network interface the sender was started on.</p>
  *
  * @author Christian Ihle
  */
@@ -47,6 +63,10 @@ public class MessageSender {
      * The logger.
      */
     private static final Logger LOG = Logger.getLogger(MessageSender.class.getName());
+    /**
+     * The destination of every message in the supersede keys of the send queue.
+     */
+    private static final String MULTICAST_DESTINATION = "multicast";
     /**
      * The port to send messages to.
      */
@@ -55,7 +75,7 @@ public class MessageSender {
      * The multicast socket used for sending messages.
      */
     @Nullable
-    private MulticastSocket mcSocket;
+    private volatile MulticastSocket mcSocket;
     /**
      * The inetaddress object with the multicast ip address to send messages to.
      */
@@ -63,7 +83,57 @@ public class MessageSender {
     /**
      * If connected to the network or not.
      */
-    private boolean connected;
+    private volatile boolean connected;
+    /**
+     * Encodes the messages to send. Only used on the send queue thread.
+     */
+    private final MessageEncoder encoder;
+    /**
+     * The packet used for sending every message. Only used on the send queue thread.
+     */
+    private DatagramPacket packet;
+    /**
+     * The queue of messages to send.
+     */
+    private final SendQueue sendQueue;
+    /**
+     * Wraps packets in groups with parity packets. Only used on the send queue thread.
+     */
+    private final FecEncoder fecEncoder;
+    /**
+     * Checks if every receiver supports forward error correction, or <code>null</code> if it's disabled.
+     */
+    @Nullable
+    private volatile ProtocolNegotiator fecNegotiator;
+    /**
+     * Estimates the loss rate on the network, to choose the size of the groups.
+     */
+    @Nullable
+    private volatile FecDecoder fecLossEstimator;
+    /**
+     * The network interfaces to send on, or <code>null</code> to only send on the network interface of the socket.
+     */
+    @Nullable
+    private volatile MulticastInterfaces multicastInterfaces;
+    /**
+     * Spreads out the packets to stay within the send rates, or <code>null</code> to send right away.
+     */
+    @Nullable
+    private volatile SendPacer sendPacer;
+    /**
+     * The network interface the socket was last set to send on, to avoid setting it again for every packet.
+     */
+    @Nullable
+    private volatile NetworkInterface sendInterface;
+    /**
+     * The network interfaces the chat is joined on, to leave each of them explicitly. Guarded by <code>this</code>.
+     */
+    private final List<NetworkInterface> joinedInterfaces = new ArrayList<>();
+    /**
+     * If the chat was joined on the network interface chosen by the operating system, and it's not known which one.
+     * Guarded by <code>this</code>.
+     */
+    private boolean joinedDefaultInterface;
 
     /**
      * Default constructor.
@@ -78,6 +148,19 @@ public class MessageSender {
         this(Constants.NETWORK_IP, Constants.NETWORK_CHAT_PORT, errorHandler);
     }
 
+    /**
+     * Constructor using a shared cache of encoded messages and a shared send queue.
+     * <p>
+     * <p>Initializes the network with the default ip address and port.</p>
+     *
+     * @param errorHandler The error handler to use.
+     * @param frameCache   The cache of messages that are already encoded.
+     * @param sendQueue    The queue to send messages on.
+     */
+    public MessageSender(final ErrorHandler errorHandler, final MessageFrameCache frameCache, final SendQueue sendQueue) {
+        this(Constants.NETWORK_IP, Constants.NETWORK_CHAT_PORT, errorHandler, frameCache, sendQueue);
+    }
+
     /**
      * Alternative constructor.
      * <p>
@@ -88,12 +171,33 @@ public class MessageSender {
      * @param errorHandler The error handler to use.
      */
     public MessageSender(final String ipAddress, final int port, final ErrorHandler errorHandler) {
+        this(ipAddress, port, errorHandler, new MessageFrameCache(), new SendQueue());
+    }
+
+    /**
+     * Alternative constructor using a shared cache of encoded messages and a shared send queue.
+     * <p>
+     * <p>Initializes the network with the given ip address and port.</p>
+     *
+     * @param ipAddress    Multicast ip address to connect to.
+     * @param port         Port to connect to.
+     * @param errorHandler The error handler to use.
+     * @param frameCache   The cache of messages that are already encoded.
+     * @param sendQueue    The queue to send messages on.
+     */
+    public MessageSender(final String ipAddress, final int port, final ErrorHandler errorHandler,
+                         final MessageFrameCache frameCache, final SendQueue sendQueue) {
         LOG.fine("Creating MessageSender on " + ipAddress + ":" + port);
 
         Validate.notEmpty(ipAddress, "IP address can not be empty");
         Validate.notNull(errorHandler, "Error handler can not be null");
+        Validate.notNull(frameCache, "Frame cache can not be null");
+        Validate.notNull(sendQueue, "Send queue can not be null");
 
         this.port = port;
+        this.sendQueue = sendQueue;
+        this.encoder = new MessageEncoder(frameCache);
+        this.fecEncoder = new FecEncoder();
 
         try {
             address = InetAddress.getByName(ipAddress);
@@ -105,29 +209,158 @@ public class MessageSender {
 
             System.exit(1);
         }
+
+        packet = new DatagramPacket(new byte[0], 0, address, port);
     }
 
     /**
      * Sends a multicast packet to other clients over the network.
      *
      * @param message The message to send in the packet.
-     * @return If the message was sent or not.
+     * @return The future telling if the message was sent or not.
      * @see Constants#MESSAGE_CHARSET
      * @see Constants#NETWORK_PACKET_SIZE
      */
-    public synchronized boolean send(final String message) {
-        if (connected) {
+    public SendFuture send(final String message) {
+        return send(message, WireFormat.TEXT);
+    }
+
+    /**
+     * Sends a multicast packet to other clients over the network, using the given format if possible.
+     *
+     * @param message The message to send in the packet.
+     * @param format  The format to send the message in. Only use a format every client supports.
+     * @return The future telling if the message was sent or not.
+     * @see Constants#MESSAGE_CHARSET
+     * @see Constants#NETWORK_PACKET_SIZE
+     */
+    public SendFuture send(final String message, final WireFormat format) {
+        return send(message, format, SendQueue.Lane.forMessage(message));
+    }
+
+    /**
+     * Sends a multicast packet to other clients over the network, like {@link #send(String, WireFormat)},
+     * but waiting in the given lane of the send queue. Use this to keep the message in order with
+     * messages already waiting in that lane.
+     *
+     * @param message The message to send in the packet.
+     * @param format  The format to send the message in. Only use a format every client supports.
+     * @param lane    The lane of the send queue to wait in.
+     * @return The future telling if the message was sent or not.
+     */
+    public SendFuture send(final String message, final WireFormat format, final SendQueue.Lane lane) {
+        final SendQueue.Task task = new SendQueue.Task() {
+            @Override
+            public int send() {
+                return sendNow(message, format) ? 1 : 0;
+            }
+
+            @Override
+            public String toString() {
+                return message;
+            }
+        };
+
+        return sendQueue.submit(task, lane, SendQueue.getSupersedeKey(message, MULTICAST_DESTINATION));
+    }
+
+    /**
+     * Sends several messages in as few multicast packets as possible, using batch frames
+     * in the {@link BinaryMessageFormat binary format}. Only use this when every client supports it.
+     *
+     * @param messages The messages to send. Must not be changed after this call.
+     * @param format   The format of each message in the batch. Must not be {@link WireFormat#TEXT}.
+     * @return The future telling how many packets were sent, or 0 if sending failed.
+     */
+    public SendFuture sendBatch(final List<String> messages, final WireFormat format) {
+        return sendBatch(messages, format, SendQueue.Lane.forBatch(messages));
+    }
+
+    /**
+     * Sends several messages like {@link #sendBatch(List, WireFormat)}, but waiting in the given lane
+     * of the send queue.
+     *
+     * @param messages The messages to send. Must not be changed after this call.
+     * @param format   The format of each message in the batch. Must not be {@link WireFormat#TEXT}.
+     * @param lane     The lane of the send queue to wait in.
+     * @return The future telling how many packets were sent, or 0 if sending failed.
+     */
+    public SendFuture sendBatch(final List<String> messages, final WireFormat format, final SendQueue.Lane lane) {
+        return sendQueue.submit(new SendQueue.Task() {
+            @Override
+            public int send() {
+                return sendBatchNow(messages, format);
+            }
+
+            @Override
+            public String toString() {
+                return messages.toString();
+            }
+        }, lane, null);
+    }
+
+    /**
+     * Sends packets in groups with parity packets, so receivers can rebuild lost packets without asking for them
+     * again. Only used when every receiver supports {@link Constants#PROTOCOL_VERSION_FEC}.
+     *
+     * @param protocolNegotiator Checks if every receiver supports forward error correction.
+     * @param lossEstimator      Estimates the loss rate on the network, to adapt the size of the groups.
+     */
+    public void enableForwardErrorCorrection(final ProtocolNegotiator protocolNegotiator, final FecDecoder lossEstimator) {
+        Validate.notNull(protocolNegotiator, "Protocol negotiator can not be null");
+        Validate.notNull(lossEstimator, "Loss estimator can not be null");
+
+        this.fecLossEstimator = lossEstimator;
+        this.fecNegotiator = protocolNegotiator;
+    }
+
+    /**
+     * Sends every packet on each network interface with other clients, for reaching clients on all the networks
+     * this computer is connected to.
+     *
+     * @param theMulticastInterfaces The network interfaces to send on.
+     */
+    public void enableMulticastInterfaces(final MulticastInterfaces theMulticastInterfaces) {
+        Validate.notNull(theMulticastInterfaces, "Multicast interfaces can not be null");
+
+        this.multicastInterfaces = theMulticastInterfaces;
+    }
+
+    /**
+     * Spreads out the multicast packets to stay within the send rates of the pacer, and slows down
+     * when messages are lost.
+     *
+     * @param theSendPacer The pacer to wait for before sending each packet.
+     */
+    public void enableSendPacing(final SendPacer theSendPacer) {
+        Validate.notNull(theSendPacer, "Send pacer can not be null");
+
+        this.sendPacer = theSendPacer;
+    }
+
+    /**
+     * Gets the encoder of packets sent with forward error correction, with counters for the parity packets.
+     *
+     * @return The fec encoder.
+     */
+    public FecEncoder getFecEncoder() {
+        return fecEncoder;
+    }
+
+    private boolean sendNow(final String message, final WireFormat format) {
+        final MulticastSocket socket = mcSocket;
+
+        if (connected && socket != null) {
             try {
-                final byte[] encodedMsg = message.getBytes(Constants.MESSAGE_CHARSET);
-                final int size = encodedMsg.length;
+                final int size = encoder.encode(message, format);
 
                 if (size > Constants.NETWORK_PACKET_SIZE) {
                     LOG.log(Level.WARNING, "Message was " + size + " bytes, which is too large.\n" +
                             " The receiver might not get the complete message.\n'" + message + "'");
                 }
 
-                final DatagramPacket packet = new DatagramPacket(encodedMsg, size, address, port);
-                mcSocket.send(packet);
+                sendPacket(socket, encoder.getBytes(), size, useForwardErrorCorrection());
+                sendParityIfIdle(socket);
                 LOG.log(Level.FINE, "Sent message: " + message);
 
                 return true;
@@ -139,6 +372,172 @@ public class MessageSender {
         return false;
     }
 
+    private int sendBatchNow(final List<String> messages, final WireFormat format) {
+        final MulticastSocket socket = mcSocket;
+
+        if (!connected || socket == null || messages.isEmpty()) {
+            return 0;
+        }
+
+        final boolean fec = useForwardErrorCorrection();
+        final int maxSize = fec ? FecEncoder.MAX_PAYLOAD_SIZE : Constants.NETWORK_PACKET_SIZE;
+        int packets = 0;
+        int offset = 0;
+
+        try {
+            while (offset < messages.size()) {
+                final int count = encoder.encodeBatch(messages, offset, maxSize, format);
+
+                sendPacket(socket, encoder.getBytes(), encoder.getLength(), fec);
+                LOG.log(Level.FINE, "Sent " + count + " messages in one packet: " + messages.subList(offset, offset + count));
+
+                offset += count;
+                packets++;
+            }
+
+            sendParityIfIdle(socket);
+
+            return packets;
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Could not send messages: " + messages.subList(offset, messages.size()), e);
+        }
+
+        return 0;
+    }
+
+    private boolean useForwardErrorCorrection() {
+        final ProtocolNegotiator negotiator = fecNegotiator;
+
+        return negotiator != null && negotiator.isSupportedByAll(Constants.PROTOCOL_VERSION_FEC);
+    }
+
+    /**
+     * Sends a packet, as a data packet in the open group when using forward error correction.
+     * Sends the parity packets when the group is full.
+     */
+    private void sendPacket(final MulticastSocket socket, final byte[] bytes, final int length, final boolean fec)
+            throws IOException {
+        if (!fec) {
+            // A receiver without support joined, so the parity of the open group is never sent
+            fecEncoder.closeGroup();
+            send(socket, bytes, length);
+            return;
+        }
+
+        if (!fecEncoder.hasOpenGroup()) {
+            fecEncoder.setLossRate(fecLossEstimator.getLossRate());
+        }
+
+        final int frameLength = fecEncoder.addDataPacket(bytes, length);
+
+        if (frameLength < 0) {
+            send(socket, bytes, length);
+            return;
+        }
+
+        send(socket, fecEncoder.getBytes(), frameLength);
+
+        if (fecEncoder.isGroupFull()) {
+            sendParity(socket);
+        }
+    }
+
+    /**
+     * Sends the parity packets of the open group at the end of a burst, so the last packets
+     * can be rebuilt without waiting for the group to be full.
+     */
+    private void sendParityIfIdle(final MulticastSocket socket) throws IOException {
+        if (fecEncoder.hasOpenGroup() && sendQueue.getQueueDepth() == 0) {
+            sendParity(socket);
+        }
+    }
+
+    private void sendParity(final MulticastSocket socket) throws IOException {
+        try {
+            for (int i = 0; i < fecEncoder.getParityCount(); i++) {
+                send(socket, fecEncoder.getBytes(), fecEncoder.writeParity(i));
+            }
+        } finally {
+            fecEncoder.closeGroup();
+        }
+    }
+
+    private void send(final MulticastSocket socket, final byte[] bytes, final int length) throws IOException {
+        packet.setData(bytes, 0, length);
+        final MulticastInterfaces currentMulticastInterfaces = multicastInterfaces;
+
+        if (currentMulticastInterfaces == null) {
+            pace(length);
+            socket.send(packet);
+        } else {
+            sendOnEachInterface(socket, currentMulticastInterfaces.getSendInterfaces(), length);
+        }
+    }
+
+    /**
+     * Waits for the send pacer before sending a packet, if pacing is enabled.
+     */
+    private void pace(final int length) {
+        final SendPacer currentSendPacer = sendPacer;
+
+        if (currentSendPacer != null) {
+            currentSendPacer.pace(length);
+        }
+    }
+
+    /**
+     * Sends the packet once on each of the network interfaces. Failing to send on one network interface,
+     * like one that just went down, does not stop the others. Each copy of the packet is paced on its own.
+     * Setting the network interface and sending is done while holding the lock, since a change of network
+     * interface from another thread would otherwise send the copy on the wrong network interface.
+     *
+     * @throws IOException If sending failed on every network interface.
+     */
+    private void sendOnEachInterface(final MulticastSocket socket, final NetworkInterface[] networkInterfaces,
+                                     final int length) throws IOException {
+        if (networkInterfaces.length == 0) {
+            pace(length);
+            socket.send(packet);
+            return;
+        }
+
+        IOException failure = null;
+        boolean sent = false;
+
+        for (final NetworkInterface networkInterface : networkInterfaces) {
+            pace(length);
+
+            try {
+                synchronized (this) {
+                    if (networkInterface != sendInterface) {
+                        socket.setNetworkInterface(networkInterface);
+                        sendInterface = networkInterface;
+                    }
+
+                    socket.send(packet);
+                }
+
+                sent = true;
+            } catch (final IOException e) {
+                LOG.log(Level.FINE, "Could not send on " + networkInterface.getName() + ": " + e.toString());
+                failure = e;
+            }
+        }
+
+        if (!sent && failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Checks if connected to the network.
+     *
+     * @return If connected to the network or not.
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
     /**
      * Connects to the network with the given network interface, or gives
      * the control to the operating system to choose if <code>null</code>
@@ -162,8 +561,13 @@ public class MessageSender {
                     mcSocket.setNetworkInterface(networkInterface);
                 }
 
+                sendInterface = networkInterface;
+
                 mcSocket.setTrafficClass(IPTOS_RELIABILITY);
                 mcSocket.joinGroup(address);
+                joinedInterfaces.clear();
+                joinedDefaultInterface = false;
+                addJoinedInterface(networkInterface);
                 mcSocket.setTimeToLive(64);
                 LOG.log(Level.FINE, "Connected to " + mcSocket.getNetworkInterface());
                 connected = true;
@@ -183,6 +587,65 @@ public class MessageSender {
         return connected;
     }
 
+    /**
+     * Moves the connected multicast socket over to a new network interface, without closing it. The chat is joined
+     * on the new network interface before it's left on the old one, so messages keep arriving during the change.
+     * The exception is when the operating system chose the network interface and the socket can't tell which one,
+     * since that membership can only be left before the socket is set to a network interface.
+     * Starts the sender if it's not connected.
+     *
+     * @param networkInterface The network interface to use from now on.
+     * @return If connected to the network or not.
+     */
+    public synchronized boolean changeNetworkInterface(final NetworkInterface networkInterface) {
+        Validate.notNull(networkInterface, "Network interface can not be null");
+
+        if (!connected) {
+            return startSender(networkInterface);
+        }
+
+        LOG.log(Level.FINE, "Changing network interface from " + sendInterface + " to " + networkInterface);
+
+        final InetSocketAddress group = new InetSocketAddress(address, port);
+
+        // Only possible while the socket has no network interface, and the operating system may have chosen the same
+        // network interface as the new one, so it's left before joining
+        if (joinedDefaultInterface) {
+            leaveDefaultInterface();
+        }
+
+        if (!isJoined(networkInterface)) {
+            try {
+                mcSocket.joinGroup(group, networkInterface);
+                joinedInterfaces.add(networkInterface);
+            } catch (final IOException e) {
+                LOG.log(Level.WARNING, "Could not join " + address.getHostAddress() + " on " + networkInterface.getName() +
+                        ": " + e.toString());
+            }
+        }
+
+        try {
+            mcSocket.setNetworkInterface(networkInterface);
+            sendInterface = networkInterface;
+        } catch (final IOException e) {
+            LOG.log(Level.SEVERE, "Could not send on " + networkInterface.getName() + ": " + e.toString(), e);
+            stopSender();
+            return startSender(networkInterface);
+        }
+
+        final Iterator<NetworkInterface> oldInterfaces = joinedInterfaces.iterator();
+
+        while (oldInterfaces.hasNext()) {
+            final NetworkInterface oldInterface = oldInterfaces.next();
+
+            if (!oldInterface.getName().equals(networkInterface.getName()) && leaveInterface(group, oldInterface)) {
+                oldInterfaces.remove();
+            }
+        }
+
+        return true;
+    }
+
     /**
      * Disconnects from the network and closes the multicast socket.
      */
@@ -194,14 +657,20 @@ public class MessageSender {
         } else {
             connected = false;
 
-            try {
-                if (!mcSocket.isClosed()) {
-                    mcSocket.leaveGroup(address);
+            if (!mcSocket.isClosed()) {
+                if (joinedDefaultInterface) {
+                    leaveDefaultInterface();
+                }
+
+                final InetSocketAddress group = new InetSocketAddress(address, port);
+
+                for (final NetworkInterface joinedInterface : joinedInterfaces) {
+                    leaveInterface(group, joinedInterface);
                 }
-            } catch (final IOException e) {
-                LOG.log(Level.WARNING, e.toString());
             }
 
+            joinedInterfaces.clear();
+
             if (!mcSocket.isClosed()) {
                 mcSocket.close();
                 mcSocket = null;
@@ -210,4 +679,59 @@ public class MessageSender {
             LOG.log(Level.FINE, "Disconnected from " + address.getHostAddress() + ":" + port);
         }
     }
+
+    /**
+     * Remembers the network interface the chat was just joined on. If the operating system chose it, the network
+     * interface reported by the socket is used, unless the socket only reports a placeholder without an index.
+     *
+     * @param networkInterface The network interface given when joining, or <code>null</code>.
+     */
+    private void addJoinedInterface(@Nullable final NetworkInterface networkInterface) {
+        NetworkInterface joinedInterface = networkInterface;
+
+        if (joinedInterface == null) {
+            try {
+                joinedInterface = mcSocket.getNetworkInterface();
+            } catch (final IOException e) {
+                LOG.log(Level.FINE, "Could not get network interface: " + e.toString());
+            }
+        }
+
+        if (joinedInterface != null && joinedInterface.getIndex() > 0) {
+            joinedInterfaces.add(joinedInterface);
+        } else {
+            joinedDefaultInterface = true;
+        }
+    }
+
+    private boolean isJoined(final NetworkInterface networkInterface) {
+        for (final NetworkInterface joinedInterface : joinedInterfaces) {
+            if (joinedInterface.getName().equals(networkInterface.getName())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean leaveInterface(final InetSocketAddress group, final NetworkInterface networkInterface) {
+        try {
+            mcSocket.leaveGroup(group, networkInterface);
+            return true;
+        } catch (final IOException e) {
+            LOG.log(Level.FINE, "Could not leave " + address.getHostAddress() + " on " + networkInterface.getName() +
+                    ": " + e.toString());
+            return false;
+        }
+    }
+
+    private void leaveDefaultInterface() {
+        try {
+            mcSocket.leaveGroup(address);
+        } catch (final IOException e) {
+            LOG.log(Level.FINE, "Could not leave " + address.getHostAddress() + ": " + e.toString());
+        }
+
+        joinedDefaultInterface = false;
+    }
 }
@@ -0,0 +1,143 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.util.Validate;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives every message sent by this client a sequence number, so a receiver getting the same message
+ * over both multicast and tcp can tell that the copies are the same message, and keep the first to arrive.
+ * <p>
+ * <p>A stamped message has the format <code>~sequence~code!TYPE#nick:payload</code>. Normal messages always
+ * start with the user code, so a stamped message can't be mistaken for one. Messages are only stamped when every
+ * receiver supports {@link org.dynamicsoft.vertochat.Constants#PROTOCOL_VERSION_SEQUENCE_NUMBERS}.</p>
+ * <p>
+ * <p>The sequence numbers wrap around after {@link Integer#MAX_VALUE}, so they must be compared using the
+ * difference between them, and not directly.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageSequencer {
+
+    /**
+     * The character in front of and after the sequence number of a stamped message.
+     */
+    public static final char STAMP_MARKER = '~';
+
+    private final AtomicInteger nextSequence;
+
+    public MessageSequencer() {
+        nextSequence = new AtomicInteger();
+    }
+
+    /**
+     * Stamps the message with the next sequence number.
+     *
+     * @param message The message to stamp, in the text format.
+     * @return The stamped message.
+     */
+    public String stamp(final String message) {
+        return stamp(nextSequence(), message);
+    }
+
+    /**
+     * Takes the next sequence number, for stamping with {@link #stamp(int, String)}.
+     *
+     * @return The next sequence number.
+     */
+    public int nextSequence() {
+        return nextSequence.getAndIncrement();
+    }
+
+    /**
+     * Stamps the message with the sequence number.
+     *
+     * @param sequence The sequence number.
+     * @param message  The message to stamp, in the text format.
+     * @return The stamped message.
+     */
+    public static String stamp(final int sequence, final String message) {
+        Validate.notNull(message, "Message can not be null");
+
+        return STAMP_MARKER + Integer.toString(sequence) + STAMP_MARKER + message;
+    }
+
+    /**
+     * Checks if the message has a sequence number.
+     *
+     * @param message The message to check.
+     * @return If the message is stamped.
+     */
+    public static boolean isStamped(final String message) {
+        return !message.isEmpty() && message.charAt(0) == STAMP_MARKER;
+    }
+
+    /**
+     * Finds where the message itself starts, after the sequence number.
+     *
+     * @param message The message to check.
+     * @return The position after the sequence number, or <code>0</code> if the message is not stamped.
+     * @throws StringIndexOutOfBoundsException If the message is stamped, but the end of the sequence number is missing.
+     */
+    public static int getMessageStart(final String message) {
+        if (!isStamped(message)) {
+            return 0;
+        }
+
+        final int end = message.indexOf(STAMP_MARKER, 1);
+
+        if (end < 0) {
+            throw new StringIndexOutOfBoundsException("End of sequence number is missing");
+        }
+
+        return end + 1;
+    }
+
+    /**
+     * Gets the sequence number of a stamped message.
+     *
+     * @param message The stamped message.
+     * @return The sequence number.
+     * @throws NumberFormatException If the message is not stamped, or the sequence number is not a number.
+     * @throws StringIndexOutOfBoundsException If the end of the sequence number is missing.
+     */
+    public static int getSequence(final String message) {
+        if (!isStamped(message)) {
+            throw new NumberFormatException("Message has no sequence number");
+        }
+
+        return MessageEnvelope.parseInt(message, 1, getMessageStart(message) - 1);
+    }
+
+    /**
+     * Removes the sequence number from the message.
+     *
+     * @param message The message, stamped or not.
+     * @return The message without the sequence number.
+     * @throws StringIndexOutOfBoundsException If the message is stamped, but the end of the sequence number is missing.
+     */
+    public static String unstamp(final String message) {
+        return message.substring(getMessageStart(message));
+    }
+}
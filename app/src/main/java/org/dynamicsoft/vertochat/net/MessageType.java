@@ -0,0 +1,201 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.jetbrains.annotations.NonNls;
+
+/**
+ * The types of network messages, as decoded by {@link MessageEnvelope}.
+ * <p>
+ * <p>The names on the network are the same as in {@link NetworkMessageType}. The binary protocol
+ * uses the code of the type instead of the name.</p>
+ *
+ * @author Christian Ihle
+ */
+public enum MessageType {
+
+    MSG(NetworkMessageType.MSG, 1),
+    LOGON(NetworkMessageType.LOGON, 2),
+    EXPOSING(NetworkMessageType.EXPOSING, 3),
+    LOGOFF(NetworkMessageType.LOGOFF, 4),
+    AWAY(NetworkMessageType.AWAY, 5),
+    BACK(NetworkMessageType.BACK, 6),
+    EXPOSE(NetworkMessageType.EXPOSE, 7),
+    NICKCRASH(NetworkMessageType.NICKCRASH, 8),
+    WRITING(NetworkMessageType.WRITING, 9),
+    STOPPEDWRITING(NetworkMessageType.STOPPEDWRITING, 10),
+    GETTOPIC(NetworkMessageType.GETTOPIC, 11),
+    TOPIC(NetworkMessageType.TOPIC, 12),
+    NICK(NetworkMessageType.NICK, 13),
+    IDLE(NetworkMessageType.IDLE, 14),
+    SENDFILEACCEPT(NetworkMessageType.SENDFILEACCEPT, 15),
+    SENDFILEABORT(NetworkMessageType.SENDFILEABORT, 16),
+    SENDFILE(NetworkMessageType.SENDFILE, 17),
+    CLIENT(NetworkMessageType.CLIENT, 18),
+    PRIVMSG(NetworkMessageType.PRIVMSG, 19),
+    NACK(NetworkMessageType.NACK, 20),
+
+    /**
+     * A type not supported by this client.
+     */
+    UNKNOWN("", 0);
+
+    /**
+     * The known types, indexed by the length of the name, to avoid comparing with every type.
+     */
+    private static final MessageType[][] TYPES_BY_LENGTH = createTypesByLength();
+
+    /**
+     * The known types, indexed by their code in the binary protocol.
+     */
+    private static final MessageType[] TYPES_BY_CODE = createTypesByCode();
+
+    private final String networkName;
+    private final int code;
+
+    MessageType(@NonNls final String networkName, final int code) {
+        this.networkName = networkName;
+        this.code = code;
+    }
+
+    /**
+     * Gets the name of the type as used on the network.
+     *
+     * @return The network name.
+     */
+    public String getNetworkName() {
+        return networkName;
+    }
+
+    /**
+     * Gets the code used for the type in the binary protocol. The codes never change,
+     * so new types must get new codes.
+     *
+     * @return The binary code, or 0 for {@link #UNKNOWN}.
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Finds the type with the given code from the binary protocol.
+     *
+     * @param code The binary code of the type.
+     * @return The matching type, or {@link #UNKNOWN}.
+     */
+    public static MessageType fromCode(final int code) {
+        if (code <= 0 || code >= TYPES_BY_CODE.length) {
+            return UNKNOWN;
+        }
+
+        return TYPES_BY_CODE[code];
+    }
+
+    /**
+     * Finds the type with the name found between the start and end positions of the message,
+     * without creating a substring.
+     *
+     * @param message The message to look in.
+     * @param start   The start of the type name, inclusive.
+     * @param end     The end of the type name, exclusive.
+     * @return The matching type, or {@link #UNKNOWN}.
+     */
+    public static MessageType fromNetworkName(final String message, final int start, final int end) {
+        final int length = end - start;
+
+        if (length <= 0 || length >= TYPES_BY_LENGTH.length) {
+            return UNKNOWN;
+        }
+
+        for (final MessageType type : TYPES_BY_LENGTH[length]) {
+            if (message.regionMatches(start, type.networkName, 0, length)) {
+                return type;
+            }
+        }
+
+        return UNKNOWN;
+    }
+
+    /**
+     * Finds the type of a message in the text format, without decoding the rest of the message.
+     *
+     * @param message The message to look in, like <code>124!MSG#Christian:Hello</code>.
+     * @return The type of the message, or {@link #UNKNOWN}.
+     */
+    public static MessageType fromMessage(final String message) {
+        final int exclamation = message.indexOf('!');
+        final int hash = message.indexOf('#');
+
+        if (exclamation < 0 || hash <= exclamation) {
+            return UNKNOWN;
+        }
+
+        return fromNetworkName(message, exclamation + 1, hash);
+    }
+
+    private static MessageType[][] createTypesByLength() {
+        int maxLength = 0;
+
+        for (final MessageType type : values()) {
+            maxLength = Math.max(maxLength, type.networkName.length());
+        }
+
+        final MessageType[][] typesByLength = new MessageType[maxLength + 1][];
+
+        for (int length = 0; length <= maxLength; length++) {
+            int count = 0;
+
+            for (final MessageType type : values()) {
+                if (type != UNKNOWN && type.networkName.length() == length) {
+                    count++;
+                }
+            }
+
+            typesByLength[length] = new MessageType[count];
+            int index = 0;
+
+            for (final MessageType type : values()) {
+                if (type != UNKNOWN && type.networkName.length() == length) {
+                    typesByLength[length][index++] = type;
+                }
+            }
+        }
+
+        return typesByLength;
+    }
+
+    private static MessageType[] createTypesByCode() {
+        int maxCode = 0;
+
+        for (final MessageType type : values()) {
+            maxCode = Math.max(maxCode, type.code);
+        }
+
+        final MessageType[] typesByCode = new MessageType[maxCode + 1];
+
+        for (final MessageType type : values()) {
+            typesByCode[type.code] = type;
+        }
+
+        return typesByCode;
+    }
+}
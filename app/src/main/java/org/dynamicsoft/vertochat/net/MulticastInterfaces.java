@@ -0,0 +1,248 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.util.Validate;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The network interfaces to use for multicast when the chat should reach every usable network at the same time,
+ * like a laptop with both cable and wireless.
+ * <p>
+ * <p>The {@link MessageReceiver} joins the chat on every network interface, and tells this class where each packet
+ * came from. The ip address of the sender is matched with the subnets of the network interfaces, to know which
+ * networks have other clients. The {@link MessageSender} sends each packet on the network interfaces where
+ * other clients were seen during the last {@link #PEER_TIMEOUT_MS}. If no clients have been seen anywhere, like
+ * right after logging on, packets are sent on every network interface. A client on a quiet network is found
+ * when it logs on, since it then sends on all its network interfaces.</p>
+ * <p>
+ * <p>Every client sending on several network interfaces means the same packet can arrive more than once.
+ * The copies are dropped by the {@link DuplicatePacketFilter}.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MulticastInterfaces {
+
+    /**
+     * How long a network interface is used for sending after the last packet from another client on it.
+     */
+    static final long PEER_TIMEOUT_MS = 1000 * 60 * 2;
+
+    /**
+     * How often to check which network interfaces have other clients.
+     */
+    static final long SEND_INTERFACES_REFRESH_MS = 1000;
+
+    private static final NetworkInterface[] NO_INTERFACES = new NetworkInterface[0];
+
+    private volatile Entry[] entries;
+
+    private volatile NetworkInterface[] sendInterfaces;
+    private volatile long sendInterfacesUpdatedMs;
+
+    public MulticastInterfaces() {
+        entries = new Entry[0];
+        sendInterfaces = NO_INTERFACES;
+    }
+
+    /**
+     * Replaces the network interfaces to use. Network interfaces that were used before keep
+     * the time other clients were last seen on them.
+     *
+     * @param networkInterfaces The usable network interfaces.
+     */
+    public void setNetworkInterfaces(final List<NetworkInterface> networkInterfaces) {
+        Validate.notNull(networkInterfaces, "Network interfaces can not be null");
+
+        final List<Entry> newEntries = new ArrayList<>();
+
+        for (final NetworkInterface networkInterface : networkInterfaces) {
+            newEntries.add(createEntry(networkInterface));
+        }
+
+        setEntries(newEntries);
+    }
+
+    synchronized void setEntries(final List<Entry> newEntries) {
+        for (final Entry newEntry : newEntries) {
+            for (final Entry oldEntry : entries) {
+                if (oldEntry.networkInterface.getName().equals(newEntry.networkInterface.getName())) {
+                    newEntry.lastPeerSeenMs = oldEntry.lastPeerSeenMs;
+                }
+            }
+        }
+
+        entries = newEntries.toArray(new Entry[newEntries.size()]);
+        sendInterfacesUpdatedMs = 0;
+    }
+
+    /**
+     * Gets the network interfaces to join the chat on.
+     *
+     * @return All the network interfaces.
+     */
+    public List<NetworkInterface> getNetworkInterfaces() {
+        final List<NetworkInterface> networkInterfaces = new ArrayList<>();
+
+        for (final Entry entry : entries) {
+            networkInterfaces.add(entry.networkInterface);
+        }
+
+        return networkInterfaces;
+    }
+
+    /**
+     * Registers a packet from another client, to know which network interface it can be reached on.
+     * Packets sent by this client, and from addresses outside the subnets of the network interfaces, are ignored.
+     *
+     * @param address The ip address of the sender of the packet.
+     */
+    public void peerSeen(final InetAddress address) {
+        peerSeen(address, System.currentTimeMillis());
+    }
+
+    void peerSeen(final InetAddress address, final long nowMs) {
+        if (!(address instanceof Inet4Address)) {
+            return;
+        }
+
+        final int ipAddress = toInt(address.getAddress());
+        final Entry[] currentEntries = entries;
+
+        for (final Entry entry : currentEntries) {
+            if (entry.isOwnAddress(ipAddress)) {
+                return;
+            }
+        }
+
+        for (final Entry entry : currentEntries) {
+            if (entry.isInSubnet(ipAddress)) {
+                entry.lastPeerSeenMs = nowMs;
+            }
+        }
+    }
+
+    /**
+     * Gets the network interfaces to send packets on. These are the network interfaces where other clients
+     * have been seen lately, or all of them if no other clients have been seen.
+     *
+     * @return The network interfaces to send on.
+     */
+    public NetworkInterface[] getSendInterfaces() {
+        return getSendInterfaces(System.currentTimeMillis());
+    }
+
+    NetworkInterface[] getSendInterfaces(final long nowMs) {
+        if (nowMs - sendInterfacesUpdatedMs >= SEND_INTERFACES_REFRESH_MS) {
+            updateSendInterfaces(nowMs);
+        }
+
+        return sendInterfaces;
+    }
+
+    private synchronized void updateSendInterfaces(final long nowMs) {
+        final List<NetworkInterface> withPeers = new ArrayList<>();
+        final List<NetworkInterface> all = new ArrayList<>();
+
+        for (final Entry entry : entries) {
+            all.add(entry.networkInterface);
+
+            if (entry.lastPeerSeenMs > 0 && nowMs - entry.lastPeerSeenMs < PEER_TIMEOUT_MS) {
+                withPeers.add(entry.networkInterface);
+            }
+        }
+
+        final List<NetworkInterface> chosen = withPeers.isEmpty() ? all : withPeers;
+        sendInterfaces = chosen.toArray(new NetworkInterface[chosen.size()]);
+        sendInterfacesUpdatedMs = nowMs;
+    }
+
+    private static Entry createEntry(final NetworkInterface networkInterface) {
+        final List<InterfaceAddress> ipv4Addresses = new ArrayList<>();
+
+        for (final InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+            if (interfaceAddress.getAddress() instanceof Inet4Address) {
+                ipv4Addresses.add(interfaceAddress);
+            }
+        }
+
+        final int[] addresses = new int[ipv4Addresses.size()];
+        final int[] prefixLengths = new int[ipv4Addresses.size()];
+
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = toInt(ipv4Addresses.get(i).getAddress().getAddress());
+            prefixLengths[i] = ipv4Addresses.get(i).getNetworkPrefixLength();
+        }
+
+        return new Entry(networkInterface, addresses, prefixLengths);
+    }
+
+    static int toInt(final byte[] address) {
+        return (address[0] & 0xFF) << 24 | (address[1] & 0xFF) << 16 | (address[2] & 0xFF) << 8 | address[3] & 0xFF;
+    }
+
+    /**
+     * A network interface with its IPv4 addresses and subnets.
+     */
+    static final class Entry {
+
+        private final NetworkInterface networkInterface;
+        private final int[] addresses;
+        private final int[] prefixLengths;
+
+        private volatile long lastPeerSeenMs;
+
+        Entry(final NetworkInterface networkInterface, final int[] addresses, final int[] prefixLengths) {
+            this.networkInterface = networkInterface;
+            this.addresses = addresses;
+            this.prefixLengths = prefixLengths;
+        }
+
+        boolean isOwnAddress(final int ipAddress) {
+            for (final int address : addresses) {
+                if (address == ipAddress) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        boolean isInSubnet(final int ipAddress) {
+            for (int i = 0; i < addresses.length; i++) {
+                final int mask = prefixLengths[i] == 0 ? 0 : -1 << (32 - prefixLengths[i]);
+
+                if ((addresses[i] & mask) == (ipAddress & mask)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,422 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.util.Logger;
+import org.dynamicsoft.vertochat.util.Validate;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds gaps in the sequence numbers of the multicast messages from each sender, and asks the sender
+ * to send the missing messages again with a NACK.
+ * <p>
+ * <p>A NACK is not sent right away. The missing message may just be late, or on its way over tcp, and the other
+ * receivers have most likely lost the same message. Each receiver waits a random delay between
+ * {@link #NACK_MIN_DELAY_MS} and {@link #NACK_MAX_DELAY_MS}, and the NACKs are sent over multicast, so every receiver
+ * sees the first NACK for a message. Receivers that see a NACK for a message they are missing skip their own, and
+ * wait for the message to be sent again. One NACK is usually enough for everyone.</p>
+ * <p>
+ * <p>A message is asked for at most {@link #MAX_ATTEMPTS} times, {@link #RETRY_DELAY_MS} apart, before giving up.
+ * Only the last {@link #MAX_MISSING_PER_SENDER} missing messages of a sender are remembered, as the sender only keeps
+ * a limited number of messages to send again anyway.</p>
+ * <p>
+ * <p>All the tasks run on one shared scheduler thread.</p>
+ *
+ * @author Christian Ihle
+ */
+public class NackScheduler {
+
+    private static final Logger LOG = Logger.getLogger(NackScheduler.class);
+
+    /**
+     * The shortest delay from finding a gap to sending a NACK.
+     */
+    static final long NACK_MIN_DELAY_MS = 30;
+
+    /**
+     * The longest delay from finding a gap to sending a NACK.
+     */
+    static final long NACK_MAX_DELAY_MS = 150;
+
+    /**
+     * The delay before asking again for a message, after sending or seeing a NACK for it.
+     */
+    static final long RETRY_DELAY_MS = 500;
+
+    /**
+     * The number of times to ask for a missing message before giving up.
+     */
+    static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * The number of missing messages to remember for each sender.
+     */
+    static final int MAX_MISSING_PER_SENDER = 64;
+
+    /**
+     * The number of missing messages to ask for in one NACK.
+     */
+    static final int MAX_SEQUENCES_PER_NACK = 32;
+
+    /**
+     * The number of senders to remember.
+     */
+    static final int MAX_SENDERS = 256;
+
+    private final NackSender nackSender;
+    private final ScheduledExecutorService scheduler;
+    private final Random random;
+
+    /**
+     * The senders of the latest messages, with their missing messages. Guarded by this.
+     */
+    private final Map<Integer, Sender> senders;
+
+    private long missingMessages;
+    private long recoveredMessages;
+    private long lostMessages;
+    private long sentNacks;
+    private long suppressedNacks;
+
+    /**
+     * Constructor.
+     *
+     * @param nackSender Sends the NACKs.
+     */
+    public NackScheduler(final NackSender nackSender) {
+        this(nackSender, createScheduler(), new Random());
+    }
+
+    NackScheduler(final NackSender nackSender, final ScheduledExecutorService scheduler, final Random random) {
+        Validate.notNull(nackSender, "Nack sender can not be null");
+        Validate.notNull(scheduler, "Scheduler can not be null");
+        Validate.notNull(random, "Random can not be null");
+
+        this.nackSender = nackSender;
+        this.scheduler = scheduler;
+        this.random = random;
+        this.senders = new LinkedHashMap<Integer, Sender>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, Sender> eldest) {
+                if (size() <= MAX_SENDERS) {
+                    return false;
+                }
+
+                cancel(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Registers the first copy of a message from a sender. Finds any messages skipped since the
+     * newest message from the sender, and schedules a NACK for them.
+     *
+     * @param senderCode The user code of the sender.
+     * @param sequence   The sequence number of the message.
+     */
+    public synchronized void messageArrived(final int senderCode, final int sequence) {
+        final Sender sender = senders.get(senderCode);
+
+        if (sender == null) {
+            senders.put(senderCode, new Sender(sequence));
+            return;
+        }
+
+        if (sender.missing.remove(sequence) != null) {
+            recoveredMessages++;
+            return;
+        }
+
+        final int distance = sequence - sender.highest;
+
+        if (distance <= 0) {
+            return;
+        }
+
+        sender.highest = sequence;
+
+        if (distance == 1) {
+            return;
+        }
+
+        final int gap = Math.min(distance - 1, MAX_MISSING_PER_SENDER);
+
+        for (int missingSequence = sequence - gap; missingSequence != sequence; missingSequence++) {
+            addMissing(sender, missingSequence);
+        }
+
+        missingMessages += gap;
+        LOG.fine("Missing %d messages from %d before %d", gap, senderCode, sequence);
+
+        scheduleNacks(senderCode, sender, NACK_MIN_DELAY_MS + nextLong(NACK_MAX_DELAY_MS - NACK_MIN_DELAY_MS));
+    }
+
+    /**
+     * Registers a NACK from another receiver. Missing messages in the NACK are not asked for again
+     * until {@link #RETRY_DELAY_MS} later, to give the sender time to send them.
+     *
+     * @param senderCode The user code of the sender the NACK was for.
+     * @param sequences  The sequence numbers of the messages in the NACK.
+     */
+    public synchronized void nackSeen(final int senderCode, final int[] sequences) {
+        Validate.notNull(sequences, "Sequences can not be null");
+
+        final Sender sender = senders.get(senderCode);
+
+        if (sender == null) {
+            return;
+        }
+
+        final long now = currentTimeMs();
+
+        for (final int sequence : sequences) {
+            final Missing missing = sender.missing.get(sequence);
+
+            if (missing != null && missing.suppressedUntilMs <= now) {
+                missing.suppressedUntilMs = now + RETRY_DELAY_MS;
+                suppressedNacks++;
+            }
+        }
+    }
+
+    /**
+     * Forgets every sender and missing message, and cancels the waiting NACKs.
+     */
+    public synchronized void clear() {
+        for (final Sender sender : senders.values()) {
+            cancel(sender);
+        }
+
+        senders.clear();
+    }
+
+    /**
+     * Gets the number of missing messages that have been found.
+     *
+     * @return The number of missing messages.
+     */
+    public synchronized long getMissingMessages() {
+        return missingMessages;
+    }
+
+    /**
+     * Gets the number of missing messages that arrived later.
+     *
+     * @return The number of recovered messages.
+     */
+    public synchronized long getRecoveredMessages() {
+        return recoveredMessages;
+    }
+
+    /**
+     * Gets the number of missing messages that were given up on.
+     *
+     * @return The number of lost messages.
+     */
+    public synchronized long getLostMessages() {
+        return lostMessages;
+    }
+
+    /**
+     * Gets the number of NACKs sent.
+     *
+     * @return The number of sent NACKs.
+     */
+    public synchronized long getSentNacks() {
+        return sentNacks;
+    }
+
+    /**
+     * Gets the number of times a NACK for a missing message was skipped, because
+     * another receiver had already sent one.
+     *
+     * @return The number of suppressed NACKs.
+     */
+    public synchronized long getSuppressedNacks() {
+        return suppressedNacks;
+    }
+
+    /**
+     * Gets the number of missing messages from a sender that are still waited for.
+     *
+     * @param senderCode The user code of the sender.
+     * @return The number of missing messages.
+     */
+    public synchronized int getMissingMessages(final int senderCode) {
+        final Sender sender = senders.get(senderCode);
+
+        return sender == null ? 0 : sender.missing.size();
+    }
+
+    private void addMissing(final Sender sender, final int sequence) {
+        if (sender.missing.size() >= MAX_MISSING_PER_SENDER) {
+            final Iterator<Integer> oldest = sender.missing.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+            lostMessages++;
+        }
+
+        sender.missing.put(sequence, new Missing());
+    }
+
+    private void scheduleNacks(final int senderCode, final Sender sender, final long delayMs) {
+        if (sender.future != null) {
+            return;
+        }
+
+        sender.future = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sendNacks(senderCode, sender);
+                } catch (final RuntimeException e) {
+                    LOG.severe(e, "Failed to send nack");
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void sendNacks(final int senderCode, final Sender sender) {
+        final int[] sequences = new int[MAX_SEQUENCES_PER_NACK];
+        int count = 0;
+
+        synchronized (this) {
+            if (senders.get(senderCode) != sender) {
+                return;
+            }
+
+            sender.future = null;
+            final long now = currentTimeMs();
+            final Iterator<Map.Entry<Integer, Missing>> iterator = sender.missing.entrySet().iterator();
+
+            while (iterator.hasNext()) {
+                final Map.Entry<Integer, Missing> entry = iterator.next();
+                final Missing missing = entry.getValue();
+
+                if (missing.suppressedUntilMs > now) {
+                    continue;
+                }
+
+                if (missing.attempts >= MAX_ATTEMPTS) {
+                    iterator.remove();
+                    lostMessages++;
+                    continue;
+                }
+
+                if (count < MAX_SEQUENCES_PER_NACK) {
+                    missing.attempts++;
+                    missing.suppressedUntilMs = now + RETRY_DELAY_MS;
+                    sequences[count++] = entry.getKey();
+                }
+            }
+
+            if (count > 0) {
+                sentNacks++;
+            }
+
+            if (!sender.missing.isEmpty()) {
+                scheduleNacks(senderCode, sender, RETRY_DELAY_MS + nextLong(NACK_MAX_DELAY_MS - NACK_MIN_DELAY_MS));
+            }
+        }
+
+        if (count > 0) {
+            nackSender.sendNack(senderCode, Arrays.copyOf(sequences, count));
+        }
+    }
+
+    private long nextLong(final long bound) {
+        return (long) (random.nextDouble() * bound);
+    }
+
+    private static long currentTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static void cancel(final Sender sender) {
+        if (sender.future != null) {
+            sender.future.cancel(false);
+            sender.future = null;
+        }
+    }
+
+    private static ScheduledExecutorService createScheduler() {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, NackScheduler.class.getSimpleName());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        executor.setRemoveOnCancelPolicy(true);
+
+        return executor;
+    }
+
+    /**
+     * Sends NACKs to the senders of missing messages.
+     */
+    public interface NackSender {
+
+        /**
+         * Called on the scheduler thread to ask a sender to send messages again. Must not block.
+         *
+         * @param senderCode The user code of the sender.
+         * @param sequences  The sequence numbers of the missing messages.
+         */
+        void sendNack(int senderCode, int[] sequences);
+    }
+
+    /**
+     * The newest message from a sender, and the missing messages in the order they were found.
+     */
+    private static final class Sender {
+
+        private final Map<Integer, Missing> missing;
+        private int highest;
+        private ScheduledFuture<?> future;
+
+        private Sender(final int firstSequence) {
+            missing = new LinkedHashMap<>();
+            highest = firstSequence;
+        }
+    }
+
+    private static final class Missing {
+
+        private int attempts;
+        private long suppressedUntilMs;
+    }
+}
@@ -0,0 +1,48 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.event.NetworkChangeListener;
+
+/**
+ * Tells the {@link ConnectionWorker} when the network setup of the device has changed,
+ * so the network can be checked right away instead of waiting for the next regular check.
+ * <p>
+ * <p>The default is the {@link NetworkInterfaceWatcher}, which works on any platform.
+ * Platforms that can tell when the network changes, like Android, should provide their own source.</p>
+ *
+ * @author Christian Ihle
+ */
+public interface NetworkChangeSource {
+
+    /**
+     * Starts watching for changes in the network, and notifies the listener of each change until stopped.
+     *
+     * @param listener The listener to notify.
+     */
+    void start(NetworkChangeListener listener);
+
+    /**
+     * Stops watching for changes in the network. Does nothing if not started.
+     */
+    void stop();
+}
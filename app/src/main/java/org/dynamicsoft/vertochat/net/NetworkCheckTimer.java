@@ -0,0 +1,193 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.event.NetworkChangeListener;
+import org.dynamicsoft.vertochat.util.Validate;
+
+/**
+ * Decides when the {@link ConnectionWorker} should check the network again.
+ * <p>
+ * <p>While the network is up, the network is checked every {@link #UP_INTERVAL_MS}, in case a change was missed.
+ * While the network is down, the time between each check starts at {@link #DOWN_MIN_INTERVAL_MS}, and is doubled
+ * for each check until it reaches {@link #DOWN_MAX_INTERVAL_MS}.</p>
+ * <p>
+ * <p>A change in the network from a {@link NetworkChangeSource} makes the next check happen as soon as the network
+ * has been quiet for {@link #DEBOUNCE_MS}, since a single change like connecting to a wireless network comes as
+ * several notifications in a row. A change also starts the backoff from the beginning.
+ * A request to {@link #checkNow()} skips the wait completely.</p>
+ *
+ * @author Christian Ihle
+ */
+public class NetworkCheckTimer implements NetworkChangeListener {
+
+    /**
+     * The time to wait after the last change in the network before checking it.
+     */
+    static final long DEBOUNCE_MS = 500;
+
+    /**
+     * The time between each check while the network is up.
+     */
+    static final long UP_INTERVAL_MS = 1000 * 60;
+
+    /**
+     * The time before the first check after the network went down.
+     */
+    static final long DOWN_MIN_INTERVAL_MS = 1000;
+
+    /**
+     * The longest time between each check while the network is down.
+     */
+    static final long DOWN_MAX_INTERVAL_MS = 1000 * 15;
+
+    private final long debounceMs;
+    private final long upIntervalMs;
+    private final long downMinIntervalMs;
+    private final long downMaxIntervalMs;
+
+    private long downIntervalMs;
+    private boolean checkRequested;
+    private boolean changePending;
+    private long lastChangeMs;
+
+    private long networkChanges;
+    private long checksFromChanges;
+
+    public NetworkCheckTimer() {
+        this(DEBOUNCE_MS, UP_INTERVAL_MS, DOWN_MIN_INTERVAL_MS, DOWN_MAX_INTERVAL_MS);
+    }
+
+    NetworkCheckTimer(final long debounceMs, final long upIntervalMs,
+                      final long downMinIntervalMs, final long downMaxIntervalMs) {
+        Validate.isTrue(debounceMs >= 0, "Debounce can not be negative");
+        Validate.isTrue(downMinIntervalMs > 0 && downMinIntervalMs <= downMaxIntervalMs,
+                "Down interval must be positive, and min can not be larger than max");
+        Validate.isTrue(upIntervalMs > 0, "Up interval must be positive");
+
+        this.debounceMs = debounceMs;
+        this.upIntervalMs = upIntervalMs;
+        this.downMinIntervalMs = downMinIntervalMs;
+        this.downMaxIntervalMs = downMaxIntervalMs;
+
+        downIntervalMs = downMinIntervalMs;
+    }
+
+    /**
+     * Makes the next check happen when the network has been quiet for a while, and starts the backoff over.
+     */
+    @Override
+    public synchronized void networkChanged() {
+        changePending = true;
+        lastChangeMs = System.currentTimeMillis();
+        downIntervalMs = downMinIntervalMs;
+        networkChanges++;
+
+        notifyAll();
+    }
+
+    /**
+     * Makes the next check happen right away.
+     */
+    public synchronized void checkNow() {
+        checkRequested = true;
+
+        notifyAll();
+    }
+
+    /**
+     * Waits until it's time to check the network again.
+     *
+     * @param networkUp If the network was up after the last check.
+     * @return If the check is because of a change in the network or a request to check now,
+     * instead of the regular interval.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public synchronized boolean awaitNextCheck(final boolean networkUp) throws InterruptedException {
+        final long interval;
+
+        if (networkUp) {
+            interval = upIntervalMs;
+            downIntervalMs = downMinIntervalMs;
+        } else {
+            interval = downIntervalMs;
+            downIntervalMs = Math.min(downIntervalMs * 2, downMaxIntervalMs);
+        }
+
+        final long deadline = System.currentTimeMillis() + interval;
+        boolean changed = false;
+
+        while (!checkRequested) {
+            final long now = System.currentTimeMillis();
+
+            if (changePending) {
+                final long quietAt = lastChangeMs + debounceMs;
+
+                if (now >= quietAt) {
+                    checksFromChanges++;
+                    changed = true;
+                    break;
+                }
+
+                wait(quietAt - now);
+            } else if (now >= deadline) {
+                break;
+            } else {
+                wait(deadline - now);
+            }
+        }
+
+        changed |= checkRequested;
+        checkRequested = false;
+        changePending = false;
+
+        return changed;
+    }
+
+    /**
+     * Gets the time the network will wait before the next check if it's still down.
+     *
+     * @return The next interval while the network is down.
+     */
+    public synchronized long getDownIntervalMs() {
+        return downIntervalMs;
+    }
+
+    /**
+     * Gets the number of changes in the network that have been reported.
+     *
+     * @return The number of network changes.
+     */
+    public synchronized long getNetworkChanges() {
+        return networkChanges;
+    }
+
+    /**
+     * Gets the number of checks of the network that happened because of a change, instead of the regular interval.
+     * Several changes in a row only lead to one check.
+     *
+     * @return The number of checks after network changes.
+     */
+    public synchronized long getChecksFromChanges() {
+        return checksFromChanges;
+    }
+}
@@ -0,0 +1,178 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The network interfaces of the device at one point in time, with the usable network interfaces already found.
+ * <p>
+ * <p>Looking up network interfaces in a snapshot is just a search in a short list, while each lookup in
+ * {@link NetworkUtils} asks the operating system for every network interface again. A new snapshot is taken with
+ * {@link NetworkUtils#takeSnapshot(NetworkInterfaceSnapshot)} when the network changes.</p>
+ * <p>
+ * <p>Every snapshot has a version. A new snapshot only gets a new version if the network interfaces have changed
+ * since the last snapshot, so anything learned about a version, like the operating system's choice of network
+ * interface, can be reused until the version changes.</p>
+ *
+ * @author Christian Ihle
+ */
+public final class NetworkInterfaceSnapshot {
+
+    private final long version;
+    private final int fingerprint;
+    private final List<NetworkInterface> networkInterfaces;
+    private final List<NetworkInterface> usableNetworkInterfaces;
+
+    NetworkInterfaceSnapshot(final long version, final int fingerprint,
+                             final List<NetworkInterface> networkInterfaces,
+                             final List<NetworkInterface> usableNetworkInterfaces) {
+        Validate.notNull(networkInterfaces, "Network interfaces can not be null");
+        Validate.notNull(usableNetworkInterfaces, "Usable network interfaces can not be null");
+
+        this.version = version;
+        this.fingerprint = fingerprint;
+        this.networkInterfaces = Collections.unmodifiableList(networkInterfaces);
+        this.usableNetworkInterfaces = Collections.unmodifiableList(usableNetworkInterfaces);
+    }
+
+    /**
+     * Gets the version of this snapshot. The version is increased each time the network interfaces change.
+     *
+     * @return The version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the fingerprint of the network interfaces in this snapshot.
+     *
+     * @return The fingerprint.
+     * @see #createFingerprint(List)
+     */
+    public int getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Gets all the network interfaces.
+     *
+     * @return All the network interfaces, in the order the operating system returned them.
+     */
+    public List<NetworkInterface> getNetworkInterfaces() {
+        return networkInterfaces;
+    }
+
+    /**
+     * Gets the network interfaces that were usable when the snapshot was taken.
+     *
+     * @return The usable network interfaces.
+     * @see NetworkUtils#isUsable(NetworkInterface)
+     */
+    public List<NetworkInterface> getUsableNetworkInterfaces() {
+        return usableNetworkInterfaces;
+    }
+
+    /**
+     * Gets the first network interface that was usable when the snapshot was taken.
+     *
+     * @return The first usable network interface, or <code>null</code>.
+     */
+    @Nullable
+    public NetworkInterface findFirstUsableNetworkInterface() {
+        if (usableNetworkInterfaces.isEmpty()) {
+            return null;
+        }
+
+        return usableNetworkInterfaces.get(0);
+    }
+
+    /**
+     * Gets the network interface with the requested name.
+     *
+     * @param name Name of the network interface to return.
+     * @return The requested network interface, or <code>null</code>.
+     */
+    @Nullable
+    public NetworkInterface getNetworkInterfaceByName(@Nullable final String name) {
+        if (name == null) {
+            return null;
+        }
+
+        for (final NetworkInterface networkInterface : networkInterfaces) {
+            if (networkInterface.getName().equals(name)) {
+                return networkInterface;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the version of a network interface in this snapshot, to get the addresses it had when the snapshot
+     * was taken.
+     *
+     * @param origNetIf The original network interface to find.
+     * @return The same network interface from this snapshot, or <code>null</code> if not found.
+     */
+    @Nullable
+    public NetworkInterface getUpdatedNetworkInterface(@Nullable final NetworkInterface origNetIf) {
+        if (origNetIf == null) {
+            return null;
+        }
+
+        return getNetworkInterfaceByName(origNetIf.getName());
+    }
+
+    /**
+     * Makes a fingerprint of the network interfaces that changes when an interface is added or removed,
+     * goes up or down, or gets new addresses.
+     *
+     * @param networkInterfaces The network interfaces to make a fingerprint of.
+     * @return The fingerprint.
+     * @throws SocketException If the state of a network interface could not be read.
+     */
+    public static int createFingerprint(final List<NetworkInterface> networkInterfaces) throws SocketException {
+        int hash = 1;
+
+        for (final NetworkInterface networkInterface : networkInterfaces) {
+            hash = 31 * hash + networkInterface.getName().hashCode();
+            hash = 31 * hash + networkInterface.getIndex();
+            hash = 31 * hash + (networkInterface.isUp() ? 1 : 0);
+
+            for (final InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                hash = 31 * hash + Arrays.hashCode(address.getAddress());
+            }
+        }
+
+        return hash;
+    }
+}
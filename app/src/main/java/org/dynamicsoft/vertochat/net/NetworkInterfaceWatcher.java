@@ -0,0 +1,166 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.event.NetworkChangeListener;
+import org.dynamicsoft.vertochat.util.Logger;
+import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link NetworkChangeSource} that works on any platform, by looking for changes in the network interfaces
+ * every {@link #POLL_INTERVAL_MS}.
+ * <p>
+ * <p>Each poll makes a fingerprint of the name, index, state and addresses of every network interface,
+ * and the listener is only notified when the fingerprint is different from the last one. This is a lot cheaper
+ * than a full check of the network, which also needs to find a usable network interface and ask the
+ * operating system for its choice.</p>
+ *
+ * @author Christian Ihle
+ */
+public class NetworkInterfaceWatcher implements NetworkChangeSource {
+
+    private static final Logger LOG = Logger.getLogger(NetworkInterfaceWatcher.class);
+
+    /**
+     * The time between each look at the network interfaces.
+     */
+    static final long POLL_INTERVAL_MS = 2000;
+
+    private final ScheduledExecutorService scheduler;
+
+    @Nullable
+    private ScheduledFuture<?> pollTask;
+
+    private volatile int fingerprint;
+
+    public NetworkInterfaceWatcher() {
+        this(createScheduler());
+    }
+
+    NetworkInterfaceWatcher(final ScheduledExecutorService scheduler) {
+        Validate.notNull(scheduler, "Scheduler can not be null");
+
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public synchronized void start(final NetworkChangeListener listener) {
+        Validate.notNull(listener, "Network change listener can not be null");
+
+        if (pollTask != null) {
+            return;
+        }
+
+        fingerprint = createFingerprint();
+
+        pollTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll(listener);
+            }
+        }, POLL_INTERVAL_MS, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (pollTask != null) {
+            pollTask.cancel(false);
+            pollTask = null;
+        }
+    }
+
+    /**
+     * Notifies the listener if the network interfaces have changed since the last poll.
+     *
+     * @param listener The listener to notify.
+     */
+    void poll(final NetworkChangeListener listener) {
+        final int newFingerprint = createFingerprint();
+
+        synchronized (this) {
+            if (newFingerprint == fingerprint) {
+                return;
+            }
+
+            fingerprint = newFingerprint;
+        }
+
+        LOG.fine("Network interfaces changed");
+
+        try {
+            listener.networkChanged();
+        } catch (final RuntimeException e) {
+            LOG.severe(e, "Failed to notify of network change");
+        }
+    }
+
+    /**
+     * Makes a fingerprint of the current network interfaces.
+     *
+     * @return The fingerprint.
+     * @see NetworkInterfaceSnapshot#createFingerprint(java.util.List)
+     */
+    int createFingerprint() {
+        try {
+            final Enumeration<NetworkInterface> networkInterfaces = NetworkInterface.getNetworkInterfaces();
+
+            if (networkInterfaces == null) {
+                return 0;
+            }
+
+            return NetworkInterfaceSnapshot.createFingerprint(Collections.list(networkInterfaces));
+        }
+
+        // An interface disappeared in the middle of the fingerprint. The next poll will see the result.
+        catch (final SocketException e) {
+            LOG.fine("Failed to read network interfaces: %s", e.toString());
+            return fingerprint;
+        }
+    }
+
+    private static ScheduledExecutorService createScheduler() {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, NetworkInterfaceWatcher.class.getSimpleName());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        executor.setRemoveOnCancelPolicy(true);
+
+        return executor;
+    }
+}
@@ -47,4 +47,5 @@ public interface NetworkMessageType {
     String SENDFILE = "SENDFILE";
     String CLIENT = "CLIENT";
     String PRIVMSG = "PRIVMSG";
+    String NACK = "NACK";
 }
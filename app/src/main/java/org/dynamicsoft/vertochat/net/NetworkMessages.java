@@ -21,12 +21,17 @@
 
 package org.dynamicsoft.vertochat.net;
 
+import org.dynamicsoft.vertochat.Constants;
 import org.dynamicsoft.vertochat.misc.CommandException;
 import org.dynamicsoft.vertochat.misc.Topic;
 import org.dynamicsoft.vertochat.misc.User;
 import org.dynamicsoft.vertochat.settings.Settings;
 import org.dynamicsoft.vertochat.util.Validate;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
 import static org.dynamicsoft.vertochat.net.NetworkMessageType.AWAY;
 import static org.dynamicsoft.vertochat.net.NetworkMessageType.BACK;
 import static org.dynamicsoft.vertochat.net.NetworkMessageType.CLIENT;
@@ -50,11 +55,19 @@ import static org.dynamicsoft.vertochat.net.NetworkMessageType.WRITING;
 /**
  * This class gives access to sending the different kinds of network messages
  * that this application supports. Both multicast, and normal udp.
+ * <p>
+ * <p>Messages are sent in the background. Messages the user must be told about if sending fails
+ * wait for the result, while the others check the network when done, without waiting.</p>
  *
  * @author Christian Ihle
  */
 public class NetworkMessages {
 
+    /**
+     * The types of messages that have no content, and stay the same until the application user changes.
+     */
+    private static final String[] STATIC_MESSAGE_TYPES = {IDLE, EXPOSE, GETTOPIC, WRITING, STOPPEDWRITING};
+
     /**
      * The network service used for sending the actual messages.
      */
@@ -70,6 +83,25 @@ public class NetworkMessages {
      */
     private final Settings settings;
 
+    /**
+     * Checks the network when sending a message failed.
+     */
+    private final SendFuture.Callback networkChecker;
+
+    /**
+     * The messages of the static message types, created for the current nick name, away state and ports
+     * of the application user. Guarded by itself.
+     */
+    private final Map<String, String> staticMessages;
+
+    /**
+     * The details of the application user when the static messages were created. Guarded by staticMessages.
+     */
+    private String staticMessagesNick;
+    private boolean staticMessagesAway;
+    private int staticMessagesPrivateChatPort;
+    private int staticMessagesTcpChatPort;
+
     /**
      * Constructor.
      *
@@ -83,6 +115,16 @@ public class NetworkMessages {
         this.networkService = networkService;
         this.settings = settings;
         me = settings.getMe();
+        staticMessages = new HashMap<>();
+
+        networkChecker = new SendFuture.Callback() {
+            @Override
+            public void sendCompleted(final SendFuture future) {
+                if (future.isFailed()) {
+                    checkNetwork();
+                }
+            }
+        };
     }
 
     /**
@@ -91,12 +133,8 @@ public class NetworkMessages {
      * <p>Note: the network will be checked if this fails!</p>
      */
     public void sendIdleMessage() {
-        final String msg = createMessage(IDLE);
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
-
-        if (!sent) {
-            checkNetwork();
-        }
+        final String msg = getStaticMessage(IDLE);
+        networkService.sendMessageToAllUsers(msg).addCallback(networkChecker);
     }
 
     /**
@@ -108,11 +146,7 @@ public class NetworkMessages {
      */
     public void sendTopicChangeMessage(final Topic topic) {
         final String msg = createTopicMessage(topic);
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
-
-        if (!sent) {
-            checkNetwork();
-        }
+        networkService.sendMessageToAllUsers(msg).addCallback(networkChecker);
     }
 
     /**
@@ -134,11 +168,7 @@ public class NetworkMessages {
      */
     public void sendAwayMessage(final String awayMsg) {
         final String msg = createMessage(AWAY) + awayMsg;
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
-
-        if (!sent) {
-            checkNetwork();
-        }
+        networkService.sendMessageToAllUsers(msg).addCallback(networkChecker);
     }
 
     /**
@@ -148,11 +178,7 @@ public class NetworkMessages {
      */
     public void sendBackMessage() {
         final String msg = createMessage(BACK);
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
-
-        if (!sent) {
-            checkNetwork();
-        }
+        networkService.sendMessageToAllUsers(msg).addCallback(networkChecker);
     }
 
     /**
@@ -168,10 +194,13 @@ public class NetworkMessages {
                 "[" + settings.getOwnColor() + "]" +
                 chatMsg;
 
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
+        final SendFuture future = networkService.sendMessageToAllUsers(msg);
+
+        if (!future.awaitSent()) {
+            if (future.isFailed()) {
+                checkNetwork();
+            }
 
-        if (!sent) {
-            checkNetwork();
             notifyUser("Failed to send message: " + chatMsg);
         }
     }
@@ -196,7 +225,7 @@ public class NetworkMessages {
      * Sends a message asking the other clients to identify themselves.
      */
     public void sendExposeMessage() {
-        final String msg = createMessage(EXPOSE);
+        final String msg = getStaticMessage(EXPOSE);
         networkService.sendMessageToAllUsers(msg);
     }
 
@@ -212,7 +241,7 @@ public class NetworkMessages {
      * Sends a message to ask for the current topic.
      */
     public void sendGetTopicMessage() {
-        final String msg = createMessage(GETTOPIC);
+        final String msg = getStaticMessage(GETTOPIC);
         networkService.sendMessageToAllUsers(msg);
     }
 
@@ -220,7 +249,7 @@ public class NetworkMessages {
      * Sends a message to notify that the user is writing.
      */
     public void sendWritingMessage() {
-        final String msg = createMessage(WRITING);
+        final String msg = getStaticMessage(WRITING);
         networkService.sendMessageToAllUsers(msg);
     }
 
@@ -228,7 +257,7 @@ public class NetworkMessages {
      * Sends a message to notify that the user has stopped writing.
      */
     public void sendStoppedWritingMessage() {
-        final String msg = createMessage(STOPPEDWRITING);
+        final String msg = getStaticMessage(STOPPEDWRITING);
         networkService.sendMessageToAllUsers(msg);
     }
 
@@ -241,11 +270,7 @@ public class NetworkMessages {
      */
     public void sendNickMessage(final String newNick) {
         final String msg = createMessage(NICK, newNick);
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
-
-        if (!sent) {
-            checkNetwork();
-        }
+        networkService.sendMessageToAllUsers(msg).addCallback(networkChecker);
     }
 
     /**
@@ -272,11 +297,7 @@ public class NetworkMessages {
                 "{" + fileHash + "}" +
                 fileName;
 
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
-
-        if (!sent) {
-            checkNetwork();
-        }
+        networkService.sendMessageToAllUsers(msg).addCallback(networkChecker);
     }
 
     /**
@@ -300,10 +321,13 @@ public class NetworkMessages {
                 "{" + fileHash + "}" +
                 fileName;
 
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
+        final SendFuture future = networkService.sendMessageToAllUsers(msg);
+
+        if (!future.awaitSent()) {
+            if (future.isFailed()) {
+                checkNetwork();
+            }
 
-        if (!sent) {
-            checkNetwork();
             notifyUser("Failed to accept file transfer from " + user.getNick() + ": " + fileName);
         }
     }
@@ -324,10 +348,13 @@ public class NetworkMessages {
                 "{" + file.hashCode() + "}" +
                 file.getName();
 
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
+        final SendFuture future = networkService.sendMessageToAllUsers(msg);
+
+        if (!future.awaitSent()) {
+            if (future.isFailed()) {
+                checkNetwork();
+            }
 
-        if (!sent) {
-            checkNetwork();
             notifyUser("Failed to send file to " + user.getNick() + ": " + file.getName());
         }
     }
@@ -341,6 +368,7 @@ public class NetworkMessages {
      * <li>Operating system.</li>
      * <li>Port to connect to for private chat.</li>
      * <li>Port to connect to for tcp chat.</li>
+     * <li>Newest supported protocol version.</li>
      * </ul>
      */
     public void sendClient() {
@@ -349,7 +377,9 @@ public class NetworkMessages {
                 "[" + (System.currentTimeMillis() - me.getLogonTime()) + "]" +
                 "{" + me.getOperatingSystem() + "}" +
                 "<" + me.getPrivateChatPort() + ">" +
-                "/" + me.getTcpChatPort() + "\\";
+                "/" + me.getTcpChatPort() + "\\" +
+                "|" + Constants.PROTOCOL_VERSION_FEC + "|" +
+                "^" + (settings.isReliableMulticast() ? 1 : 0) + "^";
 
         networkService.sendMessageToAllUsers(msg);
     }
@@ -369,10 +399,13 @@ public class NetworkMessages {
                 "[" + settings.getOwnColor() + "]" +
                 privMsg;
 
-        final boolean sent = networkService.sendMessageToUser(msg, user);
+        final SendFuture future = networkService.sendMessageToUser(msg, user);
+
+        if (!future.awaitSent()) {
+            if (future.isFailed()) {
+                checkNetwork();
+            }
 
-        if (!sent) {
-            checkNetwork();
             notifyUser("Failed to send private message to " + user.getNick() + ": " + privMsg);
         }
     }
@@ -400,6 +433,50 @@ public class NetworkMessages {
         return me.getCode() + "!" + type + "#" + nick + ":";
     }
 
+    /**
+     * Gets the message of one of the static message types.
+     * <p>
+     * <p>The same message instance is returned until the nick name, away state or ports
+     * of the application user change. The messages are cached by the network service,
+     * so they can be sent without encoding them again.</p>
+     *
+     * @param type The type of message to get.
+     * @return The message.
+     */
+    private String getStaticMessage(final String type) {
+        synchronized (staticMessages) {
+            if (staticMessagesChanged()) {
+                createStaticMessages();
+            }
+
+            return staticMessages.get(type);
+        }
+    }
+
+    private boolean staticMessagesChanged() {
+        return staticMessages.isEmpty()
+                || !Objects.equals(staticMessagesNick, me.getNick())
+                || staticMessagesAway != me.isAway()
+                || staticMessagesPrivateChatPort != me.getPrivateChatPort()
+                || staticMessagesTcpChatPort != me.getTcpChatPort();
+    }
+
+    private void createStaticMessages() {
+        staticMessagesNick = me.getNick();
+        staticMessagesAway = me.isAway();
+        staticMessagesPrivateChatPort = me.getPrivateChatPort();
+        staticMessagesTcpChatPort = me.getTcpChatPort();
+
+        final String[] messages = new String[STATIC_MESSAGE_TYPES.length];
+
+        for (int i = 0; i < STATIC_MESSAGE_TYPES.length; i++) {
+            messages[i] = createMessage(STATIC_MESSAGE_TYPES[i], staticMessagesNick);
+            staticMessages.put(STATIC_MESSAGE_TYPES[i], messages[i]);
+        }
+
+        networkService.cacheStaticMessages(messages);
+    }
+
     /**
      * Creates a new message for sending the topic.
      *
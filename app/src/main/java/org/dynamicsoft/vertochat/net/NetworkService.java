@@ -21,16 +21,28 @@
 
 package org.dynamicsoft.vertochat.net;
 
+import org.dynamicsoft.vertochat.Constants;
 import org.dynamicsoft.vertochat.event.NetworkConnectionListener;
+import org.dynamicsoft.vertochat.event.NetworkHandoverListener;
+import org.dynamicsoft.vertochat.event.NetworkInterfacesListener;
 import org.dynamicsoft.vertochat.event.ReceiverListener;
 import org.dynamicsoft.vertochat.misc.Controller;
 import org.dynamicsoft.vertochat.misc.ErrorHandler;
 import org.dynamicsoft.vertochat.misc.User;
 import org.dynamicsoft.vertochat.net.tcp.TCPNetworkService;
+import org.dynamicsoft.vertochat.net.tcp.TCPOutboundQueue;
 import org.dynamicsoft.vertochat.settings.Settings;
 import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
 
+import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -38,13 +50,18 @@ import java.util.logging.Logger;
  *
  * @author Christian Ihle
  */
-public class NetworkService implements NetworkConnectionListener {
+public class NetworkService implements NetworkHandoverListener, NetworkInterfacesListener {
 
     /**
      * The logger.
      */
     private static final Logger LOG = Logger.getLogger(NetworkService.class.getName());
 
+    /**
+     * How long to wait for queued messages to be sent before stopping the senders, in milliseconds.
+     */
+    private static final long SEND_QUEUE_SHUTDOWN_TIMEOUT_MS = 1000;
+
     /**
      * The thread responsible for keeping the network connection up.
      */
@@ -60,6 +77,12 @@ public class NetworkService implements NetworkConnectionListener {
      */
     private final MessageReceiver messageReceiver;
 
+    /**
+     * The network interfaces to use for multicast, or <code>null</code> to only use the current network interface.
+     */
+    @Nullable
+    private final MulticastInterfaces multicastInterfaces;
+
     /**
      * The private message sender.
      */
@@ -85,6 +108,72 @@ public class NetworkService implements NetworkConnectionListener {
      */
     private final boolean privateChatEnabled;
 
+    /**
+     * Messages that are already encoded, shared by the multicast and private message senders.
+     */
+    private final MessageFrameCache frameCache;
+
+    /**
+     * Gives messages sent over both multicast and tcp a sequence number, so receivers can drop the second copy,
+     * and find lost messages.
+     */
+    private final MessageSequencer messageSequencer;
+
+    /**
+     * Gives private messages a sequence number, separate from the multicast messages, so the private messages to
+     * one user don't look like lost multicast messages to the other users.
+     */
+    private final MessageSequencer privateMessageSequencer;
+
+    /**
+     * Recovers lost multicast messages.
+     */
+    private final ReliableMulticast reliableMulticast;
+
+    /**
+     * Decides when to use the binary protocol.
+     */
+    private final ProtocolNegotiator protocolNegotiator;
+
+    /**
+     * Chooses the paths to send each message on, or <code>null</code> to send over every path.
+     */
+    @Nullable
+    private final TransportSelector transportSelector;
+
+    /**
+     * Spreads out the multicast packets to stay within the send rates, or <code>null</code> to send right away.
+     */
+    @Nullable
+    private final SendPacer sendPacer;
+
+    /**
+     * Limits the messages from each user, or <code>null</code> to pass on every message.
+     */
+    @Nullable
+    private final FloodFilter floodFilter;
+
+    /**
+     * The queue of multicast messages to send.
+     */
+    private final SendQueue sendQueue;
+
+    /**
+     * The queue of private messages to send over udp. Kept apart from the multicast messages,
+     * so private messages never wait while the send pacer holds back multicast.
+     */
+    private final SendQueue privateSendQueue;
+
+    /**
+     * Sends bursts of control messages to all users in as few packets as possible.
+     */
+    private final MessageBatcher messageBatcher;
+
+    /**
+     * The addresses of the other users, ready for sending.
+     */
+    private final PeerAddressCache peerAddressCache;
+
     /**
      * Constructor.
      *
@@ -101,15 +190,74 @@ public class NetworkService implements NetworkConnectionListener {
 
         privateChatEnabled = !settings.isNoPrivateChat();
 
-        messageReceiver = new MessageReceiver(errorHandler);
-        messageSender = new MessageSender(errorHandler);
+        frameCache = new MessageFrameCache();
+        messageSequencer = new MessageSequencer();
+        privateMessageSequencer = new MessageSequencer();
+        protocolNegotiator = new ProtocolNegotiator();
+        sendQueue = new SendQueue();
+        privateSendQueue = new SendQueue();
+        peerAddressCache = controller.getPeerAddressCache();
+        messageReceiver = new MessageReceiver(errorHandler, peerAddressCache);
+        messageSender = new MessageSender(errorHandler, frameCache, sendQueue);
+        messageBatcher = new MessageBatcher(messageSender, protocolNegotiator);
         connectionWorker = new ConnectionWorker(settings, errorHandler);
         tcpNetworkService = new TCPNetworkService(controller, settings, errorHandler);
-        messageDeduplicator = new MessageDeduplicator(controller);
+        reliableMulticast = new ReliableMulticast(settings.getMe(), settings.isReliableMulticast(), new ReliableMulticast.Transmitter() {
+            @Override
+            public void retransmit(final String stampedMessage) {
+                messageSender.send(stampedMessage, protocolNegotiator.getFormatForAll());
+            }
+
+            @Override
+            public void sendNack(final String nack) {
+                if (protocolNegotiator.isSupportedByAll(Constants.PROTOCOL_VERSION_RELIABLE_MULTICAST)) {
+                    messageSender.send(nack, protocolNegotiator.getFormatForAll());
+                } else {
+                    messageSender.send(nack, WireFormat.TEXT);
+                }
+            }
+        });
+        messageDeduplicator = new MessageDeduplicator(controller, reliableMulticast);
+
+        if (settings.isForwardErrorCorrection()) {
+            messageSender.enableForwardErrorCorrection(protocolNegotiator, messageReceiver.getFecDecoder());
+        }
+
+        if (settings.isMultiInterfaceMulticast()) {
+            multicastInterfaces = new MulticastInterfaces();
+            messageSender.enableMulticastInterfaces(multicastInterfaces);
+            messageReceiver.enableMulticastInterfaces(multicastInterfaces);
+            connectionWorker.registerNetworkInterfacesListener(this);
+        } else {
+            multicastInterfaces = null;
+        }
+
+        if (settings.isAdaptiveTransport()) {
+            transportSelector = new TransportSelector();
+            reliableMulticast.registerLossListener(transportSelector);
+            messageDeduplicator.enableTransportSelector(transportSelector);
+        } else {
+            transportSelector = null;
+        }
+
+        if (settings.getSendPacketRate() > 0 || settings.getSendByteRate() > 0) {
+            sendPacer = new SendPacer(settings.getSendPacketRate(), settings.getSendByteRate());
+            messageSender.enableSendPacing(sendPacer);
+            reliableMulticast.registerLossListener(sendPacer);
+        } else {
+            sendPacer = null;
+        }
+
+        if (settings.isFloodProtection()) {
+            floodFilter = new FloodFilter(settings.getMe(), controller);
+            messageDeduplicator.enableFloodFilter(floodFilter);
+        } else {
+            floodFilter = null;
+        }
 
         if (privateChatEnabled) {
-            udpReceiver = new UDPReceiver(settings, errorHandler);
-            udpSender = new UDPSender(errorHandler);
+            udpReceiver = new UDPReceiver(settings, errorHandler, peerAddressCache);
+            udpSender = new UDPSender(errorHandler, frameCache, privateSendQueue);
         } else {
             LOG.fine("Private chat is disabled");
             udpReceiver = null;
@@ -117,6 +265,7 @@ public class NetworkService implements NetworkConnectionListener {
         }
 
         connectionWorker.registerNetworkConnectionListener(this);
+        controller.getUserList().addUserListListener(protocolNegotiator);
     }
 
     /**
@@ -142,6 +291,144 @@ public class NetworkService implements NetworkConnectionListener {
         return connectionWorker;
     }
 
+    /**
+     * Gets the counters for the multicast receiver.
+     *
+     * @return The multicast receiver statistics.
+     */
+    public ReceiverStatistics getMulticastReceiverStatistics() {
+        return messageReceiver.getStatistics();
+    }
+
+    /**
+     * Gets the counters of which path delivered messages sent over both udp and tcp first.
+     *
+     * @return The filter of messages that have already arrived.
+     */
+    public SeenMessageFilter getSeenMessageFilter() {
+        return messageDeduplicator.getSeenMessageFilter();
+    }
+
+    /**
+     * Gets the reliability layer for multicast messages, with counters for lost and recovered messages.
+     *
+     * @return The reliable multicast.
+     */
+    public ReliableMulticast getReliableMulticast() {
+        return reliableMulticast;
+    }
+
+    /**
+     * Gets the encoder of multicast packets sent with forward error correction, with counters for the overhead.
+     *
+     * @return The fec encoder.
+     */
+    public FecEncoder getFecEncoder() {
+        return messageSender.getFecEncoder();
+    }
+
+    /**
+     * Gets the decoder of multicast packets sent with forward error correction, with the estimated
+     * loss rate and counters for the rebuilt packets.
+     *
+     * @return The fec decoder.
+     */
+    public FecDecoder getFecDecoder() {
+        return messageReceiver.getFecDecoder();
+    }
+
+    /**
+     * Gets the network interfaces used for multicast, with the ones other clients were seen on.
+     *
+     * @return The multicast interfaces, or <code>null</code> if only the current network interface is used.
+     */
+    @Nullable
+    public MulticastInterfaces getMulticastInterfaces() {
+        return multicastInterfaces;
+    }
+
+    /**
+     * Gets the chooser of paths to send each message on, with the loss rate of each user,
+     * and counters of the choices made.
+     *
+     * @return The transport selector, or <code>null</code> if every message is sent over every path.
+     */
+    @Nullable
+    public TransportSelector getTransportSelector() {
+        return transportSelector;
+    }
+
+    /**
+     * Gets the pacer of multicast packets, with the current send rates and counters of delayed packets.
+     *
+     * @return The send pacer, or <code>null</code> if multicast packets are sent right away.
+     */
+    @Nullable
+    public SendPacer getSendPacer() {
+        return sendPacer;
+    }
+
+    /**
+     * Gets the filter of messages from users sending too many, with counters of each sender.
+     *
+     * @return The flood filter, or <code>null</code> if every message is passed on.
+     */
+    @Nullable
+    public FloodFilter getFloodFilter() {
+        return floodFilter;
+    }
+
+    /**
+     * Gets the batcher of control messages, to be able to check how many packets it has saved.
+     *
+     * @return The message batcher.
+     */
+    public MessageBatcher getMessageBatcher() {
+        return messageBatcher;
+    }
+
+    /**
+     * Gets the queue of multicast messages to send, with metrics about queue depth and send latency.
+     *
+     * @return The send queue.
+     */
+    public SendQueue getSendQueue() {
+        return sendQueue;
+    }
+
+    /**
+     * Gets the queue of private messages to send over udp, with metrics about queue depth and send latency.
+     *
+     * @return The private send queue.
+     */
+    public SendQueue getPrivateSendQueue() {
+        return privateSendQueue;
+    }
+
+    /**
+     * Gets the queues of messages to send to each user over tcp, with metrics about queue depth
+     * and write latency.
+     *
+     * @return The tcp outbound queue of each user.
+     */
+    public Map<User, TCPOutboundQueue> getTcpOutboundQueues() {
+        return tcpNetworkService.getOutboundQueues();
+    }
+
+    /**
+     * Gets the counters for the private chat receiver.
+     *
+     * @return The private chat receiver statistics, or <code>null</code> if private chat is disabled.
+     */
+    @Nullable
+    public ReceiverStatistics getPrivateReceiverStatistics() {
+        if (udpReceiver == null) {
+            return null;
+        }
+
+        return udpReceiver.getStatistics();
+    }
+
     /**
      * Checks if the connection thread is alive.
      *
@@ -169,6 +456,15 @@ public class NetworkService implements NetworkConnectionListener {
         connectionWorker.registerNetworkConnectionListener(listener);
     }
 
+    /**
+     * Replaces the source of network changes, for platforms that can tell when the network changes.
+     *
+     * @param networkChangeSource The new source of network changes.
+     */
+    public void setNetworkChangeSource(final NetworkChangeSource networkChangeSource) {
+        connectionWorker.setNetworkChangeSource(networkChangeSource);
+    }
+
     /**
      * Register a listener for incoming main chat messages from the network.
      *
@@ -193,29 +489,140 @@ public class NetworkService implements NetworkConnectionListener {
     }
 
     /**
-     * Send a message to all users.
+     * Send a message to all users. The message is sent on the thread of the send queue,
+     * so this never blocks.
+     *
+     * @param message The message to send.
+     * @return The future telling if the message was sent or not.
+     */
+    public SendFuture sendMessageToAllUsers(final String message) {
+        final String stampedMessage = stampForAll(message);
+        sendOverTcpToAll(stampedMessage);
+        final WireFormat format = protocolNegotiator.getFormatForAll();
+
+        if (format != WireFormat.TEXT && messageBatcher.canBatch(stampedMessage)) {
+            return messageBatcher.add(stampedMessage);
+        }
+
+        final SendQueue.Lane lane = messageBatcher.flush(SendQueue.Lane.forMessage(stampedMessage));
+        return messageSender.send(stampedMessage, format, lane);
+    }
+
+    /**
+     * Send a message to a single user. The message is sent on the thread of the send queue,
+     * so this never blocks.
      *
      * @param message The message to send.
-     * @return If the message was sent or not.
+     * @return The future telling if the message was sent or not.
      */
-    public boolean sendMessageToAllUsers(final String message) {
-        tcpNetworkService.sendMessageToAll(message);
-        return messageSender.send(message);
+    public SendFuture sendMessageToUser(final String message, final User user) {
+        if (!privateChatEnabled) {
+            return SendFuture.completed(false);
+        }
+
+        final String stampedMessage = stampForUser(message, user);
+        final TransportSelector.Transport transport = choosePrivateTransport(stampedMessage, user);
+
+        if (transport == TransportSelector.Transport.TCP) {
+            return tcpNetworkService.sendMessageToUser(stampedMessage, user);
+        }
+
+        if (transport == TransportSelector.Transport.BOTH) {
+            tcpNetworkService.sendMessageToUser(stampedMessage, user);
+        }
+
+        try {
+            return udpSender.send(stampedMessage, peerAddressCache.getPrivateChatAddress(user), protocolNegotiator.getFormatFor(user));
+        } catch (final UnknownHostException e) {
+            LOG.warning("Could not send message to " + user.getNick() + ": " + e.getMessage());
+            return SendFuture.completed(false);
+        }
     }
 
     /**
-     * Send a message to a single user.
+     * Sends the message over tcp to every user, or only to the users where multicast is not reliable enough
+     * if the transport selector is enabled. Messages that are not stamped are always sent to every user,
+     * as users with a tcp connection ignore them over multicast.
      *
      * @param message The message to send.
-     * @return If the message was sent or not.
      */
-    public boolean sendMessageToUser(final String message, final User user) {
-        if (privateChatEnabled) {
-            tcpNetworkService.sendMessageToUser(message, user);
-            return udpSender.send(message, user.getIpAddress(), user.getPrivateChatPort());
-        } else {
-            return false;
+    private void sendOverTcpToAll(final String message) {
+        if (transportSelector == null || !MessageSequencer.isStamped(message)) {
+            tcpNetworkService.sendMessageToAll(message);
+            return;
         }
+
+        int tcpCopies = 0;
+
+        for (final User user : tcpNetworkService.getConnectedUsers()) {
+            if (transportSelector.needsTcpCopy(user)) {
+                tcpNetworkService.sendMessageToUser(message, user);
+                tcpCopies++;
+            }
+        }
+
+        transportSelector.messageSent(tcpCopies);
+    }
+
+    /**
+     * Chooses the paths to send a private message on. Messages that are not stamped are always sent
+     * over both tcp and udp, like before.
+     *
+     * @param message The message to send.
+     * @param user    The user to send the message to.
+     * @return The paths to send the message on.
+     */
+    private TransportSelector.Transport choosePrivateTransport(final String message, final User user) {
+        if (transportSelector == null || !MessageSequencer.isStamped(message)) {
+            return TransportSelector.Transport.BOTH;
+        }
+
+        return transportSelector.choosePrivateTransport(user);
+    }
+
+    /**
+     * Gives the message a sequence number, so the receivers can keep the first copy to arrive over
+     * multicast or tcp, and ask for it again if it's lost. Cached messages are sent as they are, to avoid
+     * encoding them again, and are deduplicated the old way by the receivers.
+     *
+     * @param message The message to stamp.
+     * @return The stamped message, or the same message if it should not be stamped.
+     */
+    private String stampForAll(final String message) {
+        if (frameCache.contains(message) || !protocolNegotiator.isSupportedByAll(Constants.PROTOCOL_VERSION_SEQUENCE_NUMBERS)) {
+            return message;
+        }
+
+        final int sequence = messageSequencer.nextSequence();
+        final String stampedMessage = MessageSequencer.stamp(sequence, message);
+        reliableMulticast.messageSent(sequence, stampedMessage);
+
+        return stampedMessage;
+    }
+
+    /**
+     * Gives a private message a sequence number, so the user can keep the first copy to arrive over udp or tcp.
+     *
+     * @param message The message to stamp.
+     * @param user    The user to send the message to.
+     * @return The stamped message, or the same message if it should not be stamped.
+     */
+    private String stampForUser(final String message, final User user) {
+        if (frameCache.contains(message) || user.getProtocolVersion() < Constants.PROTOCOL_VERSION_SEQUENCE_NUMBERS) {
+            return message;
+        }
+
+        return privateMessageSequencer.stamp(message);
+    }
+
+    /**
+     * Encodes these messages once, and keeps them ready for sending. Only the exact same
+     * message instances will be sent without encoding. Replaces any previously cached messages.
+     *
+     * @param messages The messages to cache.
+     */
+    public void cacheStaticMessages(final String... messages) {
+        frameCache.replace(messages);
     }
 
     /**
@@ -233,6 +640,14 @@ public class NetworkService implements NetworkConnectionListener {
      */
     @Override
     public void networkWentDown(final boolean silent) {
+        messageBatcher.flush();
+        reliableMulticast.clear();
+
+        if (!sendQueue.awaitQueuedMessages(SEND_QUEUE_SHUTDOWN_TIMEOUT_MS)
+                || !privateSendQueue.awaitQueuedMessages(SEND_QUEUE_SHUTDOWN_TIMEOUT_MS)) {
+            LOG.warning("Stopping senders before every queued message was sent");
+        }
+
         if (privateChatEnabled) {
             udpSender.stopSender();
             udpReceiver.stopReceiver();
@@ -255,14 +670,74 @@ public class NetworkService implements NetworkConnectionListener {
      */
     @Override
     public void networkCameUp(final boolean silent) {
+        peerAddressCache.lookupLocalHostName();
+
         if (privateChatEnabled) {
             udpSender.startSender();
             udpReceiver.startReceiver();
         }
 
+        if (multicastInterfaces != null) {
+            multicastInterfaces.setNetworkInterfaces(connectionWorker.getUsableNetworkInterfaces());
+        }
+
         final NetworkInterface currentNetworkInterface = connectionWorker.getCurrentNetworkInterface();
         messageSender.startSender(currentNetworkInterface);
         messageReceiver.startReceiver(currentNetworkInterface);
         tcpNetworkService.startService();
     }
+
+    /**
+     * Moves the multicast sender and receiver over to the new network interface without closing them, so the chat
+     * is joined on the new network interface before it's left on the old one. The tcp connections that are bound
+     * to an address that is still there are kept, and the rest are connected again. The private chat and the
+     * tcp server listen on every network interface, so they are left alone.
+     * <p>
+     * {@inheritDoc}
+     */
+    @Override
+    public void networkHandedOver(final NetworkInterface oldNetworkInterface, final NetworkInterface newNetworkInterface) {
+        messageBatcher.flush();
+        peerAddressCache.lookupLocalHostName();
+
+        messageReceiver.changeNetworkInterface(newNetworkInterface);
+        messageSender.changeNetworkInterface(newNetworkInterface);
+
+        final int migratedConnections = tcpNetworkService.migrateConnections(
+                getHostAddresses(connectionWorker.getUsableNetworkInterfaces()));
+
+        LOG.fine("Handed over from " + oldNetworkInterface.getName() + " to " + newNetworkInterface.getName() +
+                ", moved " + migratedConnections + " tcp connections");
+    }
+
+    /**
+     * Gets the ip addresses of the network interfaces.
+     *
+     * @param networkInterfaces The network interfaces to get the ip addresses of.
+     * @return The ip addresses.
+     */
+    private static Set<String> getHostAddresses(final List<NetworkInterface> networkInterfaces) {
+        final Set<String> hostAddresses = new HashSet<>();
+
+        for (final NetworkInterface networkInterface : networkInterfaces) {
+            for (final InetAddress inetAddress : Collections.list(networkInterface.getInetAddresses())) {
+                hostAddresses.add(inetAddress.getHostAddress());
+            }
+        }
+
+        return hostAddresses;
+    }
+
+    /**
+     * Joins the chat on the new network interfaces, and leaves it on the ones that are gone.
+     * <p>
+     * {@inheritDoc}
+     */
+    @Override
+    public void usableNetworkInterfacesChanged(final List<NetworkInterface> usableNetworkInterfaces) {
+        if (multicastInterfaces != null) {
+            multicastInterfaces.setNetworkInterfaces(usableNetworkInterfaces);
+            messageReceiver.updateMemberships();
+        }
+    }
 }
@@ -29,6 +29,7 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.logging.Level;
@@ -329,6 +330,52 @@ public class NetworkUtils {
         return usableNetworkInterfaces;
     }
 
+    /**
+     * Takes a snapshot of the network interfaces, with the usable network interfaces already found.
+     * <p>
+     * <p>If the network interfaces look the same as in the previous snapshot, then the previous snapshot is
+     * returned, so anything cached for that version is still valid. Otherwise the new snapshot gets the next
+     * version.</p>
+     *
+     * @param previous The previous snapshot, or <code>null</code> if this is the first.
+     * @return The new snapshot, or the previous snapshot if nothing has changed.
+     */
+    public NetworkInterfaceSnapshot takeSnapshot(@Nullable final NetworkInterfaceSnapshot previous) {
+        final List<NetworkInterface> networkInterfaces = new ArrayList<>();
+        final Enumeration<NetworkInterface> allNetworkInterfaces = getNetworkInterfaces();
+
+        if (allNetworkInterfaces != null) {
+            networkInterfaces.addAll(Collections.list(allNetworkInterfaces));
+        }
+
+        int fingerprint;
+
+        try {
+            fingerprint = NetworkInterfaceSnapshot.createFingerprint(networkInterfaces);
+        } catch (final SocketException e) {
+            // An interface disappeared while reading it. Make sure the snapshot counts as new.
+            LOG.log(Level.FINE, e.toString());
+            fingerprint = previous == null ? 0 : previous.getFingerprint() + 1;
+        }
+
+        if (previous != null && previous.getFingerprint() == fingerprint) {
+            return previous;
+        }
+
+        final List<NetworkInterface> usableNetworkInterfaces = new ArrayList<>();
+
+        for (final NetworkInterface netif : networkInterfaces) {
+            if (isUsable(netif)) {
+                usableNetworkInterfaces.add(netif);
+            }
+        }
+
+        final long version = previous == null ? 1 : previous.getVersion() + 1;
+        LOG.log(Level.FINE, "Network interfaces changed, now at version " + version);
+
+        return new NetworkInterfaceSnapshot(version, fingerprint, networkInterfaces, usableNetworkInterfaces);
+    }
+
     /**
      * Gets the name of the localhost.
      *
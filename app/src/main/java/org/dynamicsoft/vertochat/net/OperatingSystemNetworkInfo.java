@@ -64,6 +64,17 @@ public class OperatingSystemNetworkInfo {
      **/
     private final User me;
 
+    /**
+     * The version of the snapshot the cached network interface was found for.
+     */
+    private long cachedVersion;
+
+    /**
+     * The network interface found for the cached version.
+     */
+    @Nullable
+    private NetworkInterface cachedNetworkInterface;
+
     /**
      * Default constructor.
      *
@@ -103,6 +114,30 @@ public class OperatingSystemNetworkInfo {
         return networkInterface;
     }
 
+    /**
+     * Finds the network interface the operating system has chosen for sending and receiving multicast messages,
+     * like {@link #getOperatingSystemNetworkInterface()}, but only once for each version of the network interfaces.
+     * <p>
+     * <p>The operating system will choose the same network interface as long as the network interfaces have not
+     * changed, so the result is reused until the snapshot gets a new version.</p>
+     *
+     * @param snapshot The current snapshot of the network interfaces.
+     * @return The network interface from the snapshot, or <code>null</code>.
+     */
+    @Nullable
+    public synchronized NetworkInterface getOperatingSystemNetworkInterface(final NetworkInterfaceSnapshot snapshot) {
+        Validate.notNull(snapshot, "Network interface snapshot can not be null");
+
+        if (snapshot.getVersion() != cachedVersion) {
+            cachedNetworkInterface = snapshot.getUpdatedNetworkInterface(getOperatingSystemNetworkInterface());
+            cachedVersion = snapshot.getVersion();
+        } else {
+            LOG.finer("Using cached network interface used by operating system: " + cachedNetworkInterface);
+        }
+
+        return cachedNetworkInterface;
+    }
+
     /**
      * Connects the sender and receiver to the network,
      * and registers the message listener.
@@ -0,0 +1,214 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+
+import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the payload of chat messages, for {@link Constants#PROTOCOL_VERSION_COMPRESSED}.
+ * <p>
+ * <p>Chat messages are too short for normal compression to help, so both sides use deflate with
+ * the same preset {@link #DICTIONARY} of words and protocol tokens that are common in the chat.
+ * A compressed payload is written as a varint with the number of bytes before compression,
+ * followed by the raw deflate data. Payloads are only compressed when that makes them smaller.</p>
+ * <p>
+ * <p>The dictionary is part of the protocol, and can never change without a new protocol version.</p>
+ * <p>
+ * <p>Buffers and the deflater are reused, so an instance must only be used by one thread at a time.</p>
+ *
+ * @author Christian Ihle
+ */
+public class PayloadCompressor {
+
+    /**
+     * The largest number of bytes a compressed payload may have when decompressed.
+     */
+    public static final int MAX_PAYLOAD_SIZE = 16 * Constants.NETWORK_PACKET_SIZE;
+
+    /**
+     * The preset dictionary. Deflate finds matches closer to the end of the dictionary
+     * using fewer bits, so the most common strings are last.
+     */
+    private static final byte[] DICTIONARY = createDictionary(
+            "because something anyone thanks what about really think going would should could there where " +
+            "everyone tomorrow today tonight morning lunch coffee meeting please sorry maybe something else " +
+            "takk hei hva ikke det er jeg du vi har kan skal med som på til og " +
+            "http://www. https://www. .com .org .no .html :-) :-( ;-) :p :D lol hehe haha ok okay yes no " +
+            "I'm you're it's don't can't the and that have for not with this you but was are " +
+            "[-16777216][-65536][-16776961][-16744448][-8388608][-12566464][-16777088]" +
+            "[-16777216]Hello [-16777216]Hi [-16777216]");
+
+    private final Deflater deflater;
+    private final Inflater inflater;
+
+    private byte[] payloadBuffer;
+    private byte[] compressedBuffer;
+    private byte[] inputBuffer;
+    private ByteBuffer payload;
+
+    /**
+     * Constructor.
+     */
+    public PayloadCompressor() {
+        deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        inflater = new Inflater(true);
+        payloadBuffer = new byte[Constants.NETWORK_PACKET_SIZE];
+        compressedBuffer = new byte[Constants.NETWORK_PACKET_SIZE];
+        inputBuffer = new byte[Constants.NETWORK_PACKET_SIZE];
+        payload = ByteBuffer.wrap(payloadBuffer);
+    }
+
+    /**
+     * Checks if the payload of messages of this type can be compressed.
+     *
+     * @param type The type of message.
+     * @return If the type has a payload worth compressing.
+     */
+    public static boolean canCompress(final MessageType type) {
+        return type == MessageType.MSG || type == MessageType.PRIVMSG
+                || type == MessageType.AWAY || type == MessageType.TOPIC;
+    }
+
+    /**
+     * Compresses part of the text. The result is found using {@link #getCompressed()}.
+     *
+     * @param text  The text with the payload.
+     * @param start The first character of the payload, inclusive.
+     * @param end   The last character of the payload, exclusive.
+     * @return The number of bytes in the compressed payload, or <code>-1</code> if compressing
+     *         does not make the payload smaller than as UTF-8.
+     */
+    public int compress(final String text, final int start, final int end) {
+        final int payloadLength = MessageEncoder.getEncodedLength(text, start, end);
+
+        if (payloadLength == 0) {
+            return -1;
+        }
+
+        if (payloadBuffer.length < payloadLength) {
+            payloadBuffer = new byte[payloadLength];
+            payload = ByteBuffer.wrap(payloadBuffer);
+        }
+
+        MessageEncoder.encodeUTF8(text, start, end, payloadBuffer, 0);
+
+        if (compressedBuffer.length < payloadLength) {
+            compressedBuffer = new byte[payloadLength];
+        }
+
+        final int dataPosition = BinaryMessageFormat.writeVarint(payloadLength, compressedBuffer, 0);
+
+        if (dataPosition >= payloadLength) {
+            return -1;
+        }
+
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(payloadBuffer, 0, payloadLength);
+        deflater.finish();
+
+        // Only room for a result smaller than the payload, so other results are never finished
+        final int compressedLength = deflater.deflate(compressedBuffer, dataPosition, payloadLength - dataPosition - 1);
+
+        if (!deflater.finished()) {
+            return -1;
+        }
+
+        return dataPosition + compressedLength;
+    }
+
+    /**
+     * Gets the bytes from the last call to {@link #compress(String, int, int)}. The array may be larger
+     * than the compressed payload, and must not be modified.
+     *
+     * @return The compressed payload.
+     */
+    public byte[] getCompressed() {
+        return compressedBuffer;
+    }
+
+    /**
+     * Decompresses a payload.
+     *
+     * @param frame         The buffer with the compressed deflate data, at the current position.
+     *                      The position is moved past the data.
+     * @param length        The number of bytes of deflate data.
+     * @param payloadLength The number of bytes in the payload after decompressing.
+     * @return A buffer with the UTF-8 bytes of the payload, only valid until the next call.
+     * @throws ProtocolException If the data is not a valid compressed payload.
+     */
+    public ByteBuffer decompress(final ByteBuffer frame, final int length, final int payloadLength)
+            throws ProtocolException {
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_SIZE) {
+            throw new ProtocolException("Invalid payload length: " + payloadLength);
+        }
+
+        if (length < 0 || length > frame.remaining()) {
+            throw new ProtocolException("Invalid length: " + length);
+        }
+
+        if (inputBuffer.length < length) {
+            inputBuffer = new byte[length];
+        }
+
+        if (payloadBuffer.length < payloadLength) {
+            payloadBuffer = new byte[payloadLength];
+            payload = ByteBuffer.wrap(payloadBuffer);
+        }
+
+        frame.get(inputBuffer, 0, length);
+
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(inputBuffer, 0, length);
+
+        try {
+            final int inflated = inflater.inflate(payloadBuffer, 0, payloadLength);
+
+            if (inflated != payloadLength || !inflater.finished()) {
+                throw new ProtocolException("Payload does not match length: " + payloadLength);
+            }
+        } catch (final DataFormatException e) {
+            throw new ProtocolException("Invalid compressed payload: " + e.getMessage());
+        }
+
+        payload.clear();
+        payload.limit(payloadLength);
+
+        return payload;
+    }
+
+    private static byte[] createDictionary(final String words) {
+        try {
+            return words.getBytes(Constants.MESSAGE_CHARSET);
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
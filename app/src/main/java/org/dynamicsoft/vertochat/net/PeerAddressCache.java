@@ -0,0 +1,369 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.event.UserListListener;
+import org.dynamicsoft.vertochat.misc.User;
+import org.dynamicsoft.vertochat.util.Logger;
+import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the network addresses of the other users ready for use, so sending a message or connecting
+ * to a user does not have to create and resolve the address every time.
+ * <p>
+ * <p>Addresses are cached by user code, and are created again if the ip address or ports of the user
+ * have changed. Ip addresses of received packets are cached by {@link InetAddress}, so every packet
+ * from the same user gets the same string.</p>
+ * <p>
+ * <p>Users only ever have ip addresses as text, so no lookups are made on the network when creating
+ * addresses. The only lookup is the host name of this computer, which is done on its own thread.</p>
+ * <p>
+ * <p>Users that have not sent their client info yet have no tcp chat port. Connecting to them
+ * can wait for it with {@link #awaitTcpChatPort(User)}, without parking a thread.</p>
+ *
+ * @author Christian Ihle
+ */
+public class PeerAddressCache implements UserListListener {
+
+    private static final Logger LOG = Logger.getLogger(PeerAddressCache.class);
+
+    /**
+     * The max number of ip addresses to keep. All are removed when the limit is reached,
+     * as only the active users will be added again.
+     */
+    static final int MAX_IP_ADDRESSES = 256;
+
+    private final ConcurrentMap<Integer, PeerAddress> peerAddresses;
+    private final ConcurrentMap<InetAddress, String> ipAddresses;
+
+    /**
+     * The users someone is waiting for a tcp chat port from. Guarded by itself.
+     */
+    private final Map<User, ResultFuture<User>> tcpChatPortWaiters;
+
+    @Nullable
+    private volatile String localHostName;
+    private volatile boolean localHostNameRequested;
+
+    /**
+     * Constructor.
+     */
+    public PeerAddressCache() {
+        peerAddresses = new ConcurrentHashMap<>();
+        ipAddresses = new ConcurrentHashMap<>();
+        tcpChatPortWaiters = new HashMap<>();
+    }
+
+    /**
+     * Gets the ip address as text, using the same string for every call with the same address.
+     *
+     * @param address The address to get the ip address from.
+     * @return The ip address.
+     */
+    public String getIpAddress(final InetAddress address) {
+        Validate.notNull(address, "Address can not be null");
+
+        final String ipAddress = ipAddresses.get(address);
+
+        if (ipAddress != null) {
+            return ipAddress;
+        }
+
+        if (ipAddresses.size() >= MAX_IP_ADDRESSES) {
+            ipAddresses.clear();
+        }
+
+        final String newIpAddress = address.getHostAddress().intern();
+        final String existingIpAddress = ipAddresses.putIfAbsent(address, newIpAddress);
+
+        return existingIpAddress != null ? existingIpAddress : newIpAddress;
+    }
+
+    /**
+     * Gets the address of the user.
+     *
+     * @param user The user to get the address of.
+     * @return The address.
+     * @throws UnknownHostException If the ip address of the user is not valid.
+     */
+    public InetAddress getAddress(final User user) throws UnknownHostException {
+        return getPeerAddress(user).address;
+    }
+
+    /**
+     * Gets the address to send private messages to the user.
+     *
+     * @param user The user to get the address of.
+     * @return The address, with the private chat port of the user.
+     * @throws UnknownHostException If the ip address of the user is not valid.
+     */
+    public InetSocketAddress getPrivateChatAddress(final User user) throws UnknownHostException {
+        final PeerAddress peerAddress = getPeerAddress(user);
+
+        if (peerAddress.privateChatAddress.getPort() != user.getPrivateChatPort()) {
+            return update(user).privateChatAddress;
+        }
+
+        return peerAddress.privateChatAddress;
+    }
+
+    /**
+     * Gets the address to connect to the user with tcp.
+     *
+     * @param user The user to get the address of.
+     * @return The address, with the tcp chat port of the user.
+     * @throws UnknownHostException If the ip address of the user is not valid.
+     */
+    public InetSocketAddress getTcpChatAddress(final User user) throws UnknownHostException {
+        final PeerAddress peerAddress = getPeerAddress(user);
+
+        if (peerAddress.tcpChatAddress.getPort() != user.getTcpChatPort()) {
+            return update(user).tcpChatAddress;
+        }
+
+        return peerAddress.tcpChatAddress;
+    }
+
+    /**
+     * Creates the addresses of the user again. Used when the user has changed ip address.
+     *
+     * @param user The user to update the addresses of.
+     */
+    public void refresh(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        try {
+            update(user);
+        } catch (final UnknownHostException e) {
+            LOG.warning("Invalid ip address of user=%s: %s", user.getNick(), e.getMessage());
+            peerAddresses.remove(user.getCode());
+        }
+    }
+
+    /**
+     * Gets a future that completes with the user when the user has a tcp chat port, which is
+     * when the client info of the user has arrived. Already completed if the user has a port.
+     * The future is only completed with <code>null</code> if the user is removed, so remember a timeout.
+     *
+     * @param user The user to wait for.
+     * @return The future.
+     */
+    public ResultFuture<User> awaitTcpChatPort(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        synchronized (tcpChatPortWaiters) {
+            if (user.getTcpChatPort() > 0) {
+                return ResultFuture.completed(user);
+            }
+
+            ResultFuture<User> future = tcpChatPortWaiters.get(user);
+
+            if (future == null || future.isDone()) {
+                future = new ResultFuture<>();
+                tcpChatPortWaiters.put(user, future);
+            }
+
+            return future;
+        }
+    }
+
+    /**
+     * Notifies anyone waiting for the tcp chat port of the user. Called when the client info of the user
+     * has arrived, after the ports are set.
+     *
+     * @param user The user with new client info.
+     */
+    public void clientInfoArrived(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        final ResultFuture<User> future;
+
+        synchronized (tcpChatPortWaiters) {
+            if (user.getTcpChatPort() <= 0) {
+                return;
+            }
+
+            future = tcpChatPortWaiters.remove(user);
+        }
+
+        if (future != null) {
+            future.complete(user);
+        }
+    }
+
+    /**
+     * Looks up the host name of this computer on a new thread, unless already done.
+     */
+    public void lookupLocalHostName() {
+        if (localHostNameRequested) {
+            return;
+        }
+
+        localHostNameRequested = true;
+
+        final Thread thread = new Thread("LocalHostNameLookup") {
+            @Override
+            public void run() {
+                localHostName = new NetworkUtils().getLocalHostName();
+                LOG.fine("Local host name: %s", localHostName);
+            }
+        };
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets the host name of this computer, if the lookup from {@link #lookupLocalHostName()} is done.
+     * Never waits for the lookup.
+     *
+     * @return The host name, or <code>null</code> if unknown.
+     */
+    @Nullable
+    public String getLocalHostName() {
+        return localHostName;
+    }
+
+    private PeerAddress getPeerAddress(final User user) throws UnknownHostException {
+        Validate.notNull(user, "User can not be null");
+
+        final PeerAddress peerAddress = peerAddresses.get(user.getCode());
+
+        if (peerAddress != null && peerAddress.ipAddress.equals(user.getIpAddress())) {
+            return peerAddress;
+        }
+
+        return update(user);
+    }
+
+    private PeerAddress update(final User user) throws UnknownHostException {
+        final String ipAddress = user.getIpAddress();
+
+        if (!isIpAddress(ipAddress)) {
+            throw new UnknownHostException("Not an ip address: " + ipAddress);
+        }
+
+        // Never a lookup on the network, since it's an ip address
+        final InetAddress address = InetAddress.getByName(ipAddress);
+        final PeerAddress peerAddress = new PeerAddress(ipAddress, address,
+                createSocketAddress(address, user.getPrivateChatPort()),
+                createSocketAddress(address, user.getTcpChatPort()));
+
+        peerAddresses.put(user.getCode(), peerAddress);
+        ipAddresses.putIfAbsent(address, ipAddress.intern());
+
+        return peerAddress;
+    }
+
+    private InetSocketAddress createSocketAddress(final InetAddress address, final int port) {
+        if (port < 0 || port > 65535) {
+            return new InetSocketAddress(address, 0);
+        }
+
+        return new InetSocketAddress(address, port);
+    }
+
+    /**
+     * Checks if the text is an ipv4 or ipv6 address, and not a host name that would need a lookup.
+     *
+     * @param text The text to check.
+     * @return If the text only has the characters used in ip addresses.
+     */
+    static boolean isIpAddress(@Nullable final String text) {
+        if (text == null || text.isEmpty()) {
+            return false;
+        }
+
+        final boolean ipv6 = text.indexOf(':') >= 0;
+        final int scope = text.indexOf('%');
+        final int end = ipv6 && scope > 0 ? scope : text.length();
+
+        for (int i = 0; i < end; i++) {
+            final char c = text.charAt(i);
+
+            if (c == '.' || c >= '0' && c <= '9') {
+                continue;
+            }
+
+            if (ipv6 && (c == ':' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F')) {
+                continue;
+            }
+
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public void userAdded(final int pos, final User user) {
+
+    }
+
+    @Override
+    public void userChanged(final int pos, final User user) {
+
+    }
+
+    @Override
+    public void userRemoved(final int pos, final User user) {
+        peerAddresses.remove(user.getCode());
+
+        final ResultFuture<User> future;
+
+        synchronized (tcpChatPortWaiters) {
+            future = tcpChatPortWaiters.remove(user);
+        }
+
+        if (future != null) {
+            future.complete(null);
+        }
+    }
+
+    /**
+     * The addresses of a user, for one ip address.
+     */
+    private static final class PeerAddress {
+
+        private final String ipAddress;
+        private final InetAddress address;
+        private final InetSocketAddress privateChatAddress;
+        private final InetSocketAddress tcpChatAddress;
+
+        private PeerAddress(final String ipAddress, final InetAddress address,
+                            final InetSocketAddress privateChatAddress, final InetSocketAddress tcpChatAddress) {
+            this.ipAddress = ipAddress;
+            this.address = address;
+            this.privateChatAddress = privateChatAddress;
+            this.tcpChatAddress = tcpChatAddress;
+        }
+    }
+}
@@ -21,7 +21,7 @@
 
 package org.dynamicsoft.vertochat.net;
 
-import org.dynamicsoft.vertochat.event.ReceiverListener;
+import org.dynamicsoft.vertochat.event.EnvelopeReceiverListener;
 import org.dynamicsoft.vertochat.misc.User;
 import org.dynamicsoft.vertochat.settings.Settings;
 import org.dynamicsoft.vertochat.util.Validate;
@@ -41,7 +41,7 @@ import java.util.logging.Logger;
  *
  * @author Christian Ihle
  */
-public class PrivateMessageParser implements ReceiverListener {
+public class PrivateMessageParser implements EnvelopeReceiverListener {
 
     /**
      * The logger.
@@ -73,24 +73,40 @@ public class PrivateMessageParser implements ReceiverListener {
      */
     @Override
     public void messageArrived(final String message, final String ipAddress) {
-        try {
-            final int exclamation = message.indexOf("!");
-            final int hash = message.indexOf("#");
-            final int colon = message.indexOf(":");
+        final MessageEnvelope envelope;
 
-            final int fromCode = Integer.parseInt(message.substring(0, exclamation));
+        try {
+            envelope = MessageEnvelope.decode(message, ipAddress);
+        }
 
-            final String type = message.substring(exclamation + 1, hash);
-            final String msg = message.substring(colon + 1, message.length());
+        // Just ignore, someone sent a badly formatted message
+        catch (final StringIndexOutOfBoundsException | NumberFormatException e) {
+            LOG.log(Level.SEVERE, "Failed to parse message. message=" + message + ", ipAddress=" + ipAddress, e);
+            return;
+        }
 
-            final int leftPara = msg.indexOf("(");
-            final int rightPara = msg.indexOf(")");
-            final int toCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
+        envelopeArrived(envelope);
+    }
 
+    /**
+     * Gives decoded private messages to this user to the message responder.
+     * <p>
+     * {@inheritDoc}
+     */
+    @Override
+    public void envelopeArrived(final MessageEnvelope envelope) {
+        try {
+            final int fromCode = envelope.getUserCode();
             final User tempme = settings.getMe();
 
-            if (fromCode != tempme.getCode() && toCode == tempme.getCode()) {
-                if (type.equals(NetworkMessageType.PRIVMSG)) {
+            if (fromCode != tempme.getCode() && envelope.getType() == MessageType.PRIVMSG) {
+                final String msg = envelope.getPayload();
+
+                final int leftPara = msg.indexOf("(");
+                final int rightPara = msg.indexOf(")");
+                final int toCode = MessageEnvelope.parseInt(msg, leftPara + 1, rightPara);
+
+                if (toCode == tempme.getCode()) {
                     final int leftBracket = msg.indexOf("[");
                     final int rightBracket = msg.indexOf("]");
                     final int rgb = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
@@ -103,12 +119,14 @@ public class PrivateMessageParser implements ReceiverListener {
 
         // Just ignore, someone sent a badly formatted message
         catch (final StringIndexOutOfBoundsException e) {
-            LOG.log(Level.SEVERE, "Failed to parse message. message=" + message + ", ipAddress=" + ipAddress, e);
+            LOG.log(Level.SEVERE, "Failed to parse message. message=" + envelope.getMessage() +
+                    ", ipAddress=" + envelope.getIpAddress(), e);
         }
 
         // Just ignore, someone sent a badly formatted message
         catch (final NumberFormatException e) {
-            LOG.log(Level.SEVERE, "Failed to parse message. message=" + message + ", ipAddress=" + ipAddress, e);
+            LOG.log(Level.SEVERE, "Failed to parse message. message=" + envelope.getMessage() +
+                    ", ipAddress=" + envelope.getIpAddress(), e);
         }
     }
 }
@@ -0,0 +1,177 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.event.UserListListener;
+import org.dynamicsoft.vertochat.misc.User;
+import org.dynamicsoft.vertochat.util.Validate;
+
+import java.util.Arrays;
+
+/**
+ * Decides which version of the network protocol to use when sending messages.
+ * <p>
+ * <p>Clients tell which protocol version they support in the client info message. Messages to a single user
+ * use the binary protocol if that user supports it. Multicast messages are received by everyone, so they only
+ * use the binary protocol when every other user in the chat supports it. Without any other users, the text
+ * protocol is used, so new clients of any version will understand the first messages sent.</p>
+ * <p>
+ * <p>The payload of chat messages is compressed in the same way, when every receiver supports
+ * {@link Constants#PROTOCOL_VERSION_COMPRESSED}.</p>
+ * <p>
+ * <p>Newer features of the protocol can be checked with {@link #isSupportedByAll(int)}.</p>
+ *
+ * @author Christian Ihle
+ */
+public class ProtocolNegotiator implements UserListListener {
+
+    /**
+     * The other users in the chat. Replaced on every change, so it can be read without locking.
+     */
+    private volatile User[] users;
+
+    public ProtocolNegotiator() {
+        users = new User[0];
+    }
+
+    /**
+     * Checks if messages to every user can be sent using the binary protocol.
+     *
+     * @return If every other user in the chat supports the binary protocol.
+     */
+    public boolean isBinarySupportedByAll() {
+        final User[] currentUsers = users;
+
+        if (currentUsers.length == 0) {
+            return false;
+        }
+
+        for (final User user : currentUsers) {
+            if (!isBinarySupportedBy(user)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if every other user in the chat supports the protocol version.
+     *
+     * @param protocolVersion The protocol version to check.
+     * @return If every other user supports the protocol version, or <code>false</code> if there are no other users.
+     */
+    public boolean isSupportedByAll(final int protocolVersion) {
+        final User[] currentUsers = users;
+
+        if (currentUsers.length == 0) {
+            return false;
+        }
+
+        for (final User user : currentUsers) {
+            if (user.getProtocolVersion() < protocolVersion) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Finds the best format for messages to every user.
+     *
+     * @return The best format every other user in the chat supports, or {@link WireFormat#TEXT}
+     *         if there are no other users.
+     */
+    public WireFormat getFormatForAll() {
+        final User[] currentUsers = users;
+
+        if (currentUsers.length == 0) {
+            return WireFormat.TEXT;
+        }
+
+        int protocolVersion = Integer.MAX_VALUE;
+
+        for (final User user : currentUsers) {
+            protocolVersion = Math.min(protocolVersion, user.getProtocolVersion());
+        }
+
+        return WireFormat.forProtocolVersion(protocolVersion);
+    }
+
+    /**
+     * Finds the best format for messages to the user.
+     *
+     * @param user The user to check.
+     * @return The best format the user supports.
+     */
+    public WireFormat getFormatFor(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        return WireFormat.forProtocolVersion(user.getProtocolVersion());
+    }
+
+    /**
+     * Checks if messages to the user can be sent using the binary protocol.
+     *
+     * @param user The user to check.
+     * @return If the user supports the binary protocol.
+     */
+    public boolean isBinarySupportedBy(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        return user.getProtocolVersion() >= Constants.PROTOCOL_VERSION_BINARY;
+    }
+
+    @Override
+    public synchronized void userAdded(final int pos, final User user) {
+        if (user.isMe()) {
+            return;
+        }
+
+        final User[] currentUsers = users;
+        final User[] newUsers = Arrays.copyOf(currentUsers, currentUsers.length + 1);
+        newUsers[currentUsers.length] = user;
+        users = newUsers;
+    }
+
+    @Override
+    public void userChanged(final int pos, final User user) {
+
+    }
+
+    @Override
+    public synchronized void userRemoved(final int pos, final User user) {
+        final User[] currentUsers = users;
+
+        for (int i = 0; i < currentUsers.length; i++) {
+            if (currentUsers[i] == user) {
+                final User[] newUsers = new User[currentUsers.length - 1];
+                System.arraycopy(currentUsers, 0, newUsers, 0, i);
+                System.arraycopy(currentUsers, i + 1, newUsers, i, newUsers.length - i);
+                users = newUsers;
+                return;
+            }
+        }
+    }
+}
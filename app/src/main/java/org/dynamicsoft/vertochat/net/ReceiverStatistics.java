@@ -0,0 +1,171 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for a datagram receiver.
+ * <p>
+ * <p>The counters are updated by the receiver thread, and can be read from any thread.</p>
+ *
+ * @author Christian Ihle
+ */
+public class ReceiverStatistics {
+
+    private final UDPDropCounter dropCounter = new UDPDropCounter();
+
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final AtomicLong oversizePackets = new AtomicLong();
+    private final AtomicLong binaryPackets = new AtomicLong();
+    private final AtomicLong batchFrames = new AtomicLong();
+    private final AtomicLong invalidPackets = new AtomicLong();
+    private final AtomicLong duplicatePackets = new AtomicLong();
+
+    private volatile int localPort;
+
+    /**
+     * Registers a batch of datagrams drained from the socket in one wakeup.
+     *
+     * @param batchSize  Number of datagrams in the batch.
+     * @param batchBytes Number of bytes in the batch.
+     */
+    public void batchReceived(final int batchSize, final long batchBytes) {
+        packets.addAndGet(batchSize);
+        bytes.addAndGet(batchBytes);
+        batches.incrementAndGet();
+
+        long largest = largestBatch.get();
+
+        while (batchSize > largest && !largestBatch.compareAndSet(largest, batchSize)) {
+            largest = largestBatch.get();
+        }
+    }
+
+    /**
+     * Registers a datagram that was larger than the receive buffer, and therefore truncated.
+     */
+    public void oversizePacketReceived() {
+        oversizePackets.incrementAndGet();
+    }
+
+    /**
+     * Registers a datagram with a frame in the binary format.
+     */
+    public void binaryPacketReceived() {
+        binaryPackets.incrementAndGet();
+    }
+
+    /**
+     * Registers a datagram with a batch frame in the binary format, with several messages.
+     */
+    public void batchFrameReceived() {
+        binaryPackets.incrementAndGet();
+        batchFrames.incrementAndGet();
+    }
+
+    /**
+     * Registers a datagram that could not be decoded, and was dropped.
+     */
+    public void invalidPacketReceived() {
+        invalidPackets.incrementAndGet();
+    }
+
+    /**
+     * Registers a copy of a datagram that already arrived on another network interface, and was dropped.
+     */
+    public void duplicatePacketReceived() {
+        duplicatePackets.incrementAndGet();
+    }
+
+    /**
+     * Sets the local port of the socket, used for looking up kernel drops.
+     *
+     * @param localPort The local port, or 0 if not bound.
+     */
+    public void setLocalPort(final int localPort) {
+        this.localPort = localPort;
+    }
+
+    public long getPackets() {
+        return packets.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getLargestBatch() {
+        return largestBatch.get();
+    }
+
+    public long getOversizePackets() {
+        return oversizePackets.get();
+    }
+
+    public long getBinaryPackets() {
+        return binaryPackets.get();
+    }
+
+    public long getBatchFrames() {
+        return batchFrames.get();
+    }
+
+    public long getInvalidPackets() {
+        return invalidPackets.get();
+    }
+
+    public long getDuplicatePackets() {
+        return duplicatePackets.get();
+    }
+
+    /**
+     * Gets the number of datagrams the kernel dropped because the socket receive buffer was full.
+     * This is looked up on every call, so it should not be used from the receive path.
+     *
+     * @return Number of dropped datagrams, or {@link UDPDropCounter#UNKNOWN}.
+     */
+    public long getKernelDrops() {
+        return dropCounter.getDrops(localPort);
+    }
+
+    @Override
+    public String toString() {
+        return "packets=" + getPackets() +
+                ", bytes=" + getBytes() +
+                ", batches=" + getBatches() +
+                ", largestBatch=" + getLargestBatch() +
+                ", oversizePackets=" + getOversizePackets() +
+                ", binaryPackets=" + getBinaryPackets() +
+                ", batchFrames=" + getBatchFrames() +
+                ", invalidPackets=" + getInvalidPackets() +
+                ", duplicatePackets=" + getDuplicatePackets() +
+                ", kernelDrops=" + getKernelDrops();
+    }
+}
@@ -0,0 +1,291 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.misc.User;
+import org.dynamicsoft.vertochat.util.Logger;
+import org.dynamicsoft.vertochat.util.Validate;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Recovers lost multicast messages in the main chat, using the sequence numbers from the {@link MessageSequencer}.
+ * <p>
+ * <p>Every multicast message this client sends is kept in a {@link RetransmitBuffer} for a while. Receivers find gaps
+ * in the sequence numbers with the {@link NackScheduler}, and send a NACK over multicast with the messages they are
+ * missing, like <code>code!NACK#nick:(senderCode)[sequence,sequence]</code>. The sender sends those messages
+ * again over multicast, and receivers that already have them drop the copies like any other duplicate.</p>
+ * <p>
+ * <p>Every client supporting {@link org.dynamicsoft.vertochat.Constants#PROTOCOL_VERSION_RELIABLE_MULTICAST}
+ * answers NACKs, while sending NACKs is optional. Older clients ignore the NACKs.</p>
+ *
+ * @author Christian Ihle
+ */
+public class ReliableMulticast implements NackScheduler.NackSender {
+
+    private static final Logger LOG = Logger.getLogger(ReliableMulticast.class);
+
+    private final User me;
+    private final boolean nackEnabled;
+    private final Transmitter transmitter;
+    private final RetransmitBuffer retransmitBuffer;
+    private final NackScheduler nackScheduler;
+
+    private final List<LossListener> lossListeners;
+
+    /**
+     * Constructor.
+     *
+     * @param me          The application user.
+     * @param nackEnabled If lost messages from other users should be asked for.
+     * @param transmitter Sends the messages of the reliability layer.
+     */
+    public ReliableMulticast(final User me, final boolean nackEnabled, final Transmitter transmitter) {
+        Validate.notNull(me, "Me can not be null");
+        Validate.notNull(transmitter, "Transmitter can not be null");
+
+        this.me = me;
+        this.nackEnabled = nackEnabled;
+        this.transmitter = transmitter;
+        this.retransmitBuffer = new RetransmitBuffer();
+        this.lossListeners = new CopyOnWriteArrayList<>();
+        this.nackScheduler = new NackScheduler(this);
+    }
+
+    ReliableMulticast(final User me, final boolean nackEnabled, final Transmitter transmitter,
+                      final ScheduledExecutorService scheduler, final Random random) {
+        Validate.notNull(me, "Me can not be null");
+        Validate.notNull(transmitter, "Transmitter can not be null");
+
+        this.me = me;
+        this.nackEnabled = nackEnabled;
+        this.transmitter = transmitter;
+        this.retransmitBuffer = new RetransmitBuffer();
+        this.lossListeners = new CopyOnWriteArrayList<>();
+        this.nackScheduler = new NackScheduler(this, scheduler, random);
+    }
+
+    /**
+     * Keeps a multicast message that was sent, to be able to send it again.
+     *
+     * @param sequence       The sequence number of the message.
+     * @param stampedMessage The message, stamped with the sequence number.
+     */
+    public void messageSent(final int sequence, final String stampedMessage) {
+        retransmitBuffer.add(sequence, stampedMessage);
+    }
+
+    /**
+     * Registers the first copy of a message from another user, to find gaps.
+     *
+     * @param senderCode The user code of the sender.
+     * @param sequence   The sequence number of the message.
+     */
+    public void messageArrived(final int senderCode, final int sequence) {
+        if (nackEnabled && senderCode != me.getCode()) {
+            nackScheduler.messageArrived(senderCode, sequence);
+        }
+    }
+
+    /**
+     * Handles a NACK from another user. Sends the messages again if the NACK is for this client,
+     * or skips asking for the same messages if the NACK is for another sender.
+     *
+     * @param envelope The NACK.
+     */
+    public void nackArrived(final MessageEnvelope envelope) {
+        Validate.notNull(envelope, "Envelope can not be null");
+
+        if (envelope.getUserCode() == me.getCode()) {
+            return;
+        }
+
+        final String payload = envelope.getPayload();
+        final int senderCode;
+        final int[] sequences;
+
+        try {
+            senderCode = parseSenderCode(payload);
+            sequences = parseSequences(payload);
+        } catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            LOG.warning("Failed to parse nack: %s", e.getMessage());
+            return;
+        }
+
+        if (senderCode == me.getCode()) {
+            notifyLoss(envelope.getUserCode(), sequences.length);
+            retransmit(sequences);
+        } else if (nackEnabled) {
+            nackScheduler.nackSeen(senderCode, sequences);
+        }
+    }
+
+    @Override
+    public void sendNack(final int senderCode, final int[] sequences) {
+        notifyLoss(senderCode, sequences.length);
+        transmitter.sendNack(me.getCode() + "!" + NetworkMessageType.NACK + "#" + me.getNick() + ":" +
+                createPayload(senderCode, sequences));
+    }
+
+    /**
+     * Registers the listener to get notified when multicast messages are lost between this client and another user.
+     *
+     * @param lossListener The listener to register.
+     */
+    public void registerLossListener(final LossListener lossListener) {
+        Validate.notNull(lossListener, "Loss listener can not be null");
+
+        lossListeners.add(lossListener);
+    }
+
+    private void notifyLoss(final int userCode, final int messages) {
+        for (final LossListener lossListener : lossListeners) {
+            lossListener.multicastLost(userCode, messages);
+        }
+    }
+
+    /**
+     * Forgets the missing messages of other users, and the messages kept for sending again.
+     */
+    public void clear() {
+        nackScheduler.clear();
+        retransmitBuffer.clear();
+    }
+
+    /**
+     * Gets the buffer of messages sent by this client, with counters for the messages sent again.
+     *
+     * @return The retransmit buffer.
+     */
+    public RetransmitBuffer getRetransmitBuffer() {
+        return retransmitBuffer;
+    }
+
+    /**
+     * Gets the scheduler of NACKs, with counters for missing and recovered messages.
+     *
+     * @return The nack scheduler.
+     */
+    public NackScheduler getNackScheduler() {
+        return nackScheduler;
+    }
+
+    private void retransmit(final int[] sequences) {
+        for (final int sequence : sequences) {
+            final String message = retransmitBuffer.getForRetransmit(sequence);
+
+            if (message != null) {
+                transmitter.retransmit(message);
+            }
+        }
+    }
+
+    static String createPayload(final int senderCode, final int[] sequences) {
+        final StringBuilder payload = new StringBuilder(16 + sequences.length * 8);
+        payload.append('(').append(senderCode).append(")[");
+
+        for (int i = 0; i < sequences.length; i++) {
+            if (i > 0) {
+                payload.append(',');
+            }
+
+            payload.append(sequences[i]);
+        }
+
+        return payload.append(']').toString();
+    }
+
+    static int parseSenderCode(final String payload) {
+        return MessageEnvelope.parseInt(payload, payload.indexOf('(') + 1, payload.indexOf(')'));
+    }
+
+    static int[] parseSequences(final String payload) {
+        final int start = payload.indexOf('[') + 1;
+        final int end = payload.indexOf(']', start);
+
+        if (start <= 0 || end < 0) {
+            throw new StringIndexOutOfBoundsException("Sequences are missing");
+        }
+
+        int count = 1;
+
+        for (int i = start; i < end; i++) {
+            if (payload.charAt(i) == ',') {
+                count++;
+            }
+        }
+
+        final int[] sequences = new int[Math.min(count, NackScheduler.MAX_SEQUENCES_PER_NACK)];
+        int position = start;
+
+        for (int i = 0; i < sequences.length; i++) {
+            int comma = payload.indexOf(',', position);
+
+            if (comma < 0 || comma > end) {
+                comma = end;
+            }
+
+            sequences[i] = MessageEnvelope.parseInt(payload, position, comma);
+            position = comma + 1;
+        }
+
+        return sequences;
+    }
+
+    /**
+     * Sends the messages of the reliability layer over multicast.
+     */
+    public interface Transmitter {
+
+        /**
+         * Sends a stamped message again to every user. Must not block.
+         *
+         * @param stampedMessage The message to send again.
+         */
+        void retransmit(String stampedMessage);
+
+        /**
+         * Sends a NACK to every user. Must not block.
+         *
+         * @param nack The NACK message.
+         */
+        void sendNack(String nack);
+    }
+
+    /**
+     * Gets notified of multicast messages lost between this client and another user.
+     */
+    public interface LossListener {
+
+        /**
+         * Multicast messages were lost, either sent by this client and asked for again by the user,
+         * or sent by the user and asked for again by this client.
+         *
+         * @param userCode The user code of the other user.
+         * @param messages The number of lost messages.
+         */
+        void multicastLost(int userCode, int messages);
+    }
+}
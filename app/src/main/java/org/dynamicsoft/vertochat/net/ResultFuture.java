@@ -0,0 +1,183 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of something that happens when a message arrives from the network, like the
+ * identification of a tcp connection. Completes with the result, or with <code>null</code>
+ * if the message never arrived.
+ * <p>
+ * <p>Nothing waits for the result unless {@link #get()} is used. Add a {@link Callback} to act on the
+ * result on the thread that completes it, and complete with <code>null</code> from a scheduled task to
+ * give up after a timeout.</p>
+ *
+ * @param <T> The type of result.
+ * @author Christian Ihle
+ */
+public class ResultFuture<T> implements Future<T> {
+
+    private final CountDownLatch done;
+
+    /**
+     * The callbacks to notify when done. Guarded by this, and <code>null</code> when done.
+     */
+    private List<Callback<T>> callbacks;
+
+    @Nullable
+    private volatile T result;
+
+    /**
+     * Constructor for a result that is not ready yet.
+     */
+    public ResultFuture() {
+        done = new CountDownLatch(1);
+        callbacks = new ArrayList<>(1);
+    }
+
+    /**
+     * Creates a future that is already done.
+     *
+     * @param result The result.
+     * @param <T>    The type of result.
+     * @return The future.
+     */
+    public static <T> ResultFuture<T> completed(@Nullable final T result) {
+        final ResultFuture<T> future = new ResultFuture<>();
+        future.complete(result);
+
+        return future;
+    }
+
+    /**
+     * Sets the result, and notifies the callbacks. Only the first call has any effect.
+     *
+     * @param theResult The result, or <code>null</code> if there is none.
+     * @return If this call completed the future.
+     */
+    public boolean complete(@Nullable final T theResult) {
+        final List<Callback<T>> callbacksToNotify;
+
+        synchronized (this) {
+            if (callbacks == null) {
+                return false;
+            }
+
+            result = theResult;
+            callbacksToNotify = callbacks;
+            callbacks = null;
+            done.countDown();
+        }
+
+        for (final Callback<T> callback : callbacksToNotify) {
+            callback.resultArrived(this);
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds a callback to notify when the result is ready. If already done, the callback is notified right away
+     * on this thread. Otherwise it's notified on the thread that completes the future, so callbacks must be quick.
+     *
+     * @param callback The callback to notify.
+     */
+    public void addCallback(final Callback<T> callback) {
+        Validate.notNull(callback, "Callback can not be null");
+
+        synchronized (this) {
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+
+        callback.resultArrived(this);
+    }
+
+    /**
+     * Gets the result. Only valid when {@link #isDone()}.
+     *
+     * @return The result, or <code>null</code> if there is none.
+     */
+    @Nullable
+    public T getResult() {
+        return result;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    @Nullable
+    public T get() throws InterruptedException {
+        done.await();
+
+        return result;
+    }
+
+    @Override
+    @Nullable
+    public T get(final long timeout, final TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("No result within " + timeout + " " + unit);
+        }
+
+        return result;
+    }
+
+    /**
+     * Notified when the result of a {@link ResultFuture} is ready.
+     *
+     * @param <T> The type of result.
+     */
+    public interface Callback<T> {
+
+        /**
+         * Called when the result is ready.
+         *
+         * @param future The completed future.
+         */
+        void resultArrived(ResultFuture<T> future);
+    }
+}
@@ -0,0 +1,149 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the latest {@link #CAPACITY} multicast messages sent by this client, so they can be sent again
+ * when a receiver reports them as lost with a NACK.
+ * <p>
+ * <p>The messages are stored in a ring, at the index of their sequence number, so older messages are
+ * replaced without any allocation. Several receivers often lose the same message, so a message is only sent again
+ * once every {@link #RETRANSMIT_HOLDOFF_MS}, and one retransmit serves every receiver that asked for it.</p>
+ *
+ * @author Christian Ihle
+ */
+public class RetransmitBuffer {
+
+    /**
+     * The number of messages to keep. Must be a power of two.
+     */
+    static final int CAPACITY = 256;
+
+    /**
+     * The time after sending a message again before it can be sent again.
+     */
+    static final long RETRANSMIT_HOLDOFF_MS = 100;
+
+    private static final int MASK = CAPACITY - 1;
+
+    private final int[] sequences;
+    private final String[] messages;
+    private final long[] retransmittedAt;
+
+    private long retransmits;
+    private long heldOff;
+    private long expired;
+
+    public RetransmitBuffer() {
+        sequences = new int[CAPACITY];
+        messages = new String[CAPACITY];
+        retransmittedAt = new long[CAPACITY];
+    }
+
+    /**
+     * Keeps a message that was sent, replacing the oldest message in the buffer.
+     *
+     * @param sequence The sequence number of the message.
+     * @param message  The stamped message.
+     */
+    public synchronized void add(final int sequence, final String message) {
+        Validate.notNull(message, "Message can not be null");
+
+        final int index = sequence & MASK;
+        sequences[index] = sequence;
+        messages[index] = message;
+        retransmittedAt[index] = Long.MIN_VALUE;
+    }
+
+    /**
+     * Gets a message to send again.
+     *
+     * @param sequence The sequence number of the message.
+     * @return The stamped message, or <code>null</code> if it has been replaced by a newer message,
+     *         or was sent again less than {@link #RETRANSMIT_HOLDOFF_MS} ago.
+     */
+    @Nullable
+    public String getForRetransmit(final int sequence) {
+        return getForRetransmit(sequence, TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+    }
+
+    @Nullable
+    synchronized String getForRetransmit(final int sequence, final long nowMs) {
+        final int index = sequence & MASK;
+
+        if (messages[index] == null || sequences[index] != sequence) {
+            expired++;
+            return null;
+        }
+
+        if (retransmittedAt[index] != Long.MIN_VALUE && nowMs - retransmittedAt[index] < RETRANSMIT_HOLDOFF_MS) {
+            heldOff++;
+            return null;
+        }
+
+        retransmittedAt[index] = nowMs;
+        retransmits++;
+
+        return messages[index];
+    }
+
+    /**
+     * Removes every message.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            messages[i] = null;
+        }
+    }
+
+    /**
+     * Gets the number of messages sent again.
+     *
+     * @return The number of retransmits.
+     */
+    public synchronized long getRetransmits() {
+        return retransmits;
+    }
+
+    /**
+     * Gets the number of requests for a message that was sent again very recently.
+     *
+     * @return The number of requests ignored because of the hold off.
+     */
+    public synchronized long getHeldOff() {
+        return heldOff;
+    }
+
+    /**
+     * Gets the number of requests for a message that was no longer in the buffer.
+     *
+     * @return The number of requests that came too late.
+     */
+    public synchronized long getExpired() {
+        return expired;
+    }
+}
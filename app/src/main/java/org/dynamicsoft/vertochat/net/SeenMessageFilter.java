@@ -0,0 +1,294 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.util.Validate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which messages have arrived from each sender, using the sequence numbers from the
+ * {@link MessageSequencer}, so only the first copy of a message sent over both udp and tcp is kept.
+ * <p>
+ * <p>Each sender has a sliding window of the last {@link #WINDOW_SIZE} sequence numbers, stored in fixed arrays
+ * indexed by the sequence number, so checking a message never allocates. Messages older than the window are
+ * dropped, as their first copy has arrived long ago or never will. Only the {@link #MAX_SENDERS} most recent
+ * senders are remembered. The user code is new every time a client starts, so a sender that restarts
+ * gets a new window.</p>
+ * <p>
+ * <p>Keeps counters of which path delivered each message first, and how far ahead it was, to see how
+ * much faster and more reliable one path is than the other. A message that arrived over tcp, but never
+ * over udp, was most likely lost on udp, so {@link #getUdpLossRate()} shows how lossy multicast is.</p>
+ *
+ * @author Christian Ihle
+ */
+public class SeenMessageFilter {
+
+    /**
+     * The number of sequence numbers remembered for each sender. Must be a power of two.
+     */
+    static final int WINDOW_SIZE = 256;
+
+    /**
+     * The number of senders to remember.
+     */
+    static final int MAX_SENDERS = 256;
+
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+    private static final byte EMPTY = 0;
+    private static final byte BOTH = (byte) (Path.UDP.flag | Path.TCP.flag);
+
+    private final Map<Integer, Window> windows;
+
+    private final long[] firstArrivals;
+    private final long[] duplicates;
+    private final long[] singleCopies;
+    private final long[] leadTimeTotalNanos;
+    private final long[] maxLeadTimeNanos;
+    private final long[] bothArrivals;
+    private long tooOld;
+
+    public SeenMessageFilter() {
+        windows = new LinkedHashMap<Integer, Window>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, Window> eldest) {
+                return size() > MAX_SENDERS;
+            }
+        };
+
+        final int paths = Path.values().length;
+        firstArrivals = new long[paths];
+        duplicates = new long[paths];
+        singleCopies = new long[paths];
+        leadTimeTotalNanos = new long[paths];
+        maxLeadTimeNanos = new long[paths];
+        bothArrivals = new long[paths];
+    }
+
+    /**
+     * Checks if this is the first copy of the message to arrive, and remembers it.
+     *
+     * @param userCode The user code of the sender.
+     * @param sequence The sequence number of the message.
+     * @param path     The path the message arrived on.
+     * @return If this is the first copy, and the message should be used.
+     */
+    public boolean firstArrival(final int userCode, final int sequence, final Path path) {
+        return firstArrival(userCode, sequence, path, System.nanoTime());
+    }
+
+    synchronized boolean firstArrival(final int userCode, final int sequence, final Path path, final long nowNanos) {
+        Validate.notNull(path, "Path can not be null");
+
+        Window window = windows.get(userCode);
+
+        if (window == null) {
+            window = new Window(sequence);
+            windows.put(userCode, window);
+        }
+
+        if (window.highest - sequence >= WINDOW_SIZE) {
+            tooOld++;
+            return false;
+        }
+
+        final int index = sequence & WINDOW_MASK;
+        final byte state = window.states[index];
+
+        if (state != EMPTY && window.sequences[index] == sequence) {
+            duplicateArrived(window, index, path, nowNanos);
+            return false;
+        }
+
+        if (state != EMPTY && state != BOTH) {
+            singleCopies[Path.fromFlag(state).ordinal()]++;
+        }
+
+        window.sequences[index] = sequence;
+        window.arrivedAt[index] = nowNanos;
+        window.states[index] = path.flag;
+
+        if (sequence - window.highest > 0) {
+            window.highest = sequence;
+        }
+
+        firstArrivals[path.ordinal()]++;
+
+        return true;
+    }
+
+    private void duplicateArrived(final Window window, final int index, final Path path, final long nowNanos) {
+        final byte state = window.states[index];
+        duplicates[path.ordinal()]++;
+
+        // Retransmits over the same path only count as duplicates
+        if ((state & path.flag) != 0) {
+            return;
+        }
+
+        final int winner = Path.fromFlag(state).ordinal();
+        final long leadTime = nowNanos - window.arrivedAt[index];
+
+        bothArrivals[winner]++;
+        leadTimeTotalNanos[winner] += leadTime;
+        maxLeadTimeNanos[winner] = Math.max(maxLeadTimeNanos[winner], leadTime);
+        window.states[index] = BOTH;
+    }
+
+    /**
+     * Gets the number of messages where the first copy arrived on the path.
+     *
+     * @param path The path to check.
+     * @return The number of messages the path delivered first.
+     */
+    public synchronized long getFirstArrivals(final Path path) {
+        return firstArrivals[path.ordinal()];
+    }
+
+    /**
+     * Gets the number of copies that arrived on the path after the message had already arrived, and were dropped.
+     *
+     * @param path The path to check.
+     * @return The number of dropped copies.
+     */
+    public synchronized long getDuplicates(final Path path) {
+        return duplicates[path.ordinal()];
+    }
+
+    /**
+     * Gets the number of messages that arrived on both paths, where the path was first.
+     *
+     * @param path The path to check.
+     * @return The number of messages the path won.
+     */
+    public synchronized long getWins(final Path path) {
+        return bothArrivals[path.ordinal()];
+    }
+
+    /**
+     * Gets the number of messages that only arrived on the path, counted when they leave the window.
+     *
+     * @param path The path to check.
+     * @return The number of messages that never arrived on the other path.
+     */
+    public synchronized long getSingleCopies(final Path path) {
+        return singleCopies[path.ordinal()];
+    }
+
+    /**
+     * Gets how far ahead the path was on average, for the messages it won.
+     *
+     * @param path The path to check.
+     * @return The average lead time in milliseconds, or <code>0</code> if the path has not won yet.
+     */
+    public synchronized double getAverageLeadTimeMs(final Path path) {
+        final long wins = bothArrivals[path.ordinal()];
+
+        if (wins == 0) {
+            return 0;
+        }
+
+        return leadTimeTotalNanos[path.ordinal()] / (double) wins / 1_000_000;
+    }
+
+    /**
+     * Gets how far ahead the path was at most, for the messages it won.
+     *
+     * @param path The path to check.
+     * @return The max lead time in milliseconds.
+     */
+    public synchronized double getMaxLeadTimeMs(final Path path) {
+        return maxLeadTimeNanos[path.ordinal()] / 1_000_000.0;
+    }
+
+    /**
+     * Estimates how many of the messages sent over both paths were lost on udp, from the messages
+     * that left the window after arriving over tcp only.
+     *
+     * @return The share of messages lost on udp, between <code>0</code> and <code>1</code>.
+     */
+    public synchronized double getUdpLossRate() {
+        final long lost = singleCopies[Path.TCP.ordinal()];
+        final long total = lost + bothArrivals[Path.UDP.ordinal()] + bothArrivals[Path.TCP.ordinal()];
+
+        if (total == 0) {
+            return 0;
+        }
+
+        return lost / (double) total;
+    }
+
+    /**
+     * Gets the number of messages dropped because they were older than the window.
+     *
+     * @return The number of messages that were too old.
+     */
+    public synchronized long getTooOld() {
+        return tooOld;
+    }
+
+    /**
+     * The paths a message can arrive on.
+     */
+    public enum Path {
+
+        /**
+         * Multicast, or udp for private messages.
+         */
+        UDP(1),
+
+        /**
+         * The tcp connection to the sender.
+         */
+        TCP(2);
+
+        private final byte flag;
+
+        Path(final int flag) {
+            this.flag = (byte) flag;
+        }
+
+        private static Path fromFlag(final byte flag) {
+            return flag == UDP.flag ? UDP : TCP;
+        }
+    }
+
+    /**
+     * The last {@link #WINDOW_SIZE} messages from a sender, each at the index of the sequence number
+     * masked by the window size.
+     */
+    private static final class Window {
+
+        private final int[] sequences;
+        private final long[] arrivedAt;
+        private final byte[] states;
+        private int highest;
+
+        private Window(final int firstSequence) {
+            sequences = new int[WINDOW_SIZE];
+            arrivedAt = new long[WINDOW_SIZE];
+            states = new byte[WINDOW_SIZE];
+            highest = firstSequence;
+        }
+    }
+}
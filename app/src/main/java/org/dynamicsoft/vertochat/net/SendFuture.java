@@ -0,0 +1,246 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.util.Validate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a message given to the {@link SendQueue}. Completes when the message has been
+ * sent, or when sending failed.
+ * <p>
+ * <p>Callers that need to know if the message was sent can wait with {@link #awaitSent()}, or add a
+ * {@link Callback} to avoid waiting at all. Sending can not be cancelled.</p>
+ *
+ * @author Christian Ihle
+ */
+public class SendFuture implements Future<Boolean> {
+
+    private final CountDownLatch done;
+
+    /**
+     * The callbacks to notify when done. Guarded by this, and <code>null</code> when done.
+     */
+    private List<Callback> callbacks;
+
+    private volatile int packets;
+    private volatile boolean superseded;
+    private volatile boolean rejected;
+
+    /**
+     * Constructor for a message that is not sent yet.
+     */
+    public SendFuture() {
+        done = new CountDownLatch(1);
+        callbacks = new ArrayList<>(1);
+    }
+
+    /**
+     * Creates a future that is already done.
+     *
+     * @param sent If the message was sent.
+     * @return The future.
+     */
+    public static SendFuture completed(final boolean sent) {
+        final SendFuture future = new SendFuture();
+        future.complete(sent ? 1 : 0);
+
+        return future;
+    }
+
+    /**
+     * Marks the message as done, and notifies the callbacks. Only the first call has any effect.
+     *
+     * @param sentPackets The number of packets used to send the message, or 0 if sending failed.
+     */
+    public void complete(final int sentPackets) {
+        complete(sentPackets, false, false);
+    }
+
+    /**
+     * Marks the message as dropped because a newer message about the same status replaced it before it was sent.
+     * The message is not sent, but that's not a failure. Only the first completion has any effect.
+     */
+    public void completeSuperseded() {
+        complete(0, true, false);
+    }
+
+    /**
+     * Marks the message as dropped because there was no room for it in the queue. The message is not sent,
+     * but nothing was tried on the network either. Only the first completion has any effect.
+     */
+    public void completeRejected() {
+        complete(0, false, true);
+    }
+
+    private void complete(final int sentPackets, final boolean wasSuperseded, final boolean wasRejected) {
+        final List<Callback> callbacksToNotify;
+
+        synchronized (this) {
+            if (callbacks == null) {
+                return;
+            }
+
+            packets = sentPackets;
+            superseded = wasSuperseded;
+            rejected = wasRejected;
+            callbacksToNotify = callbacks;
+            callbacks = null;
+            done.countDown();
+        }
+
+        for (final Callback callback : callbacksToNotify) {
+            callback.sendCompleted(this);
+        }
+    }
+
+    /**
+     * Adds a callback to notify when the message is done. If already done, the callback is notified right away
+     * on this thread. Otherwise it's notified on the thread that completes the future, so callbacks must be quick.
+     *
+     * @param callback The callback to notify.
+     */
+    public void addCallback(final Callback callback) {
+        Validate.notNull(callback, "Callback can not be null");
+
+        synchronized (this) {
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+
+        callback.sendCompleted(this);
+    }
+
+    /**
+     * Waits until the message is done.
+     *
+     * @return If the message was sent. False if interrupted while waiting.
+     */
+    public boolean awaitSent() {
+        try {
+            return get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Checks if the message was sent. Only valid when {@link #isDone()}.
+     *
+     * @return If the message was sent.
+     */
+    public boolean isSent() {
+        return packets > 0;
+    }
+
+    /**
+     * Checks if the message was dropped because a newer message about the same status replaced it.
+     * Only valid when {@link #isDone()}.
+     *
+     * @return If the message was superseded.
+     */
+    public boolean isSuperseded() {
+        return superseded;
+    }
+
+    /**
+     * Checks if the message was dropped because the queue was full. Only valid when {@link #isDone()}.
+     *
+     * @return If the message was rejected.
+     */
+    public boolean isRejected() {
+        return rejected;
+    }
+
+    /**
+     * Checks if sending the message was tried on the network and failed, which means something may be
+     * wrong with the network. Superseded and rejected messages are not sent, but did not fail.
+     * Only valid when {@link #isDone()}.
+     *
+     * @return If sending failed.
+     */
+    public boolean isFailed() {
+        return isDone() && packets == 0 && !superseded && !rejected;
+    }
+
+    /**
+     * Gets the number of packets used to send the message. Only valid when {@link #isDone()}.
+     *
+     * @return The number of packets, or 0 if sending failed.
+     */
+    public int getPackets() {
+        return packets;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Boolean get() throws InterruptedException {
+        done.await();
+
+        return isSent();
+    }
+
+    @Override
+    public Boolean get(final long timeout, final TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Message was not sent within " + timeout + " " + unit);
+        }
+
+        return isSent();
+    }
+
+    /**
+     * Notified when a message given to the {@link SendQueue} is done.
+     */
+    public interface Callback {
+
+        /**
+         * Called when the message was sent, or sending failed.
+         *
+         * @param future The completed future.
+         */
+        void sendCompleted(SendFuture future);
+    }
+}
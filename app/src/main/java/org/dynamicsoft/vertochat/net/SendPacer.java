@@ -0,0 +1,272 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.util.Validate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads out the multicast packets sent by the {@link MessageSender}, so bursts like pasting several lines
+ * or logging on don't overflow the queues of the access point. Wifi sends multicast at the lowest rate,
+ * so a burst that is nothing on the wire in a cable network can fill up the access point and get dropped.
+ * <p>
+ * <p>Uses a token bucket for packets and another for bytes. Each bucket fills up at its rate, and holds
+ * enough for a short burst. A packet takes one token from the packet bucket and one token per byte from
+ * the byte bucket, and the sender thread sleeps until the buckets have enough. Messages wait in the lanes of
+ * the {@link SendQueue} in the meantime, so the pacing never makes chat messages wait behind status messages.
+ * Private messages over udp have a send queue of their own, and are never held back by the pacing.</p>
+ * <p>
+ * <p>A packet sent on several network interfaces is paced once for each network interface.</p>
+ * <p>
+ * <p>Lost multicast messages are taken as a sign of congestion, and halve the rates, at most once a second.
+ * The rates slowly grow back to the configured rates while nothing is lost.</p>
+ * <p>
+ * <p>Only multicast is paced. Tcp has its own congestion control.</p>
+ *
+ * @author Christian Ihle
+ */
+public class SendPacer implements ReliableMulticast.LossListener {
+
+    /**
+     * How long a burst at the full rate the buckets can hold.
+     */
+    static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * The lowest share of the configured rates to slow down to when messages are lost.
+     */
+    static final double MIN_RATE_FACTOR = 1.0 / 8;
+
+    /**
+     * How much of the configured rates to grow back each second when nothing is lost.
+     */
+    static final double RECOVERY_PER_SECOND = 1.0 / 20;
+
+    /**
+     * The shortest time between each time the rates are halved, so one burst of loss only counts once.
+     */
+    static final long MIN_DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final int packetRate;
+    private final int byteRate;
+    private final double maxPackets;
+    private final double maxBytes;
+
+    private double packets;
+    private double bytes;
+    private double rateFactor;
+    private long lastRefill;
+    private long lastDecrease;
+    private boolean decreased;
+
+    private long pacedPackets;
+    private long delayedPackets;
+    private long totalDelayNanos;
+    private long congestionEvents;
+
+    /**
+     * Constructor.
+     *
+     * @param packetRate The max number of packets to send each second, or 0 for no limit.
+     * @param byteRate   The max number of bytes to send each second, or 0 for no limit.
+     */
+    public SendPacer(final int packetRate, final int byteRate) {
+        this(packetRate, byteRate, System.nanoTime());
+    }
+
+    SendPacer(final int packetRate, final int byteRate, final long now) {
+        Validate.isTrue(packetRate >= 0, "Packet rate can not be negative");
+        Validate.isTrue(byteRate >= 0, "Byte rate can not be negative");
+
+        this.packetRate = packetRate;
+        this.byteRate = byteRate;
+        this.maxPackets = Math.max(1, packetRate * BURST_NANOS / NANOS_PER_SECOND);
+        this.maxBytes = Math.max(Constants.NETWORK_PACKET_SIZE, byteRate * BURST_NANOS / NANOS_PER_SECOND);
+        this.packets = maxPackets;
+        this.bytes = maxBytes;
+        this.rateFactor = 1;
+        this.lastRefill = now;
+    }
+
+    /**
+     * Waits until the packet can be sent without going over the rates. Called on the sender thread
+     * before sending each packet.
+     *
+     * @param length The number of bytes in the packet.
+     */
+    public void pace(final int length) {
+        final long delayNanos = reserve(length, System.nanoTime());
+
+        if (delayNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Takes the tokens for a packet, going into debt if there are not enough.
+     *
+     * @param length The number of bytes in the packet.
+     * @param now    The current time, from {@link System#nanoTime()}.
+     * @return How long to wait before sending the packet, in nanoseconds.
+     */
+    synchronized long reserve(final int length, final long now) {
+        refill(now);
+
+        double delayNanos = 0;
+
+        if (packetRate > 0) {
+            packets--;
+            delayNanos = Math.max(delayNanos, -packets / (packetRate * rateFactor) * NANOS_PER_SECOND);
+        }
+
+        if (byteRate > 0) {
+            bytes -= length;
+            delayNanos = Math.max(delayNanos, -bytes / (byteRate * rateFactor) * NANOS_PER_SECOND);
+        }
+
+        pacedPackets++;
+
+        if (delayNanos > 0) {
+            delayedPackets++;
+            totalDelayNanos += (long) delayNanos;
+        }
+
+        return (long) delayNanos;
+    }
+
+    /**
+     * Slows down when multicast messages are lost, as the network is likely congested.
+     *
+     * @param userCode The user code of the other user.
+     * @param messages The number of lost messages.
+     */
+    @Override
+    public void multicastLost(final int userCode, final int messages) {
+        congested(System.nanoTime());
+    }
+
+    /**
+     * Halves the rates, unless they were halved less than {@link #MIN_DECREASE_INTERVAL_NANOS} ago.
+     *
+     * @param now The current time, from {@link System#nanoTime()}.
+     */
+    synchronized void congested(final long now) {
+        refill(now);
+
+        if (decreased && now - lastDecrease < MIN_DECREASE_INTERVAL_NANOS) {
+            return;
+        }
+
+        rateFactor = Math.max(MIN_RATE_FACTOR, rateFactor / 2);
+        lastDecrease = now;
+        decreased = true;
+        congestionEvents++;
+    }
+
+    private void refill(final long now) {
+        final double seconds = (now - lastRefill) / NANOS_PER_SECOND;
+
+        if (seconds <= 0) {
+            return;
+        }
+
+        packets = Math.min(maxPackets, packets + seconds * packetRate * rateFactor);
+        bytes = Math.min(maxBytes, bytes + seconds * byteRate * rateFactor);
+        rateFactor = Math.min(1, rateFactor + seconds * RECOVERY_PER_SECOND);
+        lastRefill = now;
+    }
+
+    /**
+     * Gets the share of the configured rates used right now, after slowing down because of lost messages.
+     *
+     * @return The rate factor, between {@link #MIN_RATE_FACTOR} and 1.
+     */
+    public synchronized double getRateFactor() {
+        return rateFactor;
+    }
+
+    /**
+     * Gets the number of packets sent each second right now.
+     *
+     * @return The current packet rate, or 0 for no limit.
+     */
+    public synchronized double getPacketRate() {
+        return packetRate * rateFactor;
+    }
+
+    /**
+     * Gets the number of bytes sent each second right now.
+     *
+     * @return The current byte rate, or 0 for no limit.
+     */
+    public synchronized double getByteRate() {
+        return byteRate * rateFactor;
+    }
+
+    /**
+     * Gets the number of packets that have been paced.
+     *
+     * @return The number of paced packets.
+     */
+    public synchronized long getPacedPackets() {
+        return pacedPackets;
+    }
+
+    /**
+     * Gets the number of packets that had to wait to stay within the rates.
+     *
+     * @return The number of delayed packets.
+     */
+    public synchronized long getDelayedPackets() {
+        return delayedPackets;
+    }
+
+    /**
+     * Gets the average time the delayed packets had to wait.
+     *
+     * @return The average delay in microseconds, or 0 if no packets were delayed.
+     */
+    public synchronized long getAverageDelayMicros() {
+        if (delayedPackets == 0) {
+            return 0;
+        }
+
+        return TimeUnit.NANOSECONDS.toMicros(totalDelayNanos / delayedPackets);
+    }
+
+    /**
+     * Gets the number of times the rates were halved because of lost messages.
+     *
+     * @return The number of congestion events.
+     */
+    public synchronized long getCongestionEvents() {
+        return congestionEvents;
+    }
+}
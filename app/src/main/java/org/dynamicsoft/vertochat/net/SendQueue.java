@@ -0,0 +1,641 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.util.Logger;
+import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends messages on a dedicated thread, so threads that want to send a message never block
+ * on the network.
+ * <p>
+ * <p>Any thread can add a message to the queue, and a single sender thread takes them out
+ * and does the blocking socket io. The {@link MessageSender} and {@link UDPSender} are only used from
+ * that thread, so no locks are held while sending. The queue is bounded, and messages added while it's
+ * full fail right away instead of waiting for room.</p>
+ * <p>
+ * <p>Each message waits in one of the {@link Lane lanes}, so chat messages don't have to wait behind
+ * a burst of status messages. The lanes take turns by weight, with chat messages getting the most turns,
+ * and messages in the same lane are sent in order. Stamped messages all wait in the same lane, to keep the
+ * order of the sequence numbers. A status message with a supersede key is dropped instead of sent if a newer
+ * message with the same key is waiting, as only the last status matters.</p>
+ * <p>
+ * <p>The sender thread is started when needed, and stops when the queue has been empty for a while.</p>
+ *
+ * @author Christian Ihle
+ */
+public class SendQueue {
+
+    private static final Logger LOG = Logger.getLogger(SendQueue.class);
+
+    /**
+     * The max number of messages waiting to be sent, in all the lanes together.
+     */
+    public static final int MAX_QUEUED_MESSAGES = 256;
+
+    /**
+     * How long the sender thread waits for new messages before stopping.
+     */
+    private static final long IDLE_TIMEOUT_SECONDS = 30;
+
+    private final ThreadPoolExecutor executor;
+    private final Runnable sender;
+
+    private final LaneQueue[] lanes;
+    private final Map<String, QueuedTask> latestBySupersedeKey;
+
+    private int queuedMessages;
+    private boolean senderScheduled;
+
+    private final AtomicLong sentMessages;
+    private final AtomicLong failedMessages;
+    private final AtomicLong rejectedMessages;
+    private final AtomicLong supersededMessages;
+    private final AtomicLong totalLatencyNanos;
+    private final AtomicLong maxLatencyNanos;
+    private final AtomicInteger maxQueueDepth;
+
+    /**
+     * Constructor.
+     */
+    public SendQueue() {
+        sentMessages = new AtomicLong();
+        failedMessages = new AtomicLong();
+        rejectedMessages = new AtomicLong();
+        supersededMessages = new AtomicLong();
+        totalLatencyNanos = new AtomicLong();
+        maxLatencyNanos = new AtomicLong();
+        maxQueueDepth = new AtomicInteger();
+
+        lanes = new LaneQueue[Lane.values().length];
+
+        for (final Lane lane : Lane.values()) {
+            lanes[lane.ordinal()] = new LaneQueue(lane.weight);
+        }
+
+        latestBySupersedeKey = new HashMap<>();
+
+        executor = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "SendQueue");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        executor.allowCoreThreadTimeOut(true);
+
+        sender = new Runnable() {
+            @Override
+            public void run() {
+                sendQueuedMessages();
+            }
+        };
+    }
+
+    /**
+     * Adds a message to the {@link Lane#BULK bulk} lane of the queue.
+     *
+     * @param task The task that sends the message. Called on the sender thread.
+     * @return The future that completes when the task is done. Fails right away if the queue is full.
+     */
+    public SendFuture submit(final Task task) {
+        return submit(task, Lane.BULK, null);
+    }
+
+    /**
+     * Adds a message to a lane of the queue.
+     *
+     * @param task         The task that sends the message. Called on the sender thread.
+     * @param lane         The lane to wait in.
+     * @param supersedeKey The key of the status the message is about, or <code>null</code> if newer messages
+     *                     never make this message obsolete. See {@link #getSupersedeKey(String, String)}.
+     * @return The future that completes when the task is done. Fails right away if the queue is full,
+     * or when a newer message with the same supersede key replaces this message.
+     */
+    public SendFuture submit(final Task task, final Lane lane, @Nullable final String supersedeKey) {
+        Validate.notNull(task, "Task can not be null");
+        Validate.notNull(lane, "Lane can not be null");
+
+        final QueuedTask queuedTask = new QueuedTask(task, lane, supersedeKey);
+        final boolean startSender;
+
+        synchronized (lanes) {
+            if (queuedMessages >= MAX_QUEUED_MESSAGES) {
+                rejectedMessages.incrementAndGet();
+                LOG.warning("Send queue is full, dropped: %s", task);
+                queuedTask.future.completeRejected();
+
+                return queuedTask.future;
+            }
+
+            lanes[lane.ordinal()].tasks.add(queuedTask);
+            queuedMessages++;
+
+            if (supersedeKey != null) {
+                latestBySupersedeKey.put(supersedeKey, queuedTask);
+            }
+
+            startSender = !senderScheduled;
+            senderScheduled = true;
+        }
+
+        updateMax(maxQueueDepth, getQueueDepth());
+
+        if (startSender) {
+            executor.execute(sender);
+        }
+
+        return queuedTask.future;
+    }
+
+    /**
+     * Waits until the queue is empty and the last message is done, which includes every message
+     * added before this call.
+     *
+     * @param timeoutMs The max number of milliseconds to wait.
+     * @return If the messages were done before the timeout.
+     */
+    public boolean awaitQueuedMessages(final long timeoutMs) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+        synchronized (lanes) {
+            while (senderScheduled) {
+                final long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+                if (remainingMs <= 0) {
+                    return false;
+                }
+
+                try {
+                    lanes.wait(remainingMs);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * The sender task. Sends messages until every lane is empty.
+     */
+    private void sendQueuedMessages() {
+        while (true) {
+            final QueuedTask queuedTask;
+            final boolean superseded;
+
+            synchronized (lanes) {
+                queuedTask = takeNext();
+
+                if (queuedTask == null) {
+                    senderScheduled = false;
+                    lanes.notifyAll();
+
+                    return;
+                }
+
+                queuedMessages--;
+                superseded = removeSupersedeKey(queuedTask);
+            }
+
+            if (superseded) {
+                supersededMessages.incrementAndGet();
+                LOG.fine("Dropped superseded message: %s", queuedTask.task);
+                queuedTask.future.completeSuperseded();
+            } else {
+                send(queuedTask);
+            }
+        }
+    }
+
+    /**
+     * Takes the next message from the lane with the highest priority that has turns left.
+     * When every lane with messages has used its turns, each lane gets new turns by its weight.
+     * Must hold the lock on the lanes.
+     *
+     * @return The next message, or <code>null</code> if every lane is empty.
+     */
+    @Nullable
+    private QueuedTask takeNext() {
+        if (queuedMessages == 0) {
+            return null;
+        }
+
+        while (true) {
+            for (final LaneQueue lane : lanes) {
+                if (!lane.tasks.isEmpty() && lane.turns > 0) {
+                    lane.turns--;
+                    return lane.tasks.poll();
+                }
+            }
+
+            for (final LaneQueue lane : lanes) {
+                lane.turns = lane.weight;
+            }
+        }
+    }
+
+    /**
+     * Removes the supersede key of the message if it's the newest message with that key.
+     * Must hold the lock on the lanes.
+     *
+     * @param queuedTask The message that was taken out of the queue.
+     * @return If a newer message with the same key is waiting, making this message obsolete.
+     */
+    private boolean removeSupersedeKey(final QueuedTask queuedTask) {
+        if (queuedTask.supersedeKey == null) {
+            return false;
+        }
+
+        if (latestBySupersedeKey.get(queuedTask.supersedeKey) != queuedTask) {
+            return true;
+        }
+
+        latestBySupersedeKey.remove(queuedTask.supersedeKey);
+
+        return false;
+    }
+
+    private void send(final QueuedTask queuedTask) {
+        final Task task = queuedTask.task;
+        int packets = 0;
+
+        try {
+            packets = task.send();
+        } catch (final RuntimeException e) {
+            LOG.severe(e, "Failed to send: %s", task);
+        }
+
+        final long latency = System.nanoTime() - queuedTask.queuedAt;
+        totalLatencyNanos.addAndGet(latency);
+        updateMax(maxLatencyNanos, latency);
+
+        final LaneQueue lane = lanes[queuedTask.lane.ordinal()];
+        lane.messages.incrementAndGet();
+        lane.totalLatencyNanos.addAndGet(latency);
+        updateMax(lane.maxLatencyNanos, latency);
+
+        if (packets > 0) {
+            sentMessages.incrementAndGet();
+        } else {
+            failedMessages.incrementAndGet();
+        }
+
+        queuedTask.future.complete(packets);
+    }
+
+    /**
+     * Gets the number of messages waiting to be sent right now.
+     *
+     * @return The number of messages in the queue.
+     */
+    public int getQueueDepth() {
+        synchronized (lanes) {
+            return queuedMessages;
+        }
+    }
+
+    /**
+     * Gets the number of messages waiting to be sent right now in one lane.
+     *
+     * @param lane The lane to check.
+     * @return The number of messages in the lane.
+     */
+    public int getQueueDepth(final Lane lane) {
+        Validate.notNull(lane, "Lane can not be null");
+
+        synchronized (lanes) {
+            return lanes[lane.ordinal()].tasks.size();
+        }
+    }
+
+    /**
+     * Gets the largest number of messages that have been waiting in the queue at once.
+     *
+     * @return The max queue depth.
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Gets the number of messages that have been sent.
+     *
+     * @return The number of sent messages.
+     */
+    public long getSentMessages() {
+        return sentMessages.get();
+    }
+
+    /**
+     * Gets the number of messages the senders failed to send.
+     *
+     * @return The number of failed messages.
+     */
+    public long getFailedMessages() {
+        return failedMessages.get();
+    }
+
+    /**
+     * Gets the number of messages that were dropped because the queue was full.
+     *
+     * @return The number of rejected messages.
+     */
+    public long getRejectedMessages() {
+        return rejectedMessages.get();
+    }
+
+    /**
+     * Gets the number of messages that were dropped because a newer message with the same status was waiting.
+     *
+     * @return The number of superseded messages.
+     */
+    public long getSupersededMessages() {
+        return supersededMessages.get();
+    }
+
+    /**
+     * Gets the average time from a message was added to the queue until it was done sending.
+     *
+     * @return The average latency in microseconds, or 0 if nothing has been sent.
+     */
+    public long getAverageLatencyMicros() {
+        final long messages = sentMessages.get() + failedMessages.get();
+
+        if (messages == 0) {
+            return 0;
+        }
+
+        return TimeUnit.NANOSECONDS.toMicros(totalLatencyNanos.get() / messages);
+    }
+
+    /**
+     * Gets the longest time from a message was added to the queue until it was done sending.
+     *
+     * @return The max latency in microseconds.
+     */
+    public long getMaxLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos.get());
+    }
+
+    /**
+     * Gets the average time from a message was added to a lane until it was done sending.
+     *
+     * @param lane The lane to check.
+     * @return The average latency in microseconds, or 0 if nothing has been sent from the lane.
+     */
+    public long getAverageLatencyMicros(final Lane lane) {
+        Validate.notNull(lane, "Lane can not be null");
+
+        final LaneQueue laneQueue = lanes[lane.ordinal()];
+        final long messages = laneQueue.messages.get();
+
+        if (messages == 0) {
+            return 0;
+        }
+
+        return TimeUnit.NANOSECONDS.toMicros(laneQueue.totalLatencyNanos.get() / messages);
+    }
+
+    /**
+     * Gets the longest time from a message was added to a lane until it was done sending.
+     *
+     * @param lane The lane to check.
+     * @return The max latency in microseconds.
+     */
+    public long getMaxLatencyMicros(final Lane lane) {
+        Validate.notNull(lane, "Lane can not be null");
+
+        return TimeUnit.NANOSECONDS.toMicros(lanes[lane.ordinal()].maxLatencyNanos.get());
+    }
+
+    /**
+     * Finds the supersede key of a message, for dropping it if a newer message about the same status
+     * is waiting in the queue. Only writing and idle messages have keys.
+     * <p>
+     * <p>Stamped messages have no key, as the receivers would ask for a dropped sequence number again.</p>
+     *
+     * @param message     The message to check.
+     * @param destination Where the message is sent.
+     * @return The supersede key, or <code>null</code> if newer messages never make this message obsolete.
+     */
+    @Nullable
+    public static String getSupersedeKey(final String message, final String destination) {
+        Validate.notNull(message, "Message can not be null");
+        Validate.notNull(destination, "Destination can not be null");
+
+        if (MessageSequencer.isStamped(message)) {
+            return null;
+        }
+
+        switch (MessageType.fromMessage(message)) {
+            case WRITING:
+            case STOPPEDWRITING:
+                return destination + '/' + MessageType.WRITING.getNetworkName();
+            case IDLE:
+                return destination + '/' + MessageType.IDLE.getNetworkName();
+            default:
+                return null;
+        }
+    }
+
+    private static void updateMax(final AtomicLong max, final long value) {
+        long current = max.get();
+
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    private static void updateMax(final AtomicInteger max, final int value) {
+        int current = max.get();
+
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * The lanes messages wait in, from the highest priority to the lowest.
+     */
+    public enum Lane {
+
+        /**
+         * Messages the users see, like chat messages and changes to the topic or nick name.
+         */
+        CHAT(8),
+
+        /**
+         * Status messages, like writing and idle, and answers to expose messages.
+         */
+        PRESENCE(2),
+
+        /**
+         * Messages that only keep the network working, like asking for lost messages again.
+         */
+        BULK(1);
+
+        /**
+         * The number of messages sent from the lane in each round, when every lane has messages waiting.
+         */
+        private final int weight;
+
+        Lane(final int weight) {
+            this.weight = weight;
+        }
+
+        /**
+         * Finds the lane for the type of message.
+         *
+         * @param type The type of the message.
+         * @return The lane to use for that type.
+         */
+        public static Lane forType(final MessageType type) {
+            switch (type) {
+                case MSG:
+                case PRIVMSG:
+                case TOPIC:
+                case NICK:
+                case AWAY:
+                case BACK:
+                case LOGON:
+                case LOGOFF:
+                case NICKCRASH:
+                case SENDFILE:
+                case SENDFILEACCEPT:
+                case SENDFILEABORT:
+                    return CHAT;
+                case EXPOSE:
+                case EXPOSING:
+                case CLIENT:
+                case GETTOPIC:
+                case IDLE:
+                case WRITING:
+                case STOPPEDWRITING:
+                    return PRESENCE;
+                default:
+                    return BULK;
+            }
+        }
+
+        /**
+         * Finds the lane for a message in the text format, stamped or not. Stamped messages always wait in
+         * the {@link #CHAT chat} lane, so they are sent in the order of their sequence numbers. Otherwise
+         * the receivers would see gaps, and ask for messages that are still waiting in another lane.
+         *
+         * @param message The message to check.
+         * @return The lane to use for the message.
+         */
+        public static Lane forMessage(final String message) {
+            if (MessageSequencer.isStamped(message)) {
+                return CHAT;
+            }
+
+            return forType(MessageType.fromMessage(message));
+        }
+
+        /**
+         * Finds the lane for a batch of messages. Like {@link #forMessage(String)}, a batch with stamped
+         * messages waits in the {@link #CHAT chat} lane.
+         *
+         * @param messages The messages in the batch.
+         * @return The lane to use for the batch.
+         */
+        public static Lane forBatch(final List<String> messages) {
+            for (final String message : messages) {
+                if (MessageSequencer.isStamped(message)) {
+                    return CHAT;
+                }
+            }
+
+            return PRESENCE;
+        }
+    }
+
+    /**
+     * Sends a message. Always called on the sender thread.
+     */
+    public interface Task {
+
+        /**
+         * Sends the message.
+         *
+         * @return The number of packets sent, or 0 if sending failed.
+         */
+        int send();
+    }
+
+    private static final class QueuedTask {
+
+        private final Task task;
+        private final Lane lane;
+        private final String supersedeKey;
+        private final long queuedAt;
+        private final SendFuture future;
+
+        private QueuedTask(final Task task, final Lane lane, @Nullable final String supersedeKey) {
+            this.task = task;
+            this.lane = lane;
+            this.supersedeKey = supersedeKey;
+            this.queuedAt = System.nanoTime();
+            this.future = new SendFuture();
+        }
+    }
+
+    private static final class LaneQueue {
+
+        private final ArrayDeque<QueuedTask> tasks;
+        private final int weight;
+        private int turns;
+
+        private final AtomicLong messages;
+        private final AtomicLong totalLatencyNanos;
+        private final AtomicLong maxLatencyNanos;
+
+        private LaneQueue(final int weight) {
+            this.tasks = new ArrayDeque<>();
+            this.weight = weight;
+            this.turns = weight;
+            this.messages = new AtomicLong();
+            this.totalLatencyNanos = new AtomicLong();
+            this.maxLatencyNanos = new AtomicLong();
+        }
+    }
+}
@@ -22,6 +22,7 @@
 package org.dynamicsoft.vertochat.net;
 
 import org.dynamicsoft.vertochat.misc.User;
+import org.dynamicsoft.vertochat.util.Validate;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
@@ -50,10 +51,20 @@ public class TransferList {
      */
     private int fileTransferIdCounter;
 
+    /**
+     * The addresses of the users to send files to.
+     */
+    private final PeerAddressCache peerAddressCache;
+
     /**
      * Constructor.
+     *
+     * @param peerAddressCache The cache of addresses to use when sending files.
      */
-    public TransferList() {
+    public TransferList(final PeerAddressCache peerAddressCache) {
+        Validate.notNull(peerAddressCache, "Peer address cache can not be null");
+
+        this.peerAddressCache = peerAddressCache;
         senders = new ArrayList<>();
         receivers = new ArrayList<>();
     }
@@ -66,7 +77,7 @@ public class TransferList {
      * @return The file sender object that was added to the transfer list.
      */
     public FileSender addFileSender(final User user, final FileToSend file) {
-        final FileSender fileSender = new FileSender(user, file, ++fileTransferIdCounter);
+        final FileSender fileSender = new FileSender(user, file, ++fileTransferIdCounter, peerAddressCache);
         senders.add(fileSender);
 
         return fileSender;
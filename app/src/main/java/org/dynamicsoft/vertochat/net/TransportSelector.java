@@ -0,0 +1,288 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.misc.User;
+import org.dynamicsoft.vertochat.util.Validate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Chooses which paths to send each message on, based on how well messages get through to each user,
+ * instead of always sending every message over both multicast and tcp.
+ * <p>
+ * <p>Every multicast message from a user is a sign that multicast works between this client and the user, while
+ * every NACK is a sign that it doesn't. Both are counted in a moving average of the loss rate of each user.
+ * A message to all users is always sent over multicast, and a copy is only sent over tcp to the users where the
+ * loss rate is too high, or not known yet, or that can't ask for lost messages. A private message is only sent over
+ * tcp when there is a tcp connection to the user, and over udp when there isn't.</p>
+ * <p>
+ * <p>Only messages stamped by the {@link MessageSequencer} can be sent over just one path, as users without
+ * sequence numbers drop multicast messages from users they have a tcp connection to.</p>
+ * <p>
+ * <p>Keeps counters of every choice, to see how much traffic is saved.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TransportSelector implements ReliableMulticast.LossListener {
+
+    /**
+     * How much each new sample moves the loss rate of a user.
+     */
+    static final double LOSS_RATE_WEIGHT = 1.0 / 16;
+
+    /**
+     * The highest loss rate where multicast is still reliable enough without a copy over tcp.
+     */
+    static final double MAX_LOSS_RATE = 0.02;
+
+    /**
+     * The number of samples needed before the loss rate of a user is trusted.
+     */
+    static final int MIN_SAMPLES = 16;
+
+    /**
+     * The number of users to remember.
+     */
+    static final int MAX_USERS = 256;
+
+    private final Map<Integer, LinkQuality> links;
+
+    private long multicastOnlyMessages;
+    private long tcpCopies;
+    private long skippedTcpCopies;
+    private long privateTcpMessages;
+    private long privateUdpMessages;
+    private long privateBothMessages;
+
+    public TransportSelector() {
+        links = new LinkedHashMap<Integer, LinkQuality>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, LinkQuality> eldest) {
+                return size() > MAX_USERS;
+            }
+        };
+    }
+
+    /**
+     * Registers a multicast message that arrived from a user.
+     *
+     * @param userCode The user code of the sender.
+     */
+    public synchronized void multicastArrived(final int userCode) {
+        getLinkQuality(userCode).addSample(0);
+    }
+
+    /**
+     * Registers multicast messages lost between this client and a user.
+     *
+     * @param userCode The user code of the other user.
+     * @param messages The number of lost messages.
+     */
+    @Override
+    public synchronized void multicastLost(final int userCode, final int messages) {
+        final LinkQuality linkQuality = getLinkQuality(userCode);
+
+        for (int i = 0; i < messages; i++) {
+            linkQuality.addSample(1);
+        }
+    }
+
+    /**
+     * Checks if a stamped message to all users needs a copy over tcp to this user, in addition to multicast.
+     *
+     * @param user The user to check.
+     * @return If a copy should be sent over tcp.
+     */
+    public synchronized boolean needsTcpCopy(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        if (!user.isTcpEnabled()) {
+            return false;
+        }
+
+        // Without NACKs from the user a lost multicast message is lost for good, so keep the copy over tcp
+        if (user.getProtocolVersion() >= Constants.PROTOCOL_VERSION_RELIABLE_MULTICAST && user.isNackEnabled()
+                && isMulticastReliable(user.getCode())) {
+            skippedTcpCopies++;
+            return false;
+        }
+
+        tcpCopies++;
+        return true;
+    }
+
+    /**
+     * Registers a stamped message to all users that was sent, to count the ones sent over multicast only.
+     *
+     * @param tcpCopiesSent The number of copies of the message sent over tcp.
+     */
+    public synchronized void messageSent(final int tcpCopiesSent) {
+        if (tcpCopiesSent == 0) {
+            multicastOnlyMessages++;
+        }
+    }
+
+    /**
+     * Chooses the paths to send a private message to the user on.
+     *
+     * @param user The user to send the private message to.
+     * @return The paths to use.
+     */
+    public synchronized Transport choosePrivateTransport(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        if (user.getProtocolVersion() < Constants.PROTOCOL_VERSION_SEQUENCE_NUMBERS) {
+            privateBothMessages++;
+            return Transport.BOTH;
+        }
+
+        if (user.isTcpEnabled()) {
+            privateTcpMessages++;
+            return Transport.TCP;
+        }
+
+        privateUdpMessages++;
+        return Transport.UDP;
+    }
+
+    /**
+     * Checks if enough multicast messages get through between this client and the user to skip the copy over tcp.
+     *
+     * @param userCode The user code of the user to check.
+     * @return If multicast is reliable enough.
+     */
+    public synchronized boolean isMulticastReliable(final int userCode) {
+        final LinkQuality linkQuality = links.get(userCode);
+
+        return linkQuality != null && linkQuality.samples >= MIN_SAMPLES && linkQuality.lossRate <= MAX_LOSS_RATE;
+    }
+
+    /**
+     * Gets the moving average of the share of multicast messages lost between this client and the user.
+     *
+     * @param userCode The user code of the user to check.
+     * @return The loss rate, between 0 and 1, or 0 if nothing is known about the user.
+     */
+    public synchronized double getLossRate(final int userCode) {
+        final LinkQuality linkQuality = links.get(userCode);
+
+        return linkQuality == null ? 0 : linkQuality.lossRate;
+    }
+
+    /**
+     * Gets the number of stamped messages to all users that were sent over multicast only.
+     *
+     * @return The number of messages sent over multicast only.
+     */
+    public synchronized long getMulticastOnlyMessages() {
+        return multicastOnlyMessages;
+    }
+
+    /**
+     * Gets the number of copies of messages to all users that were sent over tcp, because multicast was not
+     * reliable enough.
+     *
+     * @return The number of copies sent over tcp.
+     */
+    public synchronized long getTcpCopies() {
+        return tcpCopies;
+    }
+
+    /**
+     * Gets the number of copies of messages to all users that were not sent over tcp, because multicast was
+     * reliable enough.
+     *
+     * @return The number of copies not sent over tcp.
+     */
+    public synchronized long getSkippedTcpCopies() {
+        return skippedTcpCopies;
+    }
+
+    /**
+     * Gets the number of private messages sent on the path.
+     *
+     * @param transport The path to get the number of private messages for.
+     * @return The number of private messages sent on the path.
+     */
+    public synchronized long getPrivateMessages(final Transport transport) {
+        Validate.notNull(transport, "Transport can not be null");
+
+        switch (transport) {
+            case TCP:
+                return privateTcpMessages;
+            case UDP:
+                return privateUdpMessages;
+            default:
+                return privateBothMessages;
+        }
+    }
+
+    private LinkQuality getLinkQuality(final int userCode) {
+        LinkQuality linkQuality = links.get(userCode);
+
+        if (linkQuality == null) {
+            linkQuality = new LinkQuality();
+            links.put(userCode, linkQuality);
+        }
+
+        return linkQuality;
+    }
+
+    /**
+     * The paths to send a message on.
+     */
+    public enum Transport {
+
+        /**
+         * Only over tcp.
+         */
+        TCP,
+
+        /**
+         * Only over udp.
+         */
+        UDP,
+
+        /**
+         * Over both tcp and udp, for the receiver to keep the first copy.
+         */
+        BOTH
+    }
+
+    private static final class LinkQuality {
+
+        private double lossRate;
+        private int samples;
+
+        private void addSample(final double lost) {
+            if (samples < MIN_SAMPLES) {
+                samples++;
+                lossRate += (lost - lossRate) / samples;
+            } else {
+                lossRate += (lost - lossRate) * LOSS_RATE_WEIGHT;
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.util.IOTools;
+import org.dynamicsoft.vertochat.util.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Reads the number of datagrams the kernel has dropped because the receive buffer of
+ * a socket was full.
+ * <p>
+ * <p>This information is only available on Linux (including Android), where it is found
+ * in the last column of <code>/proc/net/udp</code> and <code>/proc/net/udp6</code>.
+ * Other operating systems, or restricted environments, will report the drops as unknown.</p>
+ *
+ * @author Christian Ihle
+ */
+public class UDPDropCounter {
+
+    /**
+     * Returned when the number of drops can not be determined.
+     */
+    public static final long UNKNOWN = -1;
+
+    private static final Logger LOG = Logger.getLogger(UDPDropCounter.class);
+
+    private static final String[] PROC_FILES = {"/proc/net/udp", "/proc/net/udp6"};
+
+    private final IOTools ioTools = new IOTools();
+
+    /**
+     * Gets the sum of dropped datagrams for all sockets bound to the local port.
+     *
+     * @param localPort The local port of the socket.
+     * @return Number of dropped datagrams, or {@link #UNKNOWN}.
+     */
+    public long getDrops(final int localPort) {
+        if (localPort <= 0) {
+            return UNKNOWN;
+        }
+
+        final String portSuffix = String.format(":%04X", localPort);
+        long drops = UNKNOWN;
+
+        for (final String procFile : PROC_FILES) {
+            final long fileDrops = readDrops(new File(procFile), portSuffix);
+
+            if (fileDrops != UNKNOWN) {
+                drops = Math.max(drops, 0) + fileDrops;
+            }
+        }
+
+        return drops;
+    }
+
+    /**
+     * Reads the drop column for the matching sockets in one of the proc files.
+     *
+     * @param procFile   The file to read.
+     * @param portSuffix The local port in the hex format used by the kernel, like <code>:9E6C</code>.
+     * @return The sum of drops for the matching sockets, or {@link #UNKNOWN} if the file could not be read.
+     */
+    long readDrops(final File procFile, final String portSuffix) {
+        if (!procFile.canRead()) {
+            return UNKNOWN;
+        }
+
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new FileReader(procFile));
+            reader.readLine(); // Header
+
+            long drops = 0;
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                final String[] columns = line.trim().split("\\s+");
+
+                if (columns.length > 2 && columns[1].endsWith(portSuffix)) {
+                    drops += Long.parseLong(columns[columns.length - 1]);
+                }
+            }
+
+            return drops;
+        } catch (final IOException | NumberFormatException e) {
+            LOG.fine("Failed to read drops from %s: %s", procFile, e.toString());
+            return UNKNOWN;
+        } finally {
+            ioTools.close(reader);
+        }
+    }
+}
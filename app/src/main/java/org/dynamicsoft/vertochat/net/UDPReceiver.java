@@ -26,11 +26,15 @@ import org.dynamicsoft.vertochat.event.ReceiverListener;
 import org.dynamicsoft.vertochat.misc.ErrorHandler;
 import org.dynamicsoft.vertochat.misc.User;
 import org.dynamicsoft.vertochat.settings.Settings;
+import org.dynamicsoft.vertochat.util.IOTools;
 import org.dynamicsoft.vertochat.util.Validate;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,6 +43,9 @@ import static org.dynamicsoft.vertochat.net.NetworkUtils.IPTOS_RELIABILITY;
 /**
  * Receives UDP packets sent directly to the IP address
  * of this machine.
+ * <p>
+ * <p>The packets are read from a non-blocking channel by a {@link DatagramChannelReader},
+ * which drains all queued packets on each wakeup.</p>
  *
  * @author Christian Ihle
  */
@@ -57,13 +64,21 @@ public class UDPReceiver implements Runnable {
      */
     private final User me;
     /**
-     * The datagram socket used for receiving messages.
+     * Reads and decodes the messages from the channel.
      */
-    private DatagramSocket udpSocket;
+    private final DatagramChannelReader reader;
     /**
-     * The listener getting all the messages received here.
+     * The io tools.
      */
-    private ReceiverListener listener;
+    private final IOTools ioTools = new IOTools();
+    /**
+     * The datagram channel used for receiving messages.
+     */
+    private DatagramChannel channel;
+    /**
+     * The selector waiting for messages on the channel.
+     */
+    private Selector selector;
     /**
      * If connected to the network or not.
      */
@@ -76,41 +91,35 @@ public class UDPReceiver implements Runnable {
      * @param errorHandler The error handler to use.
      */
     public UDPReceiver(final Settings settings, final ErrorHandler errorHandler) {
+        this(settings, errorHandler, new PeerAddressCache());
+    }
+
+    /**
+     * Constructor using a shared cache of ip addresses.
+     *
+     * @param settings         The settings to use.
+     * @param errorHandler     The error handler to use.
+     * @param peerAddressCache The cache to get the ip address of each packet from.
+     */
+    public UDPReceiver(final Settings settings, final ErrorHandler errorHandler, final PeerAddressCache peerAddressCache) {
         Validate.notNull(settings, "Settings can not be null");
         Validate.notNull(errorHandler, "Error handler can not be null");
 
         this.errorHandler = errorHandler;
         me = settings.getMe();
+        reader = new DatagramChannelReader(peerAddressCache);
     }
 
     /**
-     * The run() method of this thread. Checks for new packets,
-     * extracts the message and IP address, and notifies the listener.
+     * The run() method of this thread. Waits for new packets,
+     * and lets the reader notify the listener.
      */
     public void run() {
-        while (connected) {
-            try {
-                final DatagramPacket packet = new DatagramPacket(
-                        new byte[Constants.NETWORK_PACKET_SIZE], Constants.NETWORK_PACKET_SIZE);
-
-                udpSocket.receive(packet);
-                final String ip = packet.getAddress().getHostAddress();
-                final String message = new String(packet.getData(), Constants.MESSAGE_CHARSET).trim();
-                LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
-
-                if (listener != null) {
-                    listener.messageArrived(message, ip);
-                }
-            }
+        final DatagramChannel currentChannel = channel;
+        final Selector currentSelector = selector;
 
-            // Happens when socket is closed, or network is down
-            catch (final IOException e) {
-                if (connected) {
-                    LOG.log(Level.WARNING, e.toString());
-                } else {
-                    LOG.log(Level.FINE, e.toString());
-                }
-            }
+        if (connected && currentChannel != null && currentSelector != null) {
+            reader.readUntilClosed(currentChannel, currentSelector);
         }
     }
 
@@ -130,8 +139,7 @@ public class UDPReceiver implements Runnable {
 
             while (counter < 50 && !connected) {
                 try {
-                    udpSocket = new DatagramSocket(port);
-                    udpSocket.setTrafficClass(IPTOS_RELIABILITY);
+                    openChannel(port);
                     connected = true;
 
                     // The background thread watching for messages from the network.
@@ -142,6 +150,7 @@ public class UDPReceiver implements Runnable {
                     LOG.log(Level.FINE, "Connected to port " + port);
                 } catch (final IOException e) {
                     LOG.log(Level.SEVERE, e.toString() + " " + port);
+                    closeChannel();
 
                     counter++;
                     port++;
@@ -161,6 +170,34 @@ public class UDPReceiver implements Runnable {
         }
     }
 
+    /**
+     * Opens a non-blocking channel on the port, and registers it with a new selector.
+     *
+     * @param port The port to listen on.
+     * @throws IOException If the channel could not be opened.
+     */
+    private void openChannel(final int port) throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        channel.setOption(StandardSocketOptions.IP_TOS, IPTOS_RELIABILITY);
+        channel.configureBlocking(false);
+
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        reader.getStatistics().setLocalPort(port);
+    }
+
+    /**
+     * Closes the channel and the selector. This also stops the thread waiting for messages.
+     */
+    private void closeChannel() {
+        ioTools.close(selector);
+        ioTools.close(channel);
+
+        selector = null;
+        channel = null;
+    }
+
     /**
      * Closes the UDP socket, and stops the thread.
      */
@@ -171,10 +208,7 @@ public class UDPReceiver implements Runnable {
             LOG.log(Level.FINE, "Not connected.");
         } else {
             connected = false;
-
-            if (udpSocket != null && !udpSocket.isClosed()) {
-                udpSocket.close();
-            }
+            closeChannel();
 
             LOG.log(Level.FINE, "Disconnected.");
         }
@@ -187,6 +221,15 @@ public class UDPReceiver implements Runnable {
      * @param listener The object to register as a listener.
      */
     public void registerReceiverListener(final ReceiverListener listener) {
-        this.listener = listener;
+        reader.registerReceiverListener(listener);
+    }
+
+    /**
+     * Gets the counters for the messages received here.
+     *
+     * @return The receiver statistics.
+     */
+    public ReceiverStatistics getStatistics() {
+        return reader.getStatistics();
     }
 }
@@ -28,7 +28,7 @@ import org.dynamicsoft.vertochat.util.Validate;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,6 +37,9 @@ import static org.dynamicsoft.vertochat.net.NetworkUtils.IPTOS_RELIABILITY;
 /**
  * Sends UDP packets directly to a user. Useful for private chat,
  * where not everyone should get the packets.
+ * <p>
+ * <p>Messages are sent on the thread of the {@link SendQueue}, so the socket io never blocks the caller,
+ * and no lock is held while sending.</p>
  *
  * @author Christian Ihle
  */
@@ -53,11 +56,23 @@ public class UDPSender {
     /**
      * The datagram socket used for sending messages.
      */
-    private DatagramSocket udpSocket;
+    private volatile DatagramSocket udpSocket;
     /**
      * If connected to the network or not.
      */
-    private boolean connected;
+    private volatile boolean connected;
+    /**
+     * Encodes the messages to send. Only used on the send queue thread.
+     */
+    private final MessageEncoder encoder;
+    /**
+     * The packet used for sending every message. Only used on the send queue thread.
+     */
+    private final DatagramPacket packet;
+    /**
+     * The queue of messages to send.
+     */
+    private final SendQueue sendQueue;
 
     /**
      * Default constructor.
@@ -65,34 +80,80 @@ public class UDPSender {
      * @param errorHandler The error handler to use.
      */
     public UDPSender(final ErrorHandler errorHandler) {
+        this(errorHandler, new MessageFrameCache(), new SendQueue());
+    }
+
+    /**
+     * Constructor using a shared cache of encoded messages and a send queue.
+     *
+     * @param errorHandler The error handler to use.
+     * @param frameCache   The cache of messages that are already encoded.
+     * @param sendQueue    The queue to send messages on.
+     */
+    public UDPSender(final ErrorHandler errorHandler, final MessageFrameCache frameCache, final SendQueue sendQueue) {
         Validate.notNull(errorHandler, "Error handler can not be null");
+        Validate.notNull(frameCache, "Frame cache can not be null");
+        Validate.notNull(sendQueue, "Send queue can not be null");
 
         this.errorHandler = errorHandler;
+        this.sendQueue = sendQueue;
+        this.encoder = new MessageEncoder(frameCache);
+        this.packet = new DatagramPacket(new byte[0], 0);
     }
 
     /**
      * Sends a packet with a message to a user.
      *
      * @param message The message to send.
-     * @param ip      The ip address of the user.
-     * @param port    The port to send the message to.
-     * @return If the message was sent or not.
+     * @param address The address of the user, with the port to send the message to.
+     * @return The future telling if the message was sent or not.
      */
-    public boolean send(final String message, final String ip, final int port) {
-        if (connected) {
+    public SendFuture send(final String message, final InetSocketAddress address) {
+        return send(message, address, WireFormat.TEXT);
+    }
+
+    /**
+     * Sends a packet with a message to a user, using the given format if possible.
+     *
+     * @param message The message to send.
+     * @param address The address of the user, with the port to send the message to.
+     * @param format  The format to send the message in. Only use a format the user supports.
+     * @return The future telling if the message was sent or not.
+     */
+    public SendFuture send(final String message, final InetSocketAddress address, final WireFormat format) {
+        Validate.notNull(address, "Address can not be null");
+
+        final SendQueue.Task task = new SendQueue.Task() {
+            @Override
+            public int send() {
+                return sendNow(message, address, format) ? 1 : 0;
+            }
+
+            @Override
+            public String toString() {
+                return message;
+            }
+        };
+
+        return sendQueue.submit(task, SendQueue.Lane.forMessage(message), SendQueue.getSupersedeKey(message, address.toString()));
+    }
+
+    private boolean sendNow(final String message, final InetSocketAddress address, final WireFormat format) {
+        final DatagramSocket socket = udpSocket;
+
+        if (connected && socket != null) {
             try {
-                final InetAddress address = InetAddress.getByName(ip);
-                final byte[] encodedMsg = message.getBytes(Constants.MESSAGE_CHARSET);
-                final int size = encodedMsg.length;
+                final int size = encoder.encode(message, format);
 
                 if (size > Constants.NETWORK_PACKET_SIZE) {
                     LOG.log(Level.WARNING, "Message was " + size + " bytes, which is too large.\n" +
                             " The receiver might not get the complete message.\n'" + message + "'");
                 }
 
-                final DatagramPacket packet = new DatagramPacket(encodedMsg, size, address, port);
-                udpSocket.send(packet);
-                LOG.log(Level.FINE, "Sent message: " + message + " to " + ip + ":" + port);
+                packet.setData(encoder.getBytes(), 0, size);
+                packet.setSocketAddress(address);
+                socket.send(packet);
+                LOG.log(Level.FINE, "Sent message: " + message + " to " + address);
 
                 return true;
             } catch (final IOException e) {
@@ -0,0 +1,82 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+
+/**
+ * The formats a message can be sent in over udp. Chosen by the {@link ProtocolNegotiator},
+ * based on what the receivers support.
+ *
+ * @author Christian Ihle
+ */
+public enum WireFormat {
+
+    /**
+     * The original text format, {@link Constants#PROTOCOL_VERSION_TEXT}. Understood by every client.
+     */
+    TEXT(Constants.PROTOCOL_VERSION_TEXT),
+
+    /**
+     * The {@link BinaryMessageFormat binary format}, {@link Constants#PROTOCOL_VERSION_BINARY}.
+     */
+    BINARY(Constants.PROTOCOL_VERSION_BINARY),
+
+    /**
+     * The binary format, with the payload compressed by the {@link PayloadCompressor} when that
+     * makes the message smaller. {@link Constants#PROTOCOL_VERSION_COMPRESSED}.
+     */
+    COMPRESSED(Constants.PROTOCOL_VERSION_COMPRESSED);
+
+    private final int protocolVersion;
+
+    WireFormat(final int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * Gets the lowest protocol version a client must support to understand this format.
+     *
+     * @return The protocol version.
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * Finds the best format a client with the given protocol version understands.
+     *
+     * @param protocolVersion The newest protocol version supported by the client.
+     * @return The best format.
+     */
+    public static WireFormat forProtocolVersion(final int protocolVersion) {
+        if (protocolVersion >= Constants.PROTOCOL_VERSION_COMPRESSED) {
+            return COMPRESSED;
+        }
+
+        if (protocolVersion >= Constants.PROTOCOL_VERSION_BINARY) {
+            return BINARY;
+        }
+
+        return TEXT;
+    }
+}
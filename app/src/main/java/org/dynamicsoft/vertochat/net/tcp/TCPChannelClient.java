@@ -0,0 +1,373 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.dynamicsoft.vertochat.util.Logger;
+import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Client for communicating over a non-blocking tcp channel, driven by a {@link TCPSelectorLoop}.
+ * <p>
+ * <p>Uses the same message format as {@link TCPSocketClient}, so the two clients can talk to each other.
+ * Messages are read on the loop thread. Messages sent from other threads are framed into a write buffer,
+ * and the loop thread writes everything in the buffer to the channel at once, so a burst of messages
+ * only needs one write.</p>
+ * <p>
+ * <p>When the other side stops reading, and the write buffer is full, sending waits for room in the buffer,
+ * like sending on a blocking socket does. That way the messages back up in the {@link TCPOutboundQueue}
+ * of the user, instead of in memory here.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPChannelClient implements TCPClient, TCPSelectorLoop.Handler {
+
+    private static final Logger LOG = Logger.getLogger(TCPChannelClient.class);
+
+    private static final int INITIAL_READ_BUFFER_SIZE = 1024;
+
+    private final SocketChannel channel;
+    private final TCPSelectorLoop selectorLoop;
+    private final String ipAddress;
+    private final String localIpAddress;
+    private final int port;
+    private final TCPFrameCodec codec;
+
+    /**
+     * Guards the writing side of the codec, and the flush flag. Notified when there is room in the write buffer.
+     */
+    private final Object writeLock;
+
+    /**
+     * The task writing the buffered messages on the loop thread.
+     */
+    private final Runnable flushTask;
+
+    /**
+     * If the flush task is already waiting to run on the loop thread.
+     */
+    private boolean flushScheduled;
+
+    private ByteBuffer readBuffer;
+
+    @Nullable
+    private SelectionKey selectionKey;
+
+    @Nullable
+    private volatile TCPClientListener clientListener;
+
+    private volatile boolean connected;
+    private volatile boolean disconnecting;
+
+    public TCPChannelClient(final SocketChannel channel, final TCPSelectorLoop selectorLoop) {
+        Validate.notNull(channel, "Channel can not be null");
+        Validate.notNull(selectorLoop, "Selector loop can not be null");
+
+        this.channel = channel;
+        this.selectorLoop = selectorLoop;
+        this.ipAddress = channel.socket().getInetAddress().getHostAddress();
+        this.localIpAddress = channel.socket().getLocalAddress().getHostAddress();
+        this.port = channel.socket().getPort();
+        this.codec = new TCPFrameCodec();
+        this.writeLock = new Object();
+        this.readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+
+        this.flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+    }
+
+    @Override
+    public boolean connect() {
+        try {
+            channel.configureBlocking(false);
+
+            // Messages are already collected before writing, so waiting for more data only adds latency
+            channel.socket().setTcpNoDelay(true);
+        } catch (final IOException e) {
+            LOG.severe(e.getMessage());
+            return false;
+        }
+
+        connected = true;
+        LOG.fine("Connected to %s:%s", ipAddress, port);
+
+        selectorLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                registerWithSelector();
+            }
+        });
+
+        return true;
+    }
+
+    private void registerWithSelector() {
+        if (!connected) {
+            return;
+        }
+
+        try {
+            synchronized (writeLock) {
+                final int interestOps = codec.hasPendingWrites() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+                selectionKey = selectorLoop.register(channel, interestOps, this);
+            }
+        } catch (final IOException e) {
+            connectionFailed(e);
+        }
+    }
+
+    @Override
+    public void channelReady(final SelectionKey key) {
+        if (key.isReadable()) {
+            read();
+        }
+
+        if (connected && key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    private void read() {
+        try {
+            final int bytesRead = channel.read(readBuffer);
+
+            if (bytesRead < 0) {
+                throw new IOException("Connection closed by " + ipAddress);
+            }
+
+            readBuffer.flip();
+            readMessages();
+            readBuffer = codec.compact(readBuffer);
+        } catch (final IOException e) {
+            connectionFailed(e);
+        }
+    }
+
+    /**
+     * Notifies the listener of every complete message in the read buffer.
+     *
+     * @throws IOException If a message could not be decoded.
+     */
+    private void readMessages() throws IOException {
+        String message;
+
+        while (connected && (message = codec.read(readBuffer)) != null) {
+            LOG.fine("Message arrived from %s: %s", ipAddress, message);
+            final TCPClientListener currentListener = clientListener;
+
+            if (currentListener != null) {
+                currentListener.messageArrived(message, this);
+            }
+        }
+    }
+
+    @Override
+    public boolean send(final String message) {
+        if (!connected) {
+            return false;
+        }
+
+        try {
+            synchronized (writeLock) {
+                if (!awaitWriteBufferRoom()) {
+                    return false;
+                }
+
+                codec.write(message);
+
+                if (!flushScheduled) {
+                    flushScheduled = true;
+                    selectorLoop.execute(flushTask);
+                }
+            }
+
+            LOG.fine("Sent message: %s", message);
+
+            return true;
+        } catch (final IOException e) {
+            connectionFailed(e);
+
+            return false;
+        }
+    }
+
+    /**
+     * Waits until the write buffer is not full, unless on the loop thread, since that's the thread
+     * that makes room. Must hold the write lock.
+     *
+     * @return If there is room for a message, and still connected.
+     */
+    private boolean awaitWriteBufferRoom() {
+        while (connected && codec.isWriteBufferFull()) {
+            if (selectorLoop.isLoopThread()) {
+                LOG.warning("Write buffer to %s is full", ipAddress);
+                return false;
+            }
+
+            try {
+                writeLock.wait();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return connected;
+    }
+
+    @Override
+    public void switchToVarintFrames() {
+        codec.requestSwitch();
+    }
+
+    /**
+     * Writes as much as possible of the buffered messages, and asks the selector to tell when
+     * there is room for the rest. Only used on the loop thread.
+     */
+    private void flush() {
+        try {
+            synchronized (writeLock) {
+                flushScheduled = false;
+
+                if (!connected) {
+                    return;
+                }
+
+                final ByteBuffer writeBuffer = codec.getWriteBuffer();
+                writeBuffer.flip();
+
+                try {
+                    channel.write(writeBuffer);
+                } finally {
+                    writeBuffer.compact();
+                }
+
+                if (!codec.isWriteBufferFull()) {
+                    writeLock.notifyAll();
+                }
+
+                updateWriteInterest(codec.hasPendingWrites());
+            }
+        } catch (final IOException e) {
+            connectionFailed(e);
+        }
+    }
+
+    private void updateWriteInterest(final boolean writeInterest) {
+        final SelectionKey key = selectionKey;
+
+        // Not registered yet. The interest will be set on registration.
+        if (key == null || !key.isValid()) {
+            return;
+        }
+
+        final int interestOps = writeInterest ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+
+        if (key.interestOps() != interestOps) {
+            key.interestOps(interestOps);
+        }
+    }
+
+    private void connectionFailed(final IOException e) {
+        if (!connected) {
+            LOG.fine(e.toString());
+            return;
+        }
+
+        LOG.severe(e.toString());
+        connected = false;
+        close();
+
+        final TCPClientListener currentListener = clientListener;
+
+        if (currentListener != null) {
+            currentListener.disconnected(this);
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        LOG.fine("Disconnected from %s:%s", ipAddress, port);
+        connected = false;
+        disconnecting = true;
+
+        final TCPClientListener currentListener = clientListener;
+
+        if (currentListener != null) {
+            currentListener.disconnected(this);
+        }
+
+        close();
+    }
+
+    private void close() {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            LOG.warning(e.getMessage());
+        }
+
+        synchronized (writeLock) {
+            codec.getWriteBuffer().clear();
+            writeLock.notifyAll();
+        }
+    }
+
+    @Override
+    public String getIPAddress() {
+        return ipAddress;
+    }
+
+    @Override
+    public String getLocalIPAddress() {
+        return localIpAddress;
+    }
+
+    @Override
+    public void registerClientListener(@Nullable final TCPClientListener theClientListener) {
+        this.clientListener = theClientListener;
+    }
+
+    @Override
+    public boolean isDisconnecting() {
+        return disconnecting;
+    }
+
+    @Override
+    public void setDisconnecting(final boolean isDisconnecting) {
+        disconnecting = isDisconnecting;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+}
@@ -21,132 +21,57 @@
 
 package org.dynamicsoft.vertochat.net.tcp;
 
-import org.dynamicsoft.vertochat.util.Logger;
-import org.dynamicsoft.vertochat.util.Validate;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.net.Socket;
-
 /**
- * Client for communicating over a tcp socket.
+ * Client for communicating with a user over a single tcp connection.
  *
  * @author Christian Ihle
  */
-public class TCPClient implements Runnable {
-
-    private static final Logger LOG = Logger.getLogger(TCPClient.class);
-
-    private final Socket socket;
-
-    @Nullable
-    private DataInputStream inputStream;
-
-    @Nullable
-    private DataOutputStream outputStream; // TODO how is this outside of Java?
-
-    @Nullable
-    private TCPClientListener clientListener;
-
-    private boolean connected;
-    private boolean disconnecting;
-
-    public TCPClient(final Socket socket) {
-        Validate.notNull(socket, "Socket can not be null");
-        this.socket = socket;
-    }
-
-    @Override
-    public void run() {
-        try {
-            while (connected && inputStream != null) {
-                final String message = inputStream.readUTF();
-                LOG.fine("Message arrived from %s: %s", getIPAddress(), message);
-
-                if (clientListener != null) {
-                    clientListener.messageArrived(message, this);
-                }
-            }
-        } catch (final IOException e) {
-            LOG.severe(e.toString());
-            connected = false;
-
-            if (clientListener != null) {
-                clientListener.disconnected(this);
-            }
-        }
-    }
-
-    public void send(final String message) {
-        if (!connected || outputStream == null) {
-            return;
-        }
-
-        try {
-            outputStream.writeUTF(message);
-            LOG.fine("Sent message: %s", message);
-        } catch (final IOException e) {
-            LOG.severe(e.toString());
-            connected = false;
-
-            if (clientListener != null) {
-                clientListener.disconnected(this);
-            }
-        }
-    }
-
-    public boolean connect() {
-        try {
-            inputStream = new DataInputStream(socket.getInputStream());
-            outputStream = new DataOutputStream(socket.getOutputStream());
-
-            LOG.fine("Connected to %s:%s", getIPAddress(), socket.getPort());
-
-            connected = true;
-            new Thread(this, getClass().getSimpleName()).start();
-
-            return true;
-        } catch (final IOException e) {
-            LOG.severe(e.getMessage());
-            return false;
-        }
-    }
-
-    public void disconnect() {
-        try {
-            LOG.fine("Disconnected from %s:%s", getIPAddress(), socket.getPort());
-            connected = false;
-            disconnecting = true;
-
-            if (clientListener != null) {
-                clientListener.disconnected(this);
-            }
-
-            socket.close();
-        } catch (final IOException e) {
-            LOG.warning(e.getMessage());
-        }
-    }
-
-    public String getIPAddress() {
-        return socket.getInetAddress().getHostAddress();
-    }
-
-    public void registerClientListener(@Nullable final TCPClientListener theClientListener) {
-        this.clientListener = theClientListener;
-    }
-
-    public boolean isDisconnecting() {
-        return disconnecting;
-    }
-
-    public void setDisconnecting(final boolean isDisconnecting) {
-        disconnecting = isDisconnecting;
-    }
-
-    public boolean isConnected() {
-        return connected;
-    }
-}
\ No newline at end of file
+public interface TCPClient {
+
+    /**
+     * Sends a message to the other side. Does nothing if not connected.
+     *
+     * @param message The message to send.
+     * @return If the message was written, or handed over to be written. False if not connected or the write failed.
+     */
+    boolean send(String message);
+
+    /**
+     * Switches to the more compact frames of {@link org.dynamicsoft.vertochat.Constants#PROTOCOL_VERSION_TCP_FRAMING}
+     * for the next messages sent. Only use this when the other side supports it.
+     *
+     * @see TCPFrameCodec
+     */
+    void switchToVarintFrames();
+
+    /**
+     * Starts receiving messages from the connection.
+     *
+     * @return If the client was able to connect.
+     */
+    boolean connect();
+
+    /**
+     * Closes the connection, and notifies the client listener.
+     */
+    void disconnect();
+
+    String getIPAddress();
+
+    /**
+     * Gets the ip address this side of the connection is bound to.
+     *
+     * @return The local ip address.
+     */
+    String getLocalIPAddress();
+
+    void registerClientListener(@Nullable TCPClientListener theClientListener);
+
+    boolean isDisconnecting();
+
+    void setDisconnecting(boolean isDisconnecting);
+
+    boolean isConnected();
+}
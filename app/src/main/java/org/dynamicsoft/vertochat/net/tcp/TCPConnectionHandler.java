@@ -23,47 +23,95 @@ package org.dynamicsoft.vertochat.net.tcp;
 
 import org.dynamicsoft.vertochat.misc.Controller;
 import org.dynamicsoft.vertochat.misc.User;
+import org.dynamicsoft.vertochat.net.ResultFuture;
+import org.dynamicsoft.vertochat.net.SendFuture;
 import org.dynamicsoft.vertochat.settings.Settings;
 import org.dynamicsoft.vertochat.util.Logger;
-import org.dynamicsoft.vertochat.util.Tools;
 import org.dynamicsoft.vertochat.util.Validate;
 import org.jetbrains.annotations.Nullable;
 
 import java.net.Socket;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Handles all the tcp connections.
+ * <p>
+ * <p>Users that lose all their connections are reconnected to with backoff by the {@link TCPReconnectScheduler},
+ * and duplicate connections to a user are cleaned up on the same scheduler when they are added.</p>
+ * <p>
+ * <p>Waiting for new connections to identify, and for new users to send their tcp port, is done with
+ * {@link ResultFuture}s completed by the arriving messages, and timed out on the same scheduler,
+ * so no threads wait.</p>
  *
  * @author Christian Ihle
  */
-public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverListener, Runnable {
+public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverListener {
 
     private static final Logger LOG = Logger.getLogger(TCPConnectionHandler.class);
 
+    /**
+     * How long to wait for the identification of a new connection, and for the tcp port of a new user.
+     */
+    private static final long HANDSHAKE_TIMEOUT_MS = 2500;
+
     private final Controller controller;
     private final Settings settings;
+    private final TCPTransport transport;
     private final ExecutorService executorService;
-    private final Map<User, TCPUserClient> userClients;
+
+    /**
+     * Runs the writer tasks of the outbound queues of every user.
+     */
+    private final ExecutorService writerExecutorService;
+
+    private final TCPReconnectScheduler reconnectScheduler;
+
+    /**
+     * The clients of every user. Changes are synchronized, while sending reads without locking.
+     */
+    private final ConcurrentMap<User, TCPUserClient> userClients;
 
     @Nullable
     private TCPReceiverListener listener;
 
-    private boolean connected;
+    private volatile boolean connected;
 
-    public TCPConnectionHandler(final Controller controller, final Settings settings) {
+    public TCPConnectionHandler(final Controller controller, final Settings settings, final TCPTransport transport) {
         Validate.notNull(controller, "Controller can not be null");
         Validate.notNull(settings, "Settings can not be null");
+        Validate.notNull(transport, "Transport can not be null");
 
         this.controller = controller;
         this.settings = settings;
+        this.transport = transport;
         this.executorService = Executors.newCachedThreadPool();
-        this.userClients = new HashMap<>();
+        this.writerExecutorService = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "TCPWriter");
+                thread.setDaemon(true);
 
-        new Thread(this, TCPConnectionHandler.class.getSimpleName()).start();
+                return thread;
+            }
+        });
+        this.userClients = new ConcurrentHashMap<>();
+        this.reconnectScheduler = new TCPReconnectScheduler(new TCPReconnectScheduler.Reconnector() {
+            @Override
+            public void reconnect(final User user) {
+                if (connected && isUserListed(user)) {
+                    userAdded(user);
+                }
+            }
+        });
     }
 
     @Override
@@ -73,7 +121,7 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
             public void run() {
                 LOG.fine("Add socket start");
 
-                final TCPClient client = new TCPClient(socket);
+                final TCPClient client = transport.createClient(socket);
                 final TCPUserIdentifier userIdentifier = new TCPUserIdentifier(controller, settings, client);
 
                 if (!client.connect()) {
@@ -82,57 +130,104 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
                     return;
                 }
 
-                final User user = userIdentifier.waitForUser();
+                final ResultFuture<User> userFuture = userIdentifier.getUser();
 
-                if (user == null) {
-                    LOG.warning("Add socket done. No user found.");
-                    client.disconnect();
-                    return;
-                }
+                scheduleTimeout(userFuture, new Runnable() {
+                    @Override
+                    public void run() {
+                        userIdentifier.timeout();
+                    }
+                });
 
-                addClient(user, client);
+                userFuture.addCallback(new ResultFuture.Callback<User>() {
+                    @Override
+                    public void resultArrived(final ResultFuture<User> future) {
+                        final User user = future.getResult();
+
+                        if (user == null) {
+                            LOG.warning("Add socket done. No user found.");
+                            client.disconnect();
+                            return;
+                        }
+
+                        addClient(user, client);
 
-                LOG.fine("Add socket done. user=%s", user.getNick());
+                        LOG.fine("Add socket done. user=%s", user.getNick());
+                    }
+                });
             }
         });
     }
 
     public void userAdded(final User user) {
-        executorService.submit(new Runnable() {
+        LOG.fine("Add user start for user=%s", user.getNick());
+
+        final ResultFuture<User> tcpChatPortFuture = controller.getPeerAddressCache().awaitTcpChatPort(user);
+
+        scheduleTimeout(tcpChatPortFuture, new Runnable() {
             @Override
             public void run() {
-                LOG.fine("Add user start for user=%s", user.getNick());
+                tcpChatPortFuture.complete(null);
+            }
+        });
+
+        tcpChatPortFuture.addCallback(new ResultFuture.Callback<User>() {
+            @Override
+            public void resultArrived(final ResultFuture<User> future) {
+                if (future.getResult() == null) {
+                    LOG.warning("Add user done. User %s has no tcp port. Trying again later.", user.getNick());
+                    connectFailed(user);
+                    return;
+                }
+
+                connectToUser(user);
+            }
+        });
+    }
 
+    private void connectToUser(final User user) {
+        executorService.submit(new Runnable() {
+            @Override
+            public void run() {
                 if (userAddedAndConnected(user)) {
                     LOG.fine("Add user done. Already added. user=%s", user.getNick());
                     return;
                 }
 
-                final TCPConnector tcpConnector = new TCPConnector(user);
-                final Socket socket = tcpConnector.connect();
+                final Socket socket = transport.connect(user);
 
                 if (socket == null) {
-                    LOG.warning("Add user done. Unable to connect using tcp. Giving up."); // Never tries again
+                    LOG.warning("Add user done. Unable to connect using tcp. Trying again later.");
+                    connectFailed(user);
                     return;
                 }
 
-                final TCPClient client = new TCPClient(socket);
+                final TCPClient client = transport.createClient(socket);
 
                 if (!client.connect()) {
-                    LOG.warning("Add user done. Connection failed. Giving up."); // Never tries again
+                    LOG.warning("Add user done. Connection failed. Trying again later.");
+                    client.disconnect();
+                    connectFailed(user);
+                    return;
+                }
+
+                // Identify before adding the client, so no queued message is written to the connection first
+                if (!client.send("SYS-IDENTIFY:" + settings.getMe().getCode() + ":" + user.getCode())) {
+                    LOG.warning("Add user done. Identification failed. Trying again later.");
                     client.disconnect();
+                    connectFailed(user);
                     return;
                 }
 
                 addClient(user, client);
-                client.send("SYS-IDENTIFY:" + settings.getMe().getCode() + ":" + user.getCode());
 
                 LOG.fine("Add user done for user=%s", user.getNick());
             }
         });
     }
 
-    public void userRemoved(final User user) {
+    public synchronized void userRemoved(final User user) {
+        reconnectScheduler.cancel(user);
         final TCPUserClient userClient = userClients.remove(user);
 
         if (userClient != null) {
@@ -144,8 +239,9 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
         connected = true;
     }
 
-    public void disconnect() {
+    public synchronized void disconnect() {
         connected = false;
+        reconnectScheduler.cancelAll();
 
         for (final TCPUserClient userClient : userClients.values()) {
             userClient.disconnect();
@@ -154,14 +250,80 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
         userClients.clear();
     }
 
-    private void addClient(final User user, final TCPClient client) {
+    private synchronized void addClient(final User user, final TCPClient client) {
         final TCPUserClient userClient = userClients.get(user);
 
         if (userClient == null) {
-            userClients.put(user, new TCPUserClient(client, user, this));
+            userClients.put(user, new TCPUserClient(client, user, this, writerExecutorService, reconnectScheduler));
         } else {
             userClient.add(client);
+
+            if (userClient.getClientCount() > 1) {
+                LOG.fine("User %s has too many (%d) tcp connections. Trying to close.", user.getNick(), userClient.getClientCount());
+                reconnectScheduler.scheduleDuplicateCleanup(userClient);
+            }
         }
+
+        reconnectScheduler.connected(user);
+    }
+
+    private void connectFailed(final User user) {
+        if (connected && isUserListed(user)) {
+            reconnectScheduler.connectFailed(user);
+        }
+    }
+
+    /**
+     * Gives up waiting for the future after {@link #HANDSHAKE_TIMEOUT_MS}, on the shared scheduler.
+     * The timeout is cancelled if the future completes first.
+     *
+     * @param future      The future to give up on.
+     * @param timeoutTask Completes the future without a result.
+     * @param <T>         The type of result.
+     */
+    private <T> void scheduleTimeout(final ResultFuture<T> future, final Runnable timeoutTask) {
+        if (future.isDone()) {
+            return;
+        }
+
+        final ScheduledFuture<?> timeout = reconnectScheduler.schedule(timeoutTask, HANDSHAKE_TIMEOUT_MS);
+
+        future.addCallback(new ResultFuture.Callback<T>() {
+            @Override
+            public void resultArrived(final ResultFuture<T> theFuture) {
+                timeout.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * Keeps the connections that are bound to a local ip address that is still there, and moves the rest
+     * over to the new network by connecting to the users again right away.
+     *
+     * @param localIpAddresses The local ip addresses that can still be used.
+     * @return The number of connections that were moved.
+     */
+    public synchronized int migrateConnections(final Set<String> localIpAddresses) {
+        Validate.notNull(localIpAddresses, "Local ip addresses can not be null");
+
+        int migrated = 0;
+
+        for (final Map.Entry<User, TCPUserClient> entry : userClients.entrySet()) {
+            final TCPUserClient userClient = entry.getValue();
+            final int disconnected = userClient.disconnectUnroutableClients(localIpAddresses);
+            migrated += disconnected;
+
+            if (disconnected > 0 && userClient.getClientCount() == 0 && connected && isUserListed(entry.getKey())) {
+                reconnectScheduler.cancel(entry.getKey());
+                connectToUser(entry.getKey());
+            }
+        }
+
+        return migrated;
+    }
+
+    private boolean isUserListed(final User user) {
+        return controller.getUser(user.getCode()) == user;
     }
 
     public void sendMessageToAll(final String message) {
@@ -170,12 +332,46 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
         }
     }
 
-    public void sendMessageToUser(final String message, final User user) {
+    /**
+     * Adds the message to the queue of messages to send to the user, if there is a tcp client for the user.
+     *
+     * @param message The message to send.
+     * @param user    The user to send the message to.
+     * @return The future telling if the message was written to a connection or not.
+     */
+    public SendFuture sendMessageToUser(final String message, final User user) {
         final TCPUserClient userClient = userClients.get(user);
 
-        if (userClient != null) {
-            userClient.send(message);
+        if (userClient == null) {
+            return SendFuture.completed(false);
+        }
+
+        return userClient.send(message);
+    }
+
+    /**
+     * Gets the users with tcp clients. The users are read without locking, like when sending to all.
+     *
+     * @return The users with tcp clients.
+     */
+    public Set<User> getConnectedUsers() {
+        return Collections.unmodifiableSet(userClients.keySet());
+    }
+
+    /**
+     * Gets the outbound queues of the users with tcp clients, with metrics about queue depth
+     * and write latency.
+     *
+     * @return The outbound queue of each user.
+     */
+    public Map<User, TCPOutboundQueue> getOutboundQueues() {
+        final Map<User, TCPOutboundQueue> outboundQueues = new HashMap<>();
+
+        for (final Map.Entry<User, TCPUserClient> entry : userClients.entrySet()) {
+            outboundQueues.put(entry.getKey(), entry.getValue().getOutboundQueue());
         }
+
+        return outboundQueues;
     }
 
     public void registerReceiverListener(final TCPReceiverListener theListener) {
@@ -194,29 +390,4 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
 
         return userClient != null && userClient.getClientCount() > 0;
     }
-
-    @Override
-    public void run() {
-        while (true) {
-            Tools.sleep(15_000);
-
-            if (!connected) {
-                continue;
-            }
-
-            for (final User user : userClients.keySet()) {
-                final TCPUserClient userClient = userClients.get(user);
-                final int clientCount = userClient.getClientCount();
-
-                if (clientCount == 0) {
-                    LOG.warning("User %s has lost all tcp connections. Trying to reconnect.", user.getNick());
-                    userAdded(user);
-                } else if (clientCount > 1) {
-                    LOG.warning("User %s has too many (%d) tcp connections. Trying to close.",
-                            user.getNick(), clientCount);
-                    userClient.disconnectAdditionalClients();
-                }
-            }
-        }
-    }
 }
\ No newline at end of file
@@ -22,19 +22,21 @@
 package org.dynamicsoft.vertochat.net.tcp;
 
 import org.dynamicsoft.vertochat.misc.User;
+import org.dynamicsoft.vertochat.net.PeerAddressCache;
 import org.dynamicsoft.vertochat.util.Logger;
-import org.dynamicsoft.vertochat.util.Sleeper;
 import org.dynamicsoft.vertochat.util.Validate;
 import org.jetbrains.annotations.Nullable;
 
+import javax.net.SocketFactory;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 
 /**
  * Creates a tcp connection to a user.
+ * <p>
+ * <p>The user must have a tcp chat port before connecting.
+ * Use {@link PeerAddressCache#awaitTcpChatPort(User)} to wait for it.</p>
  *
  * @author Christian Ihle
  */
@@ -44,21 +46,27 @@ public class TCPConnector {
     private static final int SOCKET_CONNECT_TIMEOUT = 10_000;
 
     private final User user;
-    private final Sleeper sleeper;
+    private final SocketFactory socketFactory;
+    private final PeerAddressCache peerAddressCache;
 
-    public TCPConnector(final User user) {
+    public TCPConnector(final User user, final PeerAddressCache peerAddressCache) {
+        this(user, SocketFactory.getDefault(), peerAddressCache);
+    }
+
+    public TCPConnector(final User user, final SocketFactory socketFactory, final PeerAddressCache peerAddressCache) {
         Validate.notNull(user, "User can not be null");
+        Validate.notNull(socketFactory, "Socket factory can not be null");
+        Validate.notNull(peerAddressCache, "Peer address cache can not be null");
 
         this.user = user;
-        this.sleeper = new Sleeper();
+        this.socketFactory = socketFactory;
+        this.peerAddressCache = peerAddressCache;
     }
 
     @Nullable
     public Socket connect() {
         LOG.fine("Connecting to user=%s", user.getNick());
 
-        waitForPort();
-
         if (user.getTcpChatPort() <= 0) {
             LOG.warning("User has no tcp port. Giving up.");
             return null;
@@ -66,8 +74,8 @@ public class TCPConnector {
 
         try {
             LOG.fine("Connecting to: %s@%s:%s", user.getNick(), user.getIpAddress(), user.getTcpChatPort());
-            final Socket socket = new Socket();
-            final SocketAddress address = new InetSocketAddress(InetAddress.getByName(user.getIpAddress()), user.getTcpChatPort());
+            final Socket socket = socketFactory.createSocket();
+            final SocketAddress address = peerAddressCache.getTcpChatAddress(user);
             socket.connect(address, SOCKET_CONNECT_TIMEOUT);
             LOG.fine("Connected to: %s@%s:%s", user.getNick(), socket.getInetAddress().getHostAddress(), socket.getPort());
 
@@ -78,13 +86,4 @@ public class TCPConnector {
 
         return null;
     }
-
-    private void waitForPort() {
-        int tries = 0;
-
-        while (user.getTcpChatPort() <= 0 && tries < 50) {
-            sleeper.sleep(50);
-            tries++;
-        }
-    }
 }
\ No newline at end of file
@@ -0,0 +1,361 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.net.MessageEncoder;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Frames the messages sent over a tcp connection, and finds the messages in the bytes received.
+ * <p>
+ * <p>Connections start out with the original frames from {@link java.io.DataOutputStream#writeUTF(String)}:
+ * a 2 byte length, followed by the message as modified UTF-8. Those frames can be no larger than 64 KB.
+ * When both sides support {@link Constants#PROTOCOL_VERSION_TCP_FRAMING}, the sender switches to frames with
+ * a varint length, followed by the message as standard UTF-8. The switch is marked by a length of
+ * <code>0xFFFF</code>, and can happen between any two frames. The other side switches the frames it sends too,
+ * as soon as it sees the marker.</p>
+ * <p>
+ * <p>A <code>writeUTF</code> frame of exactly 65535 bytes has the same length as the marker, so original frames
+ * written here are limited to 65534 bytes. Older clients don't know about the marker, but never send messages
+ * anywhere near that size, since the chat messages are limited to {@link Constants#MESSAGE_MAX_BYTES}.</p>
+ * <p>
+ * <p>Messages are written into a buffer, so all the messages written before the next flush
+ * are sent to the socket together.</p>
+ * <p>
+ * <p>The write methods must only be used by one thread at a time, and the same for the read methods.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPFrameCodec {
+
+    /**
+     * The max number of bytes in a message in the varint frames.
+     */
+    static final int MAX_MESSAGE_BYTES = 1024 * 1024;
+
+    /**
+     * The number of bytes waiting in the write buffer before it's full. One more message can always be
+     * written to a buffer that is not full, so the buffer never grows much larger than this.
+     */
+    static final int MAX_PENDING_WRITE_BYTES = 256 * 1024;
+
+    private static final int INITIAL_WRITE_BUFFER_SIZE = 1024;
+    private static final int LENGTH_PREFIX_SIZE = 2;
+    private static final int MAX_VARINT_SIZE = 5;
+    private static final int SWITCH_MARKER = 0xFFFF;
+
+    /**
+     * One byte less than {@link java.io.DataOutputStream#writeUTF(String)} allows, so a frame is never
+     * mistaken for the switch marker.
+     */
+    private static final int MAX_ORIGINAL_MESSAGE_BYTES = SWITCH_MARKER - 1;
+    private static final Charset UTF8 = Charset.forName(Constants.MESSAGE_CHARSET);
+
+    /**
+     * If this side should switch to varint frames before the next message.
+     */
+    private volatile boolean switchRequested;
+
+    /**
+     * If the other side has switched to varint frames. Only changed by the reading thread.
+     */
+    private volatile boolean readingVarintFrames;
+
+    private boolean writingVarintFrames;
+    private ByteBuffer writeBuffer;
+    private int requiredSize;
+
+    public TCPFrameCodec() {
+        writeBuffer = ByteBuffer.allocate(INITIAL_WRITE_BUFFER_SIZE);
+    }
+
+    /**
+     * Asks to switch to varint frames. Only use this when the other side supports
+     * {@link Constants#PROTOCOL_VERSION_TCP_FRAMING}.
+     */
+    public void requestSwitch() {
+        switchRequested = true;
+    }
+
+    /**
+     * Checks if the messages written now use varint frames.
+     *
+     * @return If using varint frames.
+     */
+    public boolean isWritingVarintFrames() {
+        return writingVarintFrames;
+    }
+
+    /**
+     * Frames the message, and adds it to the end of the write buffer.
+     *
+     * @param message The message to write.
+     * @throws IOException If the message is too large.
+     */
+    public void write(final String message) throws IOException {
+        if (!writingVarintFrames && (switchRequested || readingVarintFrames)) {
+            ensureWriteCapacity(LENGTH_PREFIX_SIZE);
+            writeBuffer.putShort((short) SWITCH_MARKER);
+            writingVarintFrames = true;
+        }
+
+        if (writingVarintFrames) {
+            writeVarintFrame(message);
+        } else {
+            writeOriginalFrame(message);
+        }
+    }
+
+    /**
+     * Gets the buffer with the written frames. The buffer is ready for more frames, and must be
+     * flipped before writing it to the socket, and compacted or cleared afterwards.
+     *
+     * @return The write buffer.
+     */
+    public ByteBuffer getWriteBuffer() {
+        return writeBuffer;
+    }
+
+    /**
+     * Replaces the write buffer with an empty buffer, so the written frames can be sent to the socket
+     * while new frames are written.
+     *
+     * @param emptyBuffer The buffer to write new frames to. Must be cleared.
+     * @return The buffer with the written frames. Must be flipped before sending.
+     */
+    public ByteBuffer takeWriteBuffer(final ByteBuffer emptyBuffer) {
+        final ByteBuffer buffer = writeBuffer;
+        writeBuffer = emptyBuffer;
+
+        return buffer;
+    }
+
+    /**
+     * Checks if the write buffer has {@link #MAX_PENDING_WRITE_BYTES} waiting to be sent.
+     * No more messages should be written until some of them are sent.
+     *
+     * @return If the write buffer is full.
+     */
+    public boolean isWriteBufferFull() {
+        return writeBuffer.position() >= MAX_PENDING_WRITE_BYTES;
+    }
+
+    /**
+     * Checks if there are frames in the write buffer.
+     *
+     * @return If there is anything to send.
+     */
+    public boolean hasPendingWrites() {
+        return writeBuffer.position() > 0;
+    }
+
+    /**
+     * Finds the next message in the buffer, and moves the position of the buffer past it.
+     *
+     * @param buffer The buffer with the received bytes, ready for reading.
+     * @return The message, or <code>null</code> if the next frame has not arrived completely.
+     * @throws IOException If the frame is invalid.
+     */
+    @Nullable
+    public String read(final ByteBuffer buffer) throws IOException {
+        while (true) {
+            if (readingVarintFrames) {
+                return readVarintFrame(buffer);
+            }
+
+            if (buffer.remaining() < LENGTH_PREFIX_SIZE) {
+                requiredSize = LENGTH_PREFIX_SIZE;
+                return null;
+            }
+
+            final int length = buffer.getShort(buffer.position()) & 0xFFFF;
+
+            if (length != SWITCH_MARKER) {
+                return readOriginalFrame(buffer, length);
+            }
+
+            buffer.position(buffer.position() + LENGTH_PREFIX_SIZE);
+            readingVarintFrames = true;
+        }
+    }
+
+    /**
+     * Gets the buffer ready for receiving more bytes after reading messages, by compacting it,
+     * or by moving the bytes to a larger buffer if the next frame does not fit.
+     *
+     * @param buffer The buffer the messages were read from.
+     * @return The buffer to receive more bytes in.
+     */
+    public ByteBuffer compact(final ByteBuffer buffer) {
+        if (buffer.capacity() < requiredSize) {
+            final ByteBuffer largerBuffer = ByteBuffer.allocate(requiredSize);
+            largerBuffer.put(buffer);
+
+            return largerBuffer;
+        }
+
+        return buffer.compact();
+    }
+
+    private void writeOriginalFrame(final String message) throws UTFDataFormatException {
+        final int length = getModifiedUTF8Length(message);
+
+        if (length > MAX_ORIGINAL_MESSAGE_BYTES) {
+            throw new UTFDataFormatException("Message too large: " + length + " bytes");
+        }
+
+        ensureWriteCapacity(LENGTH_PREFIX_SIZE + length);
+        writeBuffer.putShort((short) length);
+
+        for (int i = 0; i < message.length(); i++) {
+            final char c = message.charAt(i);
+
+            if (c >= 0x01 && c <= 0x7F) {
+                writeBuffer.put((byte) c);
+            } else if (c <= 0x7FF) {
+                writeBuffer.put((byte) (0xC0 | (c >> 6)));
+                writeBuffer.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                writeBuffer.put((byte) (0xE0 | (c >> 12)));
+                writeBuffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                writeBuffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private void writeVarintFrame(final String message) throws ProtocolException {
+        final int length = MessageEncoder.getEncodedLength(message, 0, message.length());
+
+        if (length > MAX_MESSAGE_BYTES) {
+            throw new ProtocolException("Message too large: " + length + " bytes");
+        }
+
+        ensureWriteCapacity(MAX_VARINT_SIZE + length);
+
+        int value = length;
+
+        while ((value & ~0x7F) != 0) {
+            writeBuffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        writeBuffer.put((byte) value);
+
+        final int end = MessageEncoder.encodeUTF8(message, 0, message.length(), writeBuffer.array(),
+                writeBuffer.arrayOffset() + writeBuffer.position());
+        writeBuffer.position(end - writeBuffer.arrayOffset());
+    }
+
+    @Nullable
+    private String readOriginalFrame(final ByteBuffer buffer, final int length) throws IOException {
+        final int frameSize = LENGTH_PREFIX_SIZE + length;
+
+        if (buffer.remaining() < frameSize) {
+            requiredSize = frameSize;
+            return null;
+        }
+
+        final DataInputStream frame = new DataInputStream(
+                new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), frameSize));
+        final String message = frame.readUTF();
+        buffer.position(buffer.position() + frameSize);
+
+        return message;
+    }
+
+    @Nullable
+    private String readVarintFrame(final ByteBuffer buffer) throws ProtocolException {
+        final int start = buffer.position();
+        int length = 0;
+        int position = start;
+
+        for (int shift = 0; ; shift += 7) {
+            if (position - start == MAX_VARINT_SIZE) {
+                throw new ProtocolException("Invalid length");
+            }
+
+            if (position == buffer.limit()) {
+                requiredSize = position - start + 1;
+                return null;
+            }
+
+            final byte b = buffer.get(position++);
+            length |= (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                break;
+            }
+        }
+
+        if (length < 0 || length > MAX_MESSAGE_BYTES) {
+            throw new ProtocolException("Invalid length: " + length);
+        }
+
+        if (buffer.limit() - position < length) {
+            requiredSize = position - start + length;
+            return null;
+        }
+
+        final String message = new String(buffer.array(), buffer.arrayOffset() + position, length, UTF8);
+        buffer.position(position + length);
+
+        return message;
+    }
+
+    private void ensureWriteCapacity(final int size) {
+        if (writeBuffer.remaining() >= size) {
+            return;
+        }
+
+        final ByteBuffer largerBuffer = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + size));
+        writeBuffer.flip();
+        largerBuffer.put(writeBuffer);
+        writeBuffer = largerBuffer;
+    }
+
+    private static int getModifiedUTF8Length(final String message) {
+        int length = 0;
+
+        for (int i = 0; i < message.length(); i++) {
+            final char c = message.charAt(i);
+
+            if (c >= 0x01 && c <= 0x7F) {
+                length++;
+            } else if (c <= 0x7FF) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+}
@@ -25,9 +25,14 @@ import org.dynamicsoft.vertochat.event.UserListListener;
 import org.dynamicsoft.vertochat.misc.Controller;
 import org.dynamicsoft.vertochat.misc.ErrorHandler;
 import org.dynamicsoft.vertochat.misc.User;
+import org.dynamicsoft.vertochat.net.PeerAddressCache;
+import org.dynamicsoft.vertochat.net.SendFuture;
 import org.dynamicsoft.vertochat.settings.Settings;
 import org.dynamicsoft.vertochat.util.Validate;
 
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Network service for administration of tcp communication.
  *
@@ -35,8 +40,8 @@ import org.dynamicsoft.vertochat.util.Validate;
  */
 public class TCPNetworkService implements UserListListener {
 
+    private final TCPTransport tcpTransport;
     private final TCPConnectionHandler tcpConnectionHandler;
-    private final TCPServer tcpServer;
 
     public TCPNetworkService(final Controller controller,
                              final Settings settings,
@@ -45,22 +50,42 @@ public class TCPNetworkService implements UserListListener {
         Validate.notNull(settings, "Settings can not be null");
         Validate.notNull(errorHandler, "Error handler can not be null");
 
-        this.tcpConnectionHandler = new TCPConnectionHandler(controller, settings);
-        this.tcpServer = new TCPServer(settings, errorHandler, tcpConnectionHandler);
+        this.tcpTransport = createTransport(settings, errorHandler, controller.getPeerAddressCache());
+        this.tcpConnectionHandler = new TCPConnectionHandler(controller, settings, tcpTransport);
 
         controller.getUserList().addUserListListener(this);
     }
 
+    private TCPTransport createTransport(final Settings settings, final ErrorHandler errorHandler,
+                                         final PeerAddressCache peerAddressCache) {
+        if (settings.isSelectorTcp()) {
+            return new TCPSelectorTransport(settings, errorHandler, peerAddressCache);
+        }
+
+        return new TCPSocketTransport(settings, errorHandler, peerAddressCache);
+    }
+
     public void startService() {
-        tcpServer.startServer();
+        tcpTransport.startServer(tcpConnectionHandler);
         tcpConnectionHandler.connect();
     }
 
     public void stopService() {
-        tcpServer.stopServer();
+        tcpTransport.stopServer();
         tcpConnectionHandler.disconnect();
     }
 
+    /**
+     * Keeps the tcp connections that still work after moving to another network interface,
+     * and connects again to the users of the rest. The server keeps listening on every network interface.
+     *
+     * @param localIpAddresses The ip addresses of the usable network interfaces.
+     * @return The number of connections that were moved.
+     */
+    public int migrateConnections(final Set<String> localIpAddresses) {
+        return tcpConnectionHandler.migrateConnections(localIpAddresses);
+    }
+
     @Override
     public void userAdded(final int pos, final User user) {
         tcpConnectionHandler.userAdded(user);
@@ -80,8 +105,27 @@ public class TCPNetworkService implements UserListListener {
         tcpConnectionHandler.sendMessageToAll(message);
     }
 
-    public void sendMessageToUser(final String message, final User user) {
-        tcpConnectionHandler.sendMessageToUser(message, user);
+    public SendFuture sendMessageToUser(final String message, final User user) {
+        return tcpConnectionHandler.sendMessageToUser(message, user);
+    }
+
+    /**
+     * Gets the users with tcp clients.
+     *
+     * @return The users with tcp clients.
+     */
+    public Set<User> getConnectedUsers() {
+        return tcpConnectionHandler.getConnectedUsers();
+    }
+
+    /**
+     * Gets the outbound queues of the users with tcp clients, with metrics about queue depth
+     * and write latency.
+     *
+     * @return The outbound queue of each user.
+     */
+    public Map<User, TCPOutboundQueue> getOutboundQueues() {
+        return tcpConnectionHandler.getOutboundQueues();
     }
 
     public void registerReceiverListener(final TCPReceiverListener listener) {
@@ -0,0 +1,431 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.dynamicsoft.vertochat.net.MessageType;
+import org.dynamicsoft.vertochat.net.SendFuture;
+import org.dynamicsoft.vertochat.util.Logger;
+import org.dynamicsoft.vertochat.util.Validate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of messages waiting to be sent to one user over tcp.
+ * <p>
+ * <p>Messages are written to the connection by a writer task on an {@link Executor}, so a user with a slow
+ * connection only delays the messages to that user. The writer task runs while there are messages
+ * in the queue, and is started again by the next message.</p>
+ * <p>
+ * <p>The queue is bounded, and what happens when it's full depends on the {@link OverflowPolicy} of the
+ * message type. Status messages are dropped first, to make room for the rest. Chat messages are never
+ * dropped, so if there is no room for one the connection is given up on instead.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPOutboundQueue implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(TCPOutboundQueue.class);
+
+    /**
+     * The max number of messages waiting to be sent to the user.
+     */
+    public static final int MAX_QUEUED_MESSAGES = 256;
+
+    private final Executor executor;
+    private final Writer writer;
+
+    /**
+     * The waiting messages. Guarded by itself.
+     */
+    private final Deque<QueuedMessage> messages;
+
+    private final AtomicLong sentMessages;
+    private final AtomicLong failedMessages;
+    private final AtomicLong droppedMessages;
+    private final AtomicLong overflows;
+    private final AtomicLong totalLatencyNanos;
+    private final AtomicLong maxLatencyNanos;
+
+    /**
+     * If the writer task is running, or about to run. Guarded by the messages.
+     */
+    private boolean writerScheduled;
+
+    /**
+     * Guarded by the messages.
+     */
+    private int maxQueueDepth;
+
+    /**
+     * Constructor.
+     *
+     * @param executor The executor to run the writer task on.
+     * @param writer   Writes the messages to the connection, and handles overflow.
+     */
+    public TCPOutboundQueue(final Executor executor, final Writer writer) {
+        Validate.notNull(executor, "Executor can not be null");
+        Validate.notNull(writer, "Writer can not be null");
+
+        this.executor = executor;
+        this.writer = writer;
+        this.messages = new ArrayDeque<>();
+
+        sentMessages = new AtomicLong();
+        failedMessages = new AtomicLong();
+        droppedMessages = new AtomicLong();
+        overflows = new AtomicLong();
+        totalLatencyNanos = new AtomicLong();
+        maxLatencyNanos = new AtomicLong();
+    }
+
+    /**
+     * Adds a message to the queue, and starts the writer task if it's not already running.
+     * Never blocks.
+     *
+     * @param message The message to send.
+     * @return If the message was added to the queue.
+     */
+    public boolean offer(final String message) {
+        return offer(message, new SendFuture());
+    }
+
+    /**
+     * Adds a message to the queue like {@link #offer(String)}, and returns a future that completes when
+     * the message has been written to the connection, or was dropped.
+     *
+     * @param message The message to send.
+     * @return The future telling if the message was written or not.
+     */
+    public SendFuture submit(final String message) {
+        final SendFuture future = new SendFuture();
+        offer(message, future);
+
+        return future;
+    }
+
+    private boolean offer(final String message, final SendFuture future) {
+        Validate.notNull(message, "Message can not be null");
+
+        final OverflowPolicy policy = OverflowPolicy.forType(MessageType.fromMessage(message));
+        final boolean startWriter;
+
+        synchronized (messages) {
+            if (messages.size() >= MAX_QUEUED_MESSAGES && !dropToMakeRoom(policy)) {
+                if (policy == OverflowPolicy.DISCONNECT) {
+                    overflows.incrementAndGet();
+                    startWriter = false;
+                } else {
+                    droppedMessages.incrementAndGet();
+                    LOG.fine("Outbound queue is full, dropped: %s", message);
+                    future.complete(0);
+
+                    return false;
+                }
+            } else {
+                messages.add(new QueuedMessage(message, policy, System.nanoTime(), future));
+                maxQueueDepth = Math.max(maxQueueDepth, messages.size());
+                startWriter = !writerScheduled;
+                writerScheduled = true;
+
+                if (!startWriter) {
+                    return true;
+                }
+            }
+        }
+
+        if (startWriter) {
+            executor.execute(this);
+            return true;
+        }
+
+        LOG.warning("Outbound queue is full of messages that can not be dropped: %s", message);
+        future.complete(0);
+        writer.overflowed();
+
+        return false;
+    }
+
+    /**
+     * Removes the oldest message that can be dropped to make room for a message with the given policy.
+     * Must hold the lock on the messages.
+     *
+     * @param policy The policy of the new message.
+     * @return If a message was removed.
+     */
+    private boolean dropToMakeRoom(final OverflowPolicy policy) {
+        if (dropFirst(OverflowPolicy.DROP_STALE)) {
+            return true;
+        }
+
+        return policy == OverflowPolicy.DISCONNECT && dropFirst(OverflowPolicy.DROP);
+    }
+
+    private boolean dropFirst(final OverflowPolicy policy) {
+        final Iterator<QueuedMessage> iterator = messages.iterator();
+
+        while (iterator.hasNext()) {
+            final QueuedMessage queuedMessage = iterator.next();
+
+            if (queuedMessage.policy == policy) {
+                iterator.remove();
+                droppedMessages.incrementAndGet();
+                LOG.fine("Outbound queue is full, dropped: %s", queuedMessage.message);
+                queuedMessage.future.complete(0);
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Removes all the waiting messages.
+     */
+    public void clear() {
+        final List<QueuedMessage> clearedMessages;
+
+        synchronized (messages) {
+            droppedMessages.addAndGet(messages.size());
+            clearedMessages = new ArrayList<>(messages);
+            messages.clear();
+        }
+
+        for (final QueuedMessage clearedMessage : clearedMessages) {
+            clearedMessage.future.complete(0);
+        }
+    }
+
+    /**
+     * The writer task. Writes messages until the queue is empty.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            final QueuedMessage queuedMessage;
+
+            synchronized (messages) {
+                queuedMessage = messages.poll();
+
+                if (queuedMessage == null) {
+                    writerScheduled = false;
+                    return;
+                }
+            }
+
+            boolean written = false;
+
+            try {
+                written = writer.write(queuedMessage.message);
+            } catch (final RuntimeException e) {
+                LOG.severe(e, "Failed to write: %s", queuedMessage.message);
+            }
+
+            queuedMessage.future.complete(written ? 1 : 0);
+
+            if (!written) {
+                failedMessages.incrementAndGet();
+                continue;
+            }
+
+            final long latency = System.nanoTime() - queuedMessage.queuedAt;
+            totalLatencyNanos.addAndGet(latency);
+            updateMax(maxLatencyNanos, latency);
+            sentMessages.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the number of messages waiting to be sent right now.
+     *
+     * @return The number of messages in the queue.
+     */
+    public int getQueueDepth() {
+        synchronized (messages) {
+            return messages.size();
+        }
+    }
+
+    /**
+     * Gets the largest number of messages that have been waiting in the queue at once.
+     *
+     * @return The max queue depth.
+     */
+    public int getMaxQueueDepth() {
+        synchronized (messages) {
+            return maxQueueDepth;
+        }
+    }
+
+    /**
+     * Gets the number of messages that have been written to the connection.
+     *
+     * @return The number of sent messages.
+     */
+    public long getSentMessages() {
+        return sentMessages.get();
+    }
+
+    /**
+     * Gets the number of messages the writer task failed to write to the connection.
+     *
+     * @return The number of failed messages.
+     */
+    public long getFailedMessages() {
+        return failedMessages.get();
+    }
+
+    /**
+     * Gets the number of messages that were dropped because the queue was full, or cleared.
+     *
+     * @return The number of dropped messages.
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * Gets the number of times the queue was full of messages that could not be dropped.
+     *
+     * @return The number of overflows.
+     */
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    /**
+     * Gets the average time from a message was added to the queue until it was written.
+     *
+     * @return The average latency in microseconds, or 0 if nothing has been sent.
+     */
+    public long getAverageLatencyMicros() {
+        final long messageCount = sentMessages.get();
+
+        if (messageCount == 0) {
+            return 0;
+        }
+
+        return TimeUnit.NANOSECONDS.toMicros(totalLatencyNanos.get() / messageCount);
+    }
+
+    /**
+     * Gets the longest time from a message was added to the queue until it was written.
+     *
+     * @return The max latency in microseconds.
+     */
+    public long getMaxLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos.get());
+    }
+
+    private static void updateMax(final AtomicLong max, final long value) {
+        long current = max.get();
+
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * What to do with a message when the queue is full.
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * The message only tells the current status, and the next status message makes it obsolete.
+         * Dropped when there is no room, and the first to be dropped to make room for other messages.
+         */
+        DROP_STALE,
+
+        /**
+         * Dropped when there is no room. The information is repeated over multicast anyway.
+         */
+        DROP,
+
+        /**
+         * Must never be dropped. Other messages are dropped to make room, and if that's not
+         * possible the connection is given up on.
+         */
+        DISCONNECT;
+
+        /**
+         * Finds the policy for the type of message.
+         *
+         * @param type The type of the message.
+         * @return The policy to use for that type.
+         */
+        public static OverflowPolicy forType(final MessageType type) {
+            switch (type) {
+                case WRITING:
+                case STOPPEDWRITING:
+                case IDLE:
+                    return DROP_STALE;
+                case MSG:
+                case PRIVMSG:
+                    return DISCONNECT;
+                default:
+                    return DROP;
+            }
+        }
+    }
+
+    /**
+     * Writes the messages from the queue to the connection.
+     */
+    public interface Writer {
+
+        /**
+         * Writes the message. Called on the writer task, and may block.
+         *
+         * @param message The message to write.
+         * @return If the message was written.
+         */
+        boolean write(String message);
+
+        /**
+         * Called when a message that can not be dropped did not fit in the queue.
+         */
+        void overflowed();
+    }
+
+    private static final class QueuedMessage {
+
+        private final String message;
+        private final OverflowPolicy policy;
+        private final long queuedAt;
+        private final SendFuture future;
+
+        private QueuedMessage(final String message, final OverflowPolicy policy, final long queuedAt,
+                              final SendFuture future) {
+            this.message = message;
+            this.policy = policy;
+            this.queuedAt = queuedAt;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.dynamicsoft.vertochat.misc.User;
+import org.dynamicsoft.vertochat.util.Logger;
+import org.dynamicsoft.vertochat.util.Validate;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules reconnects to users that have lost their tcp connections, and cleanup of duplicate connections.
+ * <p>
+ * <p>Each user has its own backoff. The first attempt is made shortly after the connection was lost,
+ * so a short network glitch is recovered from quickly, and the delay is doubled for every failed attempt
+ * up to {@link #MAX_DELAY_MS}. The delays are randomized, so users that lost their connections at the same
+ * time, like when an access point comes back up, don't all reconnect at the same time.</p>
+ * <p>
+ * <p>All the tasks run on one shared scheduler thread, and must not block. The scheduler is also used
+ * for other tcp timeouts, with {@link #schedule(Runnable, long)}.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPReconnectScheduler {
+
+    private static final Logger LOG = Logger.getLogger(TCPReconnectScheduler.class);
+
+    /**
+     * The delay before the first attempt to reconnect.
+     */
+    static final long INITIAL_DELAY_MS = 1000;
+
+    /**
+     * The max delay between attempts to reconnect.
+     */
+    static final long MAX_DELAY_MS = 60_000;
+
+    /**
+     * The delay before checking for duplicate connections after a new connection was added.
+     */
+    static final long DUPLICATE_CLEANUP_DELAY_MS = 1000;
+
+    private final Reconnector reconnector;
+    private final ScheduledExecutorService scheduler;
+    private final Random random;
+
+    /**
+     * The users waiting for the next attempt to reconnect, or with failed attempts. Guarded by this.
+     */
+    private final Map<User, Backoff> backoffs;
+
+    /**
+     * Constructor.
+     *
+     * @param reconnector Tries to reconnect to a user when it's time.
+     */
+    public TCPReconnectScheduler(final Reconnector reconnector) {
+        this(reconnector, createScheduler(), new Random());
+    }
+
+    TCPReconnectScheduler(final Reconnector reconnector, final ScheduledExecutorService scheduler, final Random random) {
+        Validate.notNull(reconnector, "Reconnector can not be null");
+        Validate.notNull(scheduler, "Scheduler can not be null");
+        Validate.notNull(random, "Random can not be null");
+
+        this.reconnector = reconnector;
+        this.scheduler = scheduler;
+        this.random = random;
+        this.backoffs = new HashMap<>();
+    }
+
+    /**
+     * Schedules an attempt to reconnect to a user that lost all the tcp connections.
+     *
+     * @param user The user that lost the connections.
+     */
+    public void connectionLost(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        LOG.warning("User %s has lost all tcp connections. Trying to reconnect.", user.getNick());
+        scheduleReconnect(user);
+    }
+
+    /**
+     * Schedules a new attempt to reconnect to a user after a failed attempt, with a longer delay.
+     *
+     * @param user The user that could not be connected to.
+     */
+    public void connectFailed(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        scheduleReconnect(user);
+    }
+
+    /**
+     * Resets the backoff of a user that is connected again, and cancels any waiting attempt.
+     *
+     * @param user The user that is connected.
+     */
+    public synchronized void connected(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        cancel(backoffs.remove(user));
+    }
+
+    /**
+     * Stops trying to reconnect to a user that is gone.
+     *
+     * @param user The user to stop reconnecting to.
+     */
+    public synchronized void cancel(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        cancel(backoffs.remove(user));
+    }
+
+    /**
+     * Stops trying to reconnect to any user.
+     */
+    public synchronized void cancelAll() {
+        for (final Backoff backoff : backoffs.values()) {
+            cancel(backoff);
+        }
+
+        backoffs.clear();
+    }
+
+    /**
+     * Schedules a check for duplicate connections to the user after a randomized delay. Both sides check,
+     * so the delay makes it less likely that both sides try to disconnect at the same time.
+     *
+     * @param userClient The clients of the user to check.
+     */
+    public void scheduleDuplicateCleanup(final TCPUserClient userClient) {
+        Validate.notNull(userClient, "User client can not be null");
+
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                userClient.disconnectAdditionalClients();
+            }
+        }, DUPLICATE_CLEANUP_DELAY_MS + nextLong(DUPLICATE_CLEANUP_DELAY_MS));
+    }
+
+    /**
+     * Runs a task on the scheduler thread after a delay. The task must not block.
+     *
+     * @param task    The task to run.
+     * @param delayMs The delay in milliseconds.
+     * @return The scheduled task, for cancelling.
+     */
+    public ScheduledFuture<?> schedule(final Runnable task, final long delayMs) {
+        Validate.notNull(task, "Task can not be null");
+
+        return scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (final RuntimeException e) {
+                    LOG.severe(e, "Scheduled task failed");
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the number of attempts to reconnect to the user since the last successful connection.
+     *
+     * @param user The user to check.
+     * @return The number of attempts.
+     */
+    public synchronized int getAttempts(final User user) {
+        final Backoff backoff = backoffs.get(user);
+
+        return backoff == null ? 0 : backoff.attempts;
+    }
+
+    /**
+     * Gets a randomized delay before the next attempt. Between half and all of the
+     * exponential delay for the attempt, so the attempts are spread out, but never too early.
+     *
+     * @param attempts The number of attempts already made.
+     * @return The delay in milliseconds.
+     */
+    long getDelayMs(final int attempts) {
+        final long delay = Math.min(MAX_DELAY_MS, INITIAL_DELAY_MS << Math.min(attempts, 16));
+        final long halfDelay = delay / 2;
+
+        return halfDelay + nextLong(delay - halfDelay);
+    }
+
+    private synchronized void scheduleReconnect(final User user) {
+        Backoff backoff = backoffs.get(user);
+
+        if (backoff == null) {
+            backoff = new Backoff();
+            backoffs.put(user, backoff);
+        }
+
+        if (backoff.future != null) {
+            LOG.fine("Reconnect to %s is already scheduled", user.getNick());
+            return;
+        }
+
+        final long delay = getDelayMs(backoff.attempts);
+        backoff.attempts++;
+
+        LOG.fine("Reconnect attempt %d to %s in %d ms", backoff.attempts, user.getNick(), delay);
+
+        final Backoff scheduledBackoff = backoff;
+
+        backoff.future = schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (startReconnect(user, scheduledBackoff)) {
+                    reconnector.reconnect(user);
+                }
+            }
+        }, delay);
+    }
+
+    private synchronized boolean startReconnect(final User user, final Backoff backoff) {
+        if (backoffs.get(user) != backoff) {
+            return false;
+        }
+
+        backoff.future = null;
+
+        return true;
+    }
+
+    private long nextLong(final long bound) {
+        if (bound <= 0) {
+            return 0;
+        }
+
+        return (long) (random.nextDouble() * bound);
+    }
+
+    private static void cancel(final Backoff backoff) {
+        if (backoff != null && backoff.future != null) {
+            backoff.future.cancel(false);
+        }
+    }
+
+    private static ScheduledExecutorService createScheduler() {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, TCPReconnectScheduler.class.getSimpleName());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        executor.setRemoveOnCancelPolicy(true);
+
+        return executor;
+    }
+
+    /**
+     * Tries to reconnect to a user.
+     */
+    public interface Reconnector {
+
+        /**
+         * Called on the scheduler thread when it's time to try to reconnect. Must not block.
+         * Report the result with {@link #connected(User)} or {@link #connectFailed(User)}.
+         *
+         * @param user The user to reconnect to.
+         */
+        void reconnect(User user);
+    }
+
+    private static final class Backoff {
+
+        private int attempts;
+        private ScheduledFuture<?> future;
+    }
+}
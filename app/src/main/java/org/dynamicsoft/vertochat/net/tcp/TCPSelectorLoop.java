@@ -0,0 +1,232 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.dynamicsoft.vertochat.util.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event loop running all the non-blocking tcp channels on a single {@link Selector} and thread.
+ * <p>
+ * <p>Channels are registered with a {@link Handler} that is notified on the loop thread when
+ * the channel is ready. Other threads can run tasks on the loop thread using {@link #execute(Runnable)},
+ * which is required for anything that changes the registration of a channel.</p>
+ * <p>
+ * <p>The loop runs until {@link #stop()}, which closes the selector, and can be started again afterwards.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPSelectorLoop implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(TCPSelectorLoop.class);
+
+    /**
+     * How long to wait for the loop thread to end when stopping, in milliseconds.
+     */
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    private final Queue<Runnable> tasks;
+
+    @Nullable
+    private volatile Selector selector;
+
+    @Nullable
+    private volatile Thread worker;
+
+    /**
+     * If the loop should keep running. Set to false to make the loop thread end.
+     */
+    private volatile boolean running;
+
+    public TCPSelectorLoop() {
+        this.tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Opens the selector and starts the loop thread, unless already started.
+     *
+     * @throws IOException If the selector could not be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (worker != null && worker.isAlive()) {
+            return;
+        }
+
+        selector = Selector.open();
+        running = true;
+        worker = new Thread(this, getClass().getSimpleName());
+        worker.start();
+    }
+
+    /**
+     * Stops the loop thread, and closes the selector. The channels are not closed, but they are no longer
+     * registered with the selector. Tasks that have not run yet are thrown away.
+     */
+    public void stop() {
+        final Thread currentWorker;
+        final Selector currentSelector;
+
+        synchronized (this) {
+            currentWorker = worker;
+            currentSelector = selector;
+
+            if (currentWorker == null || currentSelector == null) {
+                return;
+            }
+
+            running = false;
+            worker = null;
+            selector = null;
+        }
+
+        currentSelector.wakeup();
+
+        if (currentWorker != Thread.currentThread()) {
+            try {
+                currentWorker.join(STOP_TIMEOUT_MS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (currentWorker.isAlive()) {
+                LOG.warning("Selector loop did not stop within %s ms", STOP_TIMEOUT_MS);
+            }
+        }
+
+        try {
+            currentSelector.close();
+        } catch (final IOException e) {
+            LOG.warning(e.toString());
+        }
+
+        tasks.clear();
+    }
+
+    /**
+     * Runs a task on the loop thread.
+     *
+     * @param task The task to run.
+     */
+    public void execute(final Runnable task) {
+        tasks.add(task);
+
+        final Selector currentSelector = selector;
+
+        if (currentSelector != null) {
+            currentSelector.wakeup();
+        }
+    }
+
+    /**
+     * Registers a channel with the selector. Must be called on the loop thread.
+     *
+     * @param channel     The channel to register. Will be set to non-blocking.
+     * @param interestOps The operations to be notified of.
+     * @param handler     The handler to notify.
+     * @return The selection key of the channel.
+     * @throws IOException If the channel could not be registered.
+     */
+    public SelectionKey register(final SelectableChannel channel, final int interestOps, final Handler handler)
+            throws IOException {
+        if (selector == null) {
+            throw new ClosedChannelException();
+        }
+
+        channel.configureBlocking(false);
+        return channel.register(selector, interestOps, handler);
+    }
+
+    /**
+     * Checks if the current thread is the loop thread.
+     *
+     * @return If called from the loop thread.
+     */
+    public boolean isLoopThread() {
+        return Thread.currentThread() == worker;
+    }
+
+    @Override
+    public void run() {
+        final Selector currentSelector = selector;
+
+        while (running && currentSelector != null && currentSelector.isOpen()) {
+            try {
+                currentSelector.select();
+                runTasks();
+                handleSelectedKeys(currentSelector);
+            }
+
+            // Should not happen, but make sure the loop keeps running
+            catch (final IOException | RuntimeException e) {
+                LOG.severe(e, "Error in selector loop");
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void handleSelectedKeys(final Selector currentSelector) {
+        final Iterator<SelectionKey> selectedKeys = currentSelector.selectedKeys().iterator();
+
+        while (selectedKeys.hasNext()) {
+            final SelectionKey key = selectedKeys.next();
+            selectedKeys.remove();
+
+            try {
+                if (key.isValid()) {
+                    ((Handler) key.attachment()).channelReady(key);
+                }
+            } catch (final CancelledKeyException e) {
+                LOG.fine("Channel closed while handling it: %s", e.toString());
+            }
+        }
+    }
+
+    /**
+     * Handler for events on a registered channel.
+     */
+    public interface Handler {
+
+        /**
+         * The channel is ready for one or more of the operations of interest. Called on the loop thread.
+         *
+         * @param key The selection key of the channel.
+         */
+        void channelReady(SelectionKey key);
+    }
+}
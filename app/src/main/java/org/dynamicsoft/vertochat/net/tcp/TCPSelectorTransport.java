@@ -0,0 +1,212 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.misc.ErrorHandler;
+import org.dynamicsoft.vertochat.misc.User;
+import org.dynamicsoft.vertochat.net.PeerAddressCache;
+import org.dynamicsoft.vertochat.settings.Settings;
+import org.dynamicsoft.vertochat.util.IOTools;
+import org.dynamicsoft.vertochat.util.Logger;
+import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transport using non-blocking channels, where accepting connections and reading from all
+ * the connected clients happens on a single {@link TCPSelectorLoop}.
+ *
+ * @author Christian Ihle
+ */
+public class TCPSelectorTransport implements TCPTransport, TCPSelectorLoop.Handler {
+
+    private static final Logger LOG = Logger.getLogger(TCPSelectorTransport.class);
+
+    private static final int MAX_PORT_ATTEMPTS = 50;
+
+    private final User me;
+    private final ErrorHandler errorHandler;
+    private final TCPSelectorLoop selectorLoop;
+    private final TCPChannelSocketFactory socketFactory;
+    private final IOTools ioTools;
+    private final PeerAddressCache peerAddressCache;
+
+    @Nullable
+    private volatile TCPConnectionListener connectionListener;
+
+    @Nullable
+    private ServerSocketChannel serverChannel;
+
+    public TCPSelectorTransport(final Settings settings, final ErrorHandler errorHandler,
+                                final PeerAddressCache peerAddressCache) {
+        Validate.notNull(settings, "Settings can not be null");
+        Validate.notNull(errorHandler, "Error handler can not be null");
+        Validate.notNull(peerAddressCache, "Peer address cache can not be null");
+
+        this.me = settings.getMe();
+        this.errorHandler = errorHandler;
+        this.selectorLoop = new TCPSelectorLoop();
+        this.socketFactory = new TCPChannelSocketFactory();
+        this.ioTools = new IOTools();
+        this.peerAddressCache = peerAddressCache;
+    }
+
+    @Override
+    public synchronized void startServer(final TCPConnectionListener theConnectionListener) {
+        LOG.fine("Connecting...");
+
+        if (serverChannel != null) {
+            LOG.fine("Already connected.");
+            return;
+        }
+
+        try {
+            selectorLoop.start();
+        } catch (final IOException e) {
+            LOG.severe(e, "Failed to start selector");
+            errorHandler.showError("Failed to initialize tcp network:\n" + e +
+                    "\n\nYou will not be able to receive tcp messages!");
+            return;
+        }
+
+        connectionListener = theConnectionListener;
+
+        int port = Constants.NETWORK_PRIVCHAT_PORT;
+        int portAttempt = 0;
+
+        while (portAttempt < MAX_PORT_ATTEMPTS && serverChannel == null) {
+            try {
+                serverChannel = openServerChannel(port);
+                me.setTcpChatPort(port);
+                LOG.fine("Connected to port: %s", port);
+            } catch (final IOException e) {
+                LOG.severe("%s %s", e.toString(), port);
+
+                portAttempt++;
+                port++;
+                me.setTcpChatPort(0);
+            }
+        }
+
+        if (serverChannel == null) {
+            final String error = "Failed to initialize tcp network:" +
+                    "\nNo available listening port between " + Constants.NETWORK_PRIVCHAT_PORT +
+                    " and " + (port - 1) + "." +
+                    "\n\nYou will not be able to receive tcp messages!";
+
+            LOG.severe(error);
+            errorHandler.showError(error);
+        }
+    }
+
+    private ServerSocketChannel openServerChannel(final int port) throws IOException {
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+
+        try {
+            channel.bind(new InetSocketAddress(port));
+        } catch (final IOException e) {
+            ioTools.close(channel);
+            throw e;
+        }
+
+        selectorLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    selectorLoop.register(channel, SelectionKey.OP_ACCEPT, TCPSelectorTransport.this);
+                } catch (final IOException e) {
+                    LOG.severe(e, "Failed to register server channel");
+                }
+            }
+        });
+
+        return channel;
+    }
+
+    @Override
+    public synchronized void stopServer() {
+        LOG.fine("Disconnecting...");
+
+        // The loop is started even if no port was available, so stop it either way
+        selectorLoop.stop();
+
+        if (serverChannel == null) {
+            LOG.fine("Not connected.");
+            return;
+        }
+
+        ioTools.close(serverChannel);
+        serverChannel = null;
+
+        LOG.fine("Disconnected.");
+    }
+
+    @Override
+    public void channelReady(final SelectionKey key) {
+        if (!key.isAcceptable()) {
+            return;
+        }
+
+        final ServerSocketChannel channel = (ServerSocketChannel) key.channel();
+
+        try {
+            SocketChannel socketChannel;
+
+            while ((socketChannel = channel.accept()) != null) {
+                final TCPConnectionListener currentListener = connectionListener;
+
+                if (currentListener != null) {
+                    currentListener.socketAdded(socketChannel.socket());
+                } else {
+                    ioTools.close(socketChannel);
+                }
+            }
+        }
+
+        // Happens when server channel is closed, or network is down
+        catch (final IOException e) {
+            if (channel.isOpen()) {
+                LOG.warning(e.toString());
+            } else {
+                LOG.fine(e.toString());
+            }
+        }
+    }
+
+    @Nullable
+    @Override
+    public Socket connect(final User user) {
+        return new TCPConnector(user, socketFactory, peerAddressCache).connect();
+    }
+
+    @Override
+    public TCPClient createClient(final Socket socket) {
+        return new TCPChannelClient(socket.getChannel(), selectorLoop);
+    }
+}
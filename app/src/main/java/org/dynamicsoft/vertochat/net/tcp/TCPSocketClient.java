@@ -0,0 +1,267 @@
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.dynamicsoft.vertochat.util.Logger;
+import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Client for communicating over a tcp socket, using a thread that blocks while waiting for messages.
+ * <p>
+ * <p>Messages are framed by a {@link TCPFrameCodec}. Messages sent while another thread is writing to
+ * the socket are collected, and sent together in one write when that thread is done.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPSocketClient implements TCPClient, Runnable {
+
+    private static final Logger LOG = Logger.getLogger(TCPSocketClient.class);
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final Socket socket;
+    private final TCPFrameCodec codec;
+
+    /**
+     * Guards the writing side of the codec, and the writing flag.
+     */
+    private final Object writeLock;
+
+    /**
+     * If a thread is writing to the socket, and will send the messages written to the codec meanwhile.
+     */
+    private boolean writing;
+
+    /**
+     * The buffer to give the codec when taking the written frames. Only used by the writing thread.
+     */
+    private ByteBuffer spareWriteBuffer;
+
+    @Nullable
+    private InputStream inputStream;
+
+    @Nullable
+    private OutputStream outputStream;
+
+    @Nullable
+    private TCPClientListener clientListener;
+
+    private volatile boolean connected;
+    private boolean disconnecting;
+
+    public TCPSocketClient(final Socket socket) {
+        Validate.notNull(socket, "Socket can not be null");
+
+        this.socket = socket;
+        this.codec = new TCPFrameCodec();
+        this.writeLock = new Object();
+        this.spareWriteBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        try {
+            while (connected && inputStream != null) {
+                final int bytesRead = inputStream.read(readBuffer.array(),
+                        readBuffer.arrayOffset() + readBuffer.position(), readBuffer.remaining());
+
+                if (bytesRead < 0) {
+                    throw new EOFException("Connection closed by " + getIPAddress());
+                }
+
+                readBuffer.position(readBuffer.position() + bytesRead);
+                readBuffer.flip();
+                String message;
+
+                while (connected && (message = codec.read(readBuffer)) != null) {
+                    LOG.fine("Message arrived from %s: %s", getIPAddress(), message);
+
+                    if (clientListener != null) {
+                        clientListener.messageArrived(message, this);
+                    }
+                }
+
+                readBuffer = codec.compact(readBuffer);
+            }
+        } catch (final IOException e) {
+            LOG.severe(e.toString());
+            connected = false;
+
+            if (clientListener != null) {
+                clientListener.disconnected(this);
+            }
+        }
+    }
+
+    @Override
+    public boolean send(final String message) {
+        if (!connected || outputStream == null) {
+            return false;
+        }
+
+        try {
+            synchronized (writeLock) {
+                codec.write(message);
+
+                // The thread already writing sends this message when done with the previous ones
+                if (writing) {
+                    LOG.fine("Queued message: %s", message);
+                    return true;
+                }
+
+                writing = true;
+            }
+
+            writeQueuedMessages(outputStream);
+            LOG.fine("Sent message: %s", message);
+
+            return true;
+        } catch (final IOException e) {
+            LOG.severe(e.toString());
+            connected = false;
+
+            if (clientListener != null) {
+                clientListener.disconnected(this);
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Writes everything in the codec to the socket, until there is nothing more to write.
+     * Must only be used by the thread that set the writing flag.
+     *
+     * @param stream The stream to write to.
+     * @throws IOException If writing fails.
+     */
+    private void writeQueuedMessages(final OutputStream stream) throws IOException {
+        try {
+            while (true) {
+                final ByteBuffer buffer;
+
+                synchronized (writeLock) {
+                    if (!codec.hasPendingWrites()) {
+                        writing = false;
+                        return;
+                    }
+
+                    buffer = codec.takeWriteBuffer(spareWriteBuffer);
+                }
+
+                stream.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+                stream.flush();
+
+                buffer.clear();
+                spareWriteBuffer = buffer;
+            }
+        } catch (final IOException e) {
+            synchronized (writeLock) {
+                writing = false;
+            }
+
+            throw e;
+        }
+    }
+
+    @Override
+    public void switchToVarintFrames() {
+        codec.requestSwitch();
+    }
+
+    @Override
+    public boolean connect() {
+        try {
+            // Messages are already collected before writing, so waiting for more data only adds latency
+            socket.setTcpNoDelay(true);
+
+            inputStream = socket.getInputStream();
+            outputStream = socket.getOutputStream();
+            LOG.fine("Connected to %s:%s", getIPAddress(), socket.getPort());
+
+            connected = true;
+            new Thread(this, getClass().getSimpleName()).start();
+
+            return true;
+        } catch (final IOException e) {
+            LOG.severe(e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        try {
+            LOG.fine("Disconnected from %s:%s", getIPAddress(), socket.getPort());
+            connected = false;
+            disconnecting = true;
+
+            if (clientListener != null) {
+                clientListener.disconnected(this);
+            }
+
+            socket.close();
+        } catch (final IOException e) {
+            LOG.warning(e.getMessage());
+        }
+    }
+
+    @Override
+    public String getIPAddress() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public String getLocalIPAddress() {
+        return socket.getLocalAddress().getHostAddress();
+    }
+
+    @Override
+    public void registerClientListener(@Nullable final TCPClientListener theClientListener) {
+        this.clientListener = theClientListener;
+    }
+
+    @Override
+    public boolean isDisconnecting() {
+        return disconnecting;
+    }
+
+    @Override
+    public void setDisconnecting(final boolean isDisconnecting) {
+        disconnecting = isDisconnecting;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,85 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.dynamicsoft.vertochat.misc.ErrorHandler;
+import org.dynamicsoft.vertochat.misc.User;
+import org.dynamicsoft.vertochat.net.PeerAddressCache;
+import org.dynamicsoft.vertochat.settings.Settings;
+import org.dynamicsoft.vertochat.util.Validate;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.Socket;
+
+/**
+ * Transport using blocking sockets, with one thread for accepting connections,
+ * and one thread for each connected client.
+ *
+ * @author Christian Ihle
+ */
+public class TCPSocketTransport implements TCPTransport {
+
+    private final Settings settings;
+    private final ErrorHandler errorHandler;
+    private final PeerAddressCache peerAddressCache;
+
+    @Nullable
+    private TCPServer tcpServer;
+
+    public TCPSocketTransport(final Settings settings, final ErrorHandler errorHandler,
+                              final PeerAddressCache peerAddressCache) {
+        Validate.notNull(settings, "Settings can not be null");
+        Validate.notNull(errorHandler, "Error handler can not be null");
+        Validate.notNull(peerAddressCache, "Peer address cache can not be null");
+
+        this.settings = settings;
+        this.errorHandler = errorHandler;
+        this.peerAddressCache = peerAddressCache;
+    }
+
+    @Override
+    public void startServer(final TCPConnectionListener connectionListener) {
+        if (tcpServer == null) {
+            tcpServer = new TCPServer(settings, errorHandler, connectionListener);
+        }
+
+        tcpServer.startServer();
+    }
+
+    @Override
+    public void stopServer() {
+        if (tcpServer != null) {
+            tcpServer.stopServer();
+        }
+    }
+
+    @Nullable
+    @Override
+    public Socket connect(final User user) {
+        return new TCPConnector(user, peerAddressCache).connect();
+    }
+
+    @Override
+    public TCPClient createClient(final Socket socket) {
+        return new TCPSocketClient(socket);
+    }
+}
@@ -0,0 +1,64 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.dynamicsoft.vertochat.misc.User;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.Socket;
+
+/**
+ * The way tcp connections are accepted, opened and read from.
+ *
+ * @author Christian Ihle
+ */
+public interface TCPTransport {
+
+    /**
+     * Starts listening for tcp connections from other users, and updates the tcp port of <code>me</code>.
+     *
+     * @param connectionListener The listener to notify of new connections.
+     */
+    void startServer(TCPConnectionListener connectionListener);
+
+    /**
+     * Stops listening for tcp connections.
+     */
+    void stopServer();
+
+    /**
+     * Opens a tcp connection to the user.
+     *
+     * @param user The user to connect to.
+     * @return The connected socket, or <code>null</code> if the connection failed.
+     */
+    @Nullable
+    Socket connect(User user);
+
+    /**
+     * Creates a client for communicating over a socket from this transport.
+     *
+     * @param socket The connected socket.
+     * @return A new client. Remember to connect it.
+     */
+    TCPClient createClient(Socket socket);
+}
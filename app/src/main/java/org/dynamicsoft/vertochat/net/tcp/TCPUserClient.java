@@ -21,16 +21,22 @@
 
 package org.dynamicsoft.vertochat.net.tcp;
 
+import org.dynamicsoft.vertochat.Constants;
 import org.dynamicsoft.vertochat.misc.User;
+import org.dynamicsoft.vertochat.net.SendFuture;
 import org.dynamicsoft.vertochat.util.Logger;
-import org.dynamicsoft.vertochat.util.Tools;
 import org.dynamicsoft.vertochat.util.Validate;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * Maps one or more tcp clients to a user.
+ * <p>
+ * <p>Messages to the user are added to a {@link TCPOutboundQueue}, and written by a writer task
+ * on the executor, so sending never waits for the connection.</p>
  *
  * @author Christian Ihle
  */
@@ -39,18 +45,42 @@ public class TCPUserClient implements TCPClientListener {
     private static final Logger LOG = Logger.getLogger(TCPUserClient.class);
     private static final String MESSAGE_DISCONNECT_ADDITIONAL = "SYS-DISCONNECT-ADDITIONAL";
 
+    /**
+     * How long to wait for the other side to disconnect a client after asking it to.
+     */
+    private static final long DISCONNECT_ADDITIONAL_TIMEOUT_MS = 2500;
+
     private final List<TCPClient> clients;
     private final User user;
     private final TCPReceiverListener listener;
+    private final TCPOutboundQueue outboundQueue;
+    private final TCPReconnectScheduler reconnectScheduler;
 
-    public TCPUserClient(final TCPClient client, final User user, final TCPReceiverListener listener) {
+    public TCPUserClient(final TCPClient client, final User user, final TCPReceiverListener listener,
+                         final Executor writerExecutor, final TCPReconnectScheduler reconnectScheduler) {
         Validate.notNull(client, "Client can not be null");
         Validate.notNull(user, "User can not be null");
         Validate.notNull(listener, "TCP message listener can not be null");
+        Validate.notNull(writerExecutor, "Writer executor can not be null");
+        Validate.notNull(reconnectScheduler, "Reconnect scheduler can not be null");
 
-        this.clients = new ArrayList<>();
+        this.clients = new CopyOnWriteArrayList<>();
         this.user = user;
         this.listener = listener;
+        this.reconnectScheduler = reconnectScheduler;
+        this.outboundQueue = new TCPOutboundQueue(writerExecutor, new TCPOutboundQueue.Writer() {
+            @Override
+            public boolean write(final String message) {
+                return sendNow(message);
+            }
+
+            @Override
+            public void overflowed() {
+                LOG.warning("Too many messages waiting to be sent to %s. Disconnecting.", user.getNick());
+                disconnect();
+                reconnectScheduler.connectionLost(user);
+            }
+        });
 
         add(client);
     }
@@ -63,6 +93,7 @@ public class TCPUserClient implements TCPClientListener {
 
     public void disconnect() {
         user.setTcpEnabled(false);
+        outboundQueue.clear();
 
         for (final TCPClient client : clients) {
             client.registerClientListener(null);
@@ -72,6 +103,33 @@ public class TCPUserClient implements TCPClientListener {
         clients.clear();
     }
 
+    /**
+     * Disconnects the clients bound to a local ip address that is gone, like after moving to another network.
+     * Does not ask for a reconnect, so the caller can connect again right away.
+     *
+     * @param localIpAddresses The local ip addresses that can still be used.
+     * @return The number of clients that were disconnected.
+     */
+    public int disconnectUnroutableClients(final Set<String> localIpAddresses) {
+        int disconnected = 0;
+
+        for (final TCPClient client : clients) {
+            if (!localIpAddresses.contains(client.getLocalIPAddress())) {
+                LOG.fine("Disconnecting client for %s bound to %s", user.getNick(), client.getLocalIPAddress());
+                client.registerClientListener(null);
+                client.disconnect();
+                clients.remove(client);
+                disconnected++;
+            }
+        }
+
+        if (clients.isEmpty()) {
+            user.setTcpEnabled(false);
+        }
+
+        return disconnected;
+    }
+
     @Override
     public void disconnected(final TCPClient client) {
         client.registerClientListener(null);
@@ -79,6 +137,7 @@ public class TCPUserClient implements TCPClientListener {
 
         if (clients.isEmpty()) {
             user.setTcpEnabled(false);
+            reconnectScheduler.connectionLost(user);
         }
     }
 
@@ -105,19 +164,43 @@ public class TCPUserClient implements TCPClientListener {
         }
     }
 
-    public void send(final String message) {
+    /**
+     * Adds the message to the queue of messages to send to the user. Never blocks.
+     *
+     * @param message The message to send.
+     * @return The future telling if the message was written to a connection or not.
+     */
+    public SendFuture send(final String message) {
+        return outboundQueue.submit(message);
+    }
+
+    private boolean sendNow(final String message) {
         for (final TCPClient client : clients) {
             if (!client.isDisconnecting()) {
-                client.send(message);
-                return;
+                if (user.getProtocolVersion() >= Constants.PROTOCOL_VERSION_TCP_FRAMING) {
+                    client.switchToVarintFrames();
+                }
+
+                return client.send(message);
             }
         }
+
+        return false;
     }
 
     public int getClientCount() {
         return clients.size();
     }
 
+    /**
+     * Gets the queue of messages to send to the user, with metrics about queue depth and write latency.
+     *
+     * @return The outbound queue.
+     */
+    public TCPOutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
     /**
      * Using a two step process to try to avoid a situation where clients on both side disconnect
      * different sockets at the same time.
@@ -125,6 +208,8 @@ public class TCPUserClient implements TCPClientListener {
      * This works by marking a client as "disconnecting". If a request arrives from the other side to
      * disconnect it will be ignored if only 1 client left, or if this side has already sent a request to
      * disconnect. This may end up with none of the sides disconnecting, but hopefully resolving on the next attempt.
+     * <p>
+     * Never blocks. The result is checked later on the scheduler, and a new attempt is scheduled if needed.
      */
     public void disconnectAdditionalClients() {
         if (clients.size() <= 1) {
@@ -143,15 +228,20 @@ public class TCPUserClient implements TCPClientListener {
         client.setDisconnecting(true);
         client.send(MESSAGE_DISCONNECT_ADDITIONAL);
 
-        for (int i = 0; i < 50; i++) {
-            Tools.sleep(50);
+        reconnectScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!client.isConnected()) {
+                    return;
+                }
 
-            if (!client.isConnected()) {
-                return;
-            }
-        }
+                LOG.warning("Client for %s didn't disconnect as expected", user.getNick());
+                client.setDisconnecting(false);
 
-        LOG.warning("Client for %s didn't disconnect as expected", user.getNick());
-        client.setDisconnecting(false);
+                if (clients.size() > 1) {
+                    reconnectScheduler.scheduleDuplicateCleanup(TCPUserClient.this);
+                }
+            }
+        }, DISCONNECT_ADDITIONAL_TIMEOUT_MS);
     }
 }
\ No newline at end of file
@@ -23,9 +23,9 @@ package org.dynamicsoft.vertochat.net.tcp;
 
 import org.dynamicsoft.vertochat.misc.Controller;
 import org.dynamicsoft.vertochat.misc.User;
+import org.dynamicsoft.vertochat.net.ResultFuture;
 import org.dynamicsoft.vertochat.settings.Settings;
 import org.dynamicsoft.vertochat.util.Logger;
-import org.dynamicsoft.vertochat.util.Sleeper;
 import org.dynamicsoft.vertochat.util.Validate;
 import org.jetbrains.annotations.Nullable;
 
@@ -35,6 +35,10 @@ import java.util.regex.Pattern;
 /**
  * Message listener for a client that will identify the user on the other side
  * if that user sends its user code as the first message.
+ * <p>
+ * <p>The user is identified on the thread that reads the message, and given to the future from
+ * {@link #getUser()}. Nothing waits for the message, so use a timeout to give up on clients
+ * that never identify.</p>
  *
  * @author Christian Ihle
  */
@@ -52,10 +56,7 @@ public class TCPUserIdentifier implements TCPClientListener {
     private final Controller controller;
     private final Settings settings;
     private final TCPClient client;
-    private final Sleeper sleeper;
-
-    @Nullable
-    private String message;
+    private final ResultFuture<User> userFuture;
 
     public TCPUserIdentifier(final Controller controller, final Settings settings, final TCPClient client) {
         Validate.notNull(controller, "Controller can not be null");
@@ -65,7 +66,7 @@ public class TCPUserIdentifier implements TCPClientListener {
         this.controller = controller;
         this.settings = settings;
         this.client = client;
-        this.sleeper = new Sleeper();
+        this.userFuture = new ResultFuture<>();
 
         client.registerClientListener(this);
     }
@@ -75,19 +76,43 @@ public class TCPUserIdentifier implements TCPClientListener {
         client.registerClientListener(null);
         LOG.fine("Received message: %s", theMessage);
 
-        this.message = theMessage;
+        userFuture.complete(identifyUser(theMessage));
     }
 
     @Override
     public void disconnected(final TCPClient theClient) {
+        client.registerClientListener(null);
+        userFuture.complete(null);
+    }
 
+    /**
+     * Gets the future that completes with the user when the identification message arrives.
+     * Completes with <code>null</code> if the message did not identify a known user, or the client disconnected.
+     *
+     * @return The future.
+     */
+    public ResultFuture<User> getUser() {
+        return userFuture;
     }
 
-    @Nullable
-    public User waitForUser() {
-        waitForMessage();
+    /**
+     * Gives up on the identification. Does nothing if the user is already identified.
+     *
+     * @return If the future was completed by this call.
+     */
+    public boolean timeout() {
+        if (!userFuture.complete(null)) {
+            return false;
+        }
+
+        client.registerClientListener(null);
+
+        return true;
+    }
 
-        final User user = userFromMessage();
+    @Nullable
+    private User identifyUser(final String message) {
+        final User user = userFromMessage(message);
 
         if (user != null && !user.getIpAddress().equals(client.getIPAddress())) {
             LOG.warning("Unexpected client ip connected. user=%s, userIP=%s, clientIP=%s",
@@ -98,21 +123,8 @@ public class TCPUserIdentifier implements TCPClientListener {
         return user;
     }
 
-    private void waitForMessage() {
-        int tries = 0;
-
-        while (message == null && tries < 50) {
-            sleeper.sleep(50);
-            tries++;
-        }
-    }
-
     @Nullable
-    private User userFromMessage() {
-        if (message == null) {
-            return null;
-        }
-
+    private User userFromMessage(final String message) {
         final Matcher messageMatcher = messagePattern.matcher(message);
 
         if (!messageMatcher.matches()) {
@@ -106,6 +106,51 @@ public class Settings {
      */
     private boolean noPrivateChat;
 
+    /**
+     * If all tcp connections should share a single selector thread.
+     */
+    private boolean selectorTcp;
+
+    /**
+     * If lost multicast messages should be requested again from the sender.
+     */
+    private boolean reliableMulticast;
+
+    /**
+     * If multicast packets should be sent with parity packets for rebuilding lost packets.
+     */
+    private boolean forwardErrorCorrection;
+
+    /**
+     * If the chat should be joined on every usable network interface, instead of only one.
+     */
+    private boolean multiInterfaceMulticast;
+
+    /**
+     * If switching network interface should move the connections over, instead of reconnecting everything.
+     */
+    private boolean networkHandover;
+
+    /**
+     * If the paths to send each message on should be chosen from how well messages get through to each user.
+     */
+    private boolean adaptiveTransport;
+
+    /**
+     * The max number of multicast packets to send each second, or 0 for no limit.
+     */
+    private int sendPacketRate;
+
+    /**
+     * The max number of multicast bytes to send each second, or 0 for no limit.
+     */
+    private int sendByteRate;
+
+    /**
+     * If users sending too many messages should be limited, and repeated chat messages folded.
+     */
+    private boolean floodProtection;
+
     /**
      * If logging is always enabled.
      */
@@ -338,6 +383,180 @@ public class Settings {
         this.noPrivateChat = noPrivateChat;
     }
 
+    /**
+     * If all tcp connections should share a single selector thread, instead of using a thread for each connection.
+     *
+     * @return If tcp connections should use a selector.
+     */
+    public boolean isSelectorTcp() {
+        return selectorTcp;
+    }
+
+    /**
+     * Sets if all tcp connections should share a single selector thread.
+     *
+     * @param selectorTcp If tcp connections should use a selector.
+     */
+    public void setSelectorTcp(final boolean selectorTcp) {
+        this.selectorTcp = selectorTcp;
+    }
+
+    /**
+     * If gaps in the multicast messages from other users should be detected, and the missing
+     * messages requested again from the sender with a NACK.
+     *
+     * @return If reliable multicast is enabled.
+     */
+    public boolean isReliableMulticast() {
+        return reliableMulticast;
+    }
+
+    /**
+     * Sets if lost multicast messages should be requested again from the sender.
+     *
+     * @param reliableMulticast If reliable multicast should be enabled.
+     */
+    public void setReliableMulticast(final boolean reliableMulticast) {
+        this.reliableMulticast = reliableMulticast;
+    }
+
+    /**
+     * If multicast packets should be sent in groups with parity packets, so receivers can rebuild
+     * lost packets without asking for them again. Only used when every other client supports it.
+     *
+     * @return If forward error correction is enabled.
+     */
+    public boolean isForwardErrorCorrection() {
+        return forwardErrorCorrection;
+    }
+
+    /**
+     * Sets if multicast packets should be sent with parity packets for rebuilding lost packets.
+     *
+     * @param forwardErrorCorrection If forward error correction should be enabled.
+     */
+    public void setForwardErrorCorrection(final boolean forwardErrorCorrection) {
+        this.forwardErrorCorrection = forwardErrorCorrection;
+    }
+
+    /**
+     * If the chat should be joined on every usable network interface at the same time, like both cable
+     * and wireless, instead of only the one chosen network interface.
+     *
+     * @return If multicast on several network interfaces is enabled.
+     */
+    public boolean isMultiInterfaceMulticast() {
+        return multiInterfaceMulticast;
+    }
+
+    /**
+     * Sets if the chat should be joined on every usable network interface, instead of only one.
+     *
+     * @param multiInterfaceMulticast If multicast on several network interfaces should be enabled.
+     */
+    public void setMultiInterfaceMulticast(final boolean multiInterfaceMulticast) {
+        this.multiInterfaceMulticast = multiInterfaceMulticast;
+    }
+
+    /**
+     * If switching network interface, like roaming from one access point to another, should join the chat on the
+     * new network interface before leaving the old one, and keep the tcp connections that still work. Instead of
+     * taking the whole network down and up again, and asking every user to expose themselves.
+     *
+     * @return If network handover is enabled.
+     */
+    public boolean isNetworkHandover() {
+        return networkHandover;
+    }
+
+    /**
+     * Sets if switching network interface should move the connections over, instead of reconnecting everything.
+     *
+     * @param networkHandover If network handover should be enabled.
+     */
+    public void setNetworkHandover(final boolean networkHandover) {
+        this.networkHandover = networkHandover;
+    }
+
+    /**
+     * If the paths to send each message on should be chosen from how well messages get through to each user,
+     * instead of always sending over both multicast and tcp. Works best with reliable multicast enabled,
+     * as the NACKs show which users lose messages.
+     *
+     * @return If adaptive transport is enabled.
+     */
+    public boolean isAdaptiveTransport() {
+        return adaptiveTransport;
+    }
+
+    /**
+     * Sets if the paths to send each message on should be chosen from how well messages get through to each user.
+     *
+     * @param adaptiveTransport If adaptive transport should be enabled.
+     */
+    public void setAdaptiveTransport(final boolean adaptiveTransport) {
+        this.adaptiveTransport = adaptiveTransport;
+    }
+
+    /**
+     * The max number of multicast packets to send each second. Wifi sends multicast at the lowest rate,
+     * so bursts above what the access point can keep up with are dropped. Sending slows down further
+     * while messages are lost.
+     *
+     * @return The max packet rate, or 0 for no limit.
+     */
+    public int getSendPacketRate() {
+        return sendPacketRate;
+    }
+
+    /**
+     * Sets the max number of multicast packets to send each second.
+     *
+     * @param sendPacketRate The max packet rate, or 0 for no limit.
+     */
+    public void setSendPacketRate(final int sendPacketRate) {
+        this.sendPacketRate = sendPacketRate;
+    }
+
+    /**
+     * The max number of multicast bytes to send each second. Works together with the packet rate,
+     * and sending slows down further while messages are lost.
+     *
+     * @return The max byte rate, or 0 for no limit.
+     */
+    public int getSendByteRate() {
+        return sendByteRate;
+    }
+
+    /**
+     * Sets the max number of multicast bytes to send each second.
+     *
+     * @param sendByteRate The max byte rate, or 0 for no limit.
+     */
+    public void setSendByteRate(final int sendByteRate) {
+        this.sendByteRate = sendByteRate;
+    }
+
+    /**
+     * If each user should be limited to a rate of messages, with the rest dropped, and repeats of
+     * the same chat message folded into a single line telling how many times it was repeated. Protects
+     * against broken or scripted clients flooding the chat.
+     *
+     * @return If flood protection is enabled.
+     */
+    public boolean isFloodProtection() {
+        return floodProtection;
+    }
+
+    /**
+     * Sets if users sending too many messages should be limited, and repeated chat messages folded.
+     *
+     * @param floodProtection If flood protection should be enabled.
+     */
+    public void setFloodProtection(final boolean floodProtection) {
+        this.floodProtection = floodProtection;
+    }
+
     /**
      * If logging is always enabled.
      *
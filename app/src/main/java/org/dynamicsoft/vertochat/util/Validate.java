@@ -62,4 +62,17 @@ public final class Validate {
             throw new IllegalArgumentException(errorMsg);
         }
     }
+
+    /**
+     * Checks if <code>condition</code> is <code>false</code>,
+     * and throws an {@link IllegalArgumentException} if that is true.
+     *
+     * @param condition The condition to check.
+     * @param errorMsg  The error message to use in the exception.
+     */
+    public static void isTrue(final boolean condition, @NonNls final String errorMsg) {
+        if (!condition) {
+            throw new IllegalArgumentException(errorMsg);
+        }
+    }
 }
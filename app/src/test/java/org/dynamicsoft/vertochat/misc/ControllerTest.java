@@ -27,6 +27,7 @@ import org.dynamicsoft.vertochat.message.CoreMessages;
 import org.dynamicsoft.vertochat.net.FileReceiver;
 import org.dynamicsoft.vertochat.net.FileSender;
 import org.dynamicsoft.vertochat.net.FileToSend;
+import org.dynamicsoft.vertochat.net.MessageType;
 import org.dynamicsoft.vertochat.net.NetworkMessages;
 import org.dynamicsoft.vertochat.net.NetworkService;
 import org.dynamicsoft.vertochat.net.TransferList;
@@ -44,6 +45,8 @@ import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.util.Arrays;
 import java.util.Date;
 
@@ -949,6 +952,62 @@ public class ControllerTest {
         verify(messageController, never()).showSystemMessage(anyString());
     }
 
+    @Test
+    public void networkHandedOverShouldOnlySendIdleMessageIfLoggedOn() throws SocketException {
+        doReturn(true).when(controller).isLoggedOn();
+        final NetworkInterface networkInterface = NetworkInterface.getNetworkInterfaces().nextElement();
+
+        controller.networkHandedOver(networkInterface, networkInterface);
+
+        verify(networkMessages).sendIdleMessage();
+        verifyNoMoreInteractions(networkMessages);
+        verify(messageController, never()).showSystemMessage(anyString());
+    }
+
+    @Test
+    public void networkHandedOverShouldSendLogOnMessagesIfNotLoggedOn() throws SocketException {
+        assertFalse(controller.isLoggedOn());
+        final NetworkInterface networkInterface = NetworkInterface.getNetworkInterfaces().nextElement();
+
+        controller.networkHandedOver(networkInterface, networkInterface);
+
+        final InOrder inOrder = inOrder(networkMessages);
+
+        inOrder.verify(networkMessages).sendLogonMessage();
+        inOrder.verify(networkMessages).sendClient();
+        inOrder.verify(networkMessages).sendExposeMessage();
+        inOrder.verify(networkMessages).sendGetTopicMessage();
+    }
+
+    @Test
+    public void messageRepeatedShouldShowSystemMessageInMainChat() {
+        final User user = new User("User1", 125);
+        userList.add(user);
+
+        controller.messageRepeated(125, MessageType.MSG, 12);
+
+        verify(messageController).showSystemMessage("User1: (repeated 12 times)");
+    }
+
+    @Test
+    public void messageRepeatedShouldShowPrivateSystemMessageInPrivateChat() {
+        final User user = new User("User1", 125);
+        userList.add(user);
+        user.setPrivchat(mock(PrivateChatWindow.class));
+
+        controller.messageRepeated(125, MessageType.PRIVMSG, 3);
+
+        verify(messageController).showPrivateSystemMessage(user, "User1: (repeated 3 times)");
+        verify(messageController, never()).showSystemMessage(anyString());
+    }
+
+    @Test
+    public void messageRepeatedShouldDoNothingIfUserIsUnknown() {
+        controller.messageRepeated(125, MessageType.MSG, 12);
+
+        verify(messageController, never()).showSystemMessage(anyString());
+    }
+
     private String createStringOfSize(final int size) {
         final StringBuilder sb = new StringBuilder(size);
 
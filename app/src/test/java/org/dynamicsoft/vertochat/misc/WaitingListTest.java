@@ -24,6 +24,7 @@ package org.dynamicsoft.vertochat.misc;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -71,4 +72,43 @@ public class WaitingListTest {
         assertFalse(waitingList.isWaitingUser(userCode));
         waitingList.removeWaitingUser(userCode);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldKeepManyUsersAndRemoveThemInAnyOrder() {
+        for (int userCode = -500; userCode < 500; userCode += 3) {
+            waitingList.addWaitingUser(userCode);
+        }
+
+        assertEquals(334, waitingList.size());
+
+        for (int userCode = -500; userCode < 500; userCode += 6) {
+            waitingList.removeWaitingUser(userCode);
+        }
+
+        for (int userCode = -500; userCode < 500; userCode++) {
+            final boolean added = (userCode + 500) % 3 == 0;
+            final boolean removed = (userCode + 500) % 6 == 0;
+
+            assertEquals("userCode=" + userCode, added && !removed, waitingList.isWaitingUser(userCode));
+        }
+
+        assertEquals(167, waitingList.size());
+    }
+
+    @Test
+    public void removeWaitingUserShouldKeepUsersWithCollidingHashes() {
+        // Multiples of 65536 collide often in a small table
+        for (int i = 0; i < 8; i++) {
+            waitingList.addWaitingUser(i << 16);
+        }
+
+        waitingList.removeWaitingUser(0);
+        waitingList.removeWaitingUser(3 << 16);
+
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i != 0 && i != 3, waitingList.isWaitingUser(i << 16));
+        }
+
+        assertEquals(6, waitingList.size());
+    }
+}
@@ -25,19 +25,25 @@ import org.dynamicsoft.vertochat.junit.ExpectedException;
 import org.dynamicsoft.vertochat.misc.Controller;
 import org.dynamicsoft.vertochat.misc.User;
 import org.dynamicsoft.vertochat.misc.WaitingList;
-import org.dynamicsoft.vertochat.util.Sleeper;
 import org.dynamicsoft.vertochat.util.TestUtils;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyBoolean;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
@@ -62,7 +68,7 @@ public class AsyncMessageResponderWrapperTest {
     private MessageResponder messageResponder;
     private Controller controller;
     private ExecutorService executorService;
-    private Sleeper sleeper;
+    private ScheduledExecutorService timer;
     private WaitingList waitingList;
 
     @Before
@@ -75,7 +81,7 @@ public class AsyncMessageResponderWrapperTest {
         wrapper = spy(new AsyncMessageResponderWrapper(messageResponder, controller));
 
         executorService = TestUtils.setFieldValueWithMock(wrapper, "executorService", ExecutorService.class);
-        sleeper = TestUtils.setFieldValueWithMock(wrapper, "sleeper", Sleeper.class);
+        timer = TestUtils.setFieldValueWithMock(wrapper, "timer", ScheduledExecutorService.class);
     }
 
     @Test
@@ -101,9 +107,9 @@ public class AsyncMessageResponderWrapperTest {
         wrapper.messageArrived(100, "msg", 200);
 
         verify(messageResponder).messageArrived(100, "msg", 200);
-        verifyZeroInteractions(executorService);
+        verifyZeroInteractions(executorService, timer);
         verify(wrapper, never()).askUserToIdentify(anyInt());
-        verify(wrapper, never()).waitForUserToIdentify(anyInt());
+        verify(wrapper, never()).holdUntilIdentified(anyInt(), any(Runnable.class));
     }
 
     @Test
@@ -116,21 +122,69 @@ public class AsyncMessageResponderWrapperTest {
     }
 
     @Test
-    public void messageArrivedShouldWaitForUserToIdentifyAndPassThroughUsingExecutorIfNewUser() {
+    public void messageArrivedShouldHoldMessageUntilNewUserHasIdentified() {
+        when(controller.isNewUser(100)).thenReturn(true);
+        when(waitingList.isWaitingUser(100)).thenReturn(true);
+
+        wrapper.messageArrived(100, "msg", 200);
+        wrapper.messageArrived(100, "msg2", 200);
+
+        verify(messageResponder, never()).messageArrived(anyInt(), anyString(), anyInt());
+        verifyZeroInteractions(executorService);
+        verify(wrapper, times(1)).askUserToIdentify(100);
+        assertEquals(2, wrapper.getPendingOperationCount(100));
+
+        final User user = new User("User", 100);
+        when(waitingList.isWaitingUser(100)).thenReturn(false);
+        wrapper.userLogOn(user);
+
+        final InOrder inOrder = inOrder(messageResponder);
+        inOrder.verify(messageResponder).userLogOn(user);
+        inOrder.verify(messageResponder).messageArrived(100, "msg", 200);
+        inOrder.verify(messageResponder).messageArrived(100, "msg2", 200);
+        assertEquals(0, wrapper.getPendingOperationCount(100));
+    }
+
+    @Test
+    public void messageArrivedShouldReplayMessageWhenNewUserDoesNotIdentifyInTime() {
         when(controller.isNewUser(100)).thenReturn(true);
+        when(waitingList.isWaitingUser(100)).thenReturn(true);
 
         wrapper.messageArrived(100, "msg", 200);
 
         final ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
 
+        verify(timer).schedule(runnableCaptor.capture(),
+                eq(AsyncMessageResponderWrapper.IDENTIFY_TIMEOUT_MS), eq(TimeUnit.MILLISECONDS));
         verifyZeroInteractions(messageResponder);
-        verify(wrapper, never()).waitForUserToIdentify(anyInt());
 
-        verify(executorService).execute(runnableCaptor.capture());
         runnableCaptor.getValue().run();
 
-        verify(wrapper).waitForUserToIdentify(100);
         verify(messageResponder).messageArrived(100, "msg", 200);
+        assertEquals(0, wrapper.getPendingOperationCount(100));
+    }
+
+    @Test
+    public void userExposingShouldNotReplayMessagesIfUserIsStillWaiting() {
+        when(controller.isNewUser(100)).thenReturn(true);
+        when(waitingList.isWaitingUser(100)).thenReturn(true);
+
+        wrapper.messageArrived(100, "msg", 200);
+        wrapper.userExposing(new User("Other", 100));
+
+        verify(messageResponder, never()).messageArrived(anyInt(), anyString(), anyInt());
+        assertEquals(1, wrapper.getPendingOperationCount(100));
+    }
+
+    @Test
+    public void holdUntilIdentifiedShouldDropOperationsWhenTooManyArePending() {
+        when(controller.isNewUser(100)).thenReturn(true);
+
+        for (int i = 0; i < AsyncMessageResponderWrapper.MAX_PENDING_OPERATIONS + 10; i++) {
+            wrapper.messageArrived(100, "msg" + i, 200);
+        }
+
+        assertEquals(AsyncMessageResponderWrapper.MAX_PENDING_OPERATIONS, wrapper.getPendingOperationCount(100));
     }
 
     @Test
@@ -299,18 +353,36 @@ public class AsyncMessageResponderWrapperTest {
     }
 
     @Test
-    public void fileSendShouldWaitForUserToIdentifyAndPassThroughUsingExecutor() {
+    public void fileSendShouldPassThroughUsingExecutorIfExistingUser() {
         wrapper.fileSend(100, 3000, "fileName", "user", 98765);
 
         final ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
 
         verifyZeroInteractions(messageResponder);
-        verify(wrapper, never()).waitForUserToIdentify(anyInt());
 
         verify(executorService).execute(runnableCaptor.capture());
         runnableCaptor.getValue().run();
 
-        verify(wrapper).waitForUserToIdentify(100);
+        verify(messageResponder).fileSend(100, 3000, "fileName", "user", 98765);
+    }
+
+    @Test
+    public void fileSendShouldWaitForNewUserToIdentifyAndPassThroughUsingExecutor() {
+        when(controller.isNewUser(100)).thenReturn(true);
+        when(waitingList.isWaitingUser(100)).thenReturn(true);
+
+        wrapper.fileSend(100, 3000, "fileName", "user", 98765);
+
+        verifyZeroInteractions(executorService);
+
+        when(waitingList.isWaitingUser(100)).thenReturn(false);
+        wrapper.userExposing(new User("User", 100));
+
+        final ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
+
+        verify(executorService).execute(runnableCaptor.capture());
+        runnableCaptor.getValue().run();
+
         verify(messageResponder).fileSend(100, 3000, "fileName", "user", 98765);
     }
 
@@ -338,9 +410,9 @@ public class AsyncMessageResponderWrapperTest {
     @Test
     public void clientInfoShouldPassThrough() {
         wrapper.clientInfo(100, "client", 70000, "os",
-                4500, 6000);
+                4500, 6000, 2, true);
         verify(messageResponder).clientInfo(100, "client", 70000, "os",
-                4500, 6000);
+                4500, 6000, 2, true);
     }
 
     @Test
@@ -353,32 +425,13 @@ public class AsyncMessageResponderWrapperTest {
     }
 
     @Test
-    public void waitForUserToIdentifyShouldAbortAfter40SleepsIfUserNeverIdentifies() {
-        when(waitingList.isWaitingUser(100)).thenReturn(true);
-
-        wrapper.waitForUserToIdentify(100);
-
-        verify(sleeper, times(40)).sleep(50);
-        verify(waitingList, times(41)).isWaitingUser(100);
-    }
-
-    @Test
-    public void waitForUserToIdentifyShouldAbortWhenUserHasIdentified() {
-        when(waitingList.isWaitingUser(100)).thenReturn(true, true, true, false);
-
-        wrapper.waitForUserToIdentify(100);
-
-        verify(sleeper, times(3)).sleep(50);
-        verify(waitingList, times(4)).isWaitingUser(100);
-    }
-
-    @Test
-    public void waitForUserToIdentifyShouldNeverSleepIfUserIsIdentified() {
-        when(waitingList.isWaitingUser(100)).thenReturn(false);
+    public void holdUntilIdentifiedShouldReplayRightAwayIfUserIdentifiedMeanwhile() {
+        when(controller.isNewUser(100)).thenReturn(false);
 
-        wrapper.waitForUserToIdentify(100);
+        final Runnable operation = mock(Runnable.class);
+        wrapper.holdUntilIdentified(100, operation);
 
-        verifyZeroInteractions(sleeper);
-        verify(waitingList).isWaitingUser(100);
+        verify(operation).run();
+        assertEquals(0, wrapper.getPendingOperationCount(100));
     }
 }
@@ -0,0 +1,261 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link BinaryMessageFormat}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class BinaryMessageFormatTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final BinaryMessageFormat format = new BinaryMessageFormat();
+
+    @Test
+    public void writeAndDecodeShouldGiveSameMessage() throws ProtocolException {
+        assertRoundTrip("12345678!IDLE#Christian:");
+        assertRoundTrip("12345678!MSG#Christian:[-16777216]Hello, æøå 😀 中文");
+        assertRoundTrip("-2147483648!EXPOSING#Penny:Gone: for lunch");
+        assertRoundTrip("2147483647!CLIENT#Kou:(KouChat v1.4.0 Swing)[1753]{Linux}<40656>/40657\\|2|");
+        assertRoundTrip("0!PRIVMSG#X:(5)[1]#:!");
+    }
+
+    @Test
+    public void writeShouldStartWithMarkerAndVersion() {
+        final byte[] frame = write("1!IDLE#Christian:");
+
+        assertEquals(BinaryMessageFormat.MARKER, frame[0]);
+        assertEquals(Constants.PROTOCOL_VERSION_BINARY, frame[1]);
+    }
+
+    @Test
+    public void writeShouldBeSmallerThanText() throws Exception {
+        final String message = "19879835!STOPPEDWRITING#Christian:";
+
+        assertTrue(write(message).length < message.getBytes(Constants.MESSAGE_CHARSET).length);
+    }
+
+    @Test
+    public void writeShouldRefuseUnknownTypesAndInvalidMessages() {
+        final byte[] frame = new byte[100];
+
+        assertEquals(-1, BinaryMessageFormat.write("1!SOMETHING#Christian:", frame));
+        assertEquals(-1, BinaryMessageFormat.write("1IDLE#Christian:", frame));
+        assertEquals(-1, BinaryMessageFormat.write("a1!IDLE#Christian:", frame));
+        assertEquals(-1, BinaryMessageFormat.write("1!IDLE:Christian#", frame));
+    }
+
+    @Test
+    public void isBinaryFrameShouldCheckMarkerWithoutMovingPosition() throws Exception {
+        final ByteBuffer binary = ByteBuffer.wrap(write("1!IDLE#Christian:"));
+        final ByteBuffer text = ByteBuffer.wrap("1!IDLE#Christian:".getBytes(Constants.MESSAGE_CHARSET));
+
+        assertTrue(BinaryMessageFormat.isBinaryFrame(binary));
+        assertFalse(BinaryMessageFormat.isBinaryFrame(text));
+        assertFalse(BinaryMessageFormat.isBinaryFrame(ByteBuffer.allocate(0)));
+        assertEquals(0, binary.position());
+    }
+
+    @Test
+    public void writeAndDecodeShouldKeepSequenceNumber() throws ProtocolException {
+        assertRoundTrip("~0~12345678!IDLE#Christian:");
+        assertRoundTrip("~300~12345678!MSG#Christian:[-16777216]Hello ~1~");
+        assertRoundTrip("~-2147483648~-5!EXPOSING#Penny:Gone");
+    }
+
+    @Test
+    public void writeShouldAddSequenceNumberAfterPayload() {
+        final byte[] frame = write("1!IDLE#Christian:");
+        final byte[] stampedFrame = write("~300~1!IDLE#Christian:");
+
+        assertEquals(frame.length + 2, stampedFrame.length);
+        assertArrayEquals(frame, Arrays.copyOf(stampedFrame, frame.length));
+    }
+
+    @Test
+    public void writeShouldRefuseInvalidSequenceNumbers() {
+        final byte[] frame = new byte[100];
+
+        assertEquals(-1, BinaryMessageFormat.write("~a~1!IDLE#Christian:", frame));
+        assertEquals(-1, BinaryMessageFormat.write("~1!IDLE#Christian:", frame));
+        assertEquals(-1, BinaryMessageFormat.write("~~1!IDLE#Christian:", frame));
+    }
+
+    @Test
+    public void decodeShouldIgnoreBytesAfterSequenceNumber() throws ProtocolException {
+        final byte[] frame = write("~5~1!IDLE#Christian:");
+        final byte[] longerFrame = Arrays.copyOf(frame, frame.length + 3);
+
+        assertEquals("~5~1!IDLE#Christian:", format.decode(ByteBuffer.wrap(longerFrame)));
+    }
+
+    @Test
+    public void decodeShouldThrowExceptionOnUnsupportedVersion() throws ProtocolException {
+        final byte[] frame = write("1!IDLE#Christian:");
+        frame[1] = 4;
+
+        expectedException.expect(ProtocolException.class);
+        expectedException.expectMessage("Unsupported protocol version: 4");
+
+        format.decode(ByteBuffer.wrap(frame));
+    }
+
+    @Test
+    public void decodeShouldThrowExceptionOnUnknownType() throws ProtocolException {
+        final byte[] frame = write("1!IDLE#Christian:");
+        frame[3] = 100;
+
+        expectedException.expect(ProtocolException.class);
+        expectedException.expectMessage("Unknown message type: 100");
+
+        format.decode(ByteBuffer.wrap(frame));
+    }
+
+    @Test
+    public void decodeShouldThrowExceptionOnTruncatedFrame() throws ProtocolException {
+        final byte[] frame = write("1!MSG#Christian:hello");
+
+        expectedException.expect(ProtocolException.class);
+        expectedException.expectMessage("Invalid length: 5");
+
+        format.decode(ByteBuffer.wrap(frame, 0, frame.length - 1));
+    }
+
+    @Test
+    public void decodeShouldThrowExceptionOnMissingPayload() throws ProtocolException {
+        final byte[] frame = write("1!IDLE#Christian:");
+
+        expectedException.expect(ProtocolException.class);
+        expectedException.expectMessage("Frame is too short");
+
+        format.decode(ByteBuffer.wrap(frame, 0, frame.length - 1));
+    }
+
+    @Test
+    public void decodeShouldThrowExceptionOnTooLongVarint() throws ProtocolException {
+        final byte[] frame = {BinaryMessageFormat.MARKER, 2, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1};
+
+        expectedException.expect(ProtocolException.class);
+        expectedException.expectMessage("Varint is too long");
+
+        format.decode(ByteBuffer.wrap(frame));
+    }
+
+    @Test
+    public void decodeShouldThrowExceptionOnTextMessage() throws Exception {
+        expectedException.expect(ProtocolException.class);
+        expectedException.expectMessage("Not a binary frame");
+
+        format.decode(ByteBuffer.wrap("1!IDLE#Christian:".getBytes(Constants.MESSAGE_CHARSET)));
+    }
+
+    @Test
+    public void decodeShouldGrowBufferForLargeFrames() throws ProtocolException {
+        final char[] chars = new char[Constants.NETWORK_PACKET_SIZE * 2];
+        Arrays.fill(chars, 'x');
+
+        assertRoundTrip("1!MSG#Christian:" + new String(chars));
+    }
+
+    @Test
+    public void writeWithCompressorShouldCompressChatMessagesWhenSmaller() throws ProtocolException {
+        final String message = "1!MSG#Christian:[-16777216]Hello everyone, what are you going to do for lunch today?";
+        final byte[] frame = write(message, new PayloadCompressor());
+
+        assertEquals(Constants.PROTOCOL_VERSION_COMPRESSED, frame[1]);
+        assertTrue(frame.length < write(message).length);
+        assertEquals(message, format.decode(ByteBuffer.wrap(frame)));
+    }
+
+    @Test
+    public void writeWithCompressorShouldNotCompressWhenNotSmaller() {
+        assertEquals(Constants.PROTOCOL_VERSION_BINARY, write("1!MSG#Christian:x", new PayloadCompressor())[1]);
+        assertEquals(Constants.PROTOCOL_VERSION_BINARY, write("1!AWAY#Christian:", new PayloadCompressor())[1]);
+    }
+
+    @Test
+    public void writeWithCompressorShouldOnlyCompressChatMessages() {
+        final String payload = "Hello everyone, what are you going to do for lunch today?";
+        final PayloadCompressor compressor = new PayloadCompressor();
+
+        assertEquals(Constants.PROTOCOL_VERSION_COMPRESSED, write("1!PRIVMSG#Christian:(2)[1]" + payload, compressor)[1]);
+        assertEquals(Constants.PROTOCOL_VERSION_COMPRESSED, write("1!AWAY#Christian:" + payload, compressor)[1]);
+        assertEquals(Constants.PROTOCOL_VERSION_COMPRESSED, write("1!TOPIC#Christian:(Christian)[1]" + payload, compressor)[1]);
+        assertEquals(Constants.PROTOCOL_VERSION_BINARY, write("1!NICK#Christian:" + payload, compressor)[1]);
+    }
+
+    @Test
+    public void decodeShouldHandleCompressedPayloadsLargerThanFrame() throws ProtocolException {
+        final char[] chars = new char[Constants.NETWORK_PACKET_SIZE * 2];
+        Arrays.fill(chars, 'x');
+        final String message = "1!MSG#Christian:" + new String(chars);
+        final byte[] frame = write(message, new PayloadCompressor());
+
+        assertTrue(frame.length < Constants.NETWORK_PACKET_SIZE / 10);
+        assertEquals(message, format.decode(ByteBuffer.wrap(frame)));
+    }
+
+    @Test
+    public void decodeShouldThrowExceptionOnCorruptCompressedPayload() throws ProtocolException {
+        final byte[] frame = write("1!MSG#Christian:[-16777216]Hello everyone, how are you today?", new PayloadCompressor());
+        frame[frame.length - 3] ^= 0x55;
+        frame[frame.length - 2] ^= 0x55;
+
+        expectedException.expect(ProtocolException.class);
+
+        format.decode(ByteBuffer.wrap(frame));
+    }
+
+    private void assertRoundTrip(final String message) throws ProtocolException {
+        final ByteBuffer frame = ByteBuffer.wrap(write(message));
+
+        assertEquals(message, format.decode(frame));
+        assertFalse(frame.hasRemaining());
+    }
+
+    private byte[] write(final String message) {
+        return write(message, null);
+    }
+
+    private byte[] write(final String message, final PayloadCompressor compressor) {
+        final byte[] frame = new byte[BinaryMessageFormat.getMaxFrameSize(message)];
+        final int length = BinaryMessageFormat.write(message, frame, compressor);
+        assertTrue(length > 0);
+
+        return Arrays.copyOf(frame, length);
+    }
+}
@@ -0,0 +1,107 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link ByteBufferPool}.
+ *
+ * @author Christian Ihle
+ */
+public class ByteBufferPoolTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void constructorShouldThrowExceptionIfPoolSizeIsZero() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Pool size must be positive");
+
+        new ByteBufferPool(0, 10);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfBufferCapacityIsZero() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Buffer capacity must be positive");
+
+        new ByteBufferPool(2, 0);
+    }
+
+    @Test
+    public void acquireShouldReturnClearedDirectBufferFromPool() {
+        final ByteBufferPool pool = new ByteBufferPool(2, 10);
+
+        final ByteBuffer buffer = pool.acquire();
+
+        assertTrue(buffer.isDirect());
+        assertEquals(10, buffer.capacity());
+        assertEquals(0, buffer.position());
+        assertEquals(1, pool.available());
+    }
+
+    @Test
+    public void acquireShouldReturnHeapBufferWhenPoolIsEmpty() {
+        final ByteBufferPool pool = new ByteBufferPool(1, 10);
+        pool.acquire();
+
+        final ByteBuffer buffer = pool.acquire();
+
+        assertFalse(buffer.isDirect());
+        assertEquals(10, buffer.capacity());
+        assertEquals(0, pool.available());
+    }
+
+    @Test
+    public void releaseShouldReuseAndClearDirectBuffer() {
+        final ByteBufferPool pool = new ByteBufferPool(1, 10);
+        final ByteBuffer buffer = pool.acquire();
+        buffer.put((byte) 1);
+
+        pool.release(buffer);
+
+        assertEquals(1, pool.available());
+
+        final ByteBuffer reused = pool.acquire();
+
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+    }
+
+    @Test
+    public void releaseShouldNotKeepHeapBuffers() {
+        final ByteBufferPool pool = new ByteBufferPool(1, 10);
+        pool.acquire();
+
+        pool.release(pool.acquire());
+
+        assertEquals(0, pool.available());
+    }
+}
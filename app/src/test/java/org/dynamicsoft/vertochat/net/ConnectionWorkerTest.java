@@ -27,6 +27,7 @@ import org.dynamicsoft.vertochat.settings.Settings;
 import org.junit.Rule;
 import org.junit.Test;
 
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.mock;
 
 /**
@@ -54,4 +55,22 @@ public class ConnectionWorkerTest {
 
         new ConnectionWorker(mock(Settings.class), null);
     }
+
+    @Test
+    public void setNetworkChangeSourceShouldThrowExceptionIfSourceIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Network change source can not be null");
+
+        new ConnectionWorker(mock(Settings.class), mock(ErrorHandler.class)).setNetworkChangeSource(null);
+    }
+
+    @Test
+    public void setNetworkChangeSourceShouldNotStartSourceBeforeWorkerIsStarted() {
+        final ConnectionWorker connectionWorker = new ConnectionWorker(mock(Settings.class), mock(ErrorHandler.class));
+        final FakeNetworkChangeSource changeSource = new FakeNetworkChangeSource();
+
+        connectionWorker.setNetworkChangeSource(changeSource);
+
+        assertFalse(changeSource.isStarted());
+    }
 }
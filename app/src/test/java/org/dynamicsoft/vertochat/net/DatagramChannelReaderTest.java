@@ -0,0 +1,242 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.event.BatchReceiverListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link DatagramChannelReader}, using channels on the loopback interface.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class DatagramChannelReaderTest {
+
+    private DatagramChannel receiverChannel;
+    private DatagramChannel senderChannel;
+    private InetSocketAddress receiverAddress;
+
+    private DatagramChannelReader reader;
+    private List<String> messages;
+    private List<String> ipAddresses;
+    private List<Integer> batchSizes;
+
+    @Before
+    public void setUp() throws IOException {
+        receiverChannel = DatagramChannel.open();
+        receiverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        receiverAddress = (InetSocketAddress) receiverChannel.getLocalAddress();
+
+        senderChannel = DatagramChannel.open();
+
+        messages = new ArrayList<>();
+        ipAddresses = new ArrayList<>();
+        batchSizes = new ArrayList<>();
+
+        reader = new DatagramChannelReader();
+        reader.registerReceiverListener(new BatchReceiverListener() {
+            @Override
+            public void messagesArrived(final String[] batchMessages, final String[] batchIpAddresses, final int count) {
+                batchSizes.add(count);
+                messages.addAll(Arrays.asList(batchMessages).subList(0, count));
+                ipAddresses.addAll(Arrays.asList(batchIpAddresses).subList(0, count));
+            }
+
+            @Override
+            public void messageArrived(final String message, final String ipAddress) {
+                fail("Should receive batches");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        receiverChannel.close();
+        senderChannel.close();
+    }
+
+    @Test
+    public void readBatchShouldDeliverAllQueuedMessagesInOneBatch() throws IOException, InterruptedException {
+        send("1!IDLE#Christian:(home)");
+        send("  2!MSG#Niles:[1]hello  ");
+        send("3!AWAY#Penny:æøå");
+        waitForQueuedPackets();
+
+        assertEquals(3, reader.readBatch(receiverChannel));
+
+        assertEquals(Arrays.asList(3), batchSizes);
+        assertEquals(Arrays.asList("1!IDLE#Christian:(home)", "2!MSG#Niles:[1]hello", "3!AWAY#Penny:æøå"), messages);
+        assertEquals(Arrays.asList("127.0.0.1", "127.0.0.1", "127.0.0.1"), ipAddresses);
+
+        final ReceiverStatistics statistics = reader.getStatistics();
+        assertEquals(3, statistics.getPackets());
+        assertEquals(1, statistics.getBatches());
+        assertEquals(3, statistics.getLargestBatch());
+        assertEquals(0, statistics.getOversizePackets());
+    }
+
+    @Test
+    public void readBatchShouldNotNotifyWhenNothingIsQueued() throws IOException {
+        receiverChannel.configureBlocking(false);
+
+        assertEquals(0, reader.readBatch(receiverChannel));
+
+        assertTrue(batchSizes.isEmpty());
+        assertEquals(0, reader.getStatistics().getBatches());
+    }
+
+    @Test
+    public void readBatchShouldTruncateAndCountOversizePackets() throws IOException, InterruptedException {
+        final char[] chars = new char[Constants.NETWORK_PACKET_SIZE + 100];
+        Arrays.fill(chars, 'a');
+        send(new String(chars));
+        waitForQueuedPackets();
+
+        assertEquals(1, reader.readBatch(receiverChannel));
+
+        assertEquals(Constants.NETWORK_PACKET_SIZE, messages.get(0).length());
+        assertEquals(1, reader.getStatistics().getOversizePackets());
+        assertEquals(Constants.NETWORK_PACKET_SIZE, reader.getStatistics().getBytes());
+    }
+
+    @Test
+    public void readBatchShouldLimitBatchSize() throws IOException, InterruptedException {
+        for (int i = 0; i < DatagramChannelReader.MAX_BATCH_SIZE + 2; i++) {
+            send("message " + i);
+        }
+
+        waitForQueuedPackets();
+
+        assertEquals(DatagramChannelReader.MAX_BATCH_SIZE, reader.readBatch(receiverChannel));
+        assertEquals(2, reader.readBatch(receiverChannel));
+
+        assertEquals(Arrays.asList(DatagramChannelReader.MAX_BATCH_SIZE, 2), batchSizes);
+        assertEquals("message 0", messages.get(0));
+        assertEquals("message " + (DatagramChannelReader.MAX_BATCH_SIZE + 1), messages.get(messages.size() - 1));
+    }
+
+    @Test
+    public void readBatchShouldDecodeBinaryFramesAndDropInvalidFrames() throws IOException, InterruptedException {
+        sendBinary("1!IDLE#Christian:");
+        send(new byte[]{BinaryMessageFormat.MARKER, 9});
+        sendBinary("2!MSG#Niles:[1]hello æøå");
+        waitForQueuedPackets();
+
+        assertEquals(3, reader.readBatch(receiverChannel));
+
+        assertEquals(Arrays.asList(2), batchSizes);
+        assertEquals(Arrays.asList("1!IDLE#Christian:", "2!MSG#Niles:[1]hello æøå"), messages);
+
+        final ReceiverStatistics statistics = reader.getStatistics();
+        assertEquals(3, statistics.getPackets());
+        assertEquals(3, statistics.getBinaryPackets());
+        assertEquals(1, statistics.getInvalidPackets());
+    }
+
+    @Test
+    public void readBatchShouldUnpackBatchFrames() throws IOException, InterruptedException {
+        final MessageEncoder encoder = new MessageEncoder(new MessageFrameCache());
+        final List<String> batch = new ArrayList<>();
+
+        for (int i = 0; i < DatagramChannelReader.MAX_BATCH_SIZE + 4; i++) {
+            batch.add(i + "!IDLE#Christian:");
+        }
+
+        assertEquals(batch.size(), encoder.encodeBatch(batch, 0, Constants.NETWORK_PACKET_SIZE));
+        send(Arrays.copyOf(encoder.getBytes(), encoder.getLength()));
+        send("100!MSG#Niles:[1]hello");
+        waitForQueuedPackets();
+
+        assertEquals(2, reader.readBatch(receiverChannel));
+
+        assertEquals(Arrays.asList(batch.size() + 1), batchSizes);
+        assertEquals(batch, messages.subList(0, batch.size()));
+        assertEquals("100!MSG#Niles:[1]hello", messages.get(batch.size()));
+        assertEquals("127.0.0.1", ipAddresses.get(batch.size()));
+
+        final ReceiverStatistics statistics = reader.getStatistics();
+        assertEquals(2, statistics.getPackets());
+        assertEquals(1, statistics.getBinaryPackets());
+        assertEquals(1, statistics.getBatchFrames());
+    }
+
+    @Test
+    public void readBatchShouldDropDuplicatePacketsWithMulticastInterfaces() throws IOException, InterruptedException {
+        reader.enableMulticastInterfaces(new MulticastInterfaces());
+
+        send("1!IDLE#Christian:(home)");
+        send("1!IDLE#Christian:(home)");
+        send("2!MSG#Niles:[1]hello");
+        waitForQueuedPackets();
+
+        assertEquals(3, reader.readBatch(receiverChannel));
+
+        assertEquals(Arrays.asList("1!IDLE#Christian:(home)", "2!MSG#Niles:[1]hello"), messages);
+        assertEquals(3, reader.getStatistics().getPackets());
+        assertEquals(1, reader.getStatistics().getDuplicatePackets());
+    }
+
+    @Test
+    public void readBatchShouldKeepDuplicatePacketsWithoutMulticastInterfaces() throws IOException, InterruptedException {
+        send("1!IDLE#Christian:(home)");
+        send("1!IDLE#Christian:(home)");
+        waitForQueuedPackets();
+
+        assertEquals(2, reader.readBatch(receiverChannel));
+
+        assertEquals(2, messages.size());
+        assertEquals(0, reader.getStatistics().getDuplicatePackets());
+    }
+
+    private void sendBinary(final String message) throws IOException {
+        final byte[] frame = new byte[BinaryMessageFormat.getMaxFrameSize(message)];
+        send(Arrays.copyOf(frame, BinaryMessageFormat.write(message, frame)));
+    }
+
+    private void send(final byte[] bytes) throws IOException {
+        senderChannel.send(ByteBuffer.wrap(bytes), receiverAddress);
+    }
+
+    private void send(final String message) throws IOException {
+        senderChannel.send(ByteBuffer.wrap(message.getBytes(Constants.MESSAGE_CHARSET)), receiverAddress);
+    }
+
+    private void waitForQueuedPackets() throws IOException, InterruptedException {
+        receiverChannel.configureBlocking(false);
+        Thread.sleep(50);
+    }
+}
@@ -70,6 +70,7 @@ public class DefaultMessageResponderTest {
     private ChatState chatState;
     private CoreMessages coreMessages;
     private WaitingList waitingList;
+    private PeerAddressCache peerAddressCache;
 
     private User user;
     private User me;
@@ -89,6 +90,8 @@ public class DefaultMessageResponderTest {
         when(controller.getUserList()).thenReturn(userList);
         when(controller.getChatState()).thenReturn(chatState);
         when(controller.getWaitingList()).thenReturn(waitingList);
+        peerAddressCache = new PeerAddressCache();
+        when(controller.getPeerAddressCache()).thenReturn(peerAddressCache);
 
 
         responder = new DefaultMessageResponder(controller, userInterface, settings, coreMessages);
@@ -103,6 +106,7 @@ public class DefaultMessageResponderTest {
         verify(controller).getTransferList();
         verify(controller).getWaitingList();
         verify(controller).getChatState();
+        verify(controller).getPeerAddressCache();
         verify(userInterface).getMessageController();
     }
 
@@ -368,7 +372,7 @@ public class DefaultMessageResponderTest {
         setUpExistingUser();
 
         responder.clientInfo(100, "swing", 150, "linux",
-                4000, 5000);
+                4000, 5000, 2, true);
 
         final long logonTime = System.currentTimeMillis() - 150;
         // Allow some slack to avoid flaky test
@@ -378,6 +382,9 @@ public class DefaultMessageResponderTest {
         assertEquals("linux", user.getOperatingSystem());
         assertEquals(4000, user.getPrivateChatPort());
         assertEquals(5000, user.getTcpChatPort());
+        assertEquals(2, user.getProtocolVersion());
+        assertTrue(user.isNackEnabled());
+        assertTrue(peerAddressCache.awaitTcpChatPort(user).isDone());
     }
 
     @Test
@@ -385,13 +392,15 @@ public class DefaultMessageResponderTest {
         setUpUnknownUser();
 
         responder.clientInfo(100, "swing", 150, "linux",
-                4000, 5000);
+                4000, 5000, 2, true);
 
         assertEquals(0, user.getLogonTime());
         assertEquals("<unknown>", user.getClient());
         assertEquals("<unknown>", user.getOperatingSystem());
         assertEquals(0, user.getPrivateChatPort());
         assertEquals(0, user.getTcpChatPort());
+        assertEquals(1, user.getProtocolVersion());
+        assertFalse(user.isNackEnabled());
     }
 
     private void verifyTopic(final Topic topic, final String expectedTopic, final String expectedNick,
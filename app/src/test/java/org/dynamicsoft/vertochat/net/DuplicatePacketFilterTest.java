@@ -0,0 +1,92 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.dynamicsoft.vertochat.net.DuplicatePacketFilter.CAPACITY;
+import static org.dynamicsoft.vertochat.net.DuplicatePacketFilter.WINDOW_MS;
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link DuplicatePacketFilter}.
+ *
+ * @author Christian Ihle
+ */
+public class DuplicatePacketFilterTest {
+
+    private final DuplicatePacketFilter filter = new DuplicatePacketFilter();
+
+    @Test
+    public void secondCopyShouldBeDuplicate() {
+        assertFalse(filter.isDuplicate(packet(1, 2, 3), 1000));
+        assertTrue(filter.isDuplicate(packet(1, 2, 3), 1100));
+        assertFalse(filter.isDuplicate(packet(1, 2, 4), 1100));
+    }
+
+    @Test
+    public void copyAfterWindowShouldNotBeDuplicate() {
+        assertFalse(filter.isDuplicate(packet(1, 2, 3), 1000));
+        assertFalse(filter.isDuplicate(packet(1, 2, 3), 1000 + WINDOW_MS));
+    }
+
+    @Test
+    public void oldestPacketShouldBeForgottenWhenFull() {
+        assertFalse(filter.isDuplicate(packet(0, 0), 1000));
+
+        for (int i = 1; i <= CAPACITY; i++) {
+            assertFalse(filter.isDuplicate(packet(i >> 8, i), 1000));
+        }
+
+        assertFalse(filter.isDuplicate(packet(0, 0), 1000));
+    }
+
+    @Test
+    public void isDuplicateShouldOnlyUseRemainingBytesAndNotMovePosition() {
+        final ByteBuffer buffer = packet(9, 1, 2, 3);
+        buffer.position(1);
+
+        assertFalse(filter.isDuplicate(buffer, 1000));
+        assertEquals(1, buffer.position());
+
+        assertTrue(filter.isDuplicate(packet(1, 2, 3), 1000));
+    }
+
+    @Test
+    public void hashShouldIncludeLength() {
+        assertNotEquals(DuplicatePacketFilter.hash(packet(0)), DuplicatePacketFilter.hash(packet(0, 0)));
+    }
+
+    private static ByteBuffer packet(final int... bytes) {
+        final ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+
+        for (final int b : bytes) {
+            buffer.put((byte) b);
+        }
+
+        buffer.flip();
+
+        return buffer;
+    }
+}
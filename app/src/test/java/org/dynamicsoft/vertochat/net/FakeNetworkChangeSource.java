@@ -0,0 +1,56 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.event.NetworkChangeListener;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A {@link NetworkChangeSource} for tests, where the changes are made by the test.
+ *
+ * @author Christian Ihle
+ */
+public class FakeNetworkChangeSource implements NetworkChangeSource {
+
+    @Nullable
+    private NetworkChangeListener listener;
+
+    @Override
+    public void start(final NetworkChangeListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void stop() {
+        listener = null;
+    }
+
+    public void fireNetworkChanged() {
+        if (listener != null) {
+            listener.networkChanged();
+        }
+    }
+
+    public boolean isStarted() {
+        return listener != null;
+    }
+}
@@ -0,0 +1,181 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link FecCode}.
+ *
+ * @author Christian Ihle
+ */
+public class FecCodeTest {
+
+    private static final int LENGTH = 40;
+
+    private final FecCode code = new FecCode();
+    private final Random random = new Random(1);
+
+    @Test
+    public void multiplyShouldUseTheField() {
+        assertEquals(0, FecCode.multiply(0, 7));
+        assertEquals(7, FecCode.multiply(1, 7));
+        assertEquals(6, FecCode.multiply(2, 3));
+        assertEquals(0x1D, FecCode.multiply(2, 0x80));
+    }
+
+    @Test
+    public void inverseTimesValueShouldBeOne() {
+        for (int value = 1; value < 256; value++) {
+            assertEquals(1, FecCode.multiply(value, FecCode.inverse(value)));
+        }
+    }
+
+    @Test
+    public void firstParityPacketShouldBeXorOfTheDataPackets() {
+        for (int data = 0; data < FecCode.MAX_DATA_PACKETS; data++) {
+            assertEquals(1, FecCode.getCoefficient(0, data));
+        }
+
+        final byte[] first = {1, 2, 3};
+        final byte[] second = {4, 8, 3};
+        final byte[] parity = new byte[3];
+
+        FecCode.addToParity(0, 0, first, 0, parity, 0, 3);
+        FecCode.addToParity(0, 1, second, 0, parity, 0, 3);
+
+        assertArrayEquals(new byte[] {5, 10, 0}, parity);
+    }
+
+    @Test
+    public void recoverShouldRebuildOneLostPacketWithXor() {
+        final byte[][] data = createData(4);
+        final byte[][] shards = encode(data, 1);
+        final boolean[] received = {true, false, true, true, true};
+        Arrays.fill(shards[1], (byte) 0);
+
+        assertEquals(1, code.recover(shards, received, 4, 1, LENGTH));
+        assertArrayEquals(data[1], shards[1]);
+    }
+
+    @Test
+    public void recoverShouldRebuildAnyLostPacketsUpToTheNumberOfParityPackets() {
+        final int dataCount = 6;
+        final int parityCount = 3;
+        final byte[][] data = createData(dataCount);
+        final int packets = dataCount + parityCount;
+
+        for (int lostPackets = 0; lostPackets < 1 << packets; lostPackets++) {
+            if (Integer.bitCount(lostPackets) > parityCount) {
+                continue;
+            }
+
+            final byte[][] shards = encode(data, parityCount);
+            final boolean[] received = new boolean[packets];
+            int lostData = 0;
+
+            for (int i = 0; i < packets; i++) {
+                received[i] = (lostPackets & (1 << i)) == 0;
+
+                if (!received[i]) {
+                    Arrays.fill(shards[i], (byte) 0);
+                    lostData += i < dataCount ? 1 : 0;
+                }
+            }
+
+            assertEquals(lostData, code.recover(shards, received, dataCount, parityCount, LENGTH));
+
+            for (int i = 0; i < dataCount; i++) {
+                assertArrayEquals("Lost packets: " + Integer.toBinaryString(lostPackets), data[i], shards[i]);
+            }
+        }
+    }
+
+    @Test
+    public void recoverShouldRebuildGroupsOfEverySize() {
+        for (int dataCount = 1; dataCount <= FecCode.MAX_DATA_PACKETS; dataCount++) {
+            final byte[][] data = createData(dataCount);
+            final byte[][] shards = encode(data, FecCode.MAX_PARITY_PACKETS);
+            final boolean[] received = new boolean[dataCount + FecCode.MAX_PARITY_PACKETS];
+            Arrays.fill(received, true);
+
+            final int lost = Math.min(dataCount, FecCode.MAX_PARITY_PACKETS);
+
+            for (int i = 0; i < lost; i++) {
+                received[dataCount - 1 - i] = false;
+                Arrays.fill(shards[dataCount - 1 - i], (byte) 0);
+            }
+
+            assertEquals(lost, code.recover(shards, received, dataCount, FecCode.MAX_PARITY_PACKETS, LENGTH));
+
+            for (int i = 0; i < dataCount; i++) {
+                assertArrayEquals(data[i], shards[i]);
+            }
+        }
+    }
+
+    @Test
+    public void recoverShouldFailWhenTooManyPacketsAreLost() {
+        final byte[][] shards = encode(createData(4), 2);
+        final boolean[] received = {false, false, true, true, false, true};
+
+        assertEquals(-1, code.recover(shards, received, 4, 2, LENGTH));
+    }
+
+    @Test
+    public void recoverShouldDoNothingWhenNoDataPacketsAreLost() {
+        final byte[][] data = createData(3);
+        final byte[][] shards = encode(data, 2);
+        final boolean[] received = {true, true, true, false, false};
+
+        assertEquals(0, code.recover(shards, received, 3, 2, LENGTH));
+    }
+
+    private byte[][] createData(final int dataCount) {
+        final byte[][] data = new byte[dataCount][LENGTH];
+
+        for (final byte[] packet : data) {
+            random.nextBytes(packet);
+        }
+
+        return data;
+    }
+
+    private static byte[][] encode(final byte[][] data, final int parityCount) {
+        final byte[][] shards = new byte[data.length + parityCount][LENGTH];
+
+        for (int i = 0; i < data.length; i++) {
+            System.arraycopy(data[i], 0, shards[i], 0, LENGTH);
+
+            for (int parity = 0; parity < parityCount; parity++) {
+                FecCode.addToParity(parity, i, data[i], 0, shards[data.length + parity], 0, LENGTH);
+            }
+        }
+
+        return shards;
+    }
+}
@@ -0,0 +1,338 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link FecDecoder}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class FecDecoderTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final FecEncoder encoder = new FecEncoder(42);
+    private final FecDecoder decoder = new FecDecoder();
+
+    @Test
+    public void isFecFrameShouldCheckFirstByte() {
+        assertTrue(FecDecoder.isFecFrame(ByteBuffer.wrap(new byte[] {FecEncoder.MARKER, 7})));
+        assertFalse(FecDecoder.isFecFrame(ByteBuffer.wrap(new byte[] {BinaryMessageFormat.MARKER, 2})));
+        assertFalse(FecDecoder.isFecFrame(ByteBuffer.wrap("124!IDLE#Christian:".getBytes())));
+        assertFalse(FecDecoder.isFecFrame(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    public void dataPacketsShouldBePassedOnRightAway() throws ProtocolException {
+        final ByteBuffer first = dataFrame("first");
+        final ByteBuffer second = dataFrame("second");
+
+        assertEquals(Arrays.asList("first"), decode(first));
+        assertEquals(Arrays.asList("second"), decode(second));
+        assertEquals(2, decoder.getDataPackets());
+    }
+
+    @Test
+    public void lostPacketShouldBeRebuiltFromXorParity() throws ProtocolException {
+        final ByteBuffer first = dataFrame("first");
+        dataFrame("lost packet");
+        final ByteBuffer third = dataFrame("third");
+        final List<ByteBuffer> parity = parityFrames();
+
+        assertEquals(1, parity.size());
+        assertEquals(Arrays.asList("first"), decode(first));
+        assertEquals(Arrays.asList("third"), decode(third));
+        assertEquals(Arrays.asList("lost packet"), decode(parity.get(0)));
+
+        assertEquals(1, decoder.getRecoveredPackets());
+        assertEquals(1, decoder.getParityPackets());
+    }
+
+    @Test
+    public void severalLostPacketsShouldBeRebuiltWithReedSolomonParity() throws ProtocolException {
+        encoder.setLossRate(0.1);
+        final ByteBuffer first = dataFrame("first");
+        dataFrame("second");
+        dataFrame("third, a longer packet");
+        final ByteBuffer fourth = dataFrame("fourth");
+        final List<ByteBuffer> parity = parityFrames();
+
+        assertEquals(3, parity.size());
+        assertEquals(Arrays.asList("first"), decode(first));
+        assertEquals(Arrays.asList(), decode(parity.get(0)));
+        assertEquals(Arrays.asList("fourth"), decode(fourth));
+        assertEquals(Arrays.asList("second", "third, a longer packet"), decode(parity.get(2)));
+        assertEquals(Arrays.asList(), decode(parity.get(1)));
+
+        assertEquals(2, decoder.getRecoveredPackets());
+    }
+
+    @Test
+    public void lostPacketArrivingLateShouldBeDropped() throws ProtocolException {
+        final ByteBuffer first = dataFrame("first");
+        final ByteBuffer late = dataFrame("late");
+        final List<ByteBuffer> parity = parityFrames();
+
+        decode(first);
+        assertEquals(Arrays.asList("late"), decode(parity.get(0)));
+        assertEquals(Arrays.asList(), decode(late));
+
+        assertEquals(1, decoder.getDuplicatePackets());
+    }
+
+    @Test
+    public void tooManyLostPacketsShouldBeCountedWhenTheGroupEnds() throws ProtocolException {
+        final ByteBuffer first = dataFrame("first");
+        dataFrame("lost");
+        dataFrame("also lost");
+        final List<ByteBuffer> parity = parityFrames();
+
+        decode(first);
+        assertEquals(Arrays.asList(), decode(parity.get(0)));
+        assertEquals(0, decoder.getLostPackets());
+
+        final ByteBuffer nextGroup = dataFrame("next group");
+        assertEquals(Arrays.asList("next group"), decode(nextGroup));
+
+        assertEquals(2, decoder.getLostPackets());
+        assertEquals(0, decoder.getRecoveredPackets());
+    }
+
+    @Test
+    public void lossRateShouldFollowTheEndedGroups() throws ProtocolException {
+        final Random random = new Random(1);
+
+        for (int group = 0; group < 200; group++) {
+            for (int i = 0; i < 7; i++) {
+                final ByteBuffer frame = dataFrame("packet " + i);
+
+                if (random.nextDouble() >= 0.125) {
+                    decode(frame);
+                }
+            }
+
+            for (final ByteBuffer frame : parityFrames()) {
+                if (random.nextDouble() >= 0.125) {
+                    decode(frame);
+                }
+            }
+        }
+
+        assertEquals(0.125, decoder.getLossRate(), 0.05);
+    }
+
+    @Test
+    public void sendersShouldHaveSeparateGroups() throws ProtocolException {
+        final FecEncoder otherEncoder = new FecEncoder(43);
+        final ByteBuffer first = dataFrame("first");
+        dataFrame("lost");
+        final List<ByteBuffer> parity = parityFrames();
+
+        final ByteBuffer other = copy(otherEncoder.getBytes(), otherEncoder.addDataPacket(toBytes("other"), 5));
+
+        decode(first);
+        assertEquals(Arrays.asList("other"), decode(other));
+        assertEquals(Arrays.asList("lost"), decode(parity.get(0)));
+    }
+
+    @Test
+    public void decodeShouldThrowExceptionIfFrameIsTooShort() throws ProtocolException {
+        expectedException.expect(ProtocolException.class);
+        expectedException.expectMessage("Fec frame is too short");
+
+        decoder.decode(ByteBuffer.wrap(new byte[] {FecEncoder.MARKER, 7, 0, 0}));
+    }
+
+    @Test
+    public void decodeShouldThrowExceptionIfVersionIsUnknown() throws ProtocolException {
+        expectedException.expect(ProtocolException.class);
+        expectedException.expectMessage("Unsupported fec version: 8");
+
+        final ByteBuffer frame = dataFrame("first");
+        frame.put(1, (byte) 8);
+        decoder.decode(frame);
+    }
+
+    @Test
+    public void decodeShouldThrowExceptionIfLengthIsWrong() throws ProtocolException {
+        expectedException.expect(ProtocolException.class);
+        expectedException.expectMessage("Wrong length of data packet: 5, was 4");
+
+        final ByteBuffer frame = dataFrame("first");
+        frame.limit(frame.limit() - 1);
+        decoder.decode(frame);
+    }
+
+    @Test
+    public void decodeShouldThrowExceptionIfGroupIsTooLarge() throws ProtocolException {
+        expectedException.expect(ProtocolException.class);
+        expectedException.expectMessage("Too many packets in fec group: 17+1");
+
+        dataFrame("first");
+        final ByteBuffer frame = parityFrames().get(0);
+        frame.put(9, (byte) 17);
+        decoder.decode(frame);
+    }
+
+    @Test
+    public void getPacketShouldThrowExceptionIfIndexIsOutOfRange() throws ProtocolException {
+        expectedException.expect(IndexOutOfBoundsException.class);
+        expectedException.expectMessage("No packet at index 1");
+
+        decoder.decode(dataFrame("first"));
+        decoder.getPacket(1);
+    }
+
+    @Test
+    public void parityShouldRebuildAlmostEveryLostPacket() throws ProtocolException {
+        final double[] lossRates = {0.01, 0.02, 0.05, 0.1, 0.2};
+        final int packets = 20_000;
+        final byte[] payload = new byte[200];
+
+        for (final double lossRate : lossRates) {
+            final Random random = new Random(1);
+            final FecEncoder lossyEncoder = new FecEncoder(1);
+            final FecDecoder lossyDecoder = new FecDecoder();
+            final ByteBuffer frame = ByteBuffer.allocate(Constants.NETWORK_PACKET_SIZE);
+            lossyEncoder.setLossRate(lossRate);
+
+            int lostPackets = 0;
+
+            for (int i = 0; i < packets; i++) {
+                random.nextBytes(payload);
+
+                if (!send(lossyDecoder, frame, lossyEncoder.getBytes(),
+                          lossyEncoder.addDataPacket(payload, payload.length), random, lossRate)) {
+                    lostPackets++;
+                }
+
+                if (lossyEncoder.isGroupFull()) {
+                    for (int parity = 0; parity < lossyEncoder.getParityCount(); parity++) {
+                        send(lossyDecoder, frame, lossyEncoder.getBytes(),
+                             lossyEncoder.writeParity(parity), random, lossRate);
+                    }
+
+                    lossyEncoder.closeGroup();
+                }
+            }
+
+            final long stillLost = lostPackets - lossyDecoder.getRecoveredPackets();
+
+            // Each group is lost less than 1% of the time, so almost every lost packet is rebuilt
+            assertTrue(lostPackets > 0);
+            assertTrue(stillLost / (double) packets < lossRate / 10);
+        }
+    }
+
+    @Test
+    public void manyInterleavedSendersShouldAllGetLostPacketsRebuilt() throws ProtocolException {
+        final int senders = 40;
+        final List<FecEncoder> encoders = new ArrayList<>();
+
+        for (int i = 0; i < senders; i++) {
+            encoders.add(new FecEncoder(100 + i));
+        }
+
+        for (final FecEncoder senderEncoder : encoders) {
+            decode(copy(senderEncoder.getBytes(), senderEncoder.addDataPacket(toBytes("first"), 5)));
+            senderEncoder.addDataPacket(toBytes("lost"), 4);
+        }
+
+        for (final FecEncoder senderEncoder : encoders) {
+            assertEquals(Arrays.asList("lost"), decode(copy(senderEncoder.getBytes(), senderEncoder.writeParity(0))));
+            senderEncoder.closeGroup();
+        }
+
+        assertEquals(senders, decoder.getRecoveredPackets());
+    }
+
+    private static boolean send(final FecDecoder decoder, final ByteBuffer frame, final byte[] bytes, final int length,
+                                final Random random, final double lossRate) throws ProtocolException {
+        if (random.nextDouble() < lossRate) {
+            return false;
+        }
+
+        frame.clear();
+        frame.put(bytes, 0, length);
+        frame.flip();
+        decoder.decode(frame);
+
+        return true;
+    }
+
+    private ByteBuffer dataFrame(final String packet) {
+        final byte[] bytes = toBytes(packet);
+
+        return copy(encoder.getBytes(), encoder.addDataPacket(bytes, bytes.length));
+    }
+
+    private List<ByteBuffer> parityFrames() {
+        final List<ByteBuffer> frames = new ArrayList<>();
+
+        for (int i = 0; i < encoder.getParityCount(); i++) {
+            frames.add(copy(encoder.getBytes(), encoder.writeParity(i)));
+        }
+
+        encoder.closeGroup();
+
+        return frames;
+    }
+
+    private List<String> decode(final ByteBuffer frame) throws ProtocolException {
+        final List<String> packets = new ArrayList<>();
+        final int count = decoder.decode(frame);
+
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer packet = decoder.getPacket(i);
+            final byte[] bytes = new byte[packet.remaining()];
+            packet.get(bytes);
+            packets.add(new String(bytes, Charset.forName(Constants.MESSAGE_CHARSET)));
+        }
+
+        return packets;
+    }
+
+    private static ByteBuffer copy(final byte[] bytes, final int length) {
+        return ByteBuffer.wrap(Arrays.copyOf(bytes, length));
+    }
+
+    private static byte[] toBytes(final String packet) {
+        return packet.getBytes(Charset.forName(Constants.MESSAGE_CHARSET));
+    }
+}
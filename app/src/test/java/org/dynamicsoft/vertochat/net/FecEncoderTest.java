@@ -0,0 +1,202 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.dynamicsoft.vertochat.net.FecEncoder.DATA_PACKETS;
+import static org.dynamicsoft.vertochat.net.FecEncoder.HEADER_SIZE;
+import static org.dynamicsoft.vertochat.net.FecEncoder.MAX_GROUP_FAILURE_RATE;
+import static org.dynamicsoft.vertochat.net.FecEncoder.MAX_PAYLOAD_SIZE;
+import static org.dynamicsoft.vertochat.net.FecEncoder.PARITY_PACKETS;
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link FecEncoder}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class FecEncoderTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final FecEncoder encoder = new FecEncoder(0x01020304);
+
+    @Test
+    public void setLossRateShouldThrowExceptionIfOutOfRange() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Loss rate must be between 0 and 1");
+
+        encoder.setLossRate(1.5);
+    }
+
+    @Test
+    public void addDataPacketShouldWriteHeaderAndPacket() {
+        final int length = encoder.addDataPacket(new byte[] {'a', 'b', 'c'}, 3);
+
+        assertEquals(HEADER_SIZE + 3, length);
+
+        final byte[] bytes = encoder.getBytes();
+        assertEquals(FecEncoder.MARKER, bytes[0]);
+        assertEquals(Constants.PROTOCOL_VERSION_FEC, bytes[1]);
+        assertEquals(1, bytes[2]);
+        assertEquals(2, bytes[3]);
+        assertEquals(3, bytes[4]);
+        assertEquals(4, bytes[5]);
+        assertEquals(0, bytes[6]); // Group
+        assertEquals(0, bytes[7]);
+        assertEquals(0, bytes[8]); // Index
+        assertEquals(0, bytes[9]); // Data packets, only in parity packets
+        assertEquals(1, bytes[10]); // Parity packets
+        assertEquals(0, bytes[11]); // Length
+        assertEquals(3, bytes[12]);
+        assertEquals('a', bytes[13]);
+        assertEquals('c', bytes[15]);
+    }
+
+    @Test
+    public void addDataPacketShouldNotWrapPacketsThatAreTooLarge() {
+        assertEquals(-1, encoder.addDataPacket(new byte[MAX_PAYLOAD_SIZE + 1], MAX_PAYLOAD_SIZE + 1));
+        assertFalse(encoder.hasOpenGroup());
+
+        assertEquals(Constants.NETWORK_PACKET_SIZE, encoder.addDataPacket(new byte[MAX_PAYLOAD_SIZE], MAX_PAYLOAD_SIZE));
+    }
+
+    @Test
+    public void groupShouldBeFullAfterTheDataPackets() {
+        assertEquals(16, encoder.getDataCount());
+
+        for (int i = 0; i < 15; i++) {
+            encoder.addDataPacket(new byte[] {(byte) i}, 1);
+            assertFalse(encoder.isGroupFull());
+        }
+
+        encoder.addDataPacket(new byte[] {15}, 1);
+
+        assertTrue(encoder.isGroupFull());
+        assertEquals(1, encoder.getParityCount());
+    }
+
+    @Test
+    public void writeParityShouldWriteXorOfTheDataPackets() {
+        encoder.addDataPacket(new byte[] {1, 2}, 2);
+        encoder.addDataPacket(new byte[] {4, 8, 16}, 3);
+
+        final int length = encoder.writeParity(0);
+        final byte[] bytes = encoder.getBytes();
+
+        assertEquals(HEADER_SIZE + 3, length);
+        assertEquals(0, bytes[8]); // Index
+        assertEquals(2, bytes[9]); // Data packets
+        assertEquals(1, bytes[10]); // Parity packets
+        assertEquals(2 ^ 3, bytes[12]); // Length
+        assertEquals(1 ^ 4, bytes[13]);
+        assertEquals(2 ^ 8, bytes[14]);
+        assertEquals(16, bytes[15]);
+    }
+
+    @Test
+    public void closeGroupShouldStartNextGroupWithEmptyParity() {
+        encoder.addDataPacket(new byte[] {1, 2}, 2);
+        encoder.closeGroup();
+
+        assertFalse(encoder.hasOpenGroup());
+        assertEquals(0, encoder.getParityCount());
+
+        encoder.addDataPacket(new byte[] {7}, 1);
+        assertEquals(1, encoder.getBytes()[7]); // Group
+
+        encoder.writeParity(0);
+        assertEquals(1, encoder.getBytes()[12]);
+        assertEquals(7, encoder.getBytes()[13]);
+    }
+
+    @Test
+    public void writeParityShouldThrowExceptionWithoutOpenGroup() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Parity index is out of range");
+
+        encoder.writeParity(0);
+    }
+
+    @Test
+    public void groupsShouldGetMoreParityWhenLossRateIncreases() {
+        encoder.setLossRate(0);
+        assertEquals(16, encoder.getDataCount());
+
+        encoder.setLossRate(0.05);
+        encoder.addDataPacket(new byte[] {1}, 1);
+
+        assertEquals(6, encoder.getDataCount());
+        assertEquals(2, encoder.getParityCount());
+
+        // The open group keeps its size
+        encoder.setLossRate(0.2);
+        assertEquals(6, encoder.getDataCount());
+
+        encoder.closeGroup();
+        assertEquals(4, encoder.getDataCount());
+    }
+
+    @Test
+    public void chooseGroupShouldPickLeastOverheadBelowMaxFailureRate() {
+        for (final double lossRate : new double[] {0, 0.01, 0.02, 0.05, 0.1}) {
+            final int choice = FecEncoder.chooseGroup(lossRate);
+
+            assertTrue(FecEncoder.getGroupFailureRate(DATA_PACKETS[choice], PARITY_PACKETS[choice], lossRate)
+                    < MAX_GROUP_FAILURE_RATE);
+
+            for (int i = 0; i < choice; i++) {
+                assertTrue(FecEncoder.getGroupFailureRate(DATA_PACKETS[i], PARITY_PACKETS[i], lossRate)
+                        >= MAX_GROUP_FAILURE_RATE);
+            }
+        }
+
+        assertEquals(DATA_PACKETS.length - 1, FecEncoder.chooseGroup(0.5));
+    }
+
+    @Test
+    public void getGroupFailureRateShouldUseBinomialDistribution() {
+        assertEquals(0, FecEncoder.getGroupFailureRate(4, 1, 0), 0.0000001);
+        assertEquals(1 - 0.9 * 0.9 - 2 * 0.1 * 0.9, FecEncoder.getGroupFailureRate(1, 1, 0.1), 0.0000001);
+    }
+
+    @Test
+    public void countersShouldShowOverhead() {
+        for (int i = 0; i < 4; i++) {
+            encoder.addDataPacket(new byte[] {1}, 1);
+        }
+
+        encoder.writeParity(0);
+        encoder.closeGroup();
+
+        assertEquals(4, encoder.getDataPackets());
+        assertEquals(1, encoder.getParityPackets());
+        assertEquals(1, encoder.getGroups());
+        assertEquals(0.25, encoder.getOverhead(), 0.0000001);
+    }
+}
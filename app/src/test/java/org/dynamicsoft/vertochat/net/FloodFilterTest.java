@@ -0,0 +1,239 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.dynamicsoft.vertochat.misc.User;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.dynamicsoft.vertochat.net.FloodFilter.MAX_BURST;
+import static org.dynamicsoft.vertochat.net.FloodFilter.MESSAGES_PER_SECOND;
+import static org.dynamicsoft.vertochat.net.FloodFilter.REPEAT_WINDOW_MS;
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link FloodFilter}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class FloodFilterTest {
+
+    private static final long START = TimeUnit.SECONDS.toNanos(1000);
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    private final RecordingRepeatListener repeatListener = new RecordingRepeatListener();
+    private final FloodFilter floodFilter = new FloodFilter(new User("Christian", 124), repeatListener, executor);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfRepeatListenerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Repeat listener can not be null");
+
+        new FloodFilter(new User("Christian", 124), null);
+    }
+
+    @Test
+    public void allowShouldDropMessagesAfterTheBurst() {
+        for (int i = 0; i < MAX_BURST; i++) {
+            assertTrue(floodFilter.allow(writing(125, "10.0.0.2"), START));
+        }
+
+        assertFalse(floodFilter.allow(writing(125, "10.0.0.2"), START));
+        assertFalse(floodFilter.allow(writing(125, "10.0.0.2"), START));
+
+        assertEquals(MAX_BURST, floodFilter.getAllowedMessages());
+        assertEquals(2, floodFilter.getDroppedMessages());
+    }
+
+    @Test
+    public void allowShouldLetMessagesThroughAtTheRate() {
+        for (int i = 0; i < MAX_BURST; i++) {
+            floodFilter.allow(writing(125, "10.0.0.2"), START);
+        }
+
+        final long interval = TimeUnit.SECONDS.toNanos(1) / MESSAGES_PER_SECOND;
+
+        assertFalse(floodFilter.allow(writing(125, "10.0.0.2"), START + interval / 2));
+        assertTrue(floodFilter.allow(writing(125, "10.0.0.2"), START + interval + interval / 2));
+        assertFalse(floodFilter.allow(writing(125, "10.0.0.2"), START + interval + interval / 2));
+    }
+
+    @Test
+    public void allowShouldLimitEachUserCodeAndIpAddressOnItsOwn() {
+        for (int i = 0; i < MAX_BURST; i++) {
+            floodFilter.allow(writing(125, "10.0.0.2"), START);
+        }
+
+        assertFalse(floodFilter.allow(writing(125, "10.0.0.2"), START));
+        assertTrue(floodFilter.allow(writing(125, "10.0.0.3"), START));
+        assertTrue(floodFilter.allow(writing(126, "10.0.0.2"), START));
+    }
+
+    @Test
+    public void allowShouldLetStateMessagesThroughFromFloodedSender() {
+        for (int i = 0; i < MAX_BURST; i++) {
+            floodFilter.allow(chat(125, "Flood " + i), START);
+        }
+
+        assertFalse(floodFilter.allow(chat(125, "One too many"), START));
+        assertFalse(floodFilter.allow(writing(125, "10.0.0.2"), START));
+
+        assertTrue(floodFilter.allow(expose(125, "10.0.0.2"), START));
+        assertTrue(floodFilter.allow(MessageEnvelope.decode("125!NICK#Penny:", "10.0.0.2"), START));
+        assertTrue(floodFilter.allow(MessageEnvelope.decode("125!AWAY#Penny:lunch", "10.0.0.2"), START));
+        assertTrue(floodFilter.allow(MessageEnvelope.decode("125!TOPIC#Penny:(Penny)[1234]Topic", "10.0.0.2"), START));
+        assertTrue(floodFilter.allow(MessageEnvelope.decode("125!CLIENT#Penny:(client)", "10.0.0.2"), START));
+        assertTrue(floodFilter.allow(MessageEnvelope.decode("125!LOGOFF#Penny:", "10.0.0.2"), START));
+
+        assertEquals(2, floodFilter.getDroppedMessages());
+    }
+
+    @Test
+    public void allowShouldNeverLimitMe() {
+        for (int i = 0; i < MAX_BURST * 2; i++) {
+            assertTrue(floodFilter.allow(chat(124, "Hello"), START));
+        }
+
+        assertEquals(0, floodFilter.getAllowedMessages());
+        assertEquals(0, floodFilter.getRepeatedMessages());
+    }
+
+    @Test
+    public void allowShouldFoldRepeatedChatMessagesUntilAnotherMessage() {
+        assertTrue(floodFilter.allow(chat(125, "Spam"), START));
+        assertFalse(floodFilter.allow(chat(125, "Spam"), START + MS));
+        assertFalse(floodFilter.allow(chat(125, "Spam"), START + 2 * MS));
+
+        // Other types don't stop the repeats
+        assertTrue(floodFilter.allow(expose(125, "10.0.0.2"), START + 3 * MS));
+        assertFalse(floodFilter.allow(chat(125, "Spam"), START + 4 * MS));
+        assertTrue(repeatListener.repeats.isEmpty());
+
+        assertTrue(floodFilter.allow(chat(125, "Hello"), START + 5 * MS));
+
+        assertEquals(Arrays.asList("125 MSG 3"), repeatListener.repeats);
+        assertEquals(3, floodFilter.getRepeatedMessages());
+    }
+
+    @Test
+    public void allowShouldShowSameMessageAgainAfterRepeatWindow() {
+        assertTrue(floodFilter.allow(chat(125, "Hello"), START));
+        assertTrue(floodFilter.allow(chat(125, "Hello"), START + REPEAT_WINDOW_MS * MS));
+    }
+
+    @Test
+    public void allowShouldOnlyFoldMessagesOfTheSameType() {
+        assertTrue(floodFilter.allow(chat(125, "Hello"), START));
+        assertTrue(floodFilter.allow(MessageEnvelope.decode("125!PRIVMSG#Penny:[-15987646]Hello", "10.0.0.2"), START));
+    }
+
+    @Test
+    public void reportRepeatsShouldReportRepeatsOlderThanTheWindow() {
+        floodFilter.allow(chat(125, "Spam"), START);
+        floodFilter.allow(chat(125, "Spam"), START + MS);
+        floodFilter.allow(chat(125, "Spam"), START + 3000 * MS);
+        floodFilter.allow(chat(126, "Spam"), START);
+        floodFilter.allow(chat(126, "Spam"), START + 1000 * MS);
+
+        floodFilter.reportRepeats(START + REPEAT_WINDOW_MS * MS + 2 * MS);
+        assertEquals(Arrays.asList("125 MSG 2"), repeatListener.repeats);
+
+        // Still repeating, so counting starts again
+        assertFalse(floodFilter.allow(chat(125, "Spam"), START + REPEAT_WINDOW_MS * MS + 3 * MS));
+
+        floodFilter.reportRepeats(START + 3 * REPEAT_WINDOW_MS * MS);
+        assertEquals(Arrays.asList("125 MSG 2", "126 MSG 1", "125 MSG 1"), repeatListener.repeats);
+    }
+
+    @Test
+    public void repeatsShouldBeReportedWhenTheSenderGoesQuiet() throws InterruptedException {
+        floodFilter.allow(chat(125, "Spam"));
+        floodFilter.allow(chat(125, "Spam"));
+
+        final long deadline = System.currentTimeMillis() + REPEAT_WINDOW_MS * 3;
+
+        while (repeatListener.repeats.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(Arrays.asList("125 MSG 1"), repeatListener.repeats);
+    }
+
+    @Test
+    public void getSenderCountersShouldShowTheWorstSenderFirst() {
+        floodFilter.allow(chat(125, "Hello"), START);
+
+        for (int i = 0; i < MAX_BURST + 5; i++) {
+            floodFilter.allow(writing(126, "10.0.0.3"), START);
+        }
+
+        final List<FloodFilter.SenderCounters> counters = floodFilter.getSenderCounters();
+
+        assertEquals(2, counters.size());
+        assertEquals(126, counters.get(0).getUserCode());
+        assertEquals("10.0.0.3", counters.get(0).getIpAddress());
+        assertEquals(MAX_BURST, counters.get(0).getAllowedMessages());
+        assertEquals(5, counters.get(0).getDroppedMessages());
+        assertEquals(125, counters.get(1).getUserCode());
+        assertEquals(0, counters.get(1).getDroppedMessages());
+    }
+
+    private static MessageEnvelope chat(final int userCode, final String text) {
+        return MessageEnvelope.decode(userCode + "!MSG#Penny:[-15987646]" + text, "10.0.0.2");
+    }
+
+    private static MessageEnvelope expose(final int userCode, final String ipAddress) {
+        return MessageEnvelope.decode(userCode + "!EXPOSING#Penny:", ipAddress);
+    }
+
+    private static MessageEnvelope writing(final int userCode, final String ipAddress) {
+        return MessageEnvelope.decode(userCode + "!WRITING#Penny:", ipAddress);
+    }
+
+    private static class RecordingRepeatListener implements FloodFilter.RepeatListener {
+
+        private final List<String> repeats = new ArrayList<>();
+
+        @Override
+        public synchronized void messageRepeated(final int userCode, final MessageType type, final int times) {
+            repeats.add(userCode + " " + type + " " + times);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.dynamicsoft.vertochat.misc.ErrorHandler;
+import org.dynamicsoft.vertochat.misc.User;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link MessageBatcher}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageBatcherTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ProtocolNegotiator protocolNegotiator;
+    private User user;
+    private RecordingMessageSender messageSender;
+    private MessageBatcher batcher;
+
+    @Before
+    public void setUp() {
+        user = new User("Binary", 2);
+        user.setProtocolVersion(Constants.PROTOCOL_VERSION_BINARY);
+
+        protocolNegotiator = new ProtocolNegotiator();
+        protocolNegotiator.userAdded(0, user);
+
+        messageSender = new RecordingMessageSender();
+        batcher = new MessageBatcher(messageSender, protocolNegotiator);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfMessageSenderIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message sender can not be null");
+
+        new MessageBatcher(null, protocolNegotiator);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfProtocolNegotiatorIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Protocol negotiator can not be null");
+
+        new MessageBatcher(messageSender, null);
+    }
+
+    @Test
+    public void canBatchShouldOnlyAcceptControlMessages() {
+        assertTrue(batcher.canBatch("1!LOGON#Christian:"));
+        assertTrue(batcher.canBatch("1!CLIENT#Christian:(KouChat)"));
+        assertTrue(batcher.canBatch("1!EXPOSE#Christian:"));
+        assertTrue(batcher.canBatch("1!EXPOSING#Christian:"));
+        assertTrue(batcher.canBatch("1!GETTOPIC#Christian:"));
+        assertTrue(batcher.canBatch("1!TOPIC#Christian:(Christian)[1]Topic"));
+        assertTrue(batcher.canBatch("1!IDLE#Christian:"));
+
+        assertFalse(batcher.canBatch("1!MSG#Christian:[1]Hello"));
+        assertFalse(batcher.canBatch("1!LOGOFF#Christian:"));
+        assertFalse(batcher.canBatch("1!WRITING#Christian:"));
+        assertFalse(batcher.canBatch("1!SOMETHING#Christian:"));
+        assertFalse(batcher.canBatch("garbage"));
+    }
+
+    @Test
+    public void addShouldSendMessagesTogetherAfterBatchWindow() throws InterruptedException {
+        final SendFuture logon = batcher.add("1!LOGON#Christian:");
+        final SendFuture client = batcher.add("1!CLIENT#Christian:(KouChat)");
+        final SendFuture expose = batcher.add("1!EXPOSE#Christian:");
+
+        assertTrue(messageSender.batches.isEmpty());
+        assertFalse(logon.isDone());
+
+        assertTrue(logon.awaitSent());
+        assertTrue(client.awaitSent());
+        assertTrue(expose.awaitSent());
+
+        assertEquals(1, messageSender.batches.size());
+        assertEquals(Arrays.asList("1!LOGON#Christian:", "1!CLIENT#Christian:(KouChat)", "1!EXPOSE#Christian:"),
+                messageSender.batches.get(0));
+        assertEquals(3, batcher.getBatchedMessages());
+        assertEquals(1, batcher.getSentPackets());
+    }
+
+    @Test
+    public void addShouldSendRightAwayWhenTooManyMessagesAreWaiting() {
+        for (int i = 0; i < MessageBatcher.MAX_WAITING_MESSAGES; i++) {
+            batcher.add(i + "!IDLE#Christian:");
+        }
+
+        assertEquals(1, messageSender.batches.size());
+        assertEquals(MessageBatcher.MAX_WAITING_MESSAGES, messageSender.batches.get(0).size());
+    }
+
+    @Test
+    public void flushShouldSendWaitingMessagesRightAway() {
+        batcher.add("1!IDLE#Christian:");
+
+        batcher.flush();
+        batcher.flush();
+
+        assertEquals(1, messageSender.batches.size());
+        assertEquals(Arrays.asList("1!IDLE#Christian:"), messageSender.batches.get(0));
+        assertEquals(Arrays.asList(WireFormat.BINARY), messageSender.batchFormats);
+    }
+
+    @Test
+    public void flushShouldUseCompressedFormatWhenEveryUserSupportsIt() {
+        user.setProtocolVersion(Constants.PROTOCOL_VERSION_COMPRESSED);
+        batcher.add("1!TOPIC#Christian:(Christian)[1]Topic");
+
+        batcher.flush();
+
+        assertEquals(Arrays.asList(WireFormat.COMPRESSED), messageSender.batchFormats);
+    }
+
+    @Test
+    public void flushShouldSendTextMessagesIfUserWithoutBinarySupportShowedUp() {
+        batcher.add("1!EXPOSING#Christian:");
+        batcher.add("1!CLIENT#Christian:(KouChat)");
+        protocolNegotiator.userAdded(1, new User("Text", 3));
+
+        batcher.flush();
+
+        assertTrue(messageSender.batches.isEmpty());
+        assertEquals(Arrays.asList("1!EXPOSING#Christian:", "1!CLIENT#Christian:(KouChat)"), messageSender.textMessages);
+        assertEquals(2, batcher.getSentPackets());
+    }
+
+    @Test
+    public void flushWithoutNextLaneShouldUseLaneOfBatch() {
+        batcher.add("1!IDLE#Christian:");
+
+        batcher.flush();
+
+        assertEquals(Arrays.asList(SendQueue.Lane.PRESENCE), messageSender.lanes);
+    }
+
+    @Test
+    public void flushShouldSendWaitingMessagesInLaneOfNextMessage() {
+        batcher.add("1!IDLE#Christian:");
+
+        assertEquals(SendQueue.Lane.CHAT, batcher.flush(SendQueue.Lane.CHAT));
+
+        assertEquals(Arrays.asList(SendQueue.Lane.CHAT), messageSender.lanes);
+    }
+
+    @Test
+    public void flushShouldSendTextMessagesInLaneOfNextMessage() {
+        batcher.add("1!EXPOSING#Christian:");
+        batcher.add("1!CLIENT#Christian:(KouChat)");
+        protocolNegotiator.userAdded(1, new User("Text", 3));
+
+        assertEquals(SendQueue.Lane.CHAT, batcher.flush(SendQueue.Lane.CHAT));
+
+        assertEquals(Arrays.asList("1!EXPOSING#Christian:", "1!CLIENT#Christian:(KouChat)"), messageSender.textMessages);
+        assertEquals(Arrays.asList(SendQueue.Lane.CHAT, SendQueue.Lane.CHAT), messageSender.lanes);
+    }
+
+    @Test
+    public void flushShouldKeepStampedMessagesInChatLane() {
+        batcher.add(MessageSequencer.stamp(1, "1!TOPIC#Christian:(Christian)[1]Topic"));
+
+        assertEquals(SendQueue.Lane.CHAT, batcher.flush(SendQueue.Lane.PRESENCE));
+
+        assertEquals(Arrays.asList(SendQueue.Lane.CHAT), messageSender.lanes);
+    }
+
+    @Test
+    public void flushShouldReturnNextLaneWhenNoMessagesAreWaiting() {
+        assertEquals(SendQueue.Lane.BULK, batcher.flush(SendQueue.Lane.BULK));
+
+        assertTrue(messageSender.lanes.isEmpty());
+    }
+
+    @Test
+    public void flushShouldThrowExceptionIfLaneIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Lane can not be null");
+
+        batcher.flush(null);
+    }
+
+    @Test
+    public void flushedMessagesShouldBeSentBeforeTheMessageThatForcedTheFlush() throws InterruptedException {
+        final QueueingMessageSender queueingSender = new QueueingMessageSender();
+        final MessageBatcher queueingBatcher = new MessageBatcher(queueingSender, protocolNegotiator);
+        final CountDownLatch release = queueingSender.blockSender();
+
+        queueingBatcher.add("1!IDLE#Christian:");
+
+        // A chat message would be sent before waiting presence messages, if they were in different lanes
+        final String logoff = "1!LOGOFF#Christian:";
+        final SendQueue.Lane lane = queueingBatcher.flush(SendQueue.Lane.forMessage(logoff));
+        queueingSender.send(logoff, WireFormat.BINARY, lane);
+
+        release.countDown();
+
+        assertTrue(queueingSender.sendQueue.awaitQueuedMessages(1000));
+        assertEquals(Arrays.asList("[1!IDLE#Christian:]", logoff), queueingSender.sent);
+    }
+
+    @Test
+    public void addShouldCompleteFutureWhenBatchIsSent() {
+        final SendFuture future = batcher.add("1!IDLE#Christian:");
+
+        batcher.flush();
+
+        assertTrue(future.isDone());
+        assertTrue(future.isSent());
+    }
+
+    @Test
+    public void addShouldFailFutureWhenBatchIsNotSent() {
+        messageSender.sent = false;
+        final SendFuture first = batcher.add("1!IDLE#Christian:");
+        final SendFuture second = batcher.add("1!EXPOSING#Christian:");
+
+        batcher.flush();
+
+        assertTrue(first.isFailed());
+        assertTrue(second.isFailed());
+    }
+
+    @Test
+    public void addShouldFailFutureWhenTextMessageIsNotSent() {
+        messageSender.sent = false;
+        final SendFuture future = batcher.add("1!EXPOSING#Christian:");
+        protocolNegotiator.userAdded(1, new User("Text", 3));
+
+        batcher.flush();
+
+        assertTrue(future.isFailed());
+    }
+
+    /**
+     * Message sender that records what would have been sent, without using the network.
+     */
+    private static class RecordingMessageSender extends MessageSender {
+
+        private final List<List<String>> batches = new ArrayList<>();
+        private final List<WireFormat> batchFormats = new ArrayList<>();
+        private final List<String> textMessages = new ArrayList<>();
+        private final List<SendQueue.Lane> lanes = new ArrayList<>();
+        private boolean sent = true;
+
+        RecordingMessageSender() {
+            super(new ErrorHandler());
+        }
+
+        @Override
+        public synchronized SendFuture sendBatch(final List<String> messages, final WireFormat format,
+                                                 final SendQueue.Lane lane) {
+            batches.add(new ArrayList<>(messages));
+            batchFormats.add(format);
+            lanes.add(lane);
+            return SendFuture.completed(sent);
+        }
+
+        @Override
+        public synchronized SendFuture send(final String message, final WireFormat format, final SendQueue.Lane lane) {
+            textMessages.add(message);
+            lanes.add(lane);
+            return SendFuture.completed(sent);
+        }
+    }
+
+    /**
+     * Message sender that adds the messages to a real send queue, and records the order they are sent in.
+     */
+    private static class QueueingMessageSender extends MessageSender {
+
+        private final SendQueue sendQueue = new SendQueue();
+        private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+        QueueingMessageSender() {
+            super(new ErrorHandler());
+        }
+
+        @Override
+        public SendFuture sendBatch(final List<String> messages, final WireFormat format, final SendQueue.Lane lane) {
+            return sendQueue.submit(createTask(messages.toString()), lane, null);
+        }
+
+        @Override
+        public SendFuture send(final String message, final WireFormat format, final SendQueue.Lane lane) {
+            return sendQueue.submit(createTask(message), lane, null);
+        }
+
+        /**
+         * Makes the sender thread wait until the returned latch is counted down.
+         */
+        CountDownLatch blockSender() throws InterruptedException {
+            final CountDownLatch blocked = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+
+            sendQueue.submit(new SendQueue.Task() {
+                @Override
+                public int send() {
+                    blocked.countDown();
+
+                    try {
+                        release.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    return 1;
+                }
+            });
+
+            assertTrue(blocked.await(1, TimeUnit.SECONDS));
+
+            return release;
+        }
+
+        private SendQueue.Task createTask(final String name) {
+            return new SendQueue.Task() {
+                @Override
+                public int send() {
+                    sent.add(name);
+                    return 1;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link MessageEncoder} and {@link MessageFrameCache}.
+ *
+ * @author Christian Ihle
+ */
+public class MessageEncoderTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MessageFrameCache frameCache;
+    private MessageEncoder encoder;
+
+    @Before
+    public void setUp() {
+        frameCache = new MessageFrameCache();
+        encoder = new MessageEncoder(frameCache);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfFrameCacheIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Frame cache can not be null");
+
+        new MessageEncoder(null);
+    }
+
+    @Test
+    public void encodeShouldGiveSameBytesAsGetBytes() throws Exception {
+        assertEncodedLikeGetBytes("");
+        assertEncodedLikeGetBytes("123!MSG#Christian:[-16777216]Hello");
+        assertEncodedLikeGetBytes("123!MSG#Christian:[-16777216]æøå ÆØÅ");
+        assertEncodedLikeGetBytes("123!MSG#Christian:[-16777216]€ ĳ 中文");
+        assertEncodedLikeGetBytes("123!MSG#Christian:[-16777216]😀 smile");
+    }
+
+    @Test
+    public void encodeShouldReplaceUnpairedSurrogatesLikeGetBytes() throws Exception {
+        assertEncodedLikeGetBytes("high \ud83d alone");
+        assertEncodedLikeGetBytes("low \ude00 alone");
+        assertEncodedLikeGetBytes("ends with high \ud83d");
+        assertEncodedLikeGetBytes("reversed \ude00\ud83d pair");
+    }
+
+    @Test
+    public void encodeShouldGrowBufferForLargeMessages() throws Exception {
+        final char[] chars = new char[2000];
+        Arrays.fill(chars, 'ø');
+
+        assertEncodedLikeGetBytes(new String(chars));
+        assertEncodedLikeGetBytes("small after large");
+    }
+
+    @Test
+    public void encodeShouldReuseBufferBetweenMessages() {
+        encoder.encode("first");
+        final byte[] firstBytes = encoder.getBytes();
+
+        encoder.encode("second");
+
+        assertSame(firstBytes, encoder.getBytes());
+    }
+
+    @Test
+    public void encodeShouldUseCachedFrameForSameMessageInstance() throws Exception {
+        final String idle = "123!IDLE#Christian:";
+        frameCache.replace(idle, "123!WRITING#Christian:");
+
+        final int length = encoder.encode(idle);
+
+        assertSame(frameCache.get(idle), encoder.getBytes());
+        assertArrayEquals(idle.getBytes("UTF-8"), Arrays.copyOf(encoder.getBytes(), length));
+    }
+
+    @Test
+    public void encodeShouldNotUseCachedFrameForEqualMessageWithDifferentInstance() throws Exception {
+        final String idle = "123!IDLE#Christian:";
+        frameCache.replace(idle);
+
+        final String copy = new String(idle);
+        final int length = encoder.encode(copy);
+
+        assertNotSame(frameCache.get(idle), encoder.getBytes());
+        assertArrayEquals(idle.getBytes("UTF-8"), Arrays.copyOf(encoder.getBytes(), length));
+    }
+
+    @Test
+    public void encodeBinaryShouldUseCachedBinaryFrameForSameMessageInstance() {
+        final String idle = "123!IDLE#Christian:";
+        frameCache.replace(idle);
+
+        final int length = encoder.encodeBinary(idle);
+
+        assertSame(frameCache.getBinary(idle), encoder.getBytes());
+        assertEquals(BinaryMessageFormat.MARKER, encoder.getBytes()[0]);
+        assertEquals(frameCache.getBinary(idle).length, length);
+    }
+
+    @Test
+    public void encodeBinaryShouldFallBackToTextForUnknownTypes() throws Exception {
+        final String message = "123!SOMETHING#Christian:new";
+
+        final int length = encoder.encodeBinary(message);
+
+        assertArrayEquals(message.getBytes("UTF-8"), Arrays.copyOf(encoder.getBytes(), length));
+    }
+
+    @Test
+    public void encodeCompressedShouldCompressChatMessages() throws Exception {
+        final String message = "1!MSG#Christian:[-16777216]Hello everyone, what are you going to do for lunch today?";
+
+        final int compressedLength = encoder.encodeCompressed(message);
+        final byte[] compressedFrame = Arrays.copyOf(encoder.getBytes(), compressedLength);
+
+        assertTrue(compressedLength < encoder.encodeBinary(message));
+        assertEquals(message, new BinaryMessageFormat().decode(ByteBuffer.wrap(compressedFrame)));
+    }
+
+    @Test
+    public void encodeShouldUseGivenFormat() {
+        final String message = "1!MSG#Christian:[-16777216]Hello everyone, what are you going to do for lunch today?";
+
+        assertEquals(encoder.encode(message), encoder.encode(message, WireFormat.TEXT));
+        assertEquals(encoder.encodeBinary(message), encoder.encode(message, WireFormat.BINARY));
+        assertEquals(encoder.encodeCompressed(message), encoder.encode(message, WireFormat.COMPRESSED));
+    }
+
+    @Test
+    public void encodeBatchShouldThrowExceptionForTextFormat() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Batches can not use the text format");
+
+        encoder.encodeBatch(Arrays.asList("1!IDLE#Christian:"), 0, 512, WireFormat.TEXT);
+    }
+
+    @Test
+    public void encodeBatchShouldPackMessagesIntoOneBatchFrame() throws Exception {
+        final List<String> messages = Arrays.asList("1!LOGON#Christian:", "1!CLIENT#Christian:(KouChat)", "1!EXPOSE#Christian:");
+
+        final int count = encoder.encodeBatch(messages, 0, 512);
+
+        assertEquals(3, count);
+        assertEquals(BinaryMessageFormat.BATCH_MARKER, encoder.getBytes()[0]);
+
+        final BinaryMessageFormat format = new BinaryMessageFormat();
+        final ByteBuffer batch = ByteBuffer.wrap(encoder.getBytes(), 0, encoder.getLength());
+        format.readBatchHeader(batch);
+
+        assertEquals("1!LOGON#Christian:", format.decodeBatchedFrame(batch));
+        assertEquals("1!CLIENT#Christian:(KouChat)", format.decodeBatchedFrame(batch));
+        assertEquals("1!EXPOSE#Christian:", format.decodeBatchedFrame(batch));
+        assertFalse(batch.hasRemaining());
+    }
+
+    @Test
+    public void encodeBatchShouldStopWhenMaxSizeIsReached() {
+        final List<String> messages = Arrays.asList("1!IDLE#Christian:", "2!IDLE#Christian:", "3!IDLE#Christian:");
+        final int frameSize = encoder.encodeBinary(messages.get(0));
+        final int maxSize = BinaryMessageFormat.BATCH_HEADER_SIZE + 2 * BinaryMessageFormat.getBatchedFrameSize(frameSize);
+
+        assertEquals(2, encoder.encodeBatch(messages, 0, maxSize));
+        assertEquals(maxSize, encoder.getLength());
+
+        assertEquals(1, encoder.encodeBatch(messages, 2, maxSize));
+        assertEquals(BinaryMessageFormat.MARKER, encoder.getBytes()[0]);
+        assertEquals(frameSize, encoder.getLength());
+    }
+
+    @Test
+    public void encodeBatchShouldEncodeMessageAloneIfNotBinary() throws Exception {
+        final List<String> messages = Arrays.asList("1!SOMETHING#Christian:", "1!IDLE#Christian:");
+
+        assertEquals(1, encoder.encodeBatch(messages, 0, 512));
+        assertArrayEquals("1!SOMETHING#Christian:".getBytes("UTF-8"), Arrays.copyOf(encoder.getBytes(), encoder.getLength()));
+
+        assertEquals(1, encoder.encodeBatch(messages, 1, 512));
+        assertEquals(BinaryMessageFormat.MARKER, encoder.getBytes()[0]);
+    }
+
+    @Test
+    public void replaceShouldRemovePreviouslyCachedMessages() {
+        final String oldIdle = "123!IDLE#Christian:";
+        final String newIdle = "123!IDLE#Kou:";
+        frameCache.replace(oldIdle);
+
+        frameCache.replace(newIdle);
+
+        assertNull(frameCache.get(oldIdle));
+        assertNotNull(frameCache.get(newIdle));
+    }
+
+    @Test
+    public void clearShouldRemoveAllCachedMessages() {
+        final String idle = "123!IDLE#Christian:";
+        frameCache.replace(idle);
+
+        frameCache.clear();
+
+        assertNull(frameCache.get(idle));
+    }
+
+    @Test
+    public void replaceShouldThrowExceptionIfMessageIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message can not be null");
+
+        frameCache.replace("123!IDLE#Christian:", null);
+    }
+
+    private void assertEncodedLikeGetBytes(final String message) throws Exception {
+        final int length = encoder.encode(message);
+
+        assertArrayEquals(message.getBytes("UTF-8"), Arrays.copyOf(encoder.getBytes(), length));
+    }
+}
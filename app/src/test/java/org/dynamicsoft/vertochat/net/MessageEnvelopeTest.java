@@ -0,0 +1,161 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link MessageEnvelope}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageEnvelopeTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void decodeShouldFindUserCodeTypeNickAndPayload() {
+        final MessageEnvelope envelope = MessageEnvelope.decode("12345!MSG#Christian:[-15987646]Hello: you", "192.168.1.1");
+
+        assertEquals(12345, envelope.getUserCode());
+        assertSame(MessageType.MSG, envelope.getType());
+        assertEquals("MSG", envelope.getTypeName());
+        assertEquals("Christian", envelope.getNick());
+        assertEquals("[-15987646]Hello: you", envelope.getPayload());
+        assertEquals("192.168.1.1", envelope.getIpAddress());
+        assertEquals("12345!MSG#Christian:[-15987646]Hello: you", envelope.getMessage());
+    }
+
+    @Test
+    public void decodeShouldHandleEmptyPayload() {
+        final MessageEnvelope envelope = MessageEnvelope.decode("12345!IDLE#Christian:", "192.168.1.1");
+
+        assertSame(MessageType.IDLE, envelope.getType());
+        assertEquals("", envelope.getPayload());
+    }
+
+    @Test
+    public void decodeShouldFindAllKnownTypes() {
+        for (final MessageType type : MessageType.values()) {
+            if (type != MessageType.UNKNOWN) {
+                final MessageEnvelope envelope = MessageEnvelope.decode("1!" + type.getNetworkName() + "#Nick:", "ip");
+                assertSame(type, envelope.getType());
+            }
+        }
+    }
+
+    @Test
+    public void decodeShouldReturnUnknownTypeForUnsupportedTypes() {
+        final MessageEnvelope envelope = MessageEnvelope.decode("12345!MSGX#Christian:hello", "192.168.1.1");
+
+        assertSame(MessageType.UNKNOWN, envelope.getType());
+        assertEquals("MSGX", envelope.getTypeName());
+    }
+
+    @Test
+    public void decodeShouldReturnUnknownTypeForEmptyAndLongTypes() {
+        assertSame(MessageType.UNKNOWN, MessageEnvelope.decode("1!#Nick:", "ip").getType());
+        assertSame(MessageType.UNKNOWN, MessageEnvelope.decode("1!STOPPEDWRITINGANDMORE#Nick:", "ip").getType());
+    }
+
+    @Test
+    public void decodeShouldThrowExceptionIfDelimitersAreMissing() {
+        expectedException.expect(StringIndexOutOfBoundsException.class);
+
+        MessageEnvelope.decode("Error", "192.168.1.1");
+    }
+
+    @Test
+    public void decodeShouldThrowExceptionIfDelimitersAreInWrongOrder() {
+        expectedException.expect(StringIndexOutOfBoundsException.class);
+
+        MessageEnvelope.decode("12345!MSG:Christian#hello", "192.168.1.1");
+    }
+
+    @Test
+    public void decodeShouldThrowExceptionIfUserCodeIsNotANumber() {
+        expectedException.expect(NumberFormatException.class);
+        expectedException.expectMessage("For input string: \"a16320462\"");
+
+        MessageEnvelope.decode("a16320462!LOGON#Christian:", "192.168.1.1");
+    }
+
+    @Test
+    public void parseIntShouldParseNumbersInsideText() {
+        assertEquals(40656, MessageEnvelope.parseInt("<40656>", 1, 6));
+        assertEquals(-15987646, MessageEnvelope.parseInt("[-15987646]", 1, 10));
+        assertEquals(7, MessageEnvelope.parseInt("+7", 0, 2));
+        assertEquals(Integer.MAX_VALUE, MessageEnvelope.parseInt("2147483647", 0, 10));
+        assertEquals(Integer.MIN_VALUE, MessageEnvelope.parseInt("-2147483648", 0, 11));
+    }
+
+    @Test
+    public void parseIntShouldThrowExceptionOnOverflow() {
+        expectedException.expect(NumberFormatException.class);
+        expectedException.expectMessage("For input string: \"2147483648\"");
+
+        MessageEnvelope.parseInt("2147483648", 0, 10);
+    }
+
+    @Test
+    public void parseIntShouldThrowExceptionIfEmpty() {
+        expectedException.expect(NumberFormatException.class);
+        expectedException.expectMessage("For input string: \"\"");
+
+        MessageEnvelope.parseInt("()", 1, 1);
+    }
+
+    @Test
+    public void parseIntShouldThrowExceptionIfOnlySign() {
+        expectedException.expect(NumberFormatException.class);
+        expectedException.expectMessage("For input string: \"-\"");
+
+        MessageEnvelope.parseInt("-", 0, 1);
+    }
+
+    @Test
+    public void parseIntShouldThrowExceptionIfOutsideText() {
+        expectedException.expect(StringIndexOutOfBoundsException.class);
+
+        MessageEnvelope.parseInt("hello", 0, -1);
+    }
+
+    @Test
+    public void parseLongShouldHandleLimits() {
+        assertEquals(Long.MAX_VALUE, MessageEnvelope.parseLong("9223372036854775807", 0, 19));
+        assertEquals(Long.MIN_VALUE, MessageEnvelope.parseLong("-9223372036854775808", 0, 20));
+    }
+
+    @Test
+    public void parseLongShouldThrowExceptionOnOverflow() {
+        expectedException.expect(NumberFormatException.class);
+        expectedException.expectMessage("For input string: \"9223372036854775808\"");
+
+        MessageEnvelope.parseLong("9223372036854775808", 0, 19);
+    }
+}
@@ -112,7 +112,7 @@ public class MessageParserTest {
                 "192.168.1.1");
 
         verify(responder).clientInfo(19879835, "KouChat v1.3.0 Swing", 1854,
-                "Linux", 40656, 0);
+                "Linux", 40656, 0, 1, false);
     }
 
     @Test
@@ -121,7 +121,62 @@ public class MessageParserTest {
                 "192.168.1.1");
 
         verify(responder).clientInfo(10066122, "KouChat v1.4.0 Swing", 1753,
-                "Linux", 40656, 40657);
+                "Linux", 40656, 40657, 1, false);
+    }
+
+    @Test
+    public void messageArrivedShouldParseClientWithProtocolVersion() {
+        messageParser.messageArrived("10066122!CLIENT#Christian:(KouChat v1.4.0 Swing)[1753]{Linux}<40656>/40657\\|2|",
+                "192.168.1.1");
+
+        verify(responder).clientInfo(10066122, "KouChat v1.4.0 Swing", 1753,
+                "Linux", 40656, 40657, 2, false);
+    }
+
+    @Test
+    public void messageArrivedShouldParseClientWithNackEnabled() {
+        messageParser.messageArrived("10066122!CLIENT#Christian:(KouChat v1.4.0 Swing)[1753]{Linux}<40656>/40657\\|7|^1^",
+                "192.168.1.1");
+
+        verify(responder).clientInfo(10066122, "KouChat v1.4.0 Swing", 1753,
+                "Linux", 40656, 40657, 7, true);
+    }
+
+    @Test
+    public void messageArrivedShouldParseClientWithNackDisabled() {
+        messageParser.messageArrived("10066122!CLIENT#Christian:(KouChat v1.4.0 Swing)[1753]{Linux}<40656>/40657\\|7|^0^",
+                "192.168.1.1");
+
+        verify(responder).clientInfo(10066122, "KouChat v1.4.0 Swing", 1753,
+                "Linux", 40656, 40657, 7, false);
+    }
+
+    @Test
+    public void messageArrivedShouldIgnorePipeInClientNameWithoutProtocolVersion() {
+        messageParser.messageArrived("10066122!CLIENT#Christian:(KouChat | Swing)[1753]{Linux}<40656>/40657\\",
+                "192.168.1.1");
+
+        verify(responder).clientInfo(10066122, "KouChat | Swing", 1753,
+                "Linux", 40656, 40657, 1, false);
+    }
+
+    @Test
+    public void messageArrivedShouldLogIfProtocolVersionCouldNotBeParsed() {
+        messageParser.messageArrived("10066122!CLIENT#Christian:(KouChat v1.4.0 Swing)[1753]{Linux}<40656>/40657\\|c2|",
+                "192.168.1.1");
+
+        verify(responder).clientInfo(10066122, "KouChat v1.4.0 Swing", 1753,
+                "Linux", 40656, 40657, 1, false);
+
+        final ArgumentCaptor<Exception> exceptionCaptor = ArgumentCaptor.forClass(Exception.class);
+
+        verify(log).log(eq(Level.WARNING),
+                eq("Failed to parse protocol version. " +
+                        "message=10066122!CLIENT#Christian:(KouChat v1.4.0 Swing)[1753]{Linux}<40656>/40657\\|c2|, " +
+                        "ipAddress=192.168.1.1"),
+                exceptionCaptor.capture());
+
+        checkException(exceptionCaptor, NumberFormatException.class, "For input string: \"c2\"");
     }
 
     @Test
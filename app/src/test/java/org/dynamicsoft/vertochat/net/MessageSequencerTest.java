@@ -0,0 +1,100 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link MessageSequencer}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageSequencerTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final MessageSequencer sequencer = new MessageSequencer();
+
+    @Test
+    public void stampShouldUseNextSequenceNumber() {
+        assertEquals("~0~124!IDLE#Christian:", sequencer.stamp("124!IDLE#Christian:"));
+        assertEquals("~1~124!MSG#Christian:[-15987646]Hello", sequencer.stamp("124!MSG#Christian:[-15987646]Hello"));
+    }
+
+    @Test
+    public void stampShouldThrowExceptionIfMessageIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message can not be null");
+
+        MessageSequencer.stamp(1, null);
+    }
+
+    @Test
+    public void isStampedShouldOnlyBeTrueForStampedMessages() {
+        assertTrue(MessageSequencer.isStamped("~5~124!IDLE#Christian:"));
+        assertFalse(MessageSequencer.isStamped("124!IDLE#Christian:"));
+        assertFalse(MessageSequencer.isStamped("-124!MSG#Christian:~5~"));
+        assertFalse(MessageSequencer.isStamped(""));
+    }
+
+    @Test
+    public void getSequenceAndUnstampShouldReverseStamp() {
+        final String stamped = MessageSequencer.stamp(-2147483648, "124!MSG#Christian:[-15987646]~Hi~");
+
+        assertEquals(-2147483648, MessageSequencer.getSequence(stamped));
+        assertEquals("124!MSG#Christian:[-15987646]~Hi~", MessageSequencer.unstamp(stamped));
+        assertEquals(13, MessageSequencer.getMessageStart(stamped));
+    }
+
+    @Test
+    public void unstampShouldReturnMessagesWithoutSequenceNumberAsTheyAre() {
+        assertEquals("124!IDLE#Christian:", MessageSequencer.unstamp("124!IDLE#Christian:"));
+        assertEquals(0, MessageSequencer.getMessageStart("124!IDLE#Christian:"));
+    }
+
+    @Test
+    public void getSequenceShouldThrowExceptionIfNotStamped() {
+        expectedException.expect(NumberFormatException.class);
+        expectedException.expectMessage("Message has no sequence number");
+
+        MessageSequencer.getSequence("124!IDLE#Christian:");
+    }
+
+    @Test
+    public void getSequenceShouldThrowExceptionIfEndIsMissing() {
+        expectedException.expect(StringIndexOutOfBoundsException.class);
+        expectedException.expectMessage("End of sequence number is missing");
+
+        MessageSequencer.getSequence("~5124!IDLE#Christian:");
+    }
+
+    @Test
+    public void stampedMessagesShouldKeepType() {
+        assertEquals(MessageType.WRITING, MessageType.fromMessage(sequencer.stamp("124!WRITING#Christian:")));
+    }
+}
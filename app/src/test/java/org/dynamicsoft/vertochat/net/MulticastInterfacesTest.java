@@ -0,0 +1,135 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.dynamicsoft.vertochat.net.MulticastInterfaces.PEER_TIMEOUT_MS;
+import static org.dynamicsoft.vertochat.net.MulticastInterfaces.SEND_INTERFACES_REFRESH_MS;
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link MulticastInterfaces}.
+ * <p>
+ * <p>NetworkInterface is a final class, and can't be mocked easily. So this test uses the network interfaces
+ * available on the machine, with made up subnets.</p>
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MulticastInterfacesTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final MulticastInterfaces multicastInterfaces = new MulticastInterfaces();
+
+    private NetworkInterface cable;
+    private NetworkInterface wireless;
+
+    @Before
+    public void setUp() throws SocketException {
+        final List<NetworkInterface> networkInterfaces = Collections.list(NetworkInterface.getNetworkInterfaces());
+        cable = networkInterfaces.get(0);
+        wireless = networkInterfaces.size() > 1 ? networkInterfaces.get(1) : networkInterfaces.get(0);
+
+        multicastInterfaces.setEntries(Arrays.asList(
+                new MulticastInterfaces.Entry(cable, new int[] {address(10, 0, 0, 5)}, new int[] {24}),
+                new MulticastInterfaces.Entry(wireless, new int[] {address(192, 168, 1, 5)}, new int[] {16})));
+    }
+
+    @Test
+    public void setNetworkInterfacesShouldThrowExceptionIfNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Network interfaces can not be null");
+
+        multicastInterfaces.setNetworkInterfaces(null);
+    }
+
+    @Test
+    public void shouldSendOnAllNetworkInterfacesWhenNoPeersAreSeen() {
+        assertArrayEquals(new NetworkInterface[] {cable, wireless}, multicastInterfaces.getSendInterfaces(1000));
+        assertEquals(Arrays.asList(cable, wireless), multicastInterfaces.getNetworkInterfaces());
+    }
+
+    @Test
+    public void shouldOnlySendOnNetworkInterfacesWithPeers() throws UnknownHostException {
+        multicastInterfaces.peerSeen(InetAddress.getByName("192.168.30.7"), 1000);
+
+        assertArrayEquals(new NetworkInterface[] {wireless}, multicastInterfaces.getSendInterfaces(1000));
+
+        multicastInterfaces.peerSeen(InetAddress.getByName("10.0.0.200"), 1000 + SEND_INTERFACES_REFRESH_MS);
+
+        assertArrayEquals(new NetworkInterface[] {cable, wireless},
+                multicastInterfaces.getSendInterfaces(1000 + SEND_INTERFACES_REFRESH_MS));
+    }
+
+    @Test
+    public void peersShouldTimeOut() throws UnknownHostException {
+        multicastInterfaces.peerSeen(InetAddress.getByName("10.0.0.200"), 1000);
+        multicastInterfaces.peerSeen(InetAddress.getByName("192.168.30.7"), 5000);
+
+        assertArrayEquals(new NetworkInterface[] {wireless}, multicastInterfaces.getSendInterfaces(1000 + PEER_TIMEOUT_MS));
+    }
+
+    @Test
+    public void ownAddressAndAddressesOutsideSubnetsShouldBeIgnored() throws UnknownHostException {
+        multicastInterfaces.peerSeen(InetAddress.getByName("10.0.0.5"), 1000);
+        multicastInterfaces.peerSeen(InetAddress.getByName("10.0.1.7"), 1000);
+        multicastInterfaces.peerSeen(InetAddress.getByName("::1"), 1000);
+
+        assertArrayEquals(new NetworkInterface[] {cable, wireless}, multicastInterfaces.getSendInterfaces(1000));
+    }
+
+    @Test
+    public void replacingNetworkInterfacesShouldKeepWhenPeersWereSeen() throws UnknownHostException {
+        multicastInterfaces.peerSeen(InetAddress.getByName("192.168.30.7"), 1000);
+
+        final List<MulticastInterfaces.Entry> entries = new ArrayList<>();
+        entries.add(new MulticastInterfaces.Entry(wireless, new int[] {address(192, 168, 1, 6)}, new int[] {16}));
+        multicastInterfaces.setEntries(entries);
+
+        assertArrayEquals(new NetworkInterface[] {wireless}, multicastInterfaces.getSendInterfaces(2000));
+        assertEquals(Arrays.asList(wireless), multicastInterfaces.getNetworkInterfaces());
+    }
+
+    @Test
+    public void toIntShouldBeBigEndian() {
+        assertEquals(0xC0A80105, MulticastInterfaces.toInt(new byte[] {(byte) 192, (byte) 168, 1, 5}));
+    }
+
+    private static int address(final int a, final int b, final int c, final int d) {
+        return MulticastInterfaces.toInt(new byte[] {(byte) a, (byte) b, (byte) c, (byte) d});
+    }
+}
@@ -0,0 +1,175 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.dynamicsoft.vertochat.net.NackScheduler.MAX_ATTEMPTS;
+import static org.dynamicsoft.vertochat.net.NackScheduler.MAX_MISSING_PER_SENDER;
+import static org.dynamicsoft.vertochat.net.NackScheduler.NACK_MAX_DELAY_MS;
+import static org.dynamicsoft.vertochat.net.NackScheduler.RETRY_DELAY_MS;
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link NackScheduler}.
+ *
+ * @author Christian Ihle
+ */
+public class NackSchedulerTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    private final RecordingNackSender nackSender = new RecordingNackSender();
+    private final NackScheduler scheduler = new NackScheduler(nackSender, executor, new Random(1));
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfNackSenderIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Nack sender can not be null");
+
+        new NackScheduler(null);
+    }
+
+    @Test
+    public void messagesInOrderShouldNotHaveGaps() throws InterruptedException {
+        scheduler.messageArrived(124, 10);
+        scheduler.messageArrived(124, 11);
+        scheduler.messageArrived(124, 12);
+
+        Thread.sleep(NACK_MAX_DELAY_MS + 50);
+
+        assertEquals(0, scheduler.getMissingMessages());
+        assertTrue(nackSender.getNacks().isEmpty());
+    }
+
+    @Test
+    public void gapShouldSendNackForMissingMessages() throws InterruptedException {
+        scheduler.messageArrived(124, 1);
+        scheduler.messageArrived(124, 4);
+
+        assertEquals(2, scheduler.getMissingMessages(124));
+
+        Thread.sleep(NACK_MAX_DELAY_MS + 50);
+
+        assertEquals(Arrays.asList("124:[2, 3]"), nackSender.getNacks());
+        assertEquals(1, scheduler.getSentNacks());
+    }
+
+    @Test
+    public void lateMessageShouldBeRecoveredWithoutNack() throws InterruptedException {
+        scheduler.messageArrived(124, 1);
+        scheduler.messageArrived(124, 3);
+        scheduler.messageArrived(124, 2);
+
+        Thread.sleep(NACK_MAX_DELAY_MS + 50);
+
+        assertTrue(nackSender.getNacks().isEmpty());
+        assertEquals(1, scheduler.getRecoveredMessages());
+        assertEquals(0, scheduler.getMissingMessages(124));
+    }
+
+    @Test
+    public void nackFromOtherReceiverShouldSuppressOwnNack() throws InterruptedException {
+        scheduler.messageArrived(124, 1);
+        scheduler.messageArrived(124, 3);
+        scheduler.nackSeen(124, new int[] {2});
+
+        Thread.sleep(NACK_MAX_DELAY_MS + 50);
+
+        assertTrue(nackSender.getNacks().isEmpty());
+        assertEquals(1, scheduler.getSuppressedNacks());
+
+        scheduler.messageArrived(124, 2);
+
+        assertEquals(1, scheduler.getRecoveredMessages());
+    }
+
+    @Test
+    public void missingMessageShouldBeGivenUpAfterMaxAttempts() throws InterruptedException {
+        scheduler.messageArrived(124, 1);
+        scheduler.messageArrived(124, 3);
+
+        Thread.sleep(NACK_MAX_DELAY_MS + MAX_ATTEMPTS * (RETRY_DELAY_MS + NACK_MAX_DELAY_MS) + 100);
+
+        assertEquals(MAX_ATTEMPTS, nackSender.getNacks().size());
+        assertEquals(1, scheduler.getLostMessages());
+        assertEquals(0, scheduler.getMissingMessages(124));
+    }
+
+    @Test
+    public void onlyLatestMissingMessagesShouldBeRemembered() {
+        scheduler.messageArrived(124, 0);
+        scheduler.messageArrived(124, 1000);
+
+        assertEquals(MAX_MISSING_PER_SENDER, scheduler.getMissingMessages(124));
+        assertEquals(MAX_MISSING_PER_SENDER, scheduler.getMissingMessages());
+
+        scheduler.messageArrived(124, 1000 + MAX_MISSING_PER_SENDER / 2 + 1);
+
+        assertEquals(MAX_MISSING_PER_SENDER, scheduler.getMissingMessages(124));
+        assertEquals(MAX_MISSING_PER_SENDER / 2, scheduler.getLostMessages());
+    }
+
+    @Test
+    public void clearShouldCancelWaitingNacks() throws InterruptedException {
+        scheduler.messageArrived(124, 1);
+        scheduler.messageArrived(124, 3);
+        scheduler.clear();
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+
+        assertTrue(nackSender.getNacks().isEmpty());
+        assertEquals(0, scheduler.getMissingMessages(124));
+    }
+
+    private static class RecordingNackSender implements NackScheduler.NackSender {
+
+        private final List<String> nacks = new ArrayList<>();
+
+        @Override
+        public synchronized void sendNack(final int senderCode, final int[] sequences) {
+            nacks.add(senderCode + ":" + Arrays.toString(sequences));
+        }
+
+        private synchronized List<String> getNacks() {
+            return new ArrayList<>(nacks);
+        }
+    }
+}
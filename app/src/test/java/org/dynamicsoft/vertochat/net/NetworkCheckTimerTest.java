@@ -0,0 +1,185 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link NetworkCheckTimer}.
+ *
+ * @author Christian Ihle
+ */
+public class NetworkCheckTimerTest {
+
+    private static final long DEBOUNCE_MS = 100;
+    private static final long UP_INTERVAL_MS = 5000;
+    private static final long DOWN_MIN_INTERVAL_MS = 50;
+    private static final long DOWN_MAX_INTERVAL_MS = 300;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final FakeNetworkChangeSource changeSource = new FakeNetworkChangeSource();
+    private final NetworkCheckTimer timer =
+            new NetworkCheckTimer(DEBOUNCE_MS, UP_INTERVAL_MS, DOWN_MIN_INTERVAL_MS, DOWN_MAX_INTERVAL_MS);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfMinDownIntervalIsLargerThanMax() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Down interval must be positive, and min can not be larger than max");
+
+        new NetworkCheckTimer(DEBOUNCE_MS, UP_INTERVAL_MS, 200, 100);
+    }
+
+    @Test
+    public void awaitNextCheckShouldBackOffExponentiallyWhileNetworkIsDown() throws InterruptedException {
+        assertEquals(50, timer.getDownIntervalMs());
+
+        final long waited = timeAwaitNextCheck(false);
+        assertTrue("Waited " + waited, waited >= 50 && waited < 50 + 200);
+
+        assertEquals(100, timer.getDownIntervalMs());
+        timeAwaitNextCheck(false);
+        assertEquals(200, timer.getDownIntervalMs());
+        timeAwaitNextCheck(false);
+        assertEquals(300, timer.getDownIntervalMs());
+        timeAwaitNextCheck(false);
+        assertEquals(300, timer.getDownIntervalMs());
+    }
+
+    @Test
+    public void awaitNextCheckShouldNotReportChangeAfterRegularInterval() throws InterruptedException {
+        assertFalse(timer.awaitNextCheck(false));
+    }
+
+    @Test
+    public void networkUpShouldResetBackoff() throws InterruptedException {
+        timeAwaitNextCheck(false);
+        timeAwaitNextCheck(false);
+        assertEquals(200, timer.getDownIntervalMs());
+
+        timer.checkNow();
+        timer.awaitNextCheck(true);
+
+        assertEquals(50, timer.getDownIntervalMs());
+    }
+
+    @Test
+    public void networkChangeShouldCheckAfterDebounceInsteadOfUpInterval() throws InterruptedException {
+        changeSource.start(timer);
+        fireNetworkChangedIn(50);
+
+        final long start = System.currentTimeMillis();
+        assertTrue(timer.awaitNextCheck(true));
+        final long waited = System.currentTimeMillis() - start;
+
+        assertTrue("Waited " + waited, waited >= 50 + DEBOUNCE_MS && waited < 1000);
+        assertEquals(1, timer.getNetworkChanges());
+        assertEquals(1, timer.getChecksFromChanges());
+    }
+
+    @Test
+    public void severalNetworkChangesInARowShouldGiveOneCheck() throws InterruptedException {
+        changeSource.start(timer);
+
+        for (int i = 1; i <= 5; i++) {
+            fireNetworkChangedIn(i * 40);
+        }
+
+        final long waited = timeAwaitNextCheck(true);
+
+        assertTrue("Waited " + waited, waited >= 5 * 40 + DEBOUNCE_MS && waited < 1000);
+        assertEquals(5, timer.getNetworkChanges());
+        assertEquals(1, timer.getChecksFromChanges());
+    }
+
+    @Test
+    public void networkChangeShouldResetBackoff() throws InterruptedException {
+        timeAwaitNextCheck(false);
+        timeAwaitNextCheck(false);
+        assertEquals(200, timer.getDownIntervalMs());
+
+        changeSource.start(timer);
+        changeSource.fireNetworkChanged();
+
+        assertEquals(50, timer.getDownIntervalMs());
+    }
+
+    @Test
+    public void networkChangesAfterStopShouldBeIgnored() throws InterruptedException {
+        changeSource.start(timer);
+        changeSource.stop();
+        changeSource.fireNetworkChanged();
+
+        assertEquals(0, timer.getNetworkChanges());
+    }
+
+    @Test
+    public void checkNowShouldSkipTheWait() throws InterruptedException {
+        timer.checkNow();
+
+        final long start = System.currentTimeMillis();
+        assertTrue(timer.awaitNextCheck(true));
+        assertTrue(System.currentTimeMillis() - start < 100);
+        assertEquals(0, timer.getChecksFromChanges());
+    }
+
+    @Test
+    public void checkNowShouldSkipTheDebounce() throws InterruptedException {
+        changeSource.start(timer);
+        changeSource.fireNetworkChanged();
+        timer.checkNow();
+
+        assertTrue(timeAwaitNextCheck(true) < DEBOUNCE_MS);
+    }
+
+    private long timeAwaitNextCheck(final boolean networkUp) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        timer.awaitNextCheck(networkUp);
+
+        return System.currentTimeMillis() - start;
+    }
+
+    private void fireNetworkChangedIn(final long delayMs) {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                changeSource.fireNetworkChanged();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,117 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link NetworkInterfaceSnapshot}.
+ * <p>
+ * <p>NetworkInterface is a final class, and can't be mocked easily. So this test uses
+ * the network interfaces available on the machine.</p>
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class NetworkInterfaceSnapshotTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void constructorShouldThrowExceptionIfNetworkInterfacesIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Network interfaces can not be null");
+
+        new NetworkInterfaceSnapshot(1, 0, null, new ArrayList<NetworkInterface>());
+    }
+
+    @Test
+    public void listsShouldNotBeModifiable() throws SocketException {
+        final NetworkInterfaceSnapshot snapshot = createSnapshot(getNetworkInterfaces());
+
+        expectedException.expect(UnsupportedOperationException.class);
+
+        snapshot.getNetworkInterfaces().clear();
+    }
+
+    @Test
+    public void getNetworkInterfaceByNameShouldFindEveryNetworkInterface() throws SocketException {
+        final List<NetworkInterface> networkInterfaces = getNetworkInterfaces();
+        final NetworkInterfaceSnapshot snapshot = createSnapshot(networkInterfaces);
+
+        for (final NetworkInterface networkInterface : networkInterfaces) {
+            assertSame(networkInterface, snapshot.getNetworkInterfaceByName(networkInterface.getName()));
+            assertSame(networkInterface, snapshot.getUpdatedNetworkInterface(networkInterface));
+        }
+
+        assertNull(snapshot.getNetworkInterfaceByName("doesNotExist0"));
+        assertNull(snapshot.getNetworkInterfaceByName(null));
+        assertNull(snapshot.getUpdatedNetworkInterface(null));
+    }
+
+    @Test
+    public void findFirstUsableNetworkInterfaceShouldReturnNullWithoutUsableNetworkInterfaces() throws SocketException {
+        final NetworkInterfaceSnapshot snapshot = createSnapshot(getNetworkInterfaces());
+
+        assertNull(snapshot.findFirstUsableNetworkInterface());
+    }
+
+    @Test
+    public void findFirstUsableNetworkInterfaceShouldReturnFirstUsable() throws SocketException {
+        final List<NetworkInterface> networkInterfaces = getNetworkInterfaces();
+        final NetworkInterfaceSnapshot snapshot =
+                new NetworkInterfaceSnapshot(1, 0, networkInterfaces, new ArrayList<>(networkInterfaces));
+
+        assertSame(networkInterfaces.get(0), snapshot.findFirstUsableNetworkInterface());
+    }
+
+    @Test
+    public void fingerprintShouldDependOnTheNetworkInterfaces() throws SocketException {
+        final List<NetworkInterface> networkInterfaces = getNetworkInterfaces();
+
+        assertEquals(NetworkInterfaceSnapshot.createFingerprint(networkInterfaces),
+                NetworkInterfaceSnapshot.createFingerprint(getNetworkInterfaces()));
+        assertNotEquals(NetworkInterfaceSnapshot.createFingerprint(networkInterfaces),
+                NetworkInterfaceSnapshot.createFingerprint(networkInterfaces.subList(1, networkInterfaces.size())));
+    }
+
+    private static NetworkInterfaceSnapshot createSnapshot(final List<NetworkInterface> networkInterfaces)
+            throws SocketException {
+        return new NetworkInterfaceSnapshot(1, NetworkInterfaceSnapshot.createFingerprint(networkInterfaces),
+                networkInterfaces, new ArrayList<NetworkInterface>());
+    }
+
+    private static List<NetworkInterface> getNetworkInterfaces() throws SocketException {
+        return Collections.list(NetworkInterface.getNetworkInterfaces());
+    }
+}
@@ -0,0 +1,123 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.event.NetworkChangeListener;
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link NetworkInterfaceWatcher}.
+ *
+ * @author Christian Ihle
+ */
+public class NetworkInterfaceWatcherTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    private final CountingListener listener = new CountingListener();
+
+    private int fingerprint = 1;
+
+    private final NetworkInterfaceWatcher watcher = new NetworkInterfaceWatcher(executor) {
+        @Override
+        int createFingerprint() {
+            return fingerprint;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void startShouldThrowExceptionIfListenerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Network change listener can not be null");
+
+        watcher.start(null);
+    }
+
+    @Test
+    public void pollShouldOnlyNotifyWhenFingerprintChanges() {
+        watcher.start(listener);
+
+        watcher.poll(listener);
+        assertEquals(0, listener.changes);
+
+        fingerprint = 2;
+        watcher.poll(listener);
+        assertEquals(1, listener.changes);
+
+        watcher.poll(listener);
+        assertEquals(1, listener.changes);
+    }
+
+    @Test
+    public void startShouldScheduleOnePollTask() {
+        watcher.start(listener);
+        watcher.start(listener);
+
+        assertEquals(1, executor.getQueue().size());
+    }
+
+    @Test
+    public void stopShouldCancelThePollTask() {
+        watcher.start(listener);
+        watcher.stop();
+        watcher.stop();
+
+        assertTrue(executor.getQueue().isEmpty());
+    }
+
+    @Test
+    public void fingerprintOfRealNetworkInterfacesShouldBeStable() {
+        final NetworkInterfaceWatcher realWatcher = new NetworkInterfaceWatcher(executor);
+
+        assertEquals(realWatcher.createFingerprint(), realWatcher.createFingerprint());
+    }
+
+    private static class CountingListener implements NetworkChangeListener {
+
+        private int changes;
+
+        @Override
+        public void networkChanged() {
+            changes++;
+        }
+    }
+}
@@ -32,7 +32,9 @@ import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.endsWith;
 import static org.mockito.Mockito.matches;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.startsWith;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -75,8 +77,8 @@ public class NetworkMessagesTest {
         when(settings.getMe()).thenReturn(me);
 
         service = mock(NetworkService.class);
-        when(service.sendMessageToAllUsers(anyString())).thenReturn(true);
-        when(service.sendMessageToUser(anyString(), any(User.class))).thenReturn(true);
+        when(service.sendMessageToAllUsers(anyString())).thenReturn(SendFuture.completed(true));
+        when(service.sendMessageToUser(anyString(), any(User.class))).thenReturn(SendFuture.completed(true));
         messages = new NetworkMessages(service, settings);
     }
 
@@ -117,16 +119,63 @@ public class NetworkMessagesTest {
         verify(service).sendMessageToAllUsers(createMessage("MSG") + "[" + settings.getOwnColor() + "]" + msg);
     }
 
+    @Test(expected = CommandException.class)
+    public void sendChatMessageShouldThrowExceptionWhenMessageWasNotSent() throws CommandException {
+        when(service.sendMessageToAllUsers(anyString())).thenReturn(SendFuture.completed(false));
+
+        messages.sendChatMessage("Some chat message");
+    }
+
+    @Test
+    public void sendChatMessageShouldCheckNetworkWhenMessageWasNotSent() {
+        when(service.sendMessageToAllUsers(anyString())).thenReturn(SendFuture.completed(false));
+
+        try {
+            messages.sendChatMessage("Some chat message");
+        } catch (final CommandException e) {
+            // Expected
+        }
+
+        verify(service).checkNetwork();
+    }
+
+    @Test
+    public void sendIdleMessageShouldNotCheckNetworkWhenSuperseded() {
+        final SendFuture superseded = new SendFuture();
+        superseded.completeSuperseded();
+        when(service.sendMessageToAllUsers(anyString())).thenReturn(superseded);
+
+        messages.sendIdleMessage();
+
+        verify(service, never()).checkNetwork();
+    }
+
+    @Test
+    public void sendChatMessageShouldNotCheckNetworkWhenQueueIsFull() {
+        final SendFuture rejected = new SendFuture();
+        rejected.completeRejected();
+        when(service.sendMessageToAllUsers(anyString())).thenReturn(rejected);
+
+        try {
+            messages.sendChatMessage("Some chat message");
+        } catch (final CommandException e) {
+            // Expected
+        }
+
+        verify(service, never()).checkNetwork();
+    }
+
     /**
      * Tests sendClient().
      * <p>
-     * Expects: 13132531!CLIENT#Christian:(KouChat v0.9.9-dev null)[134]{Linux}<2222>/4444\
+     * Expects: 13132531!CLIENT#Christian:(KouChat v0.9.9-dev null)[134]{Linux}<2222>/4444\|7|^0^
      */
     @Test
     public void testSendClientMessage() {
         final String startsWith = "(" + me.getClient() + ")[";
         final String middle = ".+\\)\\[\\d+\\]\\{.+"; // like:)[134[{
-        final String endsWidth = "]{" + me.getOperatingSystem() + "}<" + me.getPrivateChatPort() + ">";
+        final String endsWidth = "]{" + me.getOperatingSystem() + "}<" + me.getPrivateChatPort() + ">" +
+                "/" + me.getTcpChatPort() + "\\|7|^0^";
 
         messages.sendClient();
 
@@ -254,6 +303,25 @@ public class NetworkMessagesTest {
         verify(service).sendMessageToAllUsers(createMessage("IDLE"));
     }
 
+    @Test
+    public void sendIdleMessageShouldCheckNetworkWhenSendingIsDone() {
+        final SendFuture future = new SendFuture();
+        when(service.sendMessageToAllUsers(anyString())).thenReturn(future);
+
+        messages.sendIdleMessage();
+        verify(service, never()).checkNetwork();
+
+        future.complete(0);
+        verify(service).checkNetwork();
+    }
+
+    @Test
+    public void sendIdleMessageShouldNotCheckNetworkWhenMessageWasSent() {
+        messages.sendIdleMessage();
+
+        verify(service, never()).checkNetwork();
+    }
+
     /**
      * Tests sendLogoffMessage().
      * <p>
@@ -380,6 +448,46 @@ public class NetworkMessagesTest {
         verify(service).sendMessageToAllUsers(createMessage("WRITING"));
     }
 
+    /**
+     * Tests that the static messages are cached once, and reused until the nick name changes.
+     */
+    @Test
+    public void testStaticMessagesAreCachedUntilNickChanges() {
+        messages.sendWritingMessage();
+        messages.sendIdleMessage();
+        messages.sendStoppedWritingMessage();
+
+        verify(service).cacheStaticMessages(createMessage("IDLE"), createMessage("EXPOSE"), createMessage("GETTOPIC"),
+                createMessage("WRITING"), createMessage("STOPPEDWRITING"));
+
+        me.setNick("NewNick");
+        messages.sendWritingMessage();
+
+        verify(service).cacheStaticMessages(createMessage("IDLE", "NewNick"), createMessage("EXPOSE", "NewNick"),
+                createMessage("GETTOPIC", "NewNick"), createMessage("WRITING", "NewNick"),
+                createMessage("STOPPEDWRITING", "NewNick"));
+        verify(service).sendMessageToAllUsers(createMessage("WRITING", "NewNick"));
+    }
+
+    /**
+     * Tests that the static messages are cached again when the away state or ports change.
+     */
+    @Test
+    public void testStaticMessagesAreCachedAgainWhenAwayOrPortsChange() {
+        messages.sendIdleMessage();
+        me.setAway(true);
+        messages.sendIdleMessage();
+        me.setPrivateChatPort(3333);
+        messages.sendIdleMessage();
+        me.setTcpChatPort(5555);
+        messages.sendIdleMessage();
+        messages.sendIdleMessage();
+
+        verify(service, times(4)).cacheStaticMessages(createMessage("IDLE"), createMessage("EXPOSE"),
+                createMessage("GETTOPIC"), createMessage("WRITING"), createMessage("STOPPEDWRITING"));
+        verify(service, times(5)).sendMessageToAllUsers(createMessage("IDLE"));
+    }
+
     /**
      * Creates the standard part for most of the message types.
      *
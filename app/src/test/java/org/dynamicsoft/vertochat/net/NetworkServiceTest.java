@@ -35,6 +35,7 @@ import org.junit.Test;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -61,6 +62,7 @@ public class NetworkServiceTest {
 
         when(settings.getMe()).thenReturn(mock(User.class));
         when(controller.getUserList()).thenReturn(mock(UserList.class));
+        when(controller.getPeerAddressCache()).thenReturn(new PeerAddressCache());
     }
 
     @Test
@@ -148,7 +150,8 @@ public class NetworkServiceTest {
 
         final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
 
-        final boolean messageSent = networkService.sendMessageToUser("Nothing", user);
-        assertFalse(messageSent);
+        final SendFuture messageSent = networkService.sendMessageToUser("Nothing", user);
+        assertTrue(messageSent.isDone());
+        assertFalse(messageSent.isSent());
     }
 }
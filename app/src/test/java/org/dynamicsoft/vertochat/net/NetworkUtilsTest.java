@@ -34,6 +34,7 @@ import java.util.NoSuchElementException;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -98,6 +99,37 @@ public class NetworkUtilsTest {
         }
     }
 
+    @Test
+    public void takeSnapshotShouldKeepPreviousSnapshotWhenNothingHasChanged() {
+        final NetworkInterfaceSnapshot first = networkUtils.takeSnapshot(null);
+        final NetworkInterfaceSnapshot second = networkUtils.takeSnapshot(first);
+
+        assertEquals(1, first.getVersion());
+        assertSame(first, second);
+    }
+
+    @Test
+    public void takeSnapshotShouldIncreaseVersionWhenFingerprintHasChanged() {
+        final NetworkInterfaceSnapshot first = networkUtils.takeSnapshot(null);
+        final NetworkInterfaceSnapshot changed = new NetworkInterfaceSnapshot(
+                5, first.getFingerprint() + 1, first.getNetworkInterfaces(), first.getUsableNetworkInterfaces());
+
+        final NetworkInterfaceSnapshot second = networkUtils.takeSnapshot(changed);
+
+        assertEquals(6, second.getVersion());
+        assertEquals(first.getFingerprint(), second.getFingerprint());
+    }
+
+    @Test
+    public void takeSnapshotShouldFindTheUsableNetworkInterfaces() {
+        final NetworkInterfaceSnapshot snapshot = networkUtils.takeSnapshot(null);
+
+        for (final NetworkInterface networkInterface : snapshot.getNetworkInterfaces()) {
+            assertEquals(networkUtils.isUsable(networkInterface),
+                    snapshot.getUsableNetworkInterfaces().contains(networkInterface));
+        }
+    }
+
     @Test
     @Ignore("Machine specific test")
     public void getNetworkInterfaceByName() {
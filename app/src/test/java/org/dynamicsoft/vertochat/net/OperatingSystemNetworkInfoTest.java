@@ -32,6 +32,7 @@ import org.junit.Test;
 import java.net.NetworkInterface;
 import java.util.Enumeration;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -78,6 +79,29 @@ public class OperatingSystemNetworkInfoTest {
         new OperatingSystemNetworkInfo(settings, null);
     }
 
+    @Test
+    public void getOperatingSystemNetworkInterfaceShouldThrowExceptionIfSnapshotIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Network interface snapshot can not be null");
+
+        new OperatingSystemNetworkInfo(settings, errorHandler).getOperatingSystemNetworkInterface(null);
+    }
+
+    @Test
+    public void getOperatingSystemNetworkInterfaceShouldOnlyDetectOnceForEachSnapshotVersion() {
+        final CountingOperatingSystemNetworkInfo osNicInfo = new CountingOperatingSystemNetworkInfo();
+        final NetworkInterfaceSnapshot snapshot = networkUtils.takeSnapshot(null);
+        final NetworkInterfaceSnapshot changedSnapshot = new NetworkInterfaceSnapshot(
+                2, 0, snapshot.getNetworkInterfaces(), snapshot.getUsableNetworkInterfaces());
+
+        osNicInfo.getOperatingSystemNetworkInterface(snapshot);
+        osNicInfo.getOperatingSystemNetworkInterface(snapshot);
+        assertEquals(1, osNicInfo.detections);
+
+        osNicInfo.getOperatingSystemNetworkInterface(changedSnapshot);
+        assertEquals(2, osNicInfo.detections);
+    }
+
     /**
      * Tests if the network interface for the operating system can be found.
      * <p>
@@ -118,4 +142,19 @@ public class OperatingSystemNetworkInfoTest {
         // prefers unusable network interfaces.
         assertTrue(networkUtils.isUsable(osInterface));
     }
+
+    private class CountingOperatingSystemNetworkInfo extends OperatingSystemNetworkInfo {
+
+        private int detections;
+
+        CountingOperatingSystemNetworkInfo() {
+            super(settings, errorHandler);
+        }
+
+        @Override
+        public NetworkInterface getOperatingSystemNetworkInterface() {
+            detections++;
+            return null;
+        }
+    }
 }
@@ -0,0 +1,131 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link PayloadCompressor}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class PayloadCompressorTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final PayloadCompressor compressor = new PayloadCompressor();
+
+    @Test
+    public void canCompressShouldOnlyAcceptChatMessages() {
+        assertTrue(PayloadCompressor.canCompress(MessageType.MSG));
+        assertTrue(PayloadCompressor.canCompress(MessageType.PRIVMSG));
+        assertTrue(PayloadCompressor.canCompress(MessageType.AWAY));
+        assertTrue(PayloadCompressor.canCompress(MessageType.TOPIC));
+
+        assertFalse(PayloadCompressor.canCompress(MessageType.IDLE));
+        assertFalse(PayloadCompressor.canCompress(MessageType.CLIENT));
+        assertFalse(PayloadCompressor.canCompress(MessageType.UNKNOWN));
+    }
+
+    @Test
+    public void compressAndDecompressShouldGiveSamePayload() throws Exception {
+        assertRoundTrip("[-16777216]Hello everyone, what are you going to do for lunch today?");
+        assertRoundTrip("[-65536]Hei, skal vi ta en kaffe? :-) æøå 😀");
+        assertRoundTrip("(12345678)[-16777216]I'm going to the meeting, see you there");
+    }
+
+    @Test
+    public void compressShouldUseDictionaryForShortMessages() throws Exception {
+        final String payload = "[-16777216]Hello everyone";
+        final int length = compressor.compress(payload, 0, payload.length());
+
+        assertTrue(length > 0);
+        assertTrue(length < payload.getBytes(Constants.MESSAGE_CHARSET).length / 2);
+    }
+
+    @Test
+    public void compressShouldOnlyUsePartOfText() throws Exception {
+        final String message = "1!MSG#Christian:[-16777216]Hello everyone, what are you doing?";
+        final int start = message.indexOf(':') + 1;
+        final int length = compressor.compress(message, start, message.length());
+
+        assertEquals(message.substring(start), decompress(length));
+    }
+
+    @Test
+    public void compressShouldGiveUpWhenResultIsNotSmaller() {
+        assertEquals(-1, compressor.compress("", 0, 0));
+        assertEquals(-1, compressor.compress("x", 0, 1));
+        assertEquals(-1, compressor.compress("Q7#zK", 0, 5));
+    }
+
+    @Test
+    public void decompressShouldThrowExceptionOnTooLargePayload() throws ProtocolException {
+        expectedException.expect(ProtocolException.class);
+        expectedException.expectMessage("Invalid payload length: " + (PayloadCompressor.MAX_PAYLOAD_SIZE + 1));
+
+        compressor.decompress(ByteBuffer.allocate(10), 10, PayloadCompressor.MAX_PAYLOAD_SIZE + 1);
+    }
+
+    @Test
+    public void decompressShouldThrowExceptionOnWrongPayloadLength() throws ProtocolException {
+        final String payload = "[-16777216]Hello everyone, how are you?";
+        final int length = compressor.compress(payload, 0, payload.length());
+        final ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOf(compressor.getCompressed(), length));
+        buffer.get();
+
+        expectedException.expect(ProtocolException.class);
+        expectedException.expectMessage("Payload does not match length: 10");
+
+        compressor.decompress(buffer, buffer.remaining(), 10);
+    }
+
+    private void assertRoundTrip(final String payload) throws Exception {
+        final int length = compressor.compress(payload, 0, payload.length());
+
+        assertTrue(length > 0);
+        assertTrue(length < payload.getBytes(Constants.MESSAGE_CHARSET).length);
+        assertEquals(payload, decompress(length));
+    }
+
+    private String decompress(final int length) throws Exception {
+        final ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOf(compressor.getCompressed(), length));
+
+        // The first byte is the varint with the payload length, for the short payloads in these tests
+        final int payloadLength = buffer.get();
+        final ByteBuffer payload = compressor.decompress(buffer, buffer.remaining(), payloadLength);
+        assertFalse(buffer.hasRemaining());
+
+        return new String(payload.array(), 0, payload.limit(), Constants.MESSAGE_CHARSET);
+    }
+}
@@ -0,0 +1,245 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.dynamicsoft.vertochat.misc.User;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link PeerAddressCache}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class PeerAddressCacheTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private PeerAddressCache cache;
+    private User user;
+
+    @Before
+    public void setUp() {
+        cache = new PeerAddressCache();
+
+        user = new User("Tester", 100);
+        user.setIpAddress("192.168.10.123");
+        user.setPrivateChatPort(12345);
+        user.setTcpChatPort(23456);
+    }
+
+    @Test
+    public void getIpAddressShouldThrowExceptionIfAddressIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Address can not be null");
+
+        cache.getIpAddress(null);
+    }
+
+    @Test
+    public void getIpAddressShouldReturnSameStringForEqualAddresses() throws UnknownHostException {
+        final String first = cache.getIpAddress(InetAddress.getByName("10.0.0.15"));
+        final String second = cache.getIpAddress(InetAddress.getByName("10.0.0.15"));
+
+        assertEquals("10.0.0.15", first);
+        assertSame(first, second);
+    }
+
+    @Test
+    public void getIpAddressShouldWorkAfterReachingMaxAddresses() throws UnknownHostException {
+        for (int i = 0; i <= PeerAddressCache.MAX_IP_ADDRESSES; i++) {
+            assertEquals("10.0." + (i / 256) + "." + (i % 256),
+                    cache.getIpAddress(InetAddress.getByName("10.0." + (i / 256) + "." + (i % 256))));
+        }
+    }
+
+    @Test
+    public void getPrivateChatAddressShouldThrowExceptionIfUserIsNull() throws UnknownHostException {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("User can not be null");
+
+        cache.getPrivateChatAddress(null);
+    }
+
+    @Test
+    public void getPrivateChatAddressShouldReturnCachedAddress() throws UnknownHostException {
+        final InetSocketAddress address = cache.getPrivateChatAddress(user);
+
+        assertEquals("192.168.10.123", address.getAddress().getHostAddress());
+        assertEquals(12345, address.getPort());
+        assertSame(address, cache.getPrivateChatAddress(user));
+    }
+
+    @Test
+    public void getTcpChatAddressShouldReturnCachedAddress() throws UnknownHostException {
+        final InetSocketAddress address = cache.getTcpChatAddress(user);
+
+        assertEquals("192.168.10.123", address.getAddress().getHostAddress());
+        assertEquals(23456, address.getPort());
+        assertSame(address, cache.getTcpChatAddress(user));
+    }
+
+    @Test
+    public void getAddressShouldReturnSameAddressAsPrivateChatAddress() throws UnknownHostException {
+        assertSame(cache.getPrivateChatAddress(user).getAddress(), cache.getAddress(user));
+    }
+
+    @Test
+    public void getPrivateChatAddressShouldUseNewPortWhenPortChanges() throws UnknownHostException {
+        cache.getPrivateChatAddress(user);
+        user.setPrivateChatPort(12346);
+
+        assertEquals(12346, cache.getPrivateChatAddress(user).getPort());
+    }
+
+    @Test
+    public void getTcpChatAddressShouldUseNewIpAddressWhenIpAddressChanges() throws UnknownHostException {
+        cache.getTcpChatAddress(user);
+        user.setIpAddress("192.168.10.124");
+
+        assertEquals("192.168.10.124", cache.getTcpChatAddress(user).getAddress().getHostAddress());
+    }
+
+    @Test
+    public void getAddressShouldThrowExceptionIfIpAddressIsUnknown() throws UnknownHostException {
+        expectedException.expect(UnknownHostException.class);
+        expectedException.expectMessage("Not an ip address: <unknown>");
+
+        cache.getAddress(new User("Unknown", 101));
+    }
+
+    @Test
+    public void getAddressShouldThrowExceptionIfIpAddressIsHostName() throws UnknownHostException {
+        expectedException.expect(UnknownHostException.class);
+        expectedException.expectMessage("Not an ip address: example.com");
+
+        user.setIpAddress("example.com");
+
+        cache.getAddress(user);
+    }
+
+    @Test
+    public void refreshShouldCreateNewAddresses() throws UnknownHostException {
+        final InetSocketAddress address = cache.getPrivateChatAddress(user);
+
+        cache.refresh(user);
+
+        assertNotSame(address, cache.getPrivateChatAddress(user));
+        assertEquals(address, cache.getPrivateChatAddress(user));
+    }
+
+    @Test
+    public void refreshShouldNotThrowExceptionIfIpAddressIsInvalid() {
+        user.setIpAddress("not an ip address");
+
+        cache.refresh(user);
+    }
+
+    @Test
+    public void userRemovedShouldRemoveAddresses() throws UnknownHostException {
+        final InetSocketAddress address = cache.getPrivateChatAddress(user);
+
+        cache.userRemoved(0, user);
+
+        assertNotSame(address, cache.getPrivateChatAddress(user));
+    }
+
+    @Test
+    public void awaitTcpChatPortShouldBeDoneIfUserHasPort() {
+        final ResultFuture<User> future = cache.awaitTcpChatPort(user);
+
+        assertTrue(future.isDone());
+        assertSame(user, future.getResult());
+    }
+
+    @Test
+    public void awaitTcpChatPortShouldCompleteWhenClientInfoArrives() {
+        user.setTcpChatPort(0);
+
+        final ResultFuture<User> future = cache.awaitTcpChatPort(user);
+        assertSame(future, cache.awaitTcpChatPort(user));
+
+        cache.clientInfoArrived(user);
+        assertFalse(future.isDone());
+
+        user.setTcpChatPort(23457);
+        cache.clientInfoArrived(user);
+
+        assertTrue(future.isDone());
+        assertSame(user, future.getResult());
+    }
+
+    @Test
+    public void awaitTcpChatPortShouldCompleteWithNullWhenUserIsRemoved() {
+        user.setTcpChatPort(0);
+
+        final ResultFuture<User> future = cache.awaitTcpChatPort(user);
+        cache.userRemoved(0, user);
+
+        assertTrue(future.isDone());
+        assertNull(future.getResult());
+    }
+
+    @Test
+    public void awaitTcpChatPortShouldReturnNewFutureAfterTimeout() {
+        user.setTcpChatPort(0);
+
+        final ResultFuture<User> future = cache.awaitTcpChatPort(user);
+        future.complete(null);
+
+        final ResultFuture<User> newFuture = cache.awaitTcpChatPort(user);
+
+        assertNotSame(future, newFuture);
+        assertFalse(newFuture.isDone());
+    }
+
+    @Test
+    public void getLocalHostNameShouldBeNullBeforeLookup() {
+        assertNull(cache.getLocalHostName());
+    }
+
+    @Test
+    public void isIpAddressShouldAcceptIpv4AndIpv6Addresses() {
+        assertTrue(PeerAddressCache.isIpAddress("192.168.10.123"));
+        assertTrue(PeerAddressCache.isIpAddress("fe80:0:0:0:21c:42ff:fe00:8%eth0"));
+        assertTrue(PeerAddressCache.isIpAddress("::1"));
+    }
+
+    @Test
+    public void isIpAddressShouldNotAcceptHostNames() {
+        assertFalse(PeerAddressCache.isIpAddress(null));
+        assertFalse(PeerAddressCache.isIpAddress(""));
+        assertFalse(PeerAddressCache.isIpAddress("<unknown>"));
+        assertFalse(PeerAddressCache.isIpAddress("localhost"));
+        assertFalse(PeerAddressCache.isIpAddress("example.com"));
+    }
+}
@@ -0,0 +1,131 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.misc.User;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link ProtocolNegotiator}.
+ *
+ * @author Christian Ihle
+ */
+public class ProtocolNegotiatorTest {
+
+    private final ProtocolNegotiator negotiator = new ProtocolNegotiator();
+
+    @Test
+    public void isBinarySupportedByAllShouldBeFalseWithoutOtherUsers() {
+        final User me = new User("Me", 1);
+        me.setMe(true);
+        me.setProtocolVersion(Constants.PROTOCOL_VERSION_BINARY);
+
+        negotiator.userAdded(0, me);
+
+        assertFalse(negotiator.isBinarySupportedByAll());
+    }
+
+    @Test
+    public void isBinarySupportedByAllShouldRequireEveryOtherUser() {
+        final User binaryUser = createUser("Binary", 2, Constants.PROTOCOL_VERSION_BINARY);
+        final User textUser = createUser("Text", 3, Constants.PROTOCOL_VERSION_TEXT);
+
+        negotiator.userAdded(0, binaryUser);
+        assertTrue(negotiator.isBinarySupportedByAll());
+
+        negotiator.userAdded(1, textUser);
+        assertFalse(negotiator.isBinarySupportedByAll());
+
+        negotiator.userRemoved(1, textUser);
+        assertTrue(negotiator.isBinarySupportedByAll());
+
+        negotiator.userRemoved(0, binaryUser);
+        assertFalse(negotiator.isBinarySupportedByAll());
+    }
+
+    @Test
+    public void isBinarySupportedByAllShouldNoticeNewProtocolVersion() {
+        final User user = createUser("Later", 2, Constants.PROTOCOL_VERSION_TEXT);
+        negotiator.userAdded(0, user);
+
+        assertFalse(negotiator.isBinarySupportedByAll());
+
+        user.setProtocolVersion(Constants.PROTOCOL_VERSION_BINARY);
+
+        assertTrue(negotiator.isBinarySupportedByAll());
+    }
+
+    @Test
+    public void isSupportedByAllShouldRequireVersionOfEveryOtherUser() {
+        assertFalse(negotiator.isSupportedByAll(Constants.PROTOCOL_VERSION_SEQUENCE_NUMBERS));
+
+        final User sequenceUser = createUser("Sequence", 2, Constants.PROTOCOL_VERSION_SEQUENCE_NUMBERS);
+        final User framingUser = createUser("Framing", 3, Constants.PROTOCOL_VERSION_TCP_FRAMING);
+
+        negotiator.userAdded(0, sequenceUser);
+        assertTrue(negotiator.isSupportedByAll(Constants.PROTOCOL_VERSION_SEQUENCE_NUMBERS));
+
+        negotiator.userAdded(1, framingUser);
+        assertFalse(negotiator.isSupportedByAll(Constants.PROTOCOL_VERSION_SEQUENCE_NUMBERS));
+        assertTrue(negotiator.isSupportedByAll(Constants.PROTOCOL_VERSION_TCP_FRAMING));
+    }
+
+    @Test
+    public void getFormatForAllShouldUseBestFormatEveryOtherUserSupports() {
+        assertEquals(WireFormat.TEXT, negotiator.getFormatForAll());
+
+        final User compressed = createUser("Compressed", 2, Constants.PROTOCOL_VERSION_COMPRESSED);
+        negotiator.userAdded(0, compressed);
+        assertEquals(WireFormat.COMPRESSED, negotiator.getFormatForAll());
+
+        negotiator.userAdded(1, createUser("Binary", 3, Constants.PROTOCOL_VERSION_BINARY));
+        assertEquals(WireFormat.BINARY, negotiator.getFormatForAll());
+
+        negotiator.userAdded(2, createUser("Text", 4, Constants.PROTOCOL_VERSION_TEXT));
+        assertEquals(WireFormat.TEXT, negotiator.getFormatForAll());
+    }
+
+    @Test
+    public void getFormatForShouldUseBestFormatOfUser() {
+        assertEquals(WireFormat.COMPRESSED, negotiator.getFormatFor(createUser("Compressed", 2, Constants.PROTOCOL_VERSION_COMPRESSED)));
+        assertEquals(WireFormat.COMPRESSED, negotiator.getFormatFor(createUser("Newer", 3, 4)));
+        assertEquals(WireFormat.BINARY, negotiator.getFormatFor(createUser("Binary", 4, Constants.PROTOCOL_VERSION_BINARY)));
+        assertEquals(WireFormat.TEXT, negotiator.getFormatFor(new User("Unknown", 5)));
+    }
+
+    @Test
+    public void isBinarySupportedByShouldCheckProtocolVersionOfUser() {
+        assertTrue(negotiator.isBinarySupportedBy(createUser("Binary", 2, Constants.PROTOCOL_VERSION_BINARY)));
+        assertFalse(negotiator.isBinarySupportedBy(createUser("Text", 3, Constants.PROTOCOL_VERSION_TEXT)));
+        assertFalse(negotiator.isBinarySupportedBy(new User("Unknown", 4)));
+    }
+
+    private User createUser(final String nick, final int code, final int protocolVersion) {
+        final User user = new User(nick, code);
+        user.setProtocolVersion(protocolVersion);
+
+        return user;
+    }
+}
@@ -0,0 +1,357 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.dynamicsoft.vertochat.misc.User;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link ReliableMulticast}.
+ * <p>
+ * <p>Sends messages between several clients on a loopback network that loses messages.</p>
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class ReliableMulticastTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final LoopbackNetwork network = new LoopbackNetwork();
+
+    @After
+    public void tearDown() {
+        network.shutdown();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfMeIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Me can not be null");
+
+        new ReliableMulticast(null, true, new RecordingTransmitter());
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfTransmitterIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Transmitter can not be null");
+
+        new ReliableMulticast(new User("Penny", 125), true, null);
+    }
+
+    @Test
+    public void createPayloadAndParseShouldGiveSameNumbers() {
+        final String payload = ReliableMulticast.createPayload(-12345678, new int[] {5, -1, 2147483647});
+
+        assertEquals("(-12345678)[5,-1,2147483647]", payload);
+        assertEquals(-12345678, ReliableMulticast.parseSenderCode(payload));
+        assertArrayEquals(new int[] {5, -1, 2147483647}, ReliableMulticast.parseSequences(payload));
+        assertArrayEquals(new int[] {7}, ReliableMulticast.parseSequences("(1)[7]"));
+    }
+
+    @Test
+    public void nackForMeShouldRetransmitMessagesStillInBuffer() {
+        final User me = new User("Christian", 124);
+        final RecordingTransmitter transmitter = new RecordingTransmitter();
+        final ReliableMulticast reliableMulticast = new ReliableMulticast(me, false, transmitter);
+
+        reliableMulticast.messageSent(1, "~1~124!MSG#Christian:[-15987646]Hello");
+        reliableMulticast.messageSent(2, "~2~124!IDLE#Christian:");
+        reliableMulticast.nackArrived(MessageEnvelope.decode("125!NACK#Penny:(124)[2,3]", "127.0.0.1"));
+
+        assertEquals(1, transmitter.retransmits.size());
+        assertEquals("~2~124!IDLE#Christian:", transmitter.retransmits.get(0));
+    }
+
+    @Test
+    public void lossListenerShouldBeNotifiedOfNacksForMeAndNacksSent() {
+        final ReliableMulticast reliableMulticast = new ReliableMulticast(new User("Christian", 124), true,
+                new RecordingTransmitter());
+        final TransportSelector transportSelector = new TransportSelector();
+        reliableMulticast.registerLossListener(transportSelector);
+
+        reliableMulticast.nackArrived(MessageEnvelope.decode("125!NACK#Penny:(124)[2,3]", "127.0.0.1"));
+        assertEquals(1.0, transportSelector.getLossRate(125), 0.0001);
+
+        reliableMulticast.sendNack(126, new int[] {7});
+        assertEquals(1.0, transportSelector.getLossRate(126), 0.0001);
+
+        // A nack for another sender is not about this client
+        reliableMulticast.nackArrived(MessageEnvelope.decode("127!NACK#Amy:(126)[8]", "127.0.0.1"));
+        assertEquals(0, transportSelector.getLossRate(127), 0.0001);
+    }
+
+    @Test
+    public void lossShouldBeReportedToEveryLossListener() {
+        final ReliableMulticast reliableMulticast = new ReliableMulticast(new User("Christian", 124), true,
+                new RecordingTransmitter());
+        final TransportSelector transportSelector = new TransportSelector();
+        final SendPacer sendPacer = new SendPacer(100, 0);
+        reliableMulticast.registerLossListener(transportSelector);
+        reliableMulticast.registerLossListener(sendPacer);
+
+        reliableMulticast.nackArrived(MessageEnvelope.decode("125!NACK#Penny:(124)[2,3]", "127.0.0.1"));
+
+        assertEquals(1.0, transportSelector.getLossRate(125), 0.0001);
+        assertEquals(1, sendPacer.getCongestionEvents());
+    }
+
+    @Test
+    public void invalidNackShouldBeIgnored() {
+        final RecordingTransmitter transmitter = new RecordingTransmitter();
+        final ReliableMulticast reliableMulticast = new ReliableMulticast(new User("Christian", 124), true, transmitter);
+
+        reliableMulticast.nackArrived(MessageEnvelope.decode("125!NACK#Penny:(124)[2,x]", "127.0.0.1"));
+        reliableMulticast.nackArrived(MessageEnvelope.decode("125!NACK#Penny:(124)", "127.0.0.1"));
+
+        assertTrue(transmitter.retransmits.isEmpty());
+    }
+
+    @Test
+    public void lostMessagesShouldBeRecoveredByEveryReceiver() throws InterruptedException {
+        final Client sender = network.addClient(new User("Christian", 124));
+        final Client receiver1 = network.addClient(new User("Penny", 125));
+        final Client receiver2 = network.addClient(new User("Kou", 126));
+
+        network.lossRate = 0.2;
+
+        for (int sequence = 0; sequence < 100; sequence++) {
+            sender.send(sequence, "124!MSG#Christian:[-15987646]Message " + sequence);
+        }
+
+        // The last message is not lost, so the receivers find every gap
+        network.lossRate = 0;
+        sender.send(100, "124!MSG#Christian:[-15987646]Last message");
+
+        assertTrue(receiver1.awaitMessages(101, 10_000));
+        assertTrue(receiver2.awaitMessages(101, 10_000));
+
+        final NackScheduler nackScheduler1 = receiver1.reliableMulticast.getNackScheduler();
+        final NackScheduler nackScheduler2 = receiver2.reliableMulticast.getNackScheduler();
+
+        assertTrue(nackScheduler1.getMissingMessages() > 0);
+        assertEquals(nackScheduler1.getMissingMessages(), nackScheduler1.getRecoveredMessages());
+        assertEquals(nackScheduler2.getMissingMessages(), nackScheduler2.getRecoveredMessages());
+        assertTrue(sender.reliableMulticast.getRetransmitBuffer().getRetransmits() > 0);
+    }
+
+    @Test
+    public void receiversShouldSkipNacksAlreadySentByOthers() throws InterruptedException {
+        final List<Client> receivers = new ArrayList<>();
+
+        // Different delays, so one receiver is clearly first
+        for (int i = 0; i < 5; i++) {
+            receivers.add(network.addClient(new User("User" + i, 125 + i), new FixedRandom(i / 5.0)));
+        }
+
+        // Added last, so the other receivers see the first nack before the message is sent again
+        final Client sender = network.addClient(new User("Christian", 124));
+
+        sender.send(0, "124!IDLE#Christian:");
+        network.dropNextMessage = true;
+        sender.send(1, "124!IDLE#Christian:");
+        sender.send(2, "124!IDLE#Christian:");
+
+        long sentNacks = 0;
+        long suppressedNacks = 0;
+
+        for (final Client receiver : receivers) {
+            assertTrue(receiver.awaitMessages(3, 5_000));
+            sentNacks += receiver.reliableMulticast.getNackScheduler().getSentNacks();
+            suppressedNacks += receiver.reliableMulticast.getNackScheduler().getSuppressedNacks();
+        }
+
+        assertEquals(1, sentNacks);
+        assertEquals(receivers.size() - 1, suppressedNacks);
+        assertEquals(1, sender.reliableMulticast.getRetransmitBuffer().getRetransmits());
+    }
+
+    /**
+     * Delivers every message to every client, including the sender, like multicast on loopback.
+     * Messages are lost at random, and NACKs and retransmits too.
+     */
+    private static class LoopbackNetwork {
+
+        private final List<Client> clients = new ArrayList<>();
+        private final Random random = new Random(42);
+        private volatile double lossRate;
+        private volatile boolean dropNextMessage;
+
+        private Client addClient(final User user) {
+            return addClient(user, new Random(user.getCode()));
+        }
+
+        private Client addClient(final User user, final Random delayRandom) {
+            final Client client = new Client(user, this, delayRandom);
+
+            synchronized (clients) {
+                clients.add(client);
+            }
+
+            return client;
+        }
+
+        private void send(final String message) {
+            final List<Client> receivers;
+
+            synchronized (clients) {
+                receivers = new ArrayList<>(clients);
+            }
+
+            final boolean dropAll = dropNextMessage;
+            dropNextMessage = false;
+
+            for (final Client receiver : receivers) {
+                if (!dropAll && !lose()) {
+                    receiver.messageArrived(message);
+                }
+            }
+        }
+
+        private synchronized boolean lose() {
+            return random.nextDouble() < lossRate;
+        }
+
+        private void shutdown() {
+            synchronized (clients) {
+                for (final Client client : clients) {
+                    client.executor.shutdownNow();
+                }
+            }
+        }
+    }
+
+    /**
+     * A client on the network, receiving messages the same way as the {@link MessageDeduplicator}.
+     */
+    private static class Client implements ReliableMulticast.Transmitter {
+
+        private final User me;
+        private final LoopbackNetwork network;
+        private final ScheduledThreadPoolExecutor executor;
+        private final ReliableMulticast reliableMulticast;
+        private final SeenMessageFilter seenMessageFilter;
+        private final Set<Integer> messages;
+
+        private Client(final User me, final LoopbackNetwork network, final Random delayRandom) {
+            this.me = me;
+            this.network = network;
+            this.executor = new ScheduledThreadPoolExecutor(1);
+            this.reliableMulticast = new ReliableMulticast(me, true, this, executor, delayRandom);
+            this.seenMessageFilter = new SeenMessageFilter();
+            this.messages = new HashSet<>();
+        }
+
+        private void send(final int sequence, final String message) {
+            final String stampedMessage = MessageSequencer.stamp(sequence, message);
+            reliableMulticast.messageSent(sequence, stampedMessage);
+            network.send(stampedMessage);
+        }
+
+        private void messageArrived(final String message) {
+            if (!MessageSequencer.isStamped(message)) {
+                reliableMulticast.nackArrived(MessageEnvelope.decode(message, "127.0.0.1"));
+                return;
+            }
+
+            final int sequence = MessageSequencer.getSequence(message);
+            final MessageEnvelope envelope = MessageEnvelope.decode(MessageSequencer.unstamp(message), "127.0.0.1");
+
+            if (envelope.getUserCode() == me.getCode()) {
+                return;
+            }
+
+            if (seenMessageFilter.firstArrival(envelope.getUserCode(), sequence, SeenMessageFilter.Path.UDP)) {
+                reliableMulticast.messageArrived(envelope.getUserCode(), sequence);
+
+                synchronized (this) {
+                    messages.add(sequence);
+                    notifyAll();
+                }
+            }
+        }
+
+        private synchronized boolean awaitMessages(final int count, final long timeoutMs) throws InterruptedException {
+            final long end = System.currentTimeMillis() + timeoutMs;
+
+            while (messages.size() < count && System.currentTimeMillis() < end) {
+                wait(Math.max(1, end - System.currentTimeMillis()));
+            }
+
+            return messages.size() == count;
+        }
+
+        @Override
+        public void retransmit(final String stampedMessage) {
+            network.send(stampedMessage);
+        }
+
+        @Override
+        public void sendNack(final String nack) {
+            network.send(nack);
+        }
+    }
+
+    private static class FixedRandom extends Random {
+
+        private final double value;
+
+        private FixedRandom(final double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+
+    private static class RecordingTransmitter implements ReliableMulticast.Transmitter {
+
+        private final List<String> retransmits = new ArrayList<>();
+        private final List<String> nacks = new ArrayList<>();
+
+        @Override
+        public void retransmit(final String stampedMessage) {
+            retransmits.add(stampedMessage);
+        }
+
+        @Override
+        public void sendNack(final String nack) {
+            nacks.add(nack);
+        }
+    }
+}
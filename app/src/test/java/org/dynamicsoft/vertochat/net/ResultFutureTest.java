@@ -0,0 +1,144 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link ResultFuture}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class ResultFutureTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final ResultFuture<String> future = new ResultFuture<>();
+    private final List<String> results = new ArrayList<>();
+    private final ResultFuture.Callback<String> callback = new ResultFuture.Callback<String>() {
+        @Override
+        public void resultArrived(final ResultFuture<String> theFuture) {
+            results.add(theFuture.getResult());
+        }
+    };
+
+    @Test
+    public void completeShouldSetResultAndNotifyCallbacks() throws InterruptedException {
+        future.addCallback(callback);
+
+        assertFalse(future.isDone());
+        assertTrue(results.isEmpty());
+
+        assertTrue(future.complete("Penny"));
+
+        assertTrue(future.isDone());
+        assertEquals("Penny", future.getResult());
+        assertEquals("Penny", future.get());
+        assertEquals(1, results.size());
+        assertEquals("Penny", results.get(0));
+    }
+
+    @Test
+    public void completeShouldOnlyHaveEffectTheFirstTime() {
+        future.addCallback(callback);
+
+        assertTrue(future.complete(null));
+        assertFalse(future.complete("Penny"));
+
+        assertNull(future.getResult());
+        assertEquals(1, results.size());
+        assertNull(results.get(0));
+    }
+
+    @Test
+    public void addCallbackShouldNotifyRightAwayWhenDone() {
+        future.complete("Penny");
+
+        future.addCallback(callback);
+
+        assertEquals(1, results.size());
+        assertEquals("Penny", results.get(0));
+    }
+
+    @Test
+    public void addCallbackShouldThrowExceptionIfCallbackIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Callback can not be null");
+
+        future.addCallback(null);
+    }
+
+    @Test
+    public void getShouldTimeOutWhenNotDone() throws InterruptedException, TimeoutException {
+        expectedException.expect(TimeoutException.class);
+        expectedException.expectMessage("No result within 10 MILLISECONDS");
+
+        future.get(10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void getShouldWaitForResultFromAnotherThread() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                future.complete("Penny");
+            }
+        });
+
+        thread.start();
+
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        assertEquals("Penny", future.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelShouldNotBePossible() {
+        assertFalse(future.cancel(true));
+
+        assertFalse(future.isCancelled());
+        assertFalse(future.isDone());
+    }
+
+    @Test
+    public void completedShouldBeDoneRightAway() {
+        final ResultFuture<String> completed = ResultFuture.completed("Penny");
+
+        assertTrue(completed.isDone());
+        assertEquals("Penny", completed.getResult());
+        assertFalse(completed.complete("Other"));
+    }
+}
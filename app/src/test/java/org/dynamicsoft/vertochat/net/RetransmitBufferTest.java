@@ -0,0 +1,94 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.dynamicsoft.vertochat.net.RetransmitBuffer.CAPACITY;
+import static org.dynamicsoft.vertochat.net.RetransmitBuffer.RETRANSMIT_HOLDOFF_MS;
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link RetransmitBuffer}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class RetransmitBufferTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final RetransmitBuffer buffer = new RetransmitBuffer();
+
+    @Test
+    public void addShouldThrowExceptionIfMessageIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message can not be null");
+
+        buffer.add(1, null);
+    }
+
+    @Test
+    public void getForRetransmitShouldReturnMessageWithSequence() {
+        buffer.add(1, "~1~124!MSG#Christian:[-15987646]Hello");
+        buffer.add(2, "~2~124!WRITING#Christian:");
+
+        assertEquals("~2~124!WRITING#Christian:", buffer.getForRetransmit(2, 1000));
+        assertEquals("~1~124!MSG#Christian:[-15987646]Hello", buffer.getForRetransmit(1, 1000));
+        assertNull(buffer.getForRetransmit(3, 1000));
+
+        assertEquals(2, buffer.getRetransmits());
+        assertEquals(1, buffer.getExpired());
+    }
+
+    @Test
+    public void oldestMessagesShouldBeReplaced() {
+        buffer.add(5, "~5~124!IDLE#Christian:");
+        buffer.add(5 + CAPACITY, "~261~124!IDLE#Christian:");
+
+        assertNull(buffer.getForRetransmit(5, 1000));
+        assertEquals("~261~124!IDLE#Christian:", buffer.getForRetransmit(5 + CAPACITY, 1000));
+    }
+
+    @Test
+    public void sameMessageShouldOnlyBeRetransmittedOnceDuringHoldOff() {
+        buffer.add(1, "~1~124!IDLE#Christian:");
+
+        assertNotNull(buffer.getForRetransmit(1, 1000));
+        assertNull(buffer.getForRetransmit(1, 1000 + RETRANSMIT_HOLDOFF_MS - 1));
+        assertNotNull(buffer.getForRetransmit(1, 1000 + RETRANSMIT_HOLDOFF_MS));
+
+        assertEquals(2, buffer.getRetransmits());
+        assertEquals(1, buffer.getHeldOff());
+    }
+
+    @Test
+    public void clearShouldRemoveEveryMessage() {
+        buffer.add(1, "~1~124!IDLE#Christian:");
+        buffer.clear();
+
+        assertNull(buffer.getForRetransmit(1, 1000));
+    }
+}
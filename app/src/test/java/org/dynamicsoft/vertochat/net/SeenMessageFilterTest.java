@@ -0,0 +1,132 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.net.SeenMessageFilter.Path;
+import org.junit.Test;
+
+import static org.dynamicsoft.vertochat.net.SeenMessageFilter.MAX_SENDERS;
+import static org.dynamicsoft.vertochat.net.SeenMessageFilter.WINDOW_SIZE;
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link SeenMessageFilter}.
+ *
+ * @author Christian Ihle
+ */
+public class SeenMessageFilterTest {
+
+    private final SeenMessageFilter filter = new SeenMessageFilter();
+
+    @Test
+    public void onlyFirstCopyShouldBeAccepted() {
+        assertTrue(filter.firstArrival(124, 1, Path.UDP, 0));
+        assertFalse(filter.firstArrival(124, 1, Path.TCP, 0));
+        assertFalse(filter.firstArrival(124, 1, Path.UDP, 0));
+
+        assertTrue(filter.firstArrival(124, 2, Path.TCP, 0));
+        assertFalse(filter.firstArrival(124, 2, Path.UDP, 0));
+
+        assertEquals(1, filter.getFirstArrivals(Path.UDP));
+        assertEquals(1, filter.getFirstArrivals(Path.TCP));
+        assertEquals(2, filter.getDuplicates(Path.UDP));
+        assertEquals(1, filter.getDuplicates(Path.TCP));
+    }
+
+    @Test
+    public void sendersShouldHaveSeparateWindows() {
+        assertTrue(filter.firstArrival(124, 1, Path.UDP, 0));
+        assertTrue(filter.firstArrival(125, 1, Path.UDP, 0));
+        assertFalse(filter.firstArrival(125, 1, Path.TCP, 0));
+    }
+
+    @Test
+    public void messagesOutOfOrderInsideWindowShouldBeAccepted() {
+        assertTrue(filter.firstArrival(124, 10, Path.UDP, 0));
+        assertTrue(filter.firstArrival(124, 5, Path.UDP, 0));
+        assertTrue(filter.firstArrival(124, 10 - WINDOW_SIZE + 1, Path.TCP, 0));
+        assertFalse(filter.firstArrival(124, 5, Path.TCP, 0));
+    }
+
+    @Test
+    public void messagesOlderThanWindowShouldBeDropped() {
+        assertTrue(filter.firstArrival(124, 1000, Path.UDP, 0));
+
+        assertFalse(filter.firstArrival(124, 1000 - WINDOW_SIZE, Path.TCP, 0));
+        assertEquals(1, filter.getTooOld());
+    }
+
+    @Test
+    public void sequenceNumbersShouldWrapAround() {
+        assertTrue(filter.firstArrival(124, Integer.MAX_VALUE, Path.UDP, 0));
+        assertTrue(filter.firstArrival(124, Integer.MIN_VALUE, Path.UDP, 0));
+        assertFalse(filter.firstArrival(124, Integer.MAX_VALUE, Path.TCP, 0));
+        assertFalse(filter.firstArrival(124, Integer.MIN_VALUE, Path.TCP, 0));
+        assertEquals(0, filter.getTooOld());
+    }
+
+    @Test
+    public void leadTimeShouldBeMeasuredForWinningPath() {
+        filter.firstArrival(124, 1, Path.TCP, 0);
+        filter.firstArrival(124, 1, Path.UDP, 2_000_000);
+        filter.firstArrival(124, 2, Path.TCP, 10_000_000);
+        filter.firstArrival(124, 2, Path.UDP, 14_000_000);
+        filter.firstArrival(124, 3, Path.UDP, 20_000_000);
+        filter.firstArrival(124, 3, Path.TCP, 21_000_000);
+
+        assertEquals(2, filter.getWins(Path.TCP));
+        assertEquals(1, filter.getWins(Path.UDP));
+        assertEquals(3.0, filter.getAverageLeadTimeMs(Path.TCP), 0.001);
+        assertEquals(4.0, filter.getMaxLeadTimeMs(Path.TCP), 0.001);
+        assertEquals(1.0, filter.getAverageLeadTimeMs(Path.UDP), 0.001);
+    }
+
+    @Test
+    public void messagesLeavingWindowAfterArrivingOverTcpOnlyShouldCountAsUdpLoss() {
+        assertEquals(0, filter.getUdpLossRate(), 0.001);
+
+        for (int sequence = 0; sequence < 4; sequence++) {
+            filter.firstArrival(124, sequence, Path.TCP, 0);
+        }
+
+        filter.firstArrival(124, 0, Path.UDP, 0);
+        filter.firstArrival(124, 1, Path.UDP, 0);
+        filter.firstArrival(124, 2, Path.UDP, 0);
+
+        filter.firstArrival(124, 3 + WINDOW_SIZE, Path.TCP, 0);
+
+        assertEquals(1, filter.getSingleCopies(Path.TCP));
+        assertEquals(0.25, filter.getUdpLossRate(), 0.001);
+    }
+
+    @Test
+    public void leastRecentSendersShouldBeForgotten() {
+        filter.firstArrival(0, 1, Path.UDP, 0);
+
+        for (int userCode = 1; userCode <= MAX_SENDERS; userCode++) {
+            filter.firstArrival(userCode, 1, Path.UDP, 0);
+        }
+
+        assertTrue(filter.firstArrival(0, 1, Path.TCP, 0));
+        assertFalse(filter.firstArrival(MAX_SENDERS, 1, Path.TCP, 0));
+    }
+}
@@ -0,0 +1,181 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link SendPacer}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class SendPacerTest {
+
+    private static final long START = TimeUnit.SECONDS.toNanos(1000);
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void constructorShouldThrowExceptionIfPacketRateIsNegative() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Packet rate can not be negative");
+
+        new SendPacer(-1, 0);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfByteRateIsNegative() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Byte rate can not be negative");
+
+        new SendPacer(0, -1);
+    }
+
+    @Test
+    public void reserveShouldLetBurstThroughAndThenSpreadOutPackets() {
+        final SendPacer sendPacer = new SendPacer(100, 0, START);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, sendPacer.reserve(100, START));
+        }
+
+        assertEquals(10 * MS, sendPacer.reserve(100, START), 1000);
+        assertEquals(20 * MS, sendPacer.reserve(100, START), 1000);
+
+        assertEquals(12, sendPacer.getPacedPackets());
+        assertEquals(2, sendPacer.getDelayedPackets());
+        assertEquals(15000, sendPacer.getAverageDelayMicros(), 1);
+    }
+
+    @Test
+    public void reserveShouldPaceBytes() {
+        final SendPacer sendPacer = new SendPacer(0, 10000, START);
+
+        assertEquals(0, sendPacer.reserve(1000, START));
+        assertEquals(50 * MS, sendPacer.reserve(500, START), 1000);
+    }
+
+    @Test
+    public void reserveShouldRefillTokensOverTime() {
+        final SendPacer sendPacer = new SendPacer(100, 0, START);
+
+        for (int i = 0; i < 10; i++) {
+            sendPacer.reserve(100, START);
+        }
+
+        assertEquals(0, sendPacer.reserve(100, START + 50 * MS));
+
+        // Never more than the burst, however long it's been
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, sendPacer.reserve(100, START + 10000 * MS));
+        }
+
+        assertTrue(sendPacer.reserve(100, START + 10000 * MS) > 0);
+    }
+
+    @Test
+    public void reserveShouldNeverWaitWithoutLimits() {
+        final SendPacer sendPacer = new SendPacer(0, 0, START);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, sendPacer.reserve(512, START));
+        }
+
+        assertEquals(0, sendPacer.getDelayedPackets());
+    }
+
+    @Test
+    public void congestedShouldHalveTheRatesAtMostOnceEachInterval() {
+        final SendPacer sendPacer = new SendPacer(100, 20000, START);
+
+        sendPacer.congested(START);
+        assertEquals(0.5, sendPacer.getRateFactor(), 0.0001);
+        assertEquals(50, sendPacer.getPacketRate(), 0.0001);
+        assertEquals(10000, sendPacer.getByteRate(), 0.0001);
+
+        sendPacer.congested(START + 500 * MS);
+        assertEquals(0.5, sendPacer.getRateFactor(), 0.03);
+        assertEquals(1, sendPacer.getCongestionEvents());
+
+        sendPacer.congested(START + 1000 * MS);
+        assertEquals(0.25, sendPacer.getRateFactor(), 0.03);
+        assertEquals(2, sendPacer.getCongestionEvents());
+    }
+
+    @Test
+    public void congestedShouldNotSlowDownBelowMinRate() {
+        final SendPacer sendPacer = new SendPacer(100, 0, START);
+
+        for (int i = 0; i < 10; i++) {
+            sendPacer.congested(START + i * SendPacer.MIN_DECREASE_INTERVAL_NANOS);
+        }
+
+        assertEquals(SendPacer.MIN_RATE_FACTOR, sendPacer.getRateFactor(), 0.0001);
+    }
+
+    @Test
+    public void congestedShouldMakePacketsWaitLonger() {
+        final SendPacer sendPacer = new SendPacer(100, 0, START);
+
+        for (int i = 0; i < 10; i++) {
+            sendPacer.reserve(100, START);
+        }
+
+        sendPacer.congested(START);
+
+        assertEquals(20 * MS, sendPacer.reserve(100, START), 1000);
+    }
+
+    @Test
+    public void rateShouldGrowBackWhileNothingIsLost() {
+        final SendPacer sendPacer = new SendPacer(100, 0, START);
+
+        sendPacer.congested(START);
+        sendPacer.reserve(100, START + 4000 * MS);
+        assertEquals(0.7, sendPacer.getRateFactor(), 0.0001);
+
+        sendPacer.reserve(100, START + 20000 * MS);
+        assertEquals(1.0, sendPacer.getRateFactor(), 0.0001);
+    }
+
+    @Test
+    public void paceShouldSleepWhenOverTheRate() {
+        final SendPacer sendPacer = new SendPacer(1000, 0);
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < 120; i++) {
+            sendPacer.pace(100);
+        }
+
+        assertTrue(System.nanoTime() - start >= 10 * MS);
+        assertTrue(sendPacer.getDelayedPackets() > 0);
+    }
+}
@@ -0,0 +1,378 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link SendQueue} and {@link SendFuture}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class SendQueueTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final SendQueue sendQueue = new SendQueue();
+
+    @Test
+    public void submitShouldThrowExceptionIfTaskIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Task can not be null");
+
+        sendQueue.submit(null);
+    }
+
+    @Test
+    public void submitShouldSendOnSenderThreadAndCompleteFuture() throws Exception {
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+        final SendFuture future = sendQueue.submit(new SendQueue.Task() {
+            @Override
+            public int send() {
+                threads.add(Thread.currentThread().getName());
+                return 2;
+            }
+        });
+
+        assertTrue(future.get(1, TimeUnit.SECONDS));
+        assertTrue(future.isDone());
+        assertEquals(2, future.getPackets());
+        assertEquals(Collections.singletonList("SendQueue"), threads);
+        assertEquals(1, sendQueue.getSentMessages());
+        assertEquals(0, sendQueue.getFailedMessages());
+    }
+
+    @Test
+    public void submitShouldSendInOrder() {
+        final List<Integer> sent = Collections.synchronizedList(new ArrayList<Integer>());
+
+        for (int i = 0; i < 10; i++) {
+            final int number = i;
+
+            sendQueue.submit(new SendQueue.Task() {
+                @Override
+                public int send() {
+                    sent.add(number);
+                    return 1;
+                }
+            });
+        }
+
+        assertTrue(sendQueue.awaitQueuedMessages(1000));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), sent);
+    }
+
+    @Test
+    public void submitShouldCountFailedAndBrokenTasks() {
+        final SendFuture failed = sendQueue.submit(new SendQueue.Task() {
+            @Override
+            public int send() {
+                return 0;
+            }
+        });
+
+        final SendFuture broken = sendQueue.submit(new SendQueue.Task() {
+            @Override
+            public int send() {
+                throw new IllegalStateException("Broken");
+            }
+        });
+
+        assertFalse(failed.awaitSent());
+        assertFalse(broken.awaitSent());
+        assertTrue(failed.isFailed());
+        assertTrue(broken.isFailed());
+        assertEquals(2, sendQueue.getFailedMessages());
+    }
+
+    @Test
+    public void submitShouldRejectMessagesWhenQueueIsFull() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        sendQueue.submit(new SendQueue.Task() {
+            @Override
+            public int send() {
+                blocked.countDown();
+
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return 1;
+            }
+        });
+
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+        final SendQueue.Task task = new SendQueue.Task() {
+            @Override
+            public int send() {
+                return 1;
+            }
+        };
+
+        SendFuture last = null;
+
+        for (int i = 0; i < SendQueue.MAX_QUEUED_MESSAGES; i++) {
+            last = sendQueue.submit(task);
+        }
+
+        assertEquals(SendQueue.MAX_QUEUED_MESSAGES, sendQueue.getQueueDepth());
+        assertEquals(SendQueue.MAX_QUEUED_MESSAGES, sendQueue.getMaxQueueDepth());
+
+        final SendFuture rejected = sendQueue.submit(task);
+        assertTrue(rejected.isDone());
+        assertFalse(rejected.isSent());
+        assertTrue(rejected.isRejected());
+        assertFalse(rejected.isFailed());
+        assertEquals(1, sendQueue.getRejectedMessages());
+
+        release.countDown();
+        assertTrue(last.awaitSent());
+        assertEquals(SendQueue.MAX_QUEUED_MESSAGES + 1, sendQueue.getSentMessages());
+        assertTrue(sendQueue.getMaxLatencyMicros() > 0);
+    }
+
+    @Test
+    public void submitShouldSendChatBeforePresenceAndBulk() throws InterruptedException {
+        final CountDownLatch release = blockSender();
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+        sendQueue.submit(createTask("bulk", sent), SendQueue.Lane.BULK, null);
+        sendQueue.submit(createTask("presence", sent), SendQueue.Lane.PRESENCE, null);
+        sendQueue.submit(createTask("chat", sent), SendQueue.Lane.CHAT, null);
+
+        assertEquals(1, sendQueue.getQueueDepth(SendQueue.Lane.CHAT));
+        assertEquals(3, sendQueue.getQueueDepth());
+
+        release.countDown();
+        assertTrue(sendQueue.awaitQueuedMessages(1000));
+        assertEquals(Arrays.asList("chat", "presence", "bulk"), sent);
+    }
+
+    @Test
+    public void lanesShouldTakeTurnsByWeight() throws InterruptedException {
+        final CountDownLatch release = blockSender();
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+        for (int i = 0; i < 3; i++) {
+            sendQueue.submit(createTask("P", sent), SendQueue.Lane.PRESENCE, null);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            sendQueue.submit(createTask("C", sent), SendQueue.Lane.CHAT, null);
+        }
+
+        release.countDown();
+        assertTrue(sendQueue.awaitQueuedMessages(1000));
+        assertEquals(Arrays.asList("C", "C", "C", "C", "C", "C", "C", "C", "P", "P", "C", "C", "P"), sent);
+    }
+
+    @Test
+    public void submitShouldDropSupersededMessagesWhenTakingThemOut() throws InterruptedException {
+        final CountDownLatch release = blockSender();
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+        final SendFuture writing = sendQueue.submit(createTask("writing", sent), SendQueue.Lane.PRESENCE, "key");
+        final SendFuture stopped = sendQueue.submit(createTask("stopped", sent), SendQueue.Lane.PRESENCE, "key");
+        sendQueue.submit(createTask("other", sent), SendQueue.Lane.PRESENCE, "other");
+
+        release.countDown();
+        assertTrue(sendQueue.awaitQueuedMessages(1000));
+
+        assertFalse(writing.isSent());
+        assertTrue(writing.isSuperseded());
+        assertFalse(writing.isFailed());
+        assertTrue(stopped.isSent());
+        assertFalse(stopped.isSuperseded());
+        assertEquals(Arrays.asList("stopped", "other"), sent);
+        assertEquals(1, sendQueue.getSupersededMessages());
+        assertEquals(0, sendQueue.getFailedMessages());
+    }
+
+    @Test
+    public void stampedMessagesShouldBeSentInSequenceOrder() throws InterruptedException {
+        final CountDownLatch release = blockSender();
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+        for (final String message : Arrays.asList(MessageSequencer.stamp(1, "1234!EXPOSING#Nick:"),
+                MessageSequencer.stamp(2, "1234!MSG#Nick:[-15987646]Hello"),
+                MessageSequencer.stamp(3, "1234!CLIENT#Nick:(client)"),
+                MessageSequencer.stamp(4, "1234!MSG#Nick:[-15987646]Again"))) {
+            sendQueue.submit(createTask(message, sent), SendQueue.Lane.forMessage(message), null);
+        }
+
+        release.countDown();
+        assertTrue(sendQueue.awaitQueuedMessages(1000));
+
+        for (int i = 0; i < sent.size(); i++) {
+            assertTrue(sent.get(i).startsWith(MessageSequencer.stamp(i + 1, "")));
+        }
+    }
+
+    @Test
+    public void submitShouldMeasureLatencyOfEachLane() throws InterruptedException {
+        final CountDownLatch release = blockSender();
+
+        final SendFuture future = sendQueue.submit(createTask("chat", new ArrayList<String>()), SendQueue.Lane.CHAT, null);
+        Thread.sleep(5);
+
+        release.countDown();
+        assertTrue(future.awaitSent());
+
+        assertTrue(sendQueue.getMaxLatencyMicros(SendQueue.Lane.CHAT) >= 5000);
+        assertTrue(sendQueue.getAverageLatencyMicros(SendQueue.Lane.CHAT) >= 5000);
+        assertEquals(0, sendQueue.getMaxLatencyMicros(SendQueue.Lane.PRESENCE));
+        assertEquals(0, sendQueue.getAverageLatencyMicros(SendQueue.Lane.PRESENCE));
+    }
+
+    @Test
+    public void awaitQueuedMessagesShouldTimeOutWhileSending() throws InterruptedException {
+        final CountDownLatch release = blockSender();
+
+        assertFalse(sendQueue.awaitQueuedMessages(20));
+
+        release.countDown();
+        assertTrue(sendQueue.awaitQueuedMessages(1000));
+    }
+
+    @Test
+    public void getSupersedeKeyShouldOnlyReturnKeyForUnstampedStatusMessages() {
+        final String writingKey = SendQueue.getSupersedeKey("1234!WRITING#Nick:", "multicast");
+
+        assertNotNull(writingKey);
+        assertEquals(writingKey, SendQueue.getSupersedeKey("1234!STOPPEDWRITING#Nick:", "multicast"));
+        assertFalse(writingKey.equals(SendQueue.getSupersedeKey("1234!WRITING#Nick:", "/10.0.0.1:5000")));
+        assertFalse(writingKey.equals(SendQueue.getSupersedeKey("1234!IDLE#Nick:", "multicast")));
+
+        assertNull(SendQueue.getSupersedeKey("1234!MSG#Nick:[-15987646]Hello", "multicast"));
+        assertNull(SendQueue.getSupersedeKey(MessageSequencer.stamp(5, "1234!WRITING#Nick:"), "multicast"));
+    }
+
+    @Test
+    public void laneShouldPutChatBeforePresenceAndBulk() {
+        assertEquals(SendQueue.Lane.CHAT, SendQueue.Lane.forMessage("1234!MSG#Nick:[-15987646]Hello"));
+        assertEquals(SendQueue.Lane.CHAT, SendQueue.Lane.forMessage(MessageSequencer.stamp(5, "1234!TOPIC#Nick:")));
+        assertEquals(SendQueue.Lane.CHAT, SendQueue.Lane.forType(MessageType.PRIVMSG));
+        assertEquals(SendQueue.Lane.PRESENCE, SendQueue.Lane.forType(MessageType.EXPOSING));
+        assertEquals(SendQueue.Lane.PRESENCE, SendQueue.Lane.forType(MessageType.WRITING));
+        assertEquals(SendQueue.Lane.BULK, SendQueue.Lane.forType(MessageType.NACK));
+        assertEquals(SendQueue.Lane.BULK, SendQueue.Lane.forMessage("Garbage"));
+    }
+
+    @Test
+    public void laneShouldPutStampedMessagesInTheChatLane() {
+        assertEquals(SendQueue.Lane.PRESENCE, SendQueue.Lane.forMessage("1234!EXPOSING#Nick:"));
+        assertEquals(SendQueue.Lane.CHAT, SendQueue.Lane.forMessage(MessageSequencer.stamp(5, "1234!EXPOSING#Nick:")));
+        assertEquals(SendQueue.Lane.CHAT, SendQueue.Lane.forMessage(MessageSequencer.stamp(5, "1234!NACK#Nick:")));
+
+        assertEquals(SendQueue.Lane.PRESENCE, SendQueue.Lane.forBatch(Arrays.asList("1234!IDLE#Nick:", "1234!EXPOSING#Nick:")));
+        assertEquals(SendQueue.Lane.CHAT, SendQueue.Lane.forBatch(
+                Arrays.asList("1234!IDLE#Nick:", MessageSequencer.stamp(5, "1234!EXPOSING#Nick:"))));
+    }
+
+    @Test
+    public void addCallbackShouldNotifyWhenDone() {
+        final SendFuture future = new SendFuture();
+        final List<Boolean> results = new ArrayList<>();
+        final SendFuture.Callback callback = new SendFuture.Callback() {
+            @Override
+            public void sendCompleted(final SendFuture completedFuture) {
+                results.add(completedFuture.isSent());
+            }
+        };
+
+        future.addCallback(callback);
+        assertTrue(results.isEmpty());
+
+        future.complete(1);
+        future.complete(0);
+        assertEquals(Collections.singletonList(true), results);
+
+        future.addCallback(callback);
+        assertEquals(Arrays.asList(true, true), results);
+    }
+
+    @Test
+    public void completedShouldBeDoneRightAway() {
+        assertTrue(SendFuture.completed(true).isSent());
+        assertFalse(SendFuture.completed(false).isSent());
+        assertTrue(SendFuture.completed(false).isDone());
+        assertTrue(SendFuture.completed(false).isFailed());
+        assertFalse(SendFuture.completed(true).isFailed());
+        assertFalse(new SendFuture().isFailed());
+        assertFalse(SendFuture.completed(true).cancel(true));
+    }
+
+    /**
+     * Makes the sender thread wait until the returned latch is counted down.
+     */
+    private CountDownLatch blockSender() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        sendQueue.submit(new SendQueue.Task() {
+            @Override
+            public int send() {
+                blocked.countDown();
+
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return 1;
+            }
+        });
+
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+
+        return release;
+    }
+
+    private static SendQueue.Task createTask(final String name, final List<String> sent) {
+        return new SendQueue.Task() {
+            @Override
+            public int send() {
+                sent.add(name);
+                return 1;
+            }
+        };
+    }
+}
@@ -0,0 +1,165 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net;
+
+import org.dynamicsoft.vertochat.Constants;
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.dynamicsoft.vertochat.misc.User;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.dynamicsoft.vertochat.net.TransportSelector.MAX_USERS;
+import static org.dynamicsoft.vertochat.net.TransportSelector.MIN_SAMPLES;
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link TransportSelector}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TransportSelectorTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final TransportSelector selector = new TransportSelector();
+
+    private User penny;
+
+    @Before
+    public void setUp() {
+        penny = new User("Penny", 125);
+        penny.setTcpEnabled(true);
+        penny.setProtocolVersion(Constants.PROTOCOL_VERSION_RELIABLE_MULTICAST);
+        penny.setNackEnabled(true);
+    }
+
+    @Test
+    public void needsTcpCopyShouldThrowExceptionIfUserIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("User can not be null");
+
+        selector.needsTcpCopy(null);
+    }
+
+    @Test
+    public void needsTcpCopyShouldBeTrueUntilEnoughMessagesHaveArrived() {
+        for (int i = 0; i < MIN_SAMPLES - 1; i++) {
+            selector.multicastArrived(125);
+        }
+
+        assertTrue(selector.needsTcpCopy(penny));
+
+        selector.multicastArrived(125);
+
+        assertFalse(selector.needsTcpCopy(penny));
+        assertEquals(1, selector.getTcpCopies());
+        assertEquals(1, selector.getSkippedTcpCopies());
+    }
+
+    @Test
+    public void needsTcpCopyShouldBeTrueWhenUserLosesMessages() {
+        arrive(125, MIN_SAMPLES);
+        assertTrue(selector.isMulticastReliable(125));
+
+        selector.multicastLost(125, 1);
+
+        assertFalse(selector.isMulticastReliable(125));
+        assertTrue(selector.needsTcpCopy(penny));
+        assertEquals(TransportSelector.LOSS_RATE_WEIGHT, selector.getLossRate(125), 0.0001);
+
+        // The loss is forgotten after enough messages arrive
+        arrive(125, 50);
+
+        assertTrue(selector.isMulticastReliable(125));
+        assertFalse(selector.needsTcpCopy(penny));
+    }
+
+    @Test
+    public void needsTcpCopyShouldBeFalseWithoutTcpConnection() {
+        penny.setTcpEnabled(false);
+
+        assertFalse(selector.needsTcpCopy(penny));
+        assertEquals(0, selector.getTcpCopies());
+    }
+
+    @Test
+    public void needsTcpCopyShouldBeTrueForUsersThatCanNotAskForLostMessages() {
+        penny.setProtocolVersion(Constants.PROTOCOL_VERSION_SEQUENCE_NUMBERS);
+        arrive(125, MIN_SAMPLES);
+
+        assertTrue(selector.needsTcpCopy(penny));
+    }
+
+    @Test
+    public void needsTcpCopyShouldBeTrueForUsersWithNacksDisabled() {
+        penny.setNackEnabled(false);
+        arrive(125, MIN_SAMPLES);
+
+        assertTrue(selector.isMulticastReliable(125));
+        assertTrue(selector.needsTcpCopy(penny));
+        assertEquals(0, selector.getSkippedTcpCopies());
+    }
+
+    @Test
+    public void messageSentShouldCountMessagesSentOverMulticastOnly() {
+        selector.messageSent(0);
+        selector.messageSent(2);
+        selector.messageSent(0);
+
+        assertEquals(2, selector.getMulticastOnlyMessages());
+    }
+
+    @Test
+    public void choosePrivateTransportShouldUseTcpWhenConnected() {
+        assertEquals(TransportSelector.Transport.TCP, selector.choosePrivateTransport(penny));
+
+        penny.setTcpEnabled(false);
+        assertEquals(TransportSelector.Transport.UDP, selector.choosePrivateTransport(penny));
+
+        penny.setProtocolVersion(Constants.PROTOCOL_VERSION_TCP_FRAMING);
+        assertEquals(TransportSelector.Transport.BOTH, selector.choosePrivateTransport(penny));
+
+        assertEquals(1, selector.getPrivateMessages(TransportSelector.Transport.TCP));
+        assertEquals(1, selector.getPrivateMessages(TransportSelector.Transport.UDP));
+        assertEquals(1, selector.getPrivateMessages(TransportSelector.Transport.BOTH));
+    }
+
+    @Test
+    public void onlyTheMostRecentUsersShouldBeRemembered() {
+        arrive(1, MIN_SAMPLES);
+
+        for (int userCode = 2; userCode <= MAX_USERS + 1; userCode++) {
+            selector.multicastArrived(userCode);
+        }
+
+        assertFalse(selector.isMulticastReliable(1));
+    }
+
+    private void arrive(final int userCode, final int messages) {
+        for (int i = 0; i < messages; i++) {
+            selector.multicastArrived(userCode);
+        }
+    }
+}
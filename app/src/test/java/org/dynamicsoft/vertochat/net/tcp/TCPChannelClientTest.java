@@ -0,0 +1,338 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link TCPChannelClient}, using connections on the loopback interface.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPChannelClientTest {
+
+    private TCPSelectorLoop selectorLoop;
+    private ServerSocketChannel serverChannel;
+
+    private List<TCPClient> clients;
+
+    @Before
+    public void setUp() throws IOException {
+        selectorLoop = new TCPSelectorLoop();
+        selectorLoop.start();
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        clients = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (final TCPClient client : clients) {
+            client.disconnect();
+        }
+
+        serverChannel.close();
+        selectorLoop.stop();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfChannelIsNull() {
+        try {
+            new TCPChannelClient(null, selectorLoop);
+            fail("Should throw exception");
+        } catch (final IllegalArgumentException e) {
+            assertEquals("Channel can not be null", e.getMessage());
+        }
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfSelectorLoopIsNull() throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+
+        try {
+            new TCPChannelClient(channel, null);
+            fail("Should throw exception");
+        } catch (final IllegalArgumentException e) {
+            assertEquals("Selector loop can not be null", e.getMessage());
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void channelClientsShouldExchangeMessages() throws IOException, InterruptedException {
+        final SocketChannel outgoing = SocketChannel.open(serverChannel.getLocalAddress());
+        final SocketChannel incoming = serverChannel.accept();
+
+        final TCPChannelClient client1 = connect(new TCPChannelClient(outgoing, selectorLoop));
+        final TCPChannelClient client2 = connect(new TCPChannelClient(incoming, selectorLoop));
+
+        final RecordingClientListener listener1 = new RecordingClientListener(client1);
+        final RecordingClientListener listener2 = new RecordingClientListener(client2);
+
+        client1.send("124!MSG#Christian:[-15987646]Hello there");
+        client1.send("124!WRITING#Christian:");
+        client2.send("125!MSG#Penny:[-15987646]Hi! æøå");
+
+        listener2.waitForMessages(2);
+        listener1.waitForMessages(1);
+
+        assertEquals(Arrays.asList("124!MSG#Christian:[-15987646]Hello there", "124!WRITING#Christian:"),
+                listener2.getMessages());
+        assertEquals(Collections.singletonList("125!MSG#Penny:[-15987646]Hi! æøå"), listener1.getMessages());
+    }
+
+    @Test
+    public void channelClientShouldHandleMessagesLargerThanTheInitialReadBuffer() throws IOException, InterruptedException {
+        final SocketChannel outgoing = SocketChannel.open(serverChannel.getLocalAddress());
+        final SocketChannel incoming = serverChannel.accept();
+
+        final TCPChannelClient client1 = connect(new TCPChannelClient(outgoing, selectorLoop));
+        final TCPChannelClient client2 = connect(new TCPChannelClient(incoming, selectorLoop));
+
+        final RecordingClientListener listener2 = new RecordingClientListener(client2);
+
+        final char[] chars = new char[10_000];
+        Arrays.fill(chars, 'ø');
+        final String largeMessage = new String(chars);
+
+        client1.send(largeMessage);
+        client1.send("after");
+
+        listener2.waitForMessages(2);
+
+        assertEquals(Arrays.asList(largeMessage, "after"), listener2.getMessages());
+    }
+
+    @Test
+    public void channelClientShouldTalkToSocketClient() throws IOException, InterruptedException {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort());
+        final SocketChannel incoming = serverChannel.accept();
+
+        final TCPSocketClient socketClient = connect(new TCPSocketClient(socket));
+        final TCPChannelClient channelClient = connect(new TCPChannelClient(incoming, selectorLoop));
+
+        final RecordingClientListener socketListener = new RecordingClientListener(socketClient);
+        final RecordingClientListener channelListener = new RecordingClientListener(channelClient);
+
+        socketClient.send("SYS-IDENTIFY:124:125");
+        channelClient.send("125!IDLE#Penny:(home)");
+
+        channelListener.waitForMessages(1);
+        socketListener.waitForMessages(1);
+
+        assertEquals(Collections.singletonList("SYS-IDENTIFY:124:125"), channelListener.getMessages());
+        assertEquals(Collections.singletonList("125!IDLE#Penny:(home)"), socketListener.getMessages());
+    }
+
+    @Test
+    public void clientsShouldSwitchToVarintFramesAndExchangeMessagesLargerThan64KB() throws IOException, InterruptedException {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort());
+        final SocketChannel incoming = serverChannel.accept();
+
+        final TCPSocketClient socketClient = connect(new TCPSocketClient(socket));
+        final TCPChannelClient channelClient = connect(new TCPChannelClient(incoming, selectorLoop));
+
+        final RecordingClientListener socketListener = new RecordingClientListener(socketClient);
+        final RecordingClientListener channelListener = new RecordingClientListener(channelClient);
+
+        final char[] chars = new char[100_000];
+        Arrays.fill(chars, 'ø');
+        final String largeMessage = new String(chars);
+
+        socketClient.send("SYS-IDENTIFY:124:125");
+        socketClient.switchToVarintFrames();
+        socketClient.send(largeMessage);
+
+        channelListener.waitForMessages(2);
+
+        for (int i = 0; i < 100; i++) {
+            channelClient.send("125!EXPOSING#Penny:" + i);
+        }
+
+        channelClient.send(largeMessage);
+
+        socketListener.waitForMessages(101);
+
+        assertEquals(Arrays.asList("SYS-IDENTIFY:124:125", largeMessage), channelListener.getMessages());
+        assertEquals(101, socketListener.getMessages().size());
+        assertEquals("125!EXPOSING#Penny:99", socketListener.getMessages().get(99));
+        assertEquals(largeMessage, socketListener.getMessages().get(100));
+    }
+
+    @Test
+    public void channelClientShouldNotifyDisconnectedWhenOtherSideCloses() throws IOException, InterruptedException {
+        final SocketChannel outgoing = SocketChannel.open(serverChannel.getLocalAddress());
+        final SocketChannel incoming = serverChannel.accept();
+
+        final TCPChannelClient client = connect(new TCPChannelClient(incoming, selectorLoop));
+        final RecordingClientListener listener = new RecordingClientListener(client);
+
+        outgoing.close();
+
+        listener.waitForDisconnect();
+
+        assertTrue(listener.isDisconnected());
+        assertFalse(client.isConnected());
+    }
+
+    @Test
+    public void stalledPeerShouldMakeMessagesBackUpInTheOutboundQueue() throws IOException, InterruptedException {
+        // Never read from, so the socket buffers and then the write buffer of the client fill up
+        final SocketChannel outgoing = SocketChannel.open(serverChannel.getLocalAddress());
+        final SocketChannel incoming = serverChannel.accept();
+
+        final TCPChannelClient client = connect(new TCPChannelClient(incoming, selectorLoop));
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch overflowed = new CountDownLatch(1);
+
+        final TCPOutboundQueue queue = new TCPOutboundQueue(executor, new TCPOutboundQueue.Writer() {
+            @Override
+            public boolean write(final String message) {
+                return client.send(message);
+            }
+
+            @Override
+            public void overflowed() {
+                overflowed.countDown();
+            }
+        });
+
+        final char[] chars = new char[60_000];
+        Arrays.fill(chars, 'x');
+        final String message = "124!MSG#Christian:[-15987646]" + new String(chars);
+
+        boolean stalled = false;
+
+        for (int i = 0; i < 1000 && !stalled; i++) {
+            queue.offer(message);
+            stalled = !waitForEmptyQueue(queue);
+        }
+
+        assertTrue("The writer should wait for the stalled peer", stalled);
+
+        for (int i = 0; i <= TCPOutboundQueue.MAX_QUEUED_MESSAGES; i++) {
+            queue.offer(message);
+        }
+
+        assertTrue(overflowed.await(1, TimeUnit.SECONDS));
+        assertEquals(TCPOutboundQueue.MAX_QUEUED_MESSAGES, queue.getQueueDepth());
+
+        // Stops the waiting, and the rest of the messages fail right away
+        client.disconnect();
+        executor.shutdown();
+
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, queue.getQueueDepth());
+
+        outgoing.close();
+    }
+
+    private static boolean waitForEmptyQueue(final TCPOutboundQueue queue) throws InterruptedException {
+        final long timeout = System.currentTimeMillis() + 500;
+
+        while (queue.getQueueDepth() > 0) {
+            if (System.currentTimeMillis() > timeout) {
+                return false;
+            }
+
+            Thread.sleep(10);
+        }
+
+        return true;
+    }
+
+    private <T extends TCPClient> T connect(final T client) {
+        assertTrue(client.connect());
+        clients.add(client);
+
+        return client;
+    }
+
+    private static class RecordingClientListener implements TCPClientListener {
+
+        private final List<String> messages = new ArrayList<>();
+        private boolean disconnected;
+
+        RecordingClientListener(final TCPClient client) {
+            client.registerClientListener(this);
+        }
+
+        @Override
+        public synchronized void messageArrived(final String message, final TCPClient client) {
+            messages.add(message);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void disconnected(final TCPClient client) {
+            disconnected = true;
+            notifyAll();
+        }
+
+        synchronized void waitForMessages(final int count) throws InterruptedException {
+            final long timeout = System.currentTimeMillis() + 5000;
+
+            while (messages.size() < count && System.currentTimeMillis() < timeout) {
+                wait(100);
+            }
+        }
+
+        synchronized void waitForDisconnect() throws InterruptedException {
+            final long timeout = System.currentTimeMillis() + 5000;
+
+            while (!disconnected && System.currentTimeMillis() < timeout) {
+                wait(100);
+            }
+        }
+
+        synchronized List<String> getMessages() {
+            return new ArrayList<>(messages);
+        }
+
+        synchronized boolean isDisconnected() {
+            return disconnected;
+        }
+    }
+}
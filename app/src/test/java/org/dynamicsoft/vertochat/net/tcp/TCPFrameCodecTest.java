@@ -0,0 +1,287 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link TCPFrameCodec}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPFrameCodecTest {
+
+    private final TCPFrameCodec codec = new TCPFrameCodec();
+
+    @Test
+    public void writeShouldUseSameFramesAsWriteUTF() throws IOException {
+        final String message = "124!MSG#Christian:[-15987646]Hi! æøå \u0000 €";
+
+        codec.write(message);
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new DataOutputStream(expected).writeUTF(message);
+
+        assertArrayEquals(expected.toByteArray(), getWrittenBytes(codec));
+        assertFalse(codec.isWritingVarintFrames());
+    }
+
+    @Test
+    public void readShouldReadFramesFromWriteUTF() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("125!IDLE#Penny:(home)");
+        out.writeUTF("æøå 😀");
+
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+
+        assertEquals("125!IDLE#Penny:(home)", codec.read(buffer));
+        assertEquals("æøå 😀", codec.read(buffer));
+        assertNull(codec.read(buffer));
+    }
+
+    @Test
+    public void writeShouldCollectMessagesInOneBuffer() throws IOException {
+        codec.write("first");
+        codec.write("second");
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(getWrittenBytes(codec)));
+
+        assertEquals("first", in.readUTF());
+        assertEquals("second", in.readUTF());
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void writeShouldThrowExceptionIfOriginalFrameIsTooLarge() throws IOException {
+        final char[] chars = new char[32_768];
+        Arrays.fill(chars, 'ø');
+
+        try {
+            codec.write(new String(chars));
+            fail("Should throw exception");
+        } catch (final UTFDataFormatException e) {
+            assertEquals("Message too large: 65536 bytes", e.getMessage());
+        }
+
+        // 0xFFFF is the marker for switching frames, so the max is one byte less than for writeUTF
+        codec.write(new String(chars, 1, chars.length - 1));
+        assertEquals(2 + 65534, codec.getWriteBuffer().position());
+    }
+
+    @Test
+    public void writeShouldThrowExceptionIfOriginalFrameHasSameLengthAsSwitchMarker() throws IOException {
+        final char[] chars = new char[65_535];
+        Arrays.fill(chars, 'a');
+
+        try {
+            codec.write(new String(chars));
+            fail("Should throw exception");
+        } catch (final UTFDataFormatException e) {
+            assertEquals("Message too large: 65535 bytes", e.getMessage());
+        }
+
+        assertFalse(codec.hasPendingWrites());
+    }
+
+    @Test
+    public void readShouldReadLargestOriginalFrameFromWriteUTF() throws IOException {
+        final char[] chars = new char[65_534];
+        Arrays.fill(chars, 'a');
+        final String largestMessage = new String(chars);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(largestMessage);
+        out.writeUTF("after");
+
+        assertEquals(Arrays.asList(largestMessage, "after"), readInChunks(codec, bytes.toByteArray(), 1000));
+        assertFalse(codec.isWritingVarintFrames());
+    }
+
+    @Test
+    public void switchShouldSendVarintFramesAfterMarker() throws IOException {
+        codec.write("before");
+        codec.requestSwitch();
+        codec.write("after ø");
+
+        assertTrue(codec.isWritingVarintFrames());
+
+        final byte[] bytes = getWrittenBytes(codec);
+
+        assertArrayEquals(new byte[]{0, 6, 'b', 'e', 'f', 'o', 'r', 'e',
+                        (byte) 0xFF, (byte) 0xFF,
+                        8, 'a', 'f', 't', 'e', 'r', ' ', (byte) 0xC3, (byte) 0xB8},
+                bytes);
+    }
+
+    @Test
+    public void readShouldSwitchToVarintFramesAndMakeWriterSwitchToo() throws IOException {
+        final TCPFrameCodec sender = new TCPFrameCodec();
+        sender.write("SYS-IDENTIFY:124:125");
+        sender.requestSwitch();
+        sender.write("124!MSG#Christian:[-15987646]Hello 😀");
+
+        final ByteBuffer buffer = ByteBuffer.wrap(getWrittenBytes(sender));
+
+        assertEquals("SYS-IDENTIFY:124:125", codec.read(buffer));
+        assertFalse(codec.isWritingVarintFrames());
+        assertEquals("124!MSG#Christian:[-15987646]Hello 😀", codec.read(buffer));
+        assertNull(codec.read(buffer));
+
+        codec.write("125!MSG#Penny:[-15987646]Hi");
+
+        assertTrue(codec.isWritingVarintFrames());
+        assertEquals("125!MSG#Penny:[-15987646]Hi", sender.read(ByteBuffer.wrap(getWrittenBytes(codec))));
+    }
+
+    @Test
+    public void varintFramesShouldSupportMessagesLargerThan64KB() throws IOException {
+        final char[] chars = new char[100_000];
+        Arrays.fill(chars, 'ø');
+        final String largeMessage = new String(chars);
+
+        codec.requestSwitch();
+        codec.write(largeMessage);
+        codec.write("after");
+
+        assertEquals(Arrays.asList(largeMessage, "after"), readInChunks(new TCPFrameCodec(), getWrittenBytes(codec), 1000));
+    }
+
+    @Test
+    public void readShouldWaitForCompleteFramesWhenReceivedOneByteAtATime() throws IOException {
+        codec.write("original");
+        codec.requestSwitch();
+        codec.write("varint æøå");
+        codec.write("");
+
+        assertEquals(Arrays.asList("original", "varint æøå", ""), readInChunks(new TCPFrameCodec(), getWrittenBytes(codec), 1));
+    }
+
+    @Test
+    public void readShouldThrowExceptionIfVarintLengthIsTooLarge() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0x81, (byte) 0x80, (byte) 0x40});
+
+        try {
+            codec.read(buffer);
+            fail("Should throw exception");
+        } catch (final ProtocolException e) {
+            assertEquals("Invalid length: " + (1 + (1 << 20)), e.getMessage());
+        }
+    }
+
+    @Test
+    public void readShouldThrowExceptionIfVarintLengthIsTooLong() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xFF,
+                (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01});
+
+        try {
+            codec.read(buffer);
+            fail("Should throw exception");
+        } catch (final ProtocolException e) {
+            assertEquals("Invalid length", e.getMessage());
+        }
+    }
+
+    @Test
+    public void isWriteBufferFullShouldBeTrueWhenMaxPendingBytesAreWritten() throws IOException {
+        final char[] chars = new char[TCPFrameCodec.MAX_PENDING_WRITE_BYTES / 4 - 2];
+        Arrays.fill(chars, 'a');
+        final String message = new String(chars);
+
+        for (int i = 0; i < 3; i++) {
+            codec.write(message);
+        }
+
+        assertFalse(codec.isWriteBufferFull());
+
+        codec.write(message);
+
+        assertTrue(codec.isWriteBufferFull());
+        assertEquals(TCPFrameCodec.MAX_PENDING_WRITE_BYTES, codec.getWriteBuffer().position());
+
+        codec.getWriteBuffer().clear();
+
+        assertFalse(codec.isWriteBufferFull());
+    }
+
+    @Test
+    public void takeWriteBufferShouldReplaceBuffer() throws IOException {
+        final ByteBuffer emptyBuffer = ByteBuffer.allocate(10);
+
+        codec.write("first");
+        final ByteBuffer written = codec.takeWriteBuffer(emptyBuffer);
+
+        assertEquals(7, written.position());
+        assertFalse(codec.hasPendingWrites());
+        assertSame(emptyBuffer, codec.getWriteBuffer());
+
+        codec.write("second");
+
+        assertTrue(codec.hasPendingWrites());
+        assertEquals(8, emptyBuffer.position());
+    }
+
+    private List<String> readInChunks(final TCPFrameCodec reader, final byte[] bytes, final int chunkSize) throws IOException {
+        final List<String> messages = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        int position = 0;
+
+        while (position < bytes.length) {
+            final int length = Math.min(Math.min(chunkSize, buffer.remaining()), bytes.length - position);
+            buffer.put(bytes, position, length);
+            position += length;
+            buffer.flip();
+
+            String message;
+
+            while ((message = reader.read(buffer)) != null) {
+                messages.add(message);
+            }
+
+            buffer = reader.compact(buffer);
+        }
+
+        return messages;
+    }
+
+    private static byte[] getWrittenBytes(final TCPFrameCodec writer) {
+        final ByteBuffer buffer = writer.getWriteBuffer();
+
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+}
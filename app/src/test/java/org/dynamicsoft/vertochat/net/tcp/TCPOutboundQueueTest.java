@@ -0,0 +1,290 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.dynamicsoft.vertochat.net.MessageType;
+import org.dynamicsoft.vertochat.net.SendFuture;
+import org.dynamicsoft.vertochat.net.tcp.TCPOutboundQueue.OverflowPolicy;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.dynamicsoft.vertochat.net.tcp.TCPOutboundQueue.MAX_QUEUED_MESSAGES;
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link TCPOutboundQueue}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPOutboundQueueTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final ManualExecutor executor = new ManualExecutor();
+    private final RecordingWriter writer = new RecordingWriter();
+    private final TCPOutboundQueue queue = new TCPOutboundQueue(executor, writer);
+
+    @Test
+    public void constructorShouldThrowExceptionIfExecutorIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Executor can not be null");
+
+        new TCPOutboundQueue(null, writer);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfWriterIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Writer can not be null");
+
+        new TCPOutboundQueue(executor, null);
+    }
+
+    @Test
+    public void offerShouldStartOneWriterTaskForAllMessagesUntilQueueIsEmpty() {
+        assertTrue(queue.offer("124!MSG#Christian:[-15987646]Hello"));
+        assertTrue(queue.offer("124!WRITING#Christian:"));
+
+        assertEquals(1, executor.tasks.size());
+        assertEquals(2, queue.getQueueDepth());
+        assertTrue(writer.messages.isEmpty());
+
+        executor.runAll();
+
+        assertEquals(2, writer.messages.size());
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(2, queue.getMaxQueueDepth());
+        assertEquals(2, queue.getSentMessages());
+
+        assertTrue(queue.offer("124!STOPPEDWRITING#Christian:"));
+
+        assertEquals(1, executor.tasks.size());
+    }
+
+    @Test
+    public void fullQueueShouldDropOldestStaleMessageToMakeRoom() {
+        queue.offer("124!IDLE#Christian:(home)");
+        fill(MAX_QUEUED_MESSAGES - 1, "124!EXPOSING#Christian:");
+
+        assertTrue(queue.offer("124!AWAY#Christian:lunch"));
+
+        assertEquals(MAX_QUEUED_MESSAGES, queue.getQueueDepth());
+        assertEquals(1, queue.getDroppedMessages());
+
+        executor.runAll();
+
+        assertFalse(writer.messages.contains("124!IDLE#Christian:(home)"));
+        assertEquals("124!AWAY#Christian:lunch", writer.messages.get(MAX_QUEUED_MESSAGES - 1));
+    }
+
+    @Test
+    public void fullQueueShouldDropNewMessageWhenNothingCanBeDropped() {
+        fill(MAX_QUEUED_MESSAGES, "124!EXPOSING#Christian:");
+
+        assertFalse(queue.offer("124!WRITING#Christian:"));
+        assertFalse(queue.offer("124!TOPIC#Christian:(Penny)[1234]Topic"));
+
+        assertEquals(MAX_QUEUED_MESSAGES, queue.getQueueDepth());
+        assertEquals(2, queue.getDroppedMessages());
+        assertEquals(0, writer.overflows);
+    }
+
+    @Test
+    public void fullQueueShouldDropOtherMessagesToKeepChatMessages() {
+        fill(MAX_QUEUED_MESSAGES, "124!EXPOSING#Christian:");
+
+        assertTrue(queue.offer("124!MSG#Christian:[-15987646]Hello"));
+        assertTrue(queue.offer("124!PRIVMSG#Christian:(125)[-15987646]Hi"));
+
+        assertEquals(MAX_QUEUED_MESSAGES, queue.getQueueDepth());
+        assertEquals(2, queue.getDroppedMessages());
+        assertEquals(0, writer.overflows);
+    }
+
+    @Test
+    public void fullQueueOfChatMessagesShouldOverflow() {
+        fill(MAX_QUEUED_MESSAGES, "124!MSG#Christian:[-15987646]Hello");
+
+        assertFalse(queue.offer("124!MSG#Christian:[-15987646]One too many"));
+
+        assertEquals(1, writer.overflows);
+        assertEquals(1, queue.getOverflows());
+        assertEquals(0, queue.getDroppedMessages());
+    }
+
+    @Test
+    public void clearShouldDropWaitingMessages() {
+        fill(10, "124!MSG#Christian:[-15987646]Hello");
+
+        queue.clear();
+        executor.runAll();
+
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(10, queue.getDroppedMessages());
+        assertTrue(writer.messages.isEmpty());
+    }
+
+    @Test
+    public void writerTaskShouldContinueAfterException() {
+        writer.failOn = "124!WRITING#Christian:";
+
+        queue.offer("124!WRITING#Christian:");
+        queue.offer("124!STOPPEDWRITING#Christian:");
+        executor.runAll();
+
+        assertEquals(1, queue.getSentMessages());
+        assertEquals(1, queue.getFailedMessages());
+        assertTrue(writer.messages.contains("124!STOPPEDWRITING#Christian:"));
+    }
+
+    @Test
+    public void failedWritesShouldNotCountAsSent() {
+        queue.offer("124!MSG#Christian:[-15987646]Hello");
+        executor.runAll();
+
+        writer.notConnected = true;
+        queue.offer("124!MSG#Christian:[-15987646]Anyone there?");
+        queue.offer("124!WRITING#Christian:");
+        executor.runAll();
+
+        assertEquals(3, writer.messages.size());
+        assertEquals(1, queue.getSentMessages());
+        assertEquals(2, queue.getFailedMessages());
+        assertEquals(0, queue.getDroppedMessages());
+    }
+
+    @Test
+    public void submitShouldCompleteFutureWhenMessageIsWritten() {
+        final SendFuture future = queue.submit("124!MSG#Christian:[-15987646]Hello");
+
+        assertFalse(future.isDone());
+
+        executor.runAll();
+
+        assertTrue(future.isDone());
+        assertTrue(future.isSent());
+    }
+
+    @Test
+    public void submitShouldFailFutureWhenWriteFails() {
+        writer.notConnected = true;
+        final SendFuture notConnected = queue.submit("124!MSG#Christian:[-15987646]Hello");
+        writer.failOn = "124!MSG#Christian:[-15987646]Broken";
+        final SendFuture broken = queue.submit("124!MSG#Christian:[-15987646]Broken");
+
+        executor.runAll();
+
+        assertTrue(notConnected.isDone());
+        assertFalse(notConnected.isSent());
+        assertTrue(broken.isDone());
+        assertFalse(broken.isSent());
+    }
+
+    @Test
+    public void submitShouldFailFutureWhenMessageIsDropped() {
+        final SendFuture stale = queue.submit("124!IDLE#Christian:(home)");
+        fill(MAX_QUEUED_MESSAGES - 1, "124!EXPOSING#Christian:");
+        queue.offer("124!AWAY#Christian:lunch");
+
+        final SendFuture rejected = queue.submit("124!WRITING#Christian:");
+
+        assertTrue(stale.isDone());
+        assertFalse(stale.isSent());
+        assertTrue(rejected.isDone());
+        assertFalse(rejected.isSent());
+    }
+
+    @Test
+    public void clearShouldFailFuturesOfWaitingMessages() {
+        final SendFuture future = queue.submit("124!MSG#Christian:[-15987646]Hello");
+
+        queue.clear();
+
+        assertTrue(future.isDone());
+        assertFalse(future.isSent());
+    }
+
+    @Test
+    public void overflowPolicyShouldDependOnType() {
+        assertEquals(OverflowPolicy.DROP_STALE, OverflowPolicy.forType(MessageType.WRITING));
+        assertEquals(OverflowPolicy.DROP_STALE, OverflowPolicy.forType(MessageType.STOPPEDWRITING));
+        assertEquals(OverflowPolicy.DROP_STALE, OverflowPolicy.forType(MessageType.IDLE));
+        assertEquals(OverflowPolicy.DISCONNECT, OverflowPolicy.forType(MessageType.MSG));
+        assertEquals(OverflowPolicy.DISCONNECT, OverflowPolicy.forType(MessageType.PRIVMSG));
+        assertEquals(OverflowPolicy.DROP, OverflowPolicy.forType(MessageType.EXPOSING));
+        assertEquals(OverflowPolicy.DROP, OverflowPolicy.forType(MessageType.UNKNOWN));
+    }
+
+    private void fill(final int count, final String message) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(queue.offer(message));
+        }
+    }
+
+    private static class ManualExecutor implements Executor {
+
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(final Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    private static class RecordingWriter implements TCPOutboundQueue.Writer {
+
+        private final List<String> messages = new ArrayList<>();
+        private int overflows;
+        private String failOn;
+
+        private boolean notConnected;
+
+        @Override
+        public boolean write(final String message) {
+            messages.add(message);
+
+            if (message.equals(failOn)) {
+                throw new IllegalStateException("Broken");
+            }
+
+            return !notConnected;
+        }
+
+        @Override
+        public void overflowed() {
+            overflows++;
+        }
+    }
+}
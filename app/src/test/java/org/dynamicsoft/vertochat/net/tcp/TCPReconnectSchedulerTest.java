@@ -0,0 +1,160 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.dynamicsoft.vertochat.misc.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.dynamicsoft.vertochat.net.tcp.TCPReconnectScheduler.INITIAL_DELAY_MS;
+import static org.dynamicsoft.vertochat.net.tcp.TCPReconnectScheduler.MAX_DELAY_MS;
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link TCPReconnectScheduler}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPReconnectSchedulerTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final User user = new User("Penny", 125);
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    private final FixedRandom random = new FixedRandom();
+    private final RecordingReconnector reconnector = new RecordingReconnector();
+    private final TCPReconnectScheduler scheduler = new TCPReconnectScheduler(reconnector, executor, random);
+
+    @Before
+    public void setUp() {
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfReconnectorIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Reconnector can not be null");
+
+        new TCPReconnectScheduler(null);
+    }
+
+    @Test
+    public void delayShouldDoubleForEveryAttemptUpToMax() {
+        random.value = 0.999999;
+
+        assertEquals(INITIAL_DELAY_MS - 1, scheduler.getDelayMs(0), 1);
+        assertEquals(INITIAL_DELAY_MS * 2 - 1, scheduler.getDelayMs(1), 1);
+        assertEquals(INITIAL_DELAY_MS * 16 - 1, scheduler.getDelayMs(4), 1);
+        assertEquals(MAX_DELAY_MS - 1, scheduler.getDelayMs(10), 1);
+        assertEquals(MAX_DELAY_MS - 1, scheduler.getDelayMs(Integer.MAX_VALUE), 1);
+    }
+
+    @Test
+    public void delayShouldBeAtLeastHalfOfTheExponentialDelay() {
+        random.value = 0;
+
+        assertEquals(INITIAL_DELAY_MS / 2, scheduler.getDelayMs(0));
+        assertEquals(INITIAL_DELAY_MS * 4, scheduler.getDelayMs(3));
+        assertEquals(MAX_DELAY_MS / 2, scheduler.getDelayMs(20));
+    }
+
+    @Test
+    public void connectionLostShouldScheduleOneReconnectAtATime() {
+        scheduler.connectionLost(user);
+        scheduler.connectionLost(user);
+
+        assertEquals(1, scheduler.getAttempts(user));
+        assertEquals(1, executor.getQueue().size());
+    }
+
+    @Test
+    public void connectedShouldResetBackoffAndCancelWaitingReconnect() {
+        scheduler.connectionLost(user);
+        scheduler.connected(user);
+
+        assertEquals(0, scheduler.getAttempts(user));
+        assertEquals(0, executor.getQueue().size());
+    }
+
+    @Test
+    public void cancelAllShouldCancelEveryWaitingReconnect() {
+        scheduler.connectionLost(user);
+        scheduler.connectionLost(new User("Christian", 124));
+
+        scheduler.cancelAll();
+
+        assertEquals(0, scheduler.getAttempts(user));
+        assertEquals(0, executor.getQueue().size());
+    }
+
+    @Test
+    public void reconnectShouldBeCalledAfterDelayAndFailedAttemptShouldIncreaseBackoff() throws InterruptedException {
+        random.value = 0;
+
+        scheduler.connectionLost(user);
+
+        assertTrue(reconnector.latch.await(5, TimeUnit.SECONDS));
+        assertSame(user, reconnector.user);
+
+        scheduler.connectFailed(user);
+
+        assertEquals(2, scheduler.getAttempts(user));
+        assertEquals(1, executor.getQueue().size());
+    }
+
+    private static class FixedRandom extends Random {
+
+        private double value = 0.5;
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+
+    private static class RecordingReconnector implements TCPReconnectScheduler.Reconnector {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile User user;
+
+        @Override
+        public void reconnect(final User theUser) {
+            user = theUser;
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link TCPSelectorLoop}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPSelectorLoopTest {
+
+    private final TCPSelectorLoop selectorLoop = new TCPSelectorLoop();
+
+    @After
+    public void tearDown() {
+        selectorLoop.stop();
+    }
+
+    @Test
+    public void executeShouldRunTaskOnLoopThread() throws IOException, InterruptedException {
+        selectorLoop.start();
+
+        final Thread loopThread = getLoopThread();
+
+        assertNotSame(Thread.currentThread(), loopThread);
+        assertEquals("TCPSelectorLoop", loopThread.getName());
+        assertFalse(selectorLoop.isLoopThread());
+    }
+
+    @Test
+    public void stopShouldEndLoopThreadAndCloseSelector() throws IOException, InterruptedException {
+        selectorLoop.start();
+
+        final Thread loopThread = getLoopThread();
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        final SelectionKey key = register(channel);
+
+        selectorLoop.stop();
+
+        assertFalse(loopThread.isAlive());
+        assertFalse(key.isValid());
+        assertFalse(key.selector().isOpen());
+        assertTrue(channel.isOpen());
+
+        try {
+            selectorLoop.register(channel, SelectionKey.OP_ACCEPT, null);
+            fail("Should throw exception");
+        } catch (final ClosedChannelException e) {
+            // Expected
+        }
+
+        channel.close();
+    }
+
+    @Test
+    public void stopShouldDoNothingWhenNotStarted() {
+        selectorLoop.stop();
+        selectorLoop.stop();
+    }
+
+    @Test
+    public void startShouldWorkAgainAfterStop() throws IOException, InterruptedException {
+        selectorLoop.start();
+        final Thread firstLoopThread = getLoopThread();
+
+        selectorLoop.stop();
+        selectorLoop.start();
+        final Thread secondLoopThread = getLoopThread();
+
+        assertNotSame(firstLoopThread, secondLoopThread);
+        assertFalse(firstLoopThread.isAlive());
+        assertTrue(secondLoopThread.isAlive());
+    }
+
+    private Thread getLoopThread() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Thread> loopThread = new AtomicReference<>();
+
+        selectorLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                assertTrue(selectorLoop.isLoopThread());
+                loopThread.set(Thread.currentThread());
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+
+        return loopThread.get();
+    }
+
+    private SelectionKey register(final ServerSocketChannel channel) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<SelectionKey> key = new AtomicReference<>();
+
+        selectorLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    key.set(selectorLoop.register(channel, SelectionKey.OP_ACCEPT, null));
+                } catch (final IOException e) {
+                    throw new RuntimeException(e);
+                }
+
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+
+        return key.get();
+    }
+}
@@ -0,0 +1,183 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.dynamicsoft.vertochat.misc.User;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of {@link TCPUserClient}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPUserClientTest {
+
+    private final User user = new User("Penny", 125);
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    private final TCPReconnectScheduler reconnectScheduler = new TCPReconnectScheduler(
+            new TCPReconnectScheduler.Reconnector() {
+                @Override
+                public void reconnect(final User theUser) {
+
+                }
+            }, executor, new Random(1));
+
+    private final FakeClient cableClient = new FakeClient("10.0.0.5");
+    private final FakeClient wirelessClient = new FakeClient("192.168.1.5");
+
+    private TCPUserClient userClient;
+
+    @Before
+    public void setUp() {
+        userClient = new TCPUserClient(cableClient, user, new TCPReceiverListener() {
+            @Override
+            public void messageArrived(final String message, final String ipAddress, final User theUser) {
+
+            }
+        }, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                command.run();
+            }
+        }, reconnectScheduler);
+
+        userClient.add(wirelessClient);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void disconnectUnroutableClientsShouldOnlyDisconnectClientsBoundToAddressesThatAreGone() {
+        assertEquals(1, userClient.disconnectUnroutableClients(new HashSet<>(Arrays.asList("192.168.1.5", "10.0.0.6"))));
+
+        assertFalse(cableClient.isConnected());
+        assertNull(cableClient.clientListener);
+        assertTrue(wirelessClient.isConnected());
+        assertSame(userClient, wirelessClient.clientListener);
+
+        assertEquals(1, userClient.getClientCount());
+        assertTrue(user.isTcpEnabled());
+    }
+
+    @Test
+    public void disconnectUnroutableClientsShouldNotAskForReconnectWhenAllAreGone() {
+        assertEquals(2, userClient.disconnectUnroutableClients(Collections.singleton("172.16.0.5")));
+
+        assertEquals(0, userClient.getClientCount());
+        assertFalse(user.isTcpEnabled());
+        assertEquals(0, reconnectScheduler.getAttempts(user));
+    }
+
+    @Test
+    public void disconnectUnroutableClientsShouldKeepClientsWhenAddressesAreThere() {
+        assertEquals(0, userClient.disconnectUnroutableClients(new HashSet<>(Arrays.asList("10.0.0.5", "192.168.1.5"))));
+
+        assertEquals(2, userClient.getClientCount());
+        assertTrue(cableClient.isConnected());
+        assertTrue(wirelessClient.isConnected());
+    }
+
+    private static class FakeClient implements TCPClient {
+
+        private final String localIpAddress;
+
+        @Nullable
+        private TCPClientListener clientListener;
+
+        private boolean connected = true;
+        private boolean disconnecting;
+
+        FakeClient(final String localIpAddress) {
+            this.localIpAddress = localIpAddress;
+        }
+
+        @Override
+        public boolean send(final String message) {
+            return connected;
+        }
+
+        @Override
+        public void switchToVarintFrames() {
+
+        }
+
+        @Override
+        public boolean connect() {
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+            connected = false;
+
+            if (clientListener != null) {
+                clientListener.disconnected(this);
+            }
+        }
+
+        @Override
+        public String getIPAddress() {
+            return "10.0.0.100";
+        }
+
+        @Override
+        public String getLocalIPAddress() {
+            return localIpAddress;
+        }
+
+        @Override
+        public void registerClientListener(@Nullable final TCPClientListener theClientListener) {
+            clientListener = theClientListener;
+        }
+
+        @Override
+        public boolean isDisconnecting() {
+            return disconnecting;
+        }
+
+        @Override
+        public void setDisconnecting(final boolean isDisconnecting) {
+            disconnecting = isDisconnecting;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package org.dynamicsoft.vertochat.net.tcp;
+
+import org.dynamicsoft.vertochat.junit.ExpectedException;
+import org.dynamicsoft.vertochat.misc.Controller;
+import org.dynamicsoft.vertochat.misc.User;
+import org.dynamicsoft.vertochat.net.ResultFuture;
+import org.dynamicsoft.vertochat.settings.Settings;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test of {@link TCPUserIdentifier}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPUserIdentifierTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private Controller controller;
+    private Settings settings;
+    private User penny;
+    private FakeClient client;
+    private TCPUserIdentifier identifier;
+
+    @Before
+    public void setUp() {
+        controller = mock(Controller.class);
+        settings = new Settings();
+
+        penny = new User("Penny", 125);
+        penny.setIpAddress("10.0.0.100");
+        when(controller.getUser(125)).thenReturn(penny);
+
+        client = new FakeClient();
+        identifier = new TCPUserIdentifier(controller, settings, client);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfControllerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Controller can not be null");
+
+        new TCPUserIdentifier(null, settings, client);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfSettingsIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Settings can not be null");
+
+        new TCPUserIdentifier(controller, null, client);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfClientIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Client can not be null");
+
+        new TCPUserIdentifier(controller, settings, null);
+    }
+
+    @Test
+    public void constructorShouldListenToClient() {
+        assertSame(identifier, client.clientListener);
+        assertFalse(identifier.getUser().isDone());
+    }
+
+    @Test
+    public void messageArrivedShouldIdentifyKnownUser() {
+        identify("SYS-IDENTIFY:125:" + settings.getMe().getCode());
+
+        final ResultFuture<User> user = identifier.getUser();
+
+        assertTrue(user.isDone());
+        assertSame(penny, user.getResult());
+        assertNull(client.clientListener);
+    }
+
+    @Test
+    public void messageArrivedShouldNotIdentifyUnknownUser() {
+        identify("SYS-IDENTIFY:126:" + settings.getMe().getCode());
+
+        assertTrue(identifier.getUser().isDone());
+        assertNull(identifier.getUser().getResult());
+        assertNull(client.clientListener);
+    }
+
+    @Test
+    public void messageArrivedShouldNotIdentifyUserWhenMeantForAnotherRecipient() {
+        identify("SYS-IDENTIFY:125:" + (settings.getMe().getCode() + 1));
+
+        assertTrue(identifier.getUser().isDone());
+        assertNull(identifier.getUser().getResult());
+    }
+
+    @Test
+    public void messageArrivedShouldNotIdentifyUserConnectingFromAnotherIpAddress() {
+        penny.setIpAddress("10.0.0.200");
+
+        identify("SYS-IDENTIFY:125:" + settings.getMe().getCode());
+
+        assertTrue(identifier.getUser().isDone());
+        assertNull(identifier.getUser().getResult());
+    }
+
+    @Test
+    public void messageArrivedShouldNotIdentifyUserFromOtherMessages() {
+        identify("125!MSG#Penny:[-15987646]Hello");
+
+        assertTrue(identifier.getUser().isDone());
+        assertNull(identifier.getUser().getResult());
+    }
+
+    @Test
+    public void disconnectedShouldCompleteWithoutUser() {
+        identifier.disconnected(client);
+
+        assertTrue(identifier.getUser().isDone());
+        assertNull(identifier.getUser().getResult());
+        assertNull(client.clientListener);
+    }
+
+    @Test
+    public void timeoutShouldGiveUpWhenNotIdentified() {
+        assertTrue(identifier.timeout());
+
+        assertTrue(identifier.getUser().isDone());
+        assertNull(identifier.getUser().getResult());
+        assertNull(client.clientListener);
+
+        // The identification is too late
+        identifier.messageArrived("SYS-IDENTIFY:125:" + settings.getMe().getCode(), client);
+
+        assertNull(identifier.getUser().getResult());
+    }
+
+    @Test
+    public void timeoutShouldDoNothingWhenAlreadyIdentified() {
+        identify("SYS-IDENTIFY:125:" + settings.getMe().getCode());
+
+        assertFalse(identifier.timeout());
+
+        assertSame(penny, identifier.getUser().getResult());
+    }
+
+    private void identify(final String message) {
+        assertNotNull(client.clientListener);
+        client.clientListener.messageArrived(message, client);
+    }
+
+    private static class FakeClient implements TCPClient {
+
+        @Nullable
+        private TCPClientListener clientListener;
+
+        @Override
+        public boolean send(final String message) {
+            return true;
+        }
+
+        @Override
+        public void switchToVarintFrames() {
+
+        }
+
+        @Override
+        public boolean connect() {
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+
+        }
+
+        @Override
+        public String getIPAddress() {
+            return "10.0.0.100";
+        }
+
+        @Override
+        public String getLocalIPAddress() {
+            return "10.0.0.5";
+        }
+
+        @Override
+        public void registerClientListener(@Nullable final TCPClientListener theClientListener) {
+            clientListener = theClientListener;
+        }
+
+        @Override
+        public boolean isDisconnecting() {
+            return false;
+        }
+
+        @Override
+        public void setDisconnecting(final boolean isDisconnecting) {
+
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+    }
+}
@@ -68,6 +68,15 @@ public class SettingsTest {
         assertNull(settings.getNetworkInterface());
 
         assertFalse(settings.isNoPrivateChat());
+        assertFalse(settings.isSelectorTcp());
+        assertFalse(settings.isReliableMulticast());
+        assertFalse(settings.isForwardErrorCorrection());
+        assertFalse(settings.isMultiInterfaceMulticast());
+        assertFalse(settings.isNetworkHandover());
+        assertFalse(settings.isAdaptiveTransport());
+        assertEquals(0, settings.getSendPacketRate());
+        assertEquals(0, settings.getSendByteRate());
+        assertFalse(settings.isFloodProtection());
         assertFalse(settings.isAlwaysLog());
         assertEquals(Constants.APP_LOG_FOLDER, settings.getLogLocation());
     }
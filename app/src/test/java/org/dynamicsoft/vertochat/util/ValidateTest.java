@@ -76,4 +76,17 @@ public class ValidateTest {
 
         Validate.notEmpty(" ", "This is the message");
     }
+
+    @Test
+    public void isTrueShouldDoNothingIfConditionIsTrue() {
+        Validate.isTrue(true, "No exception");
+    }
+
+    @Test
+    public void isTrueShouldThrowExceptionIfConditionIsFalse() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("This is the message");
+
+        Validate.isTrue(false, "This is the message");
+    }
 }